@@ -0,0 +1,173 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.util.*;
+
+/**
+ * Index of the "bricks" (cubic tiles, e.g. 32x32x32 voxels) of a
+ * volume file, and of their download state. Bricks are aligned to
+ * the file's voxel grid, and all the coordinates used here are in
+ * <em>file</em> dimension order (as for the slabs passed to
+ * <code>Data3DVolume._saveSlab</code>); the bricks on the "far"
+ * edges are smaller if the volume size is not a multiple of the
+ * brick size.
+ * <p>
+ * On the server, brick (b0,b1,b2) is expected in the file
+ * <code>base/bricks/b0_b1_b2.ext</code> (where base and ext are
+ * obtained from the volume file name the same way as for the slice
+ * files), holding the brick's voxels in file order.
+ *
+ * @version $Id$
+ */
+public final class BrickIndex {
+
+    /** brick edge length, in voxels */
+    /*private*/ final int 	brick_size;
+    /** volume size, in file order */
+    /*private*/ final int[] 	sizes;
+    /** number of bricks along each dimension, in file order */
+    /*private*/ final int[] 	counts;
+
+    /** brick was downloaded and saved */
+    /*private*/ final BitSet 	loaded;
+    /** number of loaded bricks in each brick "layer", ie in each
+	plane of bricks orthogonal to file dimension d */
+    /*private*/ final int[][] 	loaded_in_layer;
+
+    /**
+     * @param file_sizes volume size in file dimension order
+     * @param brick_size brick edge length, in voxels
+     */
+    public BrickIndex( int[] file_sizes, int brick_size) {
+
+	if( brick_size <= 0)
+	    throw new IllegalArgumentException( "invalid brick size: " + brick_size);
+	this.brick_size= brick_size;
+	sizes= new int[ 3];
+	counts= new int[ 3];
+	loaded_in_layer= new int[ 3][];
+	for( int d= 0; d < 3; ++d) {
+	    sizes[ d]= file_sizes[ d];
+	    counts[ d]= (file_sizes[ d] + brick_size - 1) / brick_size;
+	    loaded_in_layer[ d]= new int[ counts[ d]];
+	}
+	loaded= new BitSet( getBrickCount());
+    }
+
+    final public int getBrickSize() { return brick_size; }
+
+    final public int getBrickCount() { return counts[ 0] * counts[ 1] * counts[ 2]; }
+
+    /** @return number of bricks along file dimension d */
+    final public int getCount( int d) { return counts[ d]; }
+
+    /** @return the brick number (a unique, 0-based, id) */
+    final public int brickNumber( int b0, int b1, int b2) {
+	return (b0 * counts[ 1] + b1) * counts[ 2] + b2;
+    }
+
+    /** @return the brick coordinates (b0,b1,b2) of brick number 'brick' */
+    final public int[] brickCoords( int brick) {
+	return new int[] { brick / (counts[ 1] * counts[ 2]),
+			   (brick / counts[ 2]) % counts[ 1],
+			   brick % counts[ 2] };
+    }
+
+    /** Computes the voxel extent of brick number 'brick' (in file order).
+	@param start Output: first voxel along each dimension
+	@param size Output: voxel count along each dimension
+    */
+    final public void getExtent( int brick, int[] start, int[] size) {
+
+	int[] b= brickCoords( brick);
+	for( int d= 0; d < 3; ++d) {
+	    start[ d]= b[ d] * brick_size;
+	    size[ d]= Math.min( brick_size, sizes[ d] - start[ d]);
+	}
+    }
+
+    /** @return the name of the brick file, without the base and extension */
+    final public String getFileName( int brick) {
+
+	int[] b= brickCoords( brick);
+	return b[ 0] + "_" + b[ 1] + "_" + b[ 2];
+    }
+
+    /**
+     * Lists the bricks intersecting a (part of a) slice of the file.
+     *
+     * @param ortho file dimension orthogonal to the slice
+     * @param slice_no voxel coordinate of the slice along 'ortho'
+     * @param low first voxel of interest, along each of the 2 other
+     * file dimensions (the value at index 'ortho' is ignored)
+     * @param high last voxel of interest (inclusive), same convention
+     * as for 'low'
+     * @return brick numbers, as Integer-s
+     */
+    final public Vector getBricks( int ortho, int slice_no, int[] low, int[] high) {
+
+	int[] first= new int[ 3];
+	int[] last= new int[ 3];
+	for( int d= 0; d < 3; ++d) {
+	    if( d == ortho)
+		first[ d]= last[ d]= slice_no / brick_size;
+	    else {
+		first[ d]= Math.max( 0, low[ d]) / brick_size;
+		last[ d]= Math.min( sizes[ d] - 1, high[ d]) / brick_size;
+	    }
+	}
+	Vector result= new Vector();
+	for( int b0= first[ 0]; b0 <= last[ 0]; ++b0)
+	    for( int b1= first[ 1]; b1 <= last[ 1]; ++b1)
+		for( int b2= first[ 2]; b2 <= last[ 2]; ++b2)
+		    result.addElement( new Integer( brickNumber( b0, b1, b2)));
+	return result;
+    }
+
+    final public synchronized boolean isLoaded( int brick) {
+	return loaded.get( brick);
+    }
+
+    /**
+     * Marks the brick as loaded.
+     *
+     * @return for each file dimension d, true if this completed its
+     * layer of bricks orthogonal to d (i.e. all the slices orthogonal
+     * to d crossing this brick are now fully loaded)
+     */
+    final public synchronized boolean[] setLoaded( int brick) {
+
+	boolean[] completed= new boolean[ 3];
+	if( loaded.get( brick))
+	    return completed;
+	loaded.set( brick);
+	int[] b= brickCoords( brick);
+	for( int d= 0; d < 3; ++d) {
+	    int layer_size= getBrickCount() / counts[ d];
+	    completed[ d]= ++loaded_in_layer[ d][ b[ d]] == layer_size;
+	}
+	return completed;
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Reader for the chunked volume files (extension <code>.jcv</code>):
+ * a compressed volume that, unlike a <code>.gz</code> one, can be
+ * read in parts and decompressed on several processors.
+ * <p>
+ * The volume is cut into "chunks" of consecutive slices along the
+ * first file dimension, and each chunk is compressed separately
+ * (raw deflate). The file layout is (all numbers big-endian):
+ * <pre>
+ *   "JIV2CHNK"                     magic (8 bytes)
+ *   int    version                 (1)
+ *   int    size_0, size_1, size_2  volume size, in file order
+ *   int    chunk_slices            slices per chunk (the last chunk can have less)
+ *   int    n_chunks
+ *   n_chunks x { long offset, int length }   where each chunk is in the file
+ *   chunk data ...
+ * </pre>
+ * The voxels within a chunk are in file order, as in a
+ * <code>.raw_byte</code> file.
+ *
+ * @version $Id$
+ * @see ChunkedVolumeWriter
+ */
+public final class ChunkedVolume {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    public static final String		EXTENSION= ".jcv";
+    /*private*/ static final byte[]	MAGIC= { 'J', 'I', 'V', '2', 'C', 'H', 'N', 'K' };
+    /*private*/ static final int	VERSION= 1;
+    /** size of the fixed part of the header, in bytes */
+    /*private*/ static final int	HEADER_SIZE= 8 + 6 * 4;
+    /** size of one index entry, in bytes */
+    /*private*/ static final int	INDEX_ENTRY_SIZE= 8 + 4;
+
+    /** shared by all the volumes, for decompressing chunks in parallel */
+    /*private*/ static ExecutorService	inflaters;
+
+    /*private*/ final URL		source_url;
+    /** volume size, in file order */
+    /*private*/ final int[]		sizes= new int[ 3];
+    /*private*/ int			chunk_slices;
+    /** where each chunk starts in the file */
+    /*private*/ long[]			chunk_offset;
+    /** compressed size of each chunk */
+    /*private*/ int[]			chunk_length;
+
+    /** Reads the header and the chunk index of a chunked volume file. */
+    public ChunkedVolume( URL source_url)
+	throws IOException, SecurityException
+    {
+	this.source_url= source_url;
+
+	DataInputStream in= new DataInputStream( Util.openURLRange( source_url, 0, HEADER_SIZE));
+	int n_chunks;
+	try {
+	    byte[] magic= new byte[ MAGIC.length];
+	    in.readFully( magic);
+	    if( !Arrays.equals( magic, MAGIC))
+		throw new IOException( source_url + " : not a chunked volume file");
+	    int version= in.readInt();
+	    if( version != VERSION)
+		throw new IOException( source_url + " : unsupported version " + version);
+	    for( int d= 0; d < 3; ++d)
+		sizes[ d]= in.readInt();
+	    chunk_slices= in.readInt();
+	    n_chunks= in.readInt();
+	}
+	finally {
+	    in.close();
+	}
+	if( chunk_slices <= 0 ||
+	    n_chunks != (sizes[ 0] + chunk_slices - 1) / chunk_slices)
+	    throw new IOException( source_url + " : corrupted header");
+
+	chunk_offset= new long[ n_chunks];
+	chunk_length= new int[ n_chunks];
+	in= new DataInputStream( new BufferedInputStream(
+	    Util.openURLRange( source_url, HEADER_SIZE, n_chunks * INDEX_ENTRY_SIZE)));
+	try {
+	    for( int c= 0; c < n_chunks; ++c) {
+		chunk_offset[ c]= in.readLong();
+		chunk_length[ c]= in.readInt();
+	    }
+	}
+	finally {
+	    in.close();
+	}
+	if( DEBUG) System.out.println( source_url + " : " + n_chunks + " chunks of " +
+				       chunk_slices + " slices");
+    }
+
+    /** @return volume size, in file order */
+    final public int[] getSizes() { return (int[])sizes.clone(); }
+
+    final public int getChunkCount() { return chunk_offset.length; }
+
+    /** @return number of slices (along the first file dimension) per chunk */
+    final public int getChunkSlices() { return chunk_slices; }
+
+    /** @return the chunk holding slice 'slice_no' (along the first
+	file dimension) */
+    final public int getChunk( int slice_no) { return slice_no / chunk_slices; }
+
+    /** @return number of slices in chunk 'chunk' */
+    final public int getSliceCount( int chunk) {
+	return Math.min( chunk_slices, sizes[ 0] - chunk * chunk_slices);
+    }
+
+    /**
+     * Downloads consecutive chunks (with one request), and
+     * decompresses them in parallel.
+     *
+     * @param first first chunk
+     * @param count number of chunks
+     * @return the decompressed chunks
+     */
+    final public byte[][] readChunks( int first, int count)
+	throws IOException, SecurityException
+    {
+	final long start= chunk_offset[ first];
+	final long end= chunk_offset[ first + count - 1] + chunk_length[ first + count - 1];
+	InputStream in= Util.openURLRange( source_url, start, end - start);
+	try {
+	    return readChunks( in, first, count);
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Reads consecutive chunks from a stream positioned at the start
+     * of chunk 'first', and decompresses them in parallel.
+     */
+    final public byte[][] readChunks( InputStream in, int first, int count)
+	throws IOException
+    {
+	Future[] results= new Future[ count];
+	try {
+	    for( int i= 0; i < count; ++i) {
+		final int c= first + i;
+		if( i > 0 && chunk_offset[ c] != chunk_offset[ c - 1] + chunk_length[ c - 1])
+		    throw new IOException( source_url + " : chunks are not contiguous");
+		final byte[] compressed= new byte[ chunk_length[ c]];
+		_readFully( in, compressed);
+		results[ i]= _getInflaters().submit( new Callable() {
+			public Object call() throws IOException {
+			    return _inflate( compressed, c);
+			}
+		    });
+	    }
+	    byte[][] chunks= new byte[ count][];
+	    for( int i= 0; i < count; ++i)
+		chunks[ i]= (byte[])results[ i].get();
+	    return chunks;
+	}
+	catch( InterruptedException e) {
+	    throw new InterruptedIOException( source_url + " : interrupted");
+	}
+	catch( ExecutionException e) {
+	    Throwable cause= e.getCause();
+	    if( cause instanceof IOException)
+		throw (IOException)cause;
+	    throw new IOException( source_url + " : " + cause);
+	}
+	finally {
+	    for( int i= 0; i < count; ++i)
+		if( results[ i] != null)
+		    results[ i].cancel( false);
+	}
+    }
+
+    /** Reads (and decompresses in parallel) the whole volume, chunk
+	by chunk, in file order.
+	@param consumer called with each chunk, in order */
+    final public void readAll( ChunkConsumer consumer)
+	throws IOException, SecurityException
+    {
+	// enough chunks in flight to keep all the processors busy
+	final int batch= 2 * Runtime.getRuntime().availableProcessors();
+	InputStream in= Util.openURLRange( source_url, chunk_offset[ 0],
+					   chunk_offset[ getChunkCount() - 1] +
+					   chunk_length[ getChunkCount() - 1] - chunk_offset[ 0]);
+	try {
+	    for( int first= 0; first < getChunkCount(); first += batch) {
+		int count= Math.min( batch, getChunkCount() - first);
+		byte[][] chunks= readChunks( in, first, count);
+		for( int i= 0; i < count; ++i)
+		    consumer.chunkRead( first + i, chunks[ i]);
+	    }
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    /** Receives the chunks read by <code>readAll</code>. */
+    public interface ChunkConsumer {
+	void chunkRead( int chunk, byte[] data) throws IOException;
+    }
+
+    final /*private*/ byte[] _inflate( byte[] compressed, int chunk)
+	throws IOException
+    {
+	byte[] data= new byte[ getSliceCount( chunk) * sizes[ 1] * sizes[ 2]];
+	Inflater inflater= new Inflater( true);
+	try {
+	    inflater.setInput( compressed);
+	    int done= 0;
+	    while( done < data.length) {
+		int n= inflater.inflate( data, done, data.length - done);
+		if( 0 == n && ( inflater.finished() || inflater.needsInput()))
+		    throw new IOException( source_url + " : chunk " + chunk + " is truncated");
+		done += n;
+	    }
+	}
+	catch( DataFormatException e) {
+	    throw new IOException( source_url + " : chunk " + chunk + " : " + e.getMessage());
+	}
+	finally {
+	    inflater.end();
+	}
+	return data;
+    }
+
+    final static /*private*/ void _readFully( InputStream in, byte[] buff)
+	throws IOException
+    {
+	for( int done= 0; done < buff.length; ) {
+	    int n= in.read( buff, done, buff.length - done);
+	    if( n <= 0)
+		throw new EOFException( "premature end of data");
+	    done += n;
+	}
+    }
+
+    static synchronized final /*private*/ ExecutorService _getInflaters() {
+
+	if( null == inflaters)
+	    inflaters= Executors.newFixedThreadPool(
+		Runtime.getRuntime().availableProcessors(),
+		new ThreadFactory() {
+		    public Thread newThread( Runnable r) {
+			Thread t= new Thread( r, "inflater");
+			t.setDaemon( true);
+			return t;
+		    }
+		});
+	return inflaters;
+    }
+
+    public String toString() {
+	return "ChunkedVolume[" + source_url + "]";
+    }
+
+}
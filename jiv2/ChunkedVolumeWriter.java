@@ -0,0 +1,326 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.io.*;
+import java.net.*;
+import java.util.zip.*;
+
+/**
+ * Command-line tool that prepares a volume for JIV2: from a byte
+ * volume file and its header (as made by <code>minctojiv2</code>, or
+ * any other way) it writes the chunked volume file, and optionally
+ * the slice files and the brick files used by the on-demand
+ * downloads, and the preview levels. Usage:
+ * <pre>
+ *   java jiv2.ChunkedVolumeWriter [options] file.header file.raw_byte[.gz] output_dir
+ *
+ *   -chunk N    slices per chunk (default 8)
+ *   -slices     also write the slice files
+ *   -bricks N   also write bricks of N voxels on a side
+ *   -pyramid    also write the preview levels (see VolumePyramid)
+ *   -gzip       compress the slice, brick and preview files
+ * </pre>
+ *
+ * @version $Id$
+ * @see ChunkedVolume
+ */
+public final class ChunkedVolumeWriter {
+
+    /*private*/ static final String	RAW_EXTENSION= ".raw_byte";
+    /*private*/ static final String	HEADER_EXTENSION= ".header";
+    /** indexed by the file dimension orthogonal to the slice (as in
+	minctojiv2) */
+    /*private*/ static final String[]	SLICE_DIRNAME= { "12", "02", "01" };
+
+    /** volume size, in file order */
+    /*private*/ final int[]	sizes;
+    /** the voxels, in file order */
+    /*private*/ final byte[]	data;
+
+    public ChunkedVolumeWriter( int[] file_sizes, byte[] data) {
+
+	sizes= (int[])file_sizes.clone();
+	if( (long)sizes[ 0] * sizes[ 1] * sizes[ 2] != data.length)
+	    throw new IllegalArgumentException( "volume size mismatch: " + data.length);
+	this.data= data;
+    }
+
+    /** Writes the chunked volume file. */
+    final public void writeChunked( File file, int chunk_slices)
+	throws IOException
+    {
+	if( chunk_slices <= 0)
+	    throw new IllegalArgumentException( "invalid chunk size: " + chunk_slices);
+	final int slice_size= sizes[ 1] * sizes[ 2];
+	final int n_chunks= (sizes[ 0] + chunk_slices - 1) / chunk_slices;
+
+	RandomAccessFile out= new RandomAccessFile( file, "rw");
+	try {
+	    out.setLength( 0);
+	    out.write( ChunkedVolume.MAGIC);
+	    out.writeInt( ChunkedVolume.VERSION);
+	    for( int d= 0; d < 3; ++d)
+		out.writeInt( sizes[ d]);
+	    out.writeInt( chunk_slices);
+	    out.writeInt( n_chunks);
+	    // the index is filled in as we go
+	    final long index_start= out.getFilePointer();
+	    long offset= index_start + (long)n_chunks * ChunkedVolume.INDEX_ENTRY_SIZE;
+
+	    byte[] buff= new byte[ 64 * 1024];
+	    Deflater deflater= new Deflater( Deflater.BEST_COMPRESSION, true);
+	    try {
+		for( int c= 0; c < n_chunks; ++c) {
+		    int first= c * chunk_slices;
+		    int count= Math.min( chunk_slices, sizes[ 0] - first);
+		    deflater.reset();
+		    deflater.setInput( data, first * slice_size, count * slice_size);
+		    deflater.finish();
+		    out.seek( offset);
+		    int length= 0;
+		    while( !deflater.finished()) {
+			int n= deflater.deflate( buff);
+			out.write( buff, 0, n);
+			length += n;
+		    }
+		    out.seek( index_start + (long)c * ChunkedVolume.INDEX_ENTRY_SIZE);
+		    out.writeLong( offset);
+		    out.writeInt( length);
+		    offset += length;
+		}
+	    }
+	    finally {
+		deflater.end();
+	    }
+	}
+	finally {
+	    out.close();
+	}
+    }
+
+    /** Writes the slice files (the three orientations), in
+	<code>dir/12</code>, <code>dir/02</code> and <code>dir/01</code>. */
+    final public void writeSlices( File dir, boolean gzip)
+	throws IOException
+    {
+	for( int ortho= 0; ortho < 3; ++ortho) {
+	    File slice_dir= new File( dir, SLICE_DIRNAME[ ortho]);
+	    slice_dir.mkdirs();
+	    int[] start= new int[ 3];
+	    int[] count= (int[])sizes.clone();
+	    count[ ortho]= 1;
+	    for( int s= 0; s < sizes[ ortho]; ++s) {
+		start[ ortho]= s;
+		_writeBlock( new File( slice_dir, s + RAW_EXTENSION + (gzip ? ".gz" : "")),
+			     start, count, gzip);
+	    }
+	}
+    }
+
+    /** Writes the brick files, in <code>dir/bricks</code> (see
+	<code>BrickIndex</code>). */
+    final public void writeBricks( File dir, int brick_size, boolean gzip)
+	throws IOException
+    {
+	File brick_dir= new File( dir, "bricks");
+	brick_dir.mkdirs();
+	BrickIndex index= new BrickIndex( sizes, brick_size);
+	int[] start= new int[ 3];
+	int[] count= new int[ 3];
+	for( int b= 0; b < index.getBrickCount(); ++b) {
+	    index.getExtent( b, start, count);
+	    _writeBlock( new File( brick_dir, index.getFileName( b) + RAW_EXTENSION +
+				   (gzip ? ".gz" : "")),
+			 start, count, gzip);
+	}
+    }
+
+    /** Writes the preview levels, in <code>dir/pyramid</code> (see
+	<code>VolumePyramid</code>): each voxel of level f is the mean
+	of an f x f x f block of voxels. */
+    final public void writePyramid( File dir, boolean gzip)
+	throws IOException
+    {
+	File pyramid_dir= new File( dir, VolumePyramid.DIRNAME);
+	pyramid_dir.mkdirs();
+	for( int l= 0; l < VolumePyramid.FACTORS.length; ++l) {
+	    final int f= VolumePyramid.FACTORS[ l];
+	    final int[] level_sizes= VolumePyramid.getLevelSizes( sizes, f);
+	    byte[] level= new byte[ level_sizes[ 0] * level_sizes[ 1] * level_sizes[ 2]];
+	    int i= 0;
+	    for( int j0= 0; j0 < level_sizes[ 0]; ++j0)
+		for( int j1= 0; j1 < level_sizes[ 1]; ++j1)
+		    for( int j2= 0; j2 < level_sizes[ 2]; ++j2) {
+			long sum= 0;
+			int count= 0;
+			for( int i0= j0 * f; i0 < Math.min( (j0 + 1) * f, sizes[ 0]); ++i0)
+			    for( int i1= j1 * f; i1 < Math.min( (j1 + 1) * f, sizes[ 1]); ++i1) {
+				int row= (i0 * sizes[ 1] + i1) * sizes[ 2];
+				for( int i2= j2 * f; i2 < Math.min( (j2 + 1) * f, sizes[ 2]); ++i2) {
+				    sum += data[ row + i2] & 0xFF;
+				    ++count;
+				}
+			    }
+			level[ i++]= (byte)( (sum + count / 2) / count);
+		    }
+	    File file= new File( dir, VolumePyramid.getFileName( f, RAW_EXTENSION + 
+								  (gzip ? ".gz" : "")));
+	    OutputStream out= new BufferedOutputStream( new FileOutputStream( file));
+	    if( gzip)
+		out= new GZIPOutputStream( out);
+	    try {
+		out.write( level);
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+    }
+
+    /** Writes a box of voxels (in file order) to a file. */
+    final /*private*/ void _writeBlock( File file, int[] start, int[] count, boolean gzip)
+	throws IOException
+    {
+	OutputStream out= new BufferedOutputStream( new FileOutputStream( file));
+	if( gzip)
+	    out= new GZIPOutputStream( out);
+	try {
+	    for( int i0= start[ 0]; i0 < start[ 0] + count[ 0]; ++i0)
+		for( int i1= start[ 1]; i1 < start[ 1] + count[ 1]; ++i1)
+		    out.write( data, (i0 * sizes[ 1] + i1) * sizes[ 2] + start[ 2], count[ 2]);
+	}
+	finally {
+	    out.close();
+	}
+    }
+
+    /*private*/ static final String USAGE=
+	"usage: java jiv2.ChunkedVolumeWriter [-chunk N] [-slices] [-bricks N] [-pyramid] [-gzip]\n" +
+	"            file.header file.raw_byte[.gz] output_dir";
+
+    public static void main( String[] args) {
+
+	int chunk_slices= 8;
+	boolean slices= false;
+	int brick_size= 0;
+	boolean pyramid= false;
+	boolean gzip= false;
+	int arg= 0;
+	try {
+	    for( ; arg < args.length && args[ arg].startsWith( "-"); ++arg) {
+		if( args[ arg].equals( "-chunk"))
+		    chunk_slices= Integer.parseInt( args[ ++arg]);
+		else if( args[ arg].equals( "-slices"))
+		    slices= true;
+		else if( args[ arg].equals( "-bricks"))
+		    brick_size= Integer.parseInt( args[ ++arg]);
+		else if( args[ arg].equals( "-pyramid"))
+		    pyramid= true;
+		else if( args[ arg].equals( "-gzip"))
+		    gzip= true;
+		else
+		    throw new IllegalArgumentException( args[ arg]);
+	    }
+	    if( args.length - arg != 3)
+		throw new IllegalArgumentException( "wrong number of arguments");
+	}
+	catch( RuntimeException e) {
+	    System.err.println( e.getMessage());
+	    System.err.println( USAGE);
+	    System.exit( 1);
+	}
+
+	try {
+	    File header_file= new File( args[ arg]);
+	    File volume_file= new File( args[ arg + 1]);
+	    File output_dir= new File( args[ arg + 2]);
+
+	    VolumeHeader header= new VolumeHeader( header_file.toURI().toURL());
+	    if( header.getVoxelType() != VolumeHeader.TYPE_BYTE) {
+		// (and Data3DVolume would refuse a wide chunked volume anyway)
+		System.err.println( header_file + " : only byte voxels can be chunked");
+		System.err.println( USAGE);
+		System.exit( 1);
+	    }
+	    int[] dim_order= header.getDimOrder();
+	    int[] canonical_sizes= header.getSizes();
+	    int[] file_sizes= new int[ 3];
+	    for( int d= 0; d < 3; ++d)
+		file_sizes[ d]= canonical_sizes[ dim_order[ d]];
+
+	    byte[] data= new byte[ file_sizes[ 0] * file_sizes[ 1] * file_sizes[ 2]];
+	    InputStream in= Util.openURL( volume_file.toURI().toURL());
+	    try {
+		ChunkedVolume._readFully( in, data);
+	    }
+	    finally {
+		in.close();
+	    }
+	    ChunkedVolumeWriter writer= new ChunkedVolumeWriter( file_sizes, data);
+
+	    String base= header_file.getName();
+	    if( base.endsWith( HEADER_EXTENSION))
+		base= base.substring( 0, base.length() - HEADER_EXTENSION.length());
+	    output_dir.mkdirs();
+	    _copy( header_file, new File( output_dir, base + HEADER_EXTENSION));
+	    writer.writeChunked( new File( output_dir, base + RAW_EXTENSION +
+					   ChunkedVolume.EXTENSION),
+				 chunk_slices);
+	    if( slices)
+		writer.writeSlices( new File( output_dir, base), gzip);
+	    if( brick_size > 0)
+		writer.writeBricks( new File( output_dir, base), brick_size, gzip);
+	    if( pyramid)
+		writer.writePyramid( new File( output_dir, base), gzip);
+	}
+	catch( Exception e) {
+	    System.err.println( e);
+	    System.exit( 1);
+	}
+    }
+
+    final static /*private*/ void _copy( File from, File to)
+	throws IOException
+    {
+	if( from.getCanonicalFile().equals( to.getCanonicalFile()))
+	    return;
+	InputStream in= new FileInputStream( from);
+	try {
+	    OutputStream out= new FileOutputStream( to);
+	    try {
+		byte[] buff= new byte[ 4096];
+		int n;
+		while( ( n= in.read( buff)) > 0)
+		    out.write( buff, 0, n);
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+}
@@ -28,21 +28,27 @@ import java.awt.event.*;
 
 /**
  * Implements the volume panel functionality specific to panels
- * displaying a combination of two image volumes.
+ * displaying a combination of two or more image volumes ("layers",
+ * composited as set by their <code>CompositeLayer</code>-s).
  *
  * @author Chris Cocosco, Lara Bailey (bailey@bic.mni.mcgill.ca)
  * @version $Id: CombinedDataVolumePanel.java,v 2.0 2010/02/21 11:20:41 bailey Exp $
  */
 public final class CombinedDataVolumePanel extends DataVolumePanel {
 
-    /** initial setting of the blend controls slider */
-    /*private*/ static final byte		DEFAULT_BLEND_SETTING= 50;
-
     /*private*/ IndividualDataVolumePanel[]	source_panels;
-    /*private*/ BlendControl			blend_control;
+    /** how each source is composited, bottom (first) to top (last);
+	shared by the three slice producers */
+    /*private*/ CompositeLayer[]		layers;
 
-    public CombinedDataVolumePanel( IndividualDataVolumePanel source_panel_1,
-				    IndividualDataVolumePanel source_panel_2,
+    /**
+     * @param source_panels the combined volumes, bottom layer first
+     * (at least two)
+     * @param layers how each of them is composited (see
+     * CompositeLayer.getDefaults)
+     */
+    public CombinedDataVolumePanel( IndividualDataVolumePanel[] source_panels,
+				    CompositeLayer[] layers,
 				    VolumeHeader local_sampling,
 				    Container parent_container,
 				    String post_label,
@@ -58,48 +64,52 @@ public final class CombinedDataVolumePanel extends DataVolumePanel {
 	       grid_column, initial_world_cursor,
 	       enable_world_coords, false, false, local_sampling, applet_root);
 
-	source_panels= new IndividualDataVolumePanel[] {
-	    source_panel_1,
-	    source_panel_2
-	};
+	final int n= source_panels.length;
+	if( n < 2 || layers.length != n)
+	    throw new IllegalArgumentException( this + ": need two or more volumes, " +
+						"each with its layer settings");
+	this.source_panels= (IndividualDataVolumePanel[])source_panels.clone();
+	this.layers= (CompositeLayer[])layers.clone();
 
 	if (DEBUG) System.out.println("CombinedDVP -> CoordConv.world2voxel_common");
 
 	Point3Dint initial_slices= CoordConv.world2voxel_common( initial_world_cursor);
-	SliceImageProducer[][] src_producers= new SliceImageProducer[ 2][];
-	for( int i= 0; i < 2; ++i) {
-	    src_producers[ i]= new SliceImageProducer[] {
-		source_panels[ i].getATransverseSliceImageProducer( initial_slices.z),
-		source_panels[ i].getASagittalSliceImageProducer( initial_slices.x),
-		source_panels[ i].getACoronalSliceImageProducer( initial_slices.y)
-	    };
+	// indexed by [ orientation][ layer]
+	SliceImageProducer[][] src_producers= new SliceImageProducer[ 3][ n];
+	for( int i= 0; i < n; ++i) {
+	    src_producers[ 0][ i]= source_panels[ i].getATransverseSliceImageProducer( initial_slices.z);
+	    src_producers[ 1][ i]= source_panels[ i].getASagittalSliceImageProducer( initial_slices.x);
+	    src_producers[ 2][ i]= source_panels[ i].getACoronalSliceImageProducer( initial_slices.y);
 	}
-	slice_producers= new BlendedCombinedImageSource[] {
+	LayeredCombinedImageSource[] producers= new LayeredCombinedImageSource[] {
 	    // transverse
-	    new BlendedCombinedImageSource( src_producers[0][0], src_producers[0][0],
-					    src_producers[1][0], src_producers[1][0]),
+	    new LayeredCombinedImageSource( src_producers[ 0]),
 	    // sagittal
-	    new BlendedCombinedImageSource( src_producers[0][1], src_producers[0][1],
-					    src_producers[1][1], src_producers[1][1]),
+	    new LayeredCombinedImageSource( src_producers[ 1]),
 	    // coronal
-	    new BlendedCombinedImageSource( src_producers[0][2], src_producers[0][2],
-					    src_producers[1][2], src_producers[1][2])
+	    new LayeredCombinedImageSource( src_producers[ 2])
 	};
+	slice_producers= producers;
 	GridBagConstraints gbc= new GridBagConstraints();
 	gbc.fill= GridBagConstraints.HORIZONTAL;
 	gbc.weightx= 1.0;
 	gbc.gridx= 0;
 	gbc.gridy= 1;
 	gbc.insets.top= 5;
-	blend_control= new BlendControl( DEFAULT_BLEND_SETTING,
-					 (BlendedCombinedImageSource[])slice_producers);
-	controls_panel.add( blend_control, gbc);
+	if( 2 == n)
+	    // the usual case: a single blend slider
+	    controls_panel.add( new BlendControl( this.layers[ 0], this.layers[ 1],
+						   producers), gbc);
+	else
+	    for( int i= 0; i < n; ++i, ++gbc.gridy)
+		controls_panel.add( new OpacityControl( source_panels[ i].getTitle(),
+							this.layers[ i], producers), gbc);
 
 	// initialization done in the superclass (part 2/2)
 	super._finish_initialization();
     }
 
-    /** NB: the current implementation _assumes_ that both source_panels 
+    /** NB: the current implementation _assumes_ that all the source_panels 
 	have the same sizes! 
     */
 /** The six methods below are only used by DataVolumePanel CoordFields
@@ -153,14 +163,13 @@ public final class CombinedDataVolumePanel extends DataVolumePanel {
 
     final public String getTitle() { 
 
-	final String title0= source_panels[ 0].getTitle();
-	final String title1= source_panels[ 1].getTitle();
 	final String separator= " <-> ";
-	StringBuffer ret= 
-	    new StringBuffer( title0.length() + title1.length() + separator.length());
-	ret.append( title0);
-	ret.append( separator);
-	ret.append( title1);
+	StringBuffer ret= new StringBuffer();
+	for( int i= 0; i < source_panels.length; ++i) {
+	    if( i > 0)
+		ret.append( separator);
+	    ret.append( source_panels[ i].getTitle());
+	}
 	// this is efficient: it doesn't create a new String!
 	return ret.toString();
     }
@@ -189,13 +198,15 @@ public final class CombinedDataVolumePanel extends DataVolumePanel {
 
     /**
      * Member (inner) class: a <code>CombinedImageSource</code> that
-     * uses an adjustable blending factor for combining two images
-     * (in RGB color space).
+     * composites its images as set by the panel's layers (in RGB
+     * color space), in a single pass over each row of pixels: the
+     * layers are applied one over the other while the row is in the
+     * processor cache.
      *
      * @author Chris Cocosco (crisco@bic.mni.mcgill.ca)
      * @version $Id: CombinedDataVolumePanel.java,v 1.4 2001/10/04 19:26:31 cc Exp $ 
      */
-    /*private*/ final class BlendedCombinedImageSource extends CombinedImageSource {
+    /*private*/ final class LayeredCombinedImageSource extends CombinedImageSource {
 
 	/*private*/ boolean			initialization_complete= false;
 
@@ -203,26 +214,48 @@ public final class CombinedDataVolumePanel extends DataVolumePanel {
 	// "instance initializer block", so are run _after_ the superclass
 	// constructor, and before our constructor!!!
 
-	/** valid range: 0 ... 100 (inclusive) 
-	    we use a byte instead of a float for efficiency reasons: the
-	    colormap multiplications will be done in integer arithmetic
-	    instead of the more time consuming floating point one...
-	 */
-	/*private*/ byte 			blend_setting= DEFAULT_BLEND_SETTING;
-	/*private*/ IndexColorModel[] 		old_color_model= { null, null};
-	/*private*/ byte		 	old_blend_setting= -1;
+	/** the layer settings that can't change (see CompositeLayer) */
+	/*private*/ int[]			modes;
+	/*private*/ int[]			thresholds;
+	/*private*/ boolean			has_outlines= false;
+	/*private*/ IndexColorModel[] 		old_color_model;
+	/*private*/ byte[]		 	old_opacity;
 	/*private*/ ByteColormapEntries		cmap_read_buffer= 
 	    new ByteColormapEntries();
-	/*private*/ ShortColormapEntries[]	altered_cmap= { 
-	    new ShortColormapEntries(), new ShortColormapEntries() 
-	};
-
-	protected BlendedCombinedImageSource( ImageProducer source_1, 
-					      PositionListener listener_for_source_1, 
-					      ImageProducer source_2,
-					      PositionListener listener_for_source_2 
-					      ) {
-	    super( source_1, listener_for_source_1, source_2, listener_for_source_2);
+	/** per layer: the colormap scaled down by the opacity, as
+	    packed RGB ints */
+	/*private*/ int[][]			scaled_cmap;
+	/** per layer: what an ALPHA (or OUTLINE) layer leaves of a
+	    color channel value of the layers below it, ie
+	    value * (1 - opacity); then, for the usual blend of two
+	    layers, the two weights add up to 100%, each channel of the
+	    sum stays within 0..255, and the result is the same as
+	    weighting each layer separately */
+	/*private*/ int[][]			keep;
+	/** the source pixels of the last composite, row by row (only
+	    the rows that differ get composited again) */
+	/*private*/ byte[][]			blended_src;
+	/** per row: its source pixels changed since the last composite */
+	/*private*/ boolean[]			changed_rows;
+
+	protected LayeredCombinedImageSource( SliceImageProducer[] sources) {
+
+	    super( sources, sources);
+	    final int n= sources.length;
+	    modes= new int[ n];
+	    thresholds= new int[ n];
+	    for( int l= 0; l < n; ++l) {
+		modes[ l]= layers[ l].getMode();
+		thresholds[ l]= layers[ l].getThreshold();
+		if( CompositeLayer.OUTLINE == modes[ l])
+		    has_outlines= true;
+	    }
+	    old_color_model= new IndexColorModel[ n];
+	    old_opacity= new byte[ n];
+	    java.util.Arrays.fill( old_opacity, (byte)-1);
+	    scaled_cmap= new int[ n][ 256];
+	    keep= new int[ n][ 256];
+	    blended_src= new byte[ n][];
 	    initialization_complete= true;
 	    // now that _everything_ is initialized (i.e. including our instance
 	    // fields initialized by the "instance initializer" code above :),
@@ -231,88 +264,226 @@ public final class CombinedDataVolumePanel extends DataVolumePanel {
 	    newFrame( -1);
 	}
 
-	/** valid range for 'value' is 0.0 ... 1.0 (inclusive) */
-	protected final void setBlend( byte value) {
-	    this.blend_setting= value;
-	}
-
 	protected final void combineInputImages() {
 
 	    /* This test is critical!  Otherwise this method may run before 
-	       various instance fields of BlendedCombinedImageSource are 
+	       various instance fields of LayeredCombinedImageSource are 
 	       properly initialized/allocated (e.g. called from within the
 	       superclass constructor CombinedImageSource.<init>)!
 	    */
 	    if( !initialization_complete)
 		return;
 
-	    /* Note: The two long, time-consuming loops of this method
-	       have been carefully hand-optimized for speed (yes, the
-	       compiler output was checked :) 
-	    */
-	    // for speed, use stack variables instead of the instance fields:
-	    ShortColormapEntries[]	altered_cmap= this.altered_cmap;
-	    final IndexColorModel[]	color_model= this.color_model;
-	    final byte[][]		src_data= this.src_data;
-	    int[]			outgoing_buffer= this.outgoing_buffer;
+	    // with new colors, all the pixels change
+	    boolean all_rows= false;
 
 	    // alter (i.e. scale-down) the colormaps 
-	    int i;
-	    for( i= 0; i < 2; ++i) {
+	    for( int l= 0; l < src_data.length; ++l) {
 
 		if( CombinedDataVolumePanel.DEBUG) {
-		    System.out.println( this + " old: " + old_color_model[ i]);
-		    System.out.println( this + " new: " + color_model[ i]);
+		    System.out.println( this + " old: " + old_color_model[ l]);
+		    System.out.println( this + " new: " + color_model[ l]);
 		}
 		// an easy optimization :
-		if( blend_setting == old_blend_setting && 
-		    color_model[ i] == old_color_model[ i] 
-		    ) {
+		final byte opacity= layers[ l].getOpacity();
+		if( opacity == old_opacity[ l] && color_model[ l] == old_color_model[ l]) {
 		    if( CombinedDataVolumePanel.DEBUG) 
-			System.out.println( color_model[ i] + " didn't change");
+			System.out.println( color_model[ l] + " didn't change");
 		    continue;
 		}
-		old_color_model[ i]= color_model[ i];
-
-		final ByteColormapEntries cmap_read_buffer= this.cmap_read_buffer;
-		color_model[ i].getReds( cmap_read_buffer.reds);
-		color_model[ i].getGreens( cmap_read_buffer.greens);
-		color_model[ i].getBlues( cmap_read_buffer.blues);
-
-		final byte mult= 
-		    (byte)( (i == 0) ? (100 - blend_setting) : blend_setting );
-
-		final ShortColormapEntries altered_cmap_i= altered_cmap[ i];
-		/* decreasing index loops are rumored to run faster in
-		   Java */
-		for( int p= color_model[ i].getMapSize() - 1; p >= 0; --p) {
-		    altered_cmap_i.reds[ p]= (short)
-			(mult * (0xFF & cmap_read_buffer.reds[ p]) / 100);
-		    altered_cmap_i.greens[ p]= (short)
-			(mult * (0xFF & cmap_read_buffer.greens[ p]) / 100);
-		    altered_cmap_i.blues[ p]= (short)
-			(mult * (0xFF & cmap_read_buffer.blues[ p]) / 100);
+		old_color_model[ l]= color_model[ l];
+		old_opacity[ l]= opacity;
+		all_rows= true;
+		_scaleColormap( l, opacity);
+	    }
+	    if( null == blended_src[ 0]) {
+		for( int l= 0; l < blended_src.length; ++l)
+		    blended_src[ l]= new byte[ src_data[ l].length];
+		changed_rows= new boolean[ img_height];
+		all_rows= true;
+	    }
+
+	    /* composite the rows in bands shared with the pool threads;
+	       an outline depends on the rows around it, so then the
+	       composite waits until all the changed rows are copied
+	    */
+	    final boolean all= all_rows;
+	    final boolean[] changed_rows= this.changed_rows;
+	    final int grain= Math.max( 1, 16384 / Math.max( 1, img_width));
+	    WorkerPool.getShared().parallelFor( img_height, grain, new WorkerPool.Body() {
+		public void run( int first, int last) {
+		    for( int row= first; row < last; ++row)
+			if( changed_rows[ row]= _snapshotRow( row, all))
+			    if( !has_outlines)
+				_compositeRow( row);
+		}
+	    });
+	    if( !has_outlines)
+		return;
+	    final int last_row= img_height - 1;
+	    WorkerPool.getShared().parallelFor( img_height, grain, new WorkerPool.Body() {
+		public void run( int first, int last) {
+		    for( int row= first; row < last; ++row)
+			if( changed_rows[ row] ||
+			    ( row > 0 && changed_rows[ row - 1]) ||
+			    ( row < last_row && changed_rows[ row + 1]))
+			    _compositeRow( row);
 		}
+	    });
+	}
+
+	/** Rebuilds the tables of layer l (scaled_cmap, keep) */
+	/*private*/ final void _scaleColormap( int l, int opacity) {
+
+	    final ByteColormapEntries cmap_read_buffer= this.cmap_read_buffer;
+	    color_model[ l].getReds( cmap_read_buffer.reds);
+	    color_model[ l].getGreens( cmap_read_buffer.greens);
+	    color_model[ l].getBlues( cmap_read_buffer.blues);
+
+	    final int[] scaled_cmap_l= scaled_cmap[ l];
+	    /* decreasing index loops are rumored to run faster in
+	       Java */
+	    for( int p= color_model[ l].getMapSize() - 1; p >= 0; --p)
+		scaled_cmap_l[ p]= 
+		    ( (opacity * (0xFF & cmap_read_buffer.reds[ p]) / 100) << 16)
+		    |
+		    ( (opacity * (0xFF & cmap_read_buffer.greens[ p]) / 100) << 8)
+		    |
+		    (opacity * (0xFF & cmap_read_buffer.blues[ p]) / 100);
+
+	    final int[] keep_l= keep[ l];
+	    for( int v= 255; v >= 0; --v)
+		keep_l[ v]= (100 - opacity) * v / 100;
+	}
+
+	/**
+	 * Copies a row of source pixels to blended_src, if it differs.
+	 * (The composite uses the copy, not the source: should the
+	 * source change meanwhile, the next frame will see the difference.)
+	 *
+	 * @param all copy it anyway
+	 * @return true if the row was copied
+	 */
+	/*private*/ final boolean _snapshotRow( int row, boolean all) {
+
+	    final int width= img_width;
+	    final int start= row * width;
+	    boolean same= !all;
+	    for( int l= 0; same && l < src_data.length; ++l)
+		same= _sameRow( src_data[ l], blended_src[ l], start, width);
+	    if( same)
+		return false;
+	    for( int l= 0; l < src_data.length; ++l)
+		System.arraycopy( src_data[ l], start, blended_src[ l], start, width);
+	    return true;
+	}
+
+	/** Composites all the layers of a row (from blended_src) into
+	    outgoing_buffer */
+	/*private*/ final void _compositeRow( int row) {
+
+	    /* Note: the inner loops of this method have been carefully
+	       hand-optimized for speed, as they run once per pixel and
+	       layer
+	    */
+	    // for speed, use stack variables instead of the instance fields:
+	    final int[]		out= outgoing_buffer;
+	    final int		width= img_width;
+	    final int		start= row * width;
+	    final int		end= start + width;
+	    int			l= 0;
+
+	    if( CompositeLayer.ALPHA == modes[ 0] && 0 == thresholds[ 0]) {
+		// the usual case: over black, the bottom layer is just its colors
+		final int[] color= scaled_cmap[ 0];
+		final byte[] src= blended_src[ 0];
+		for( int i= end - 1; i >= start; --i)
+		    out[ i]= color[ 0xFF & src[ i]];
+		l= 1;
 	    }
-	    old_blend_setting= blend_setting;
-
-	    /* mix (i.e. sum) the pixels in RGB space 
-	     */
-	    final ShortColormapEntries altered_cmap_0= altered_cmap[ 0];
-	    final ShortColormapEntries altered_cmap_1= altered_cmap[ 1];
-	    // this is a _long_ loop ...
-	    for( i= img_width*img_height - 1; i >= 0; --i) {
-		final int src_0= 0xFF & src_data[ 0][ i];
-		final int src_1= 0xFF & src_data[ 1][ i];
-		outgoing_buffer[ i]= 
-		    ((altered_cmap_0.reds[ src_0]+altered_cmap_1.reds[ src_1]) << 16) 
-		    | 
-		    ((altered_cmap_0.greens[ src_0]+altered_cmap_1.greens[ src_1]) << 8)
-		    | 
-		    (altered_cmap_0.blues[ src_0]+altered_cmap_1.blues[ src_1]);
+	    else
+		java.util.Arrays.fill( out, start, end, 0);
+
+	    for( ; l < modes.length; ++l) {
+		final int[] color= scaled_cmap[ l];
+		final int[] keep= this.keep[ l];
+		final byte[] src= blended_src[ l];
+		final int threshold= thresholds[ l];
+
+		switch( modes[ l]) {
+		case CompositeLayer.ALPHA:
+		    for( int i= end - 1; i >= start; --i) {
+			final int v= 0xFF & src[ i];
+			if( v < threshold)
+			    continue;
+			final int o= out[ i];
+			out[ i]= ( (keep[ o >>> 16] << 16) | (keep[ 0xFF & (o >>> 8)] << 8) |
+				   keep[ 0xFF & o])
+			    + color[ v];
+		    }
+		    break;
+		case CompositeLayer.ADDITIVE:
+		    for( int i= end - 1; i >= start; --i) {
+			final int v= 0xFF & src[ i];
+			if( v < threshold)
+			    continue;
+			final int o= out[ i];
+			final int c= color[ v];
+			/* red & blue, then green, added in one go each: a
+			   channel that overflows sets its 9th bit, which
+			   is then spread over the channel (saturation) */
+			int rb= (o & 0xFF00FF) + (c & 0xFF00FF);
+			int g= (o & 0xFF00) + (c & 0xFF00);
+			rb |= (rb & 0x1000100) - ( (rb & 0x1000100) >>> 8);
+			g |= (g & 0x10000) - ( (g & 0x10000) >>> 8);
+			out[ i]= (rb & 0xFF00FF) | (g & 0xFF00);
+		    }
+		    break;
+		case CompositeLayer.MAX:
+		    for( int i= end - 1; i >= start; --i) {
+			final int v= 0xFF & src[ i];
+			if( v < threshold)
+			    continue;
+			final int o= out[ i];
+			final int c= color[ v];
+			out[ i]= Math.max( o & 0xFF0000, c & 0xFF0000) |
+			    Math.max( o & 0xFF00, c & 0xFF00) |
+			    Math.max( o & 0xFF, c & 0xFF);
+		    }
+		    break;
+		case CompositeLayer.OUTLINE:
+		    final boolean has_above= row > 0;
+		    final boolean has_below= row < img_height - 1;
+		    for( int i= end - 1; i >= start; --i) {
+			final byte b= src[ i];
+			final int v= 0xFF & b;
+			if( v < threshold)
+			    continue;
+			// an edge: a neighbour differs
+			if( !( ( i > start && src[ i - 1] != b) ||
+			       ( i < end - 1 && src[ i + 1] != b) ||
+			       ( has_above && src[ i - width] != b) ||
+			       ( has_below && src[ i + width] != b) ))
+			    continue;
+			final int o= out[ i];
+			out[ i]= ( (keep[ o >>> 16] << 16) | (keep[ 0xFF & (o >>> 8)] << 8) |
+				   keep[ 0xFF & o])
+			    + color[ v];
+		    }
+		    break;
+		}
 	    }
 	}
 
+	/** @return true if a[ start ... start+len-1] equals b[ start ... start+len-1] */
+	/*private*/ final boolean _sameRow( byte[] a, byte[] b, int start, int len) {
+
+	    for( int i= start + len - 1; i >= start; --i)
+		if( a[ i] != b[ i])
+		    return false;
+	    return true;
+	}
+
 	/** helper class (a member/inner class) */
 	/*private*/ final class ByteColormapEntries {
 	    
@@ -321,64 +492,55 @@ public final class CombinedDataVolumePanel extends DataVolumePanel {
 	    public byte[] blues= new byte[ 256];
 	} 
 
-	/** helper class (a member/inner class) */
-	/*private*/ final class ShortColormapEntries {
-
-	    public short[] reds= new short[ 256];
-	    public short[] greens= new short[ 256];
-	    public short[] blues= new short[ 256];
-	} 
-
 	public String toString(){
-		return getTitle()+" - CombinedDataVolumePanel$BlendedCombinedImageSource";
+		return getTitle()+" - CombinedDataVolumePanel$LayeredCombinedImageSource";
         }
 
 
-    } // end of class BlendedCombinedImageSource
+    } // end of class LayeredCombinedImageSource
 
 
     /**
-     * Member (inner) class: the user interface input controls for
-     * adjusting the blending factor.
-     *
-     * @author Chris Cocosco (crisco@bic.mni.mcgill.ca)
-     * @version $Id: CombinedDataVolumePanel.java,v 1.4 2001/10/04 19:26:31 cc Exp $ 
+     * Member (inner) class: what the opacity controls below have in
+     * common -- sliders and textfields that set the opacity of a
+     * layer, then recomposite the three slices. The opacity is kept
+     * in the layer itself.
      */
-    /*private*/ final class BlendControl extends LightweightPanel {
+    /*private*/ abstract class LayerOpacityControl extends LightweightPanel {
 
-	/** should always be in the 0 ... 100 range (inclusive) */
-	/*private*/ byte 				blend_setting;
-	/*private*/ BlendedCombinedImageSource[] 	slice_producers;
-	/*private*/ TextField[] 			tf= { null, null};
-	/*private*/ Scrollbar				sb;
+	/*private*/ LayeredCombinedImageSource[] 	slice_producers;
 	/*private*/ GridBagConstraints 			gbc= new GridBagConstraints();
 
-	protected BlendControl( byte initial_value, 
-				BlendedCombinedImageSource[] slice_producers) {
+	protected LayerOpacityControl( LayeredCombinedImageSource[] slice_producers) {
 
-	    blend_setting= initial_value;
 	    this.slice_producers= slice_producers;
-	    tf[ 0]= new TextField( String.valueOf( (100 - blend_setting)/100f), 4);
-	    tf[ 1]= new TextField( String.valueOf( blend_setting/100f), 4);
-	    sb= new Scrollbar( Scrollbar.HORIZONTAL);
+	    setLayout( new GridBagLayout());
+	    gbc.gridx= GridBagConstraints.RELATIVE; 
+	    gbc.fill= GridBagConstraints.HORIZONTAL;
+	}
+
+	/** @return a slider (0 ... 100) showing the opacity of 'layer';
+	    see _linkSlider */
+	final /*private*/ Scrollbar _newSlider( CompositeLayer layer) { 
+
+	    Scrollbar sb= new Scrollbar( Scrollbar.HORIZONTAL);
 	    int visible= sb.getVisibleAmount();
 	    sb.setMinimum( 0);
 	    /* the value is read on the left side of the slider, hence
 	       we need to correct the Max if we want the scrollbar to
 	       return values up to 100 inclusive... */
 	    sb.setMaximum( 100+visible);
-	    sb.setValue( blend_setting);
+	    sb.setValue( layer.getOpacity());
+	    return sb;
+	}
 
-	    setLayout( new GridBagLayout());
-	    gbc.gridx= GridBagConstraints.RELATIVE; 
-	    gbc.fill= GridBagConstraints.HORIZONTAL;
-	    add( tf[ 0], gbc);
-	    gbc.weightx= 1f;
-	    add( sb, gbc);
-	    gbc.weightx= 0f;
-	    add( tf[ 1], gbc);
+	/** @return a textfield (0 ... 1) for the opacity of 'layer',
+	    which also moves 'sb' (if not null) */
+	final /*private*/ TextField _newField( final CompositeLayer layer, 
+					      final Scrollbar sb) { 
 
-	    ActionListener action_listener= new ActionListener() {
+	    final TextField tf= new TextField( String.valueOf( layer.getOpacity()/100f), 4);
+	    tf.addActionListener( new ActionListener() {
 		synchronized public final void actionPerformed( ActionEvent ae) {
 
 		    if( DEBUG) System.out.println( ae);
@@ -389,25 +551,26 @@ public final class CombinedDataVolumePanel extends DataVolumePanel {
 			    Float.valueOf( ae.getActionCommand()).floatValue();
 			if( new_value_as_float < 0f || new_value_as_float > 1f)
 			    throw new NumberFormatException( "out of range...");
-			blend_setting=
-			    (byte)Math.round( 100f * new_value_as_float);
-			if( ae.getSource() == tf[ 0]) 		
-			    blend_setting= (byte)(100 - blend_setting);
-
-			sb.setValue( blend_setting);
-			_change_blend();
+			final byte opacity= (byte)Math.round( 100f * new_value_as_float);
+			if( null != sb)
+			    sb.setValue( opacity);
+			_change_opacity( layer, opacity);
 		    }
 		    catch( NumberFormatException exception) { 
 			// the previous (valid) value is automatically preserved...
 		    }
 		    finally {
-			tf[ 0].setText( String.valueOf( (100 - blend_setting)/100f));
-			tf[ 1].setText( String.valueOf( blend_setting/100f));
+			tf.setText( String.valueOf( layer.getOpacity()/100f));
 		    }
 		}
-	    };
-	    tf[ 0].addActionListener( action_listener);
-	    tf[ 1].addActionListener( action_listener);
+	    });
+	    return tf;
+	}
+
+	/** makes 'sb' change the opacity of 'layer', and show it in 'tf' */
+	final /*private*/ void _linkSlider( Scrollbar sb, final CompositeLayer layer, 
+					    final TextField tf) { 
+
 	    sb.addAdjustmentListener( new AdjustmentListener() {
 		public final void adjustmentValueChanged( AdjustmentEvent ae) {
 
@@ -418,21 +581,78 @@ public final class CombinedDataVolumePanel extends DataVolumePanel {
 		    else if( new_value > 100)
 			((Scrollbar)ae.getSource()).setValue( new_value= 100);
 
-		    blend_setting= (byte)new_value;
-		    tf[ 0].setText( String.valueOf( (100 - blend_setting)/100f));
-		    tf[ 1].setText( String.valueOf( blend_setting/100f));
-		    _change_blend();
+		    tf.setText( String.valueOf( new_value/100f));
+		    _change_opacity( layer, (byte)new_value);
 		}
 	    });
 	}
 
-	final /*private*/ void _change_blend() { 
+	final /*private*/ void _change_opacity( CompositeLayer layer, byte opacity) { 
 
-	    for( int i= 0; i < slice_producers.length; ++i) {
-		slice_producers[ i].setBlend( blend_setting);
+	    layer.setOpacity( opacity);
+	    for( int i= 0; i < slice_producers.length; ++i)
 		slice_producers[ i].newFrame( -1);
-	    }
+	}
+    } // end of class LayerOpacityControl
+
+
+    /**
+     * Member (inner) class: the user interface input controls for
+     * adjusting the blending factor of two volumes, ie the opacity of
+     * the top layer (slider and right textfield); the left textfield
+     * is the opacity of the bottom layer.
+     *
+     * @author Chris Cocosco (crisco@bic.mni.mcgill.ca)
+     * @version $Id: CombinedDataVolumePanel.java,v 1.4 2001/10/04 19:26:31 cc Exp $ 
+     */
+    /*private*/ final class BlendControl extends LayerOpacityControl {
+
+	/*private*/ TextField[] 			tf= { null, null};
+	/*private*/ Scrollbar				sb;
+
+	protected BlendControl( CompositeLayer bottom, CompositeLayer top, 
+				LayeredCombinedImageSource[] slice_producers) {
+
+	    super( slice_producers);
+	    sb= _newSlider( top);
+	    tf[ 0]= _newField( bottom, null);
+	    tf[ 1]= _newField( top, sb);
+	    _linkSlider( sb, top, tf[ 1]);
+
+	    add( tf[ 0], gbc);
+	    gbc.weightx= 1f;
+	    add( sb, gbc);
+	    gbc.weightx= 0f;
+	    add( tf[ 1], gbc);
 	}
     } // end of class BlendControl
 
+
+    /**
+     * Member (inner) class: the user interface input controls for
+     * adjusting the opacity of one layer (when combining more than
+     * two volumes).
+     */
+    /*private*/ final class OpacityControl extends LayerOpacityControl {
+
+	/*private*/ TextField 				tf;
+	/*private*/ Scrollbar				sb;
+
+	protected OpacityControl( String title, CompositeLayer layer, 
+				  LayeredCombinedImageSource[] slice_producers) {
+
+	    super( slice_producers);
+	    sb= _newSlider( layer);
+	    tf= _newField( layer, sb);
+	    _linkSlider( sb, layer, tf);
+
+	    add( new Label( title + " (" + CompositeLayer.MODE_NAMES[ layer.getMode()] + ")"),
+		 gbc);
+	    gbc.weightx= 1f;
+	    add( sb, gbc);
+	    gbc.weightx= 0f;
+	    add( tf, gbc);
+	}
+    } // end of class OpacityControl
+
 } // end of class CombinedDataVolumePanel
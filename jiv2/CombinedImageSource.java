@@ -27,44 +27,91 @@ import java.awt.*;
 import java.util.*;
 
 /**
- * Template for a class that combines two source images into one
- * output image using the
+ * Template for a class that combines two (or more) source images into
+ * one output image using the
  * <code>ImageProducer</code>/<code>ImageConsumer</code>
  * interfaces. The source images need to be of the same size and have
  * an <code>IndexColorModel</code>; the output image will always have
  * a <code>DirectColorModel</code>.
+ * <p>
+ * With direct rendering (see Slice2DViewport.setDirectRendering),
+ * if all the sources are <code>DirectImageSource</code>-s, their pixels
+ * are read in place instead (no <code>ImageConsumer</code>-s, no
+ * copies), and the output image is also available as a
+ * <code>BufferedImage</code>.
  *
  * @author Chris Cocosco, Lara Bailey (bailey@bic.mni.mcgill.ca)
  * @version $Id: CombinedImageSource.java,v 2.0 2010/02/21 11:20:41 bailey Exp $
  */
-abstract public class CombinedImageSource implements ImageProducer, PositionListener {
+abstract public class CombinedImageSource 
+    implements ImageProducer, PositionListener, VisibleRegionListener,
+	       DirectImageSource, ImageChangeListener {
 
     protected static final boolean DEBUG= false;
 
-    /*private*/ ImageProducer[] 	src_ip= new ImageProducer[ 2]; 
-    /*private*/ PositionListener[] 	src_pl= new PositionListener[ 2]; 
-    /*private*/ InputReader[]		input_reader= new InputReader[ 2];
+    /*private*/ ImageProducer[] 	src_ip; 
+    /*private*/ PositionListener[] 	src_pl; 
+    /*private*/ InputReader[]		input_reader;
     /** needs to be initialized in the constructor! */
     /*private*/ MemoryImageSource	mis; 
     /*private*/ boolean			suspend_combine= true;
-    protected byte[][]			src_data= new byte[ 2][];
+    protected byte[][]			src_data;
     protected int			img_width= -1;
     protected int			img_height= -1;
-    protected IndexColorModel[]		color_model= new IndexColorModel[ 2];
+    protected IndexColorModel[]		color_model;
     protected int[]			outgoing_buffer;
+    /** outgoing_buffer, as a BufferedImage (see getImage) */
+    /*private*/ BufferedImage		direct_image;
+    /** ImageChangeListener-s of direct_image */
+    /*private*/ final Vector		image_listeners= new Vector();
 
     protected CombinedImageSource( ImageProducer source_1, 
 				   PositionListener listener_for_source_1, 
 				   ImageProducer source_2,
 				   PositionListener listener_for_source_2  ) {
 
-	this.src_ip[ 0]= source_1;
-	this.src_pl[ 0]= listener_for_source_1;
-	this.src_ip[ 1]= source_2;
-	this.src_pl[ 1]= listener_for_source_2;
-	
-	input_reader[ 0]= new InputReader( 0);
-	input_reader[ 1]= new InputReader( 1);
+	this( new ImageProducer[] { source_1, source_2 },
+	      new PositionListener[] { listener_for_source_1, listener_for_source_2 });
+    }
+
+    /**
+     * @param sources the source images (at least two), in the order
+     * the subclass combines them
+     * @param listeners_for_sources where to forward the position
+     * changes, for each source
+     */
+    protected CombinedImageSource( ImageProducer[] sources, 
+				   PositionListener[] listeners_for_sources) {
+
+	final int n= sources.length;
+	if( n < 2 || listeners_for_sources.length != n)
+	    throw new IllegalArgumentException( this + ": need two or more sources, " +
+						"each with its listener");
+	src_ip= (ImageProducer[])sources.clone();
+	src_pl= (PositionListener[])listeners_for_sources.clone();
+	input_reader= new InputReader[ n];
+	src_data= new byte[ n][];
+	color_model= new IndexColorModel[ n];
+
+	boolean direct= Slice2DViewport.isDirectRendering();
+	for( int i= 0; i < n; ++i)
+	    direct= direct && src_ip[ i] instanceof DirectImageSource;
+	if( direct) {
+	    synchronized( this) {
+		BufferedImage image= ((DirectImageSource)src_ip[ 0]).getImage();
+		img_width= image.getWidth();
+		img_height= image.getHeight();
+		outgoing_buffer= new int[ img_width * img_height];
+		for( int i= 0; i < n; ++i) {
+		    _readDirect( i);
+		    ((DirectImageSource)src_ip[ i]).addImageChangeListener( this);
+		}
+	    }
+	}
+	else {
+	    for( int i= 0; i < n; ++i)
+		input_reader[ i]= new InputReader( i);
+	}
 
 	// NB: the InputReader constructor calls ImageProducer::startProduction, 
 	// so at this point the respective ImageProducer-s might have already
@@ -78,7 +125,7 @@ abstract public class CombinedImageSource implements ImageProducer, PositionList
 				
 		// calling createImage is a bit tricky: usually one calls it
 		// from a Component (or subclass of) ...
-		Image tmp_image= Toolkit.getDefaultToolkit().createImage( source_1);
+		Image tmp_image= Toolkit.getDefaultToolkit().createImage( src_ip[ 0]);
 		img_width= tmp_image.getWidth( null);
 		img_height= tmp_image.getHeight( null);
 		tmp_image= null; // explicitly discard it (although it will be anyway...)
@@ -119,13 +166,13 @@ abstract public class CombinedImageSource implements ImageProducer, PositionList
 
     /*private*/ synchronized final void _setDimensions( int width, int height) {
 
-	if( null == src_data[ 0] || null == src_data[ 1] ) {
+	if( null == outgoing_buffer) {
 	    // first time we find out about image's dimensions
 	    this.img_width= width;
 	    this.img_height= height;
 	    final int required_size= width * height;
-	    src_data[ 0]= new byte[ required_size];
-	    src_data[ 1]= new byte[ required_size];
+	    for( int i= 0; i < src_data.length; ++i)
+		src_data[ i]= new byte[ required_size];
 	    outgoing_buffer= new int[ required_size];
 	    return;
 	}
@@ -143,7 +190,7 @@ abstract public class CombinedImageSource implements ImageProducer, PositionList
     /** used to request an update of the output image.
 	If (argument >= 0) : it means that only the data produced by
 	src_ip[ arg] has changed. If (argument == -1), then it means
-	that both input images have changed (or simply that everything
+	that all the input images have changed (or simply that everything
 	has to be recomputed) */
     public synchronized final void newFrame( int source_reader) {
 
@@ -162,9 +209,64 @@ abstract public class CombinedImageSource implements ImageProducer, PositionList
 	    return;
 	combineInputImages();
 	mis.newPixels();
+	for( int i= 0; i < image_listeners.size(); ++i)
+	    ((ImageChangeListener)image_listeners.elementAt( i)).imageChanged( this);
     }
 
-    /** This method does the actual computations for "combining" the two
+    /** Points src_data[ which_one] and color_model[ which_one] at the
+	pixels and colormap of source 'which_one' (a DirectImageSource) */
+    /*private*/ synchronized final void _readDirect( int which_one) {
+
+	BufferedImage image= ((DirectImageSource)src_ip[ which_one]).getImage();
+	if( image.getWidth() != img_width || image.getHeight() != img_height) {
+	    String msg= " source images don't have the same dimensions!";
+	    throw new IllegalArgumentException( this + msg);
+	}
+	if( !( image.getColorModel() instanceof IndexColorModel) ||
+	    !( image.getRaster().getDataBuffer() instanceof DataBufferByte)) {
+	    String msg= " CombinedImageSource can only read data using an IndexColorModel!";
+	    throw new IllegalArgumentException( this + msg);
+	}
+	color_model[ which_one]= (IndexColorModel)image.getColorModel();
+	src_data[ which_one]= ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+    }
+
+    // ImageChangeListener interface method (direct rendering only):
+    // a source changed its image
+    public final void imageChanged( DirectImageSource source) {
+
+	for( int which_one= 0; which_one < src_ip.length; ++which_one)
+	    if( source == src_ip[ which_one]) {
+		_readDirect( which_one);
+		newFrame( which_one);
+		return;
+	    }
+    }
+
+    // DirectImageSource interface methods: 
+
+    public synchronized final BufferedImage getImage() {
+
+	if( null == direct_image) {
+	    // no copy: the raster is outgoing_buffer itself
+	    DirectColorModel cm= new DirectColorModel( 24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+	    WritableRaster raster= 
+		Raster.createPackedRaster( new DataBufferInt( outgoing_buffer, outgoing_buffer.length),
+					   img_width, img_height, img_width, cm.getMasks(), null);
+	    direct_image= new BufferedImage( cm, raster, false, null);
+	}
+	return direct_image;
+    }
+
+    public final void addImageChangeListener( ImageChangeListener listener) {
+	image_listeners.addElement( listener);
+    }
+
+    public final void removeImageChangeListener( ImageChangeListener listener) {
+	image_listeners.removeElement( listener);
+    }
+
+    /** This method does the actual computations for "combining" the
 	input images. It should be implemented by any non-abstract subclass.  
     */
     abstract protected void combineInputImages();
@@ -200,23 +302,39 @@ abstract public class CombinedImageSource implements ImageProducer, PositionList
 	/* Note: no real need to 'synchronize' this method, because
            boolean assignments are atomic in Java... */
 
-	/* Optimization: avoid calling combineInputImages() twice (via
-	   the callbacks from the src_ip-s), when we could just call
-	   it once after both src_data-s are updated! */
+	/* Optimization: avoid calling combineInputImages() once per
+	   source (via the callbacks from the src_ip-s), when we could
+	   just call it once after all the src_data-s are updated! */
+	final int last= src_pl.length - 1;
 	suspend_combine= true;
-	src_pl[ 0].positionChangeDetected( e);
+	for( int i= 0; i < last; ++i)
+	    src_pl[ i].positionChangeDetected( e);
 	suspend_combine= false;
-	src_pl[ 1].positionChangeDetected( e);
+	src_pl[ last].positionChangeDetected( e);
     }
 
-    // NB: this _assumes_ that the two producers 
+    // NB: this _assumes_ that all the producers 
     //     will give the same answer to this query!
     public final int getMaxSliceNumber() { 
 	return src_pl[ 0].getMaxSliceNumber();
     }
 
     public final float getOrthoStep() { 
-	return Math.min( src_pl[ 0].getOrthoStep(), src_pl[ 1].getOrthoStep());
+	float step= src_pl[ 0].getOrthoStep();
+	for( int i= 1; i < src_pl.length; ++i)
+	    step= Math.min( step, src_pl[ i].getOrthoStep());
+	return step;
+    }
+
+
+    // VisibleRegionListener interface method: 
+
+    // simply forward it (the sources are the same size as the output)
+    public final void visibleRegionChanged( Object viewer, Rectangle region) {
+
+	for( int i= 0; i < src_ip.length; ++i)
+	    if( src_ip[ i] instanceof VisibleRegionListener)
+		((VisibleRegionListener)src_ip[ i]).visibleRegionChanged( viewer, region);
     }
 
 
@@ -0,0 +1,120 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+/**
+ * How one layer (source volume) of a combined panel is composited
+ * over the layers below it: the compositing mode, the opacity, and a
+ * threshold under which the layer is transparent. The layers are
+ * composited bottom (first) to top (last), starting from black, in RGB
+ * color space:
+ * <dl>
+ * <dt>ALPHA
+ * <dd>result * (1 - opacity) + color * opacity
+ * <dt>ADDITIVE
+ * <dd>result + color * opacity (clamped to the maximum)
+ * <dt>MAX
+ * <dd>the larger of result and color * opacity, per channel
+ * <dt>OUTLINE
+ * <dd>like ALPHA, but only on the edges of the regions of equal
+ * value (eg the outlines of the labels of an atlas); elsewhere the
+ * layer is transparent
+ * </dl>
+ * The threshold applies to the voxel values (0...255) of the layer:
+ * the pixels below it are transparent. The opacity can be changed
+ * later (see CombinedDataVolumePanel's controls), the mode and the
+ * threshold can't.
+ *
+ * @version $Id$
+ */
+public final class CompositeLayer {
+
+    public static final int	ALPHA= 0;
+    public static final int	ADDITIVE= 1;
+    public static final int	MAX= 2;
+    public static final int	OUTLINE= 3;
+    /** the config file names of the modes (see Main) */
+    public static final String[] MODE_NAMES= { "alpha", "additive", "max", "outline" };
+
+    /*private*/ final int	mode;
+    /** valid range: 0 ... 100 (inclusive), ie a percentage */
+    /*private*/ byte		opacity;
+    /** valid range: 0 ... 255 (inclusive) */
+    /*private*/ final short	threshold;
+
+    /**
+     * @param mode one of ALPHA, ADDITIVE, MAX, OUTLINE
+     * @param opacity percentage (0 ... 100)
+     * @param threshold voxel value (0 ... 255) under which the layer
+     * is transparent; 0 for none
+     */
+    public CompositeLayer( int mode, byte opacity, short threshold) {
+
+	if( mode < ALPHA || mode > OUTLINE)
+	    throw new IllegalArgumentException( "invalid compositing mode: " + mode);
+	if( threshold < 0 || threshold > 255)
+	    throw new IllegalArgumentException( "invalid threshold: " + threshold);
+	this.mode= mode;
+	this.threshold= threshold;
+	setOpacity( opacity);
+    }
+
+    /** @return the default layers of a combined panel of n volumes:
+	alpha compositing, with opacities giving each volume the same
+	weight (eg 50% for the top layer of two) */
+    static final public CompositeLayer[] getDefaults( int n) {
+
+	CompositeLayer[] result= new CompositeLayer[ n];
+	for( int i= 0; i < n; ++i)
+	    result[ i]= new CompositeLayer( ALPHA, (byte)Math.round( 100f / (i + 1)), (short)0);
+	return result;
+    }
+
+    /** @return the mode called 'name' (see MODE_NAMES) */
+    static final public int parseMode( String name) {
+
+	for( int m= 0; m < MODE_NAMES.length; ++m)
+	    if( MODE_NAMES[ m].equals( name))
+		return m;
+	throw new IllegalArgumentException( "unknown compositing mode: " + name);
+    }
+
+    final public int getMode() { return mode; }
+
+    final public byte getOpacity() { return opacity; }
+
+    final public short getThreshold() { return threshold; }
+
+    /** NB: the combined images have to be recomputed afterwards */
+    final public void setOpacity( byte opacity) {
+
+	if( opacity < 0 || opacity > 100)
+	    throw new IllegalArgumentException( "invalid opacity: " + opacity);
+	this.opacity= opacity;
+    }
+
+    public String toString() {
+	return "CompositeLayer[" + MODE_NAMES[ mode] + "," + opacity + "%," + threshold + "]";
+    }
+
+}
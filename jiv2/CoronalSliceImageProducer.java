@@ -57,6 +57,8 @@ public final class CoronalSliceImageProducer extends SliceImageProducer {
 
     public final float getOrthoStep() { return data_volume.getYStep(); }
 
+    protected final int _getOrthoDim() { return 1; }
+
     synchronized public final void positionChangeDetected( PositionEvent e) {
 
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t*CorIP.positionChangeDetected");
@@ -125,14 +127,21 @@ public final class CoronalSliceImageProducer extends SliceImageProducer {
 
 	// reuse the existing slice_data array!
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t!!_getNewSliceData -> ^data_volume.getCoronalSlice()");
-	data_volume.getCoronalSlice( world, crt_slice, slice_data, 
-				     future_notification ? this : null );
+	if( projection != null)
+	    projection.project( world, crt_slice, slice_data,
+				future_notification ? this : null, crt_slice);
+	else if( !_getCachedSlice( future_notification ? this : null)
+		 && data_volume.getCoronalSlice( world, crt_slice, slice_data, 
+						 future_notification ? this : null ))
+	    // complete: worth keeping
+	    _cacheSlice();
 
 	// Send another frame (i.e. update the image);
 	// this version of MemoryImageSource::newPixels() will send the
 	// data presently found in 'slice_data' (it stores a ref internally)
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t!!_getNewSliceData -> newPixels()");
 	newPixels();
+	_fireImageChanged();
 
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t!_getNewSliceData DONE!\n");
     }
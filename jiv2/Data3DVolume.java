@@ -24,23 +24,10 @@ package jiv2;
 
 import java.net.*;
 import java.io.*;
+import java.util.*;
 import java.util.zip.*;
-
-/*
-  WISH LIST:
-
- 1. implement _downloadAllVolumeBySlice() : download all t slices,
- starting with the "middle" ones (most useful!), and checking 
- beforehand for each slice if not already done.
- 
-
- 2. have 3 states for {t,s,c}_slice_downloaded : 
- no, in_progress (some thread working on it already), done .
- 
-       -> this will eliminate useless duplicate downloads
-       (eg when using merged panels, and sync mode)
-       -> the new thread can wait() till state becomes 'done'...
-*/
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.awt.Rectangle;
 
 /**
  * Loads, stores, and provides access to a 3D image volume.
@@ -67,6 +54,60 @@ public final class Data3DVolume {
     public static final int DOWNLOAD_ON_DEMAND= 	2;
     public static final int DOWNLOAD_HYBRID= 		3;
 
+    /** voxels kept in a plain Java array (the default) */
+    public static final int STORAGE_HEAP=		1;
+    /** voxels kept off-heap, in a memory-mapped scratch file */
+    public static final int STORAGE_MAPPED=		2;
+    /** only the file's own voxels are kept (on the heap), and
+	resampled as they are read */
+    public static final int STORAGE_LAZY=		3;
+
+    /** resampling to the common sampling: nearest neighbour (the default) */
+    public static final int RESAMPLE_NEAREST=		1;
+    /** resampling to the common sampling: trilinear interpolation */
+    public static final int RESAMPLE_TRILINEAR=		2;
+    /** resampling to the common sampling: windowed sinc interpolation */
+    public static final int RESAMPLE_SINC=		3;
+
+    /** Where the voxels of new volumes are stored. This is static
+	because, for now, the same setting applies to all the volumes
+	and it doesn't change after the initialization. */
+    /*private*/ static int		storage_method= STORAGE_HEAP;
+    /** directory for the STORAGE_MAPPED scratch files */
+    /*private*/ static File		storage_dir;
+
+    /** Edge length of the bricks used for the on-demand downloads,
+	or 0 for downloading whole slices (the default). 
+	@see BrickIndex */
+    /*private*/ static int		brick_size= 0;
+
+    /** slices downloaded from the slice files (made by minctojiv2) */
+    public static final int SLICE_SOURCE_FILES=		1;
+    /** slices downloaded from the volume file, with byte ranges */
+    public static final int SLICE_SOURCE_VOLUME=	2;
+
+    /** where the slices of new volumes are downloaded from */
+    /*private*/ static int		slice_source= SLICE_SOURCE_FILES;
+
+    /** show coarse previews of the slices not downloaded yet (see
+	VolumePyramid), for the volumes created from now on */
+    /*private*/ static boolean		use_pyramid= false;
+
+    /** maximum number of slices downloaded ahead of the one
+	displayed (0 turns the prefetching off); the window actually
+	used depends on the scrolling speed and on the download
+	latency */
+    /*private*/ static int		max_prefetch= 16;
+    /** minimum number of slices downloaded ahead */
+    /*private*/ static final int	MIN_PREFETCH= 2;
+    /** assumed download latency (ms) until one is measured */
+    /*private*/ static final float	DEFAULT_LATENCY_MS= 300f;
+    /** weight of the newest download in latency_ms */
+    /*private*/ static final float	LATENCY_ALPHA= 0.2f;
+
+    /** maximum number of slices fetched with one byte range request */
+    /*private*/ static final int	MAX_RANGE_SLICES= 16;
+
     /** slice_dirname[i][j] is the subdirectory name for the dim(i) x
         dim(j) slices, where dim is the "dimensions order" list of the
         file (as specified in the header). Note that (b x a) slices
@@ -83,33 +124,120 @@ public final class Data3DVolume {
 	slice_dirname[1][2]= slice_dirname[2][1]= "12";
     }
 
-    /*private*/ byte[][][] 	common_voxels;     // (z,y,x)!
+    /** the voxels, in the common sampling */
+    /*private*/ VoxelStore 	voxels;
+    /** identifies the data in 'voxels' (source file and its version,
+	and sampling), for reusing a STORAGE_MAPPED scratch file or a
+	VolumeCache entry */
+    /*private*/ String		store_key;
+    /** 'voxels' can be saved in the VolumeCache once complete (ie the
+	source file's version is known, and the data didn't come from
+	the cache in the first place) */
+    /*private*/ boolean		cacheable;
+    /** the source file's version is known, so a later run can tell if
+	the data saved from 'voxels' is still current */
+    /*private*/ boolean		versioned;
+    /** _setStoreComplete was called */
+    /*private*/ boolean		store_complete;
+
+    /** the file's voxels at their full precision, for the voxel
+	types wider than bytes (null otherwise): 'voxels' then holds
+	them quantized through a display window */
+    /*private*/ WideVoxelData		wide;
+    /** the SliceImageProducer-s showing this volume, to be refreshed
+	when its display window changes */
+    /*private*/ final Vector		producers= new Vector();
+    /** setDisplayRange is quantizing the voxels again (the slices
+	read meanwhile are mixed, so they don't go in the
+	SlicePlaneCache) */
+    /*private*/ volatile boolean	windowing;
 
     /*private*/ VolumeHeader.ResampleTable	resample_table;
-
-    /** Indicates if that slice number was already downloaded. Slice
+    /** saves the downloaded data, following resample_table */
+    /*private*/ SlabResampler		resampler;
+    /** refines what resampler saved, by interpolation (null for
+	RESAMPLE_NEAREST) */
+    /*private*/ InterpolatingResampler	interpolator;
+    /*private*/ int			resample_method= RESAMPLE_NEAREST;
+
+    /** slice_state values: nobody is downloading it yet */
+    /*private*/ static final int	SLICE_NOT_LOADED= 	0;
+    /** slice_state values: some thread is working on it already */
+    /*private*/ static final int	SLICE_IN_PROGRESS= 	1;
+    /** slice_state values: downloaded and saved */
+    /*private*/ static final int	SLICE_DONE= 		2;
+
+    /** Download state (SLICE_*) of each slice, indexed by canonical
+	dimension (orthogonal to the slice) and slice number. Slice
         numbers are for the input (volume_header), not for the
-        internal (common_sampling) representation! */
-    /*private*/ volatile boolean[]    	t_slice_downloaded;
-    /*private*/ volatile boolean[]	s_slice_downloaded;
-    /*private*/ volatile boolean[]	c_slice_downloaded;
-    /** convenience pointer to <code>{t,s,c}_slice_downloaded</code>,
-        indexed by canonical dimension, ie slice_downloaded= {
-        s_slice_downloaded, c_slice_downloaded, t_slice_downloaded } */
-    /*private*/ volatile boolean[][]	slice_downloaded;
+	internal (common_sampling) representation! Only changed with
+	compareAndSet, except for the final SLICE_DONE. */
+    /*private*/ AtomicIntegerArray[]	slice_state;
+    /** consumers waiting for an in-progress slice that is not
+	downloaded by a DownloadScheduler job (eg by the background
+	full-volume download): DownloadScheduler.Waiter-s, indexed
+	like slice_state; allocated as needed */
+    /*private*/ Vector[][]		slice_waiters;
 
     /** Should be set when all volume data has been downloaded --
-        which means that all elements of
-        <code>{t,s,c}_slice_downloaded</code> are true */
-    /*private*/ boolean			all_data_downloaded;
+	which means that all elements of <code>slice_state</code>
+	are SLICE_DONE */
+    /*private*/ volatile boolean	all_data_downloaded;
+    /** number of SLICE_DONE slices, per canonical dimension: once
+	all the slices along one of them are done, so is the volume */
+    /*private*/ AtomicIntegerArray	slices_done= new AtomicIntegerArray( 3);
+    /** set once by whoever finishes the volume (see _sliceDone) */
+    /*private*/ boolean			volume_complete;
+
+    /** how many times each file slice (along the first file
+	dimension) was saved into, so far: lets getObliqueSlice's
+	consumers tell whether the slices their plane crosses
+	changed (see hasObliqueChanged) */
+    /*private*/ AtomicIntegerArray	slice_changes;
+
+    /** download state of the bricks; null if not using bricks */
+    /*private*/ BrickIndex		brick_index;
+
+    /** the inverse of resample_table: common2local[d][c] is the input
+	voxel (along canonical dimension d) that common voxel c was
+	resampled from, or -1 if none */
+    /*private*/ int[][]		common2local;
+
+    /** the preview levels in progress (null if none) */
+    /*private*/ volatile VolumePyramid	preview;
 
     /** the full-volume (background) download thread */
     /*private*/ Thread 			bg_dnld;
+    /** true if the slices are read from byte ranges of the volume
+	file (see SLICE_SOURCE_VOLUME) */
+    /*private*/ boolean			use_ranges;
+    /** slices (along the first file dimension) waiting for a byte
+	range request; also the lock for range_job_running */
+    /*private*/ BitSet			range_pending= new BitSet();
+    /** a RangeJob is queued or running */
+    /*private*/ boolean			range_job_running;
+    /** RangeJob-s started so far (their keys must differ: the last
+	one can still be in the DownloadScheduler, done, when the
+	next one is submitted) */
+    /*private*/ int			range_jobs;
+
+    /** moving average of the time (ms) a download of this volume
+	takes (-1 until the first one is done) */
+    /*private*/ float			latency_ms= -1f;
+
+    /** where the background download should continue from: the
+	slice (along the first file dimension) last displayed */
+    /*private*/ volatile int		bg_focus;
 
     /*private*/ String 		volume_url;	// eg http://www/foo/colin27.raw.gz
     /*private*/ URL 		url_context; // eg http://www/foo/CONFIG
     /*private*/ String 		slice_url_base; // eg http://www/foo/colin27
     /*private*/ String 		slice_url_ext;  // eg .raw.gz
+    /** the index of a chunked volume file; null for the other formats */
+    /*private*/ ChunkedVolume	chunked;
+    /** prefix of the DownloadScheduler job keys (unique to this volume) */
+    /*private*/ String 		job_key;
+    /*private*/ String 		source_host;
 
     /*private*/ String 		nick_name;
     /*private*/ boolean		isNative;
@@ -124,7 +252,7 @@ public final class Data3DVolume {
     {
 	this.common_sampling= common_sampling;
 	this.volume_header= volume_header;
-	common_voxels= new byte[ getZSize()][ getYSize()][ getXSize()];
+	voxels= new FlatVoxelStore( getXSize(), getYSize(), getZSize());
     }
 
     /** Note: it's not _required_ to declare SecurityException (since
@@ -140,24 +268,137 @@ public final class Data3DVolume {
 			 int download_method ) 
 	throws IOException, SecurityException
     {
-	this( common_sampling, volume_header);
+	this( isNative, common_sampling, url_context, volume_file_name, 
+	      volume_header, nick_name, download_method, RESAMPLE_NEAREST);
+    }
+
+    /** @param resample_method how the file is resampled to
+	common_sampling: RESAMPLE_NEAREST, RESAMPLE_TRILINEAR or
+	RESAMPLE_SINC */
+    public Data3DVolume( boolean isNative,
+			 VolumeHeader common_sampling, 
+			 URL url_context,
+			 String volume_file_name,
+			 VolumeHeader volume_header, 
+			 String nick_name,
+			 int download_method,
+			 int resample_method ) 
+	throws IOException, SecurityException
+    {
+	this.common_sampling= common_sampling;
+	this.volume_header= volume_header;
 	this.url_context= url_context;
 	final URL source_url= new URL(url_context, volume_file_name);
 
 	volume_url= source_url.toString();
-	slice_url_ext= Util.getExtension( volume_url);
+	// eg http://www/foo/colin27.raw_byte.jcv has the slices
+	// http://www/foo/colin27/12/0.raw_byte etc
+	String slice_url= volume_url.endsWith( ChunkedVolume.EXTENSION) ?
+	    volume_url.substring( 0, volume_url.length() - ChunkedVolume.EXTENSION.length()) :
+	    volume_url;
+	slice_url_ext= Util.getExtension( slice_url);
 	if( slice_url_ext.length() > 0 ) {
-	    int ext= volume_url.lastIndexOf( slice_url_ext);
-	    slice_url_base= volume_url.substring( 0, ext);
+	    int ext= slice_url.lastIndexOf( slice_url_ext);
+	    slice_url_base= slice_url.substring( 0, ext);
 	}
 	else {
-	    slice_url_base= volume_url;
+	    slice_url_base= slice_url;
 	}
 	this.nick_name= (nick_name != null) ? nick_name : "(unnamed)";
 	this.isNative= false;
+	source_host= source_url.getHost();
+	if( SLICE_SOURCE_VOLUME == slice_source) {
+	    if( volume_url.endsWith( ".gz"))
+		System.err.println( this + " : " + volume_url + " is compressed, " +
+				    "downloading from the slice files instead");
+	    else
+		use_ranges= true;
+	}
+	job_key= volume_url + "@" + Integer.toHexString( System.identityHashCode( this));
 
 	if (VERBOSE) System.out.println("*** NICKNAME: "+this.nick_name+" ***");
+	if( volume_url.endsWith( ChunkedVolume.EXTENSION)) {
+	    chunked= new ChunkedVolume( source_url);
+	    int[] dim_order= volume_header.getDimOrder();
+	    int[] sizes= volume_header.getSizes();
+	    for( int d= 0; d < 3; ++d)
+		if( chunked.getSizes()[ d] != sizes[ dim_order[ d]])
+		    throw new IOException( volume_url + " : volume size does not match the header");
+	}
+	if( volume_header.getVoxelType() != VolumeHeader.TYPE_BYTE) {
+	    // (the chunks and the pyramid levels are made of bytes)
+	    if( chunked != null)
+		throw new IOException( volume_url + " : a chunked volume can only have byte voxels");
+	    int[] dim_order= volume_header.getDimOrder();
+	    int[] sizes= volume_header.getSizes();
+	    wide= new WideVoxelData( this, volume_header.getVoxelType(),
+				     new int[] { sizes[ dim_order[ 0]],
+						 sizes[ dim_order[ 1]],
+						 sizes[ dim_order[ 2]] },
+				     volume_header.getImageLow(), volume_header.getImageHigh());
+	}
 	resample_table= volume_header.getResampleTable( common_sampling);
+	resampler= new SlabResampler( resample_table, volume_header);
+	if( resample_method != RESAMPLE_NEAREST && STORAGE_LAZY == storage_method)
+	    System.err.println( this + " : interpolation is not available with " +
+				"the lazy storage, using the nearest voxels instead");
+	else if( resample_method != RESAMPLE_NEAREST && STORAGE_MAPPED == storage_method)
+	    // (it keeps a copy of the file on the heap while downloading)
+	    System.err.println( this + " : interpolation is not available with " +
+				"the mapped storage, using the nearest voxels instead");
+	else if( resample_method != RESAMPLE_NEAREST) {
+	    interpolator= new InterpolatingResampler( resample_method, 
+						      volume_header, common_sampling,
+						      wide != null);
+	    this.resample_method= resample_method;
+	}
+
+	common2local= _invertResampleTable();
+	final VolumeCache cache= VolumeCache.getShared();
+	String validator= null;
+	if( cache != null || STORAGE_MAPPED == storage_method) {
+	    try {
+		validator= VolumeCache.getValidator( source_url);
+	    }
+	    catch( Exception e) {
+		System.err.println( this + " : cannot tell the version of " + 
+				    volume_url + " (" + e + ")");
+	    }
+	}
+	store_key= _getStoreKey( validator);
+	versioned= validator != null;
+	voxels= _createVoxelStore();
+
+	// initialized to SLICE_NOT_LOADED (ie 0)
+	slice_state= new AtomicIntegerArray[ 3];
+	slice_waiters= new Vector[ 3][];
+	for( int dim= 0; dim < 3; ++dim) {
+	    slice_state[ dim]= new AtomicIntegerArray( volume_header.getSizes()[ dim]);
+	    slice_waiters[ dim]= new Vector[ slice_state[ dim].length()];
+	}
+	slice_changes= new AtomicIntegerArray( slice_state[ volume_header.getDimOrder()[ 0]].length());
+
+	// (the stored bytes are not enough for re-windowing wide voxels;
+	// and, as for the cache below, an unversioned file could have
+	// changed since)
+	if( null == wide && versioned && voxels instanceof MappedVoxelStore && 
+	    ((MappedVoxelStore)voxels).isComplete( store_key) ) {
+	    // a previous run already did all the work...
+	    if (VERBOSE) System.out.println( volume_url + " : reusing " + voxels);
+	    _setAllDownloaded();
+	    return;
+	}
+	// a file whose version is unknown could have changed since it was cached
+	// (and a lazy store holds the file's voxels, not the resampled ones)
+	cacheable= cache != null && versioned && 
+	    !( voxels instanceof LazyVoxelStore) && null == wide;
+	if( cacheable && cache.get( store_key, voxels)) {
+	    if (VERBOSE) System.out.println( volume_url + " : reusing " + cache);
+	    cacheable= false;
+	    _setAllDownloaded();
+	    _setStoreComplete();
+	    return;
+	}
 
 	/* initialize this volume's region to the dummy pattern
 	   ("solid color", more exactly), but only within the extend
@@ -179,26 +420,31 @@ public final class Data3DVolume {
 
 	    // Initialize the space with grey (255*0.2)
 	    int 	line_len= end_x - start_x + 1;
-	    byte[] 	dummy_line1= new byte[ line_len];
 	    byte 	dummy_val= (byte)(255*0.2);
-	    for( int i= 0; i < line_len; ++i) 
-		dummy_line1[ i]= dummy_val;
-	    for( int z= start_z; z <= end_z; ++z)
-		for( int y= start_y; y <= end_y ; ++y)
-		    System.arraycopy( dummy_line1, 0, 
-				      common_voxels[ z][ y], start_x,
-				      line_len);
-	}
-
-	// by default initialized to false (guaranteed by the Java spec)
-	t_slice_downloaded= new boolean[ volume_header.getSizeZ()];
-	s_slice_downloaded= new boolean[ volume_header.getSizeX()];
-	c_slice_downloaded= new boolean[ volume_header.getSizeY()];
-	slice_downloaded= new boolean[][] { 
-	    s_slice_downloaded, c_slice_downloaded, t_slice_downloaded 
-	};
+	    if( voxels instanceof LazyVoxelStore)
+		// (it has nothing outside the file anyway)
+		((LazyVoxelStore)voxels).fill( dummy_val);
+	    else
+		for( int z= start_z; z <= end_z; ++z)
+		    for( int y= start_y; y <= end_y ; ++y)
+			voxels.fillRow( start_x, y, z, line_len, dummy_val);
+	}
 
 	/* data downloading */
+	if( use_pyramid && download_method != DOWNLOAD_UPFRONT) {
+	    if( null == wide)
+		_startPreviews();
+	    else
+		System.err.println( this + " : no previews of the wide voxels");
+	}
+	if( brick_size > 0 && download_method != DOWNLOAD_UPFRONT) {
+	    int[] dim_order= volume_header.getDimOrder();
+	    int[] sizes= volume_header.getSizes();
+	    brick_index= new BrickIndex( new int[] { sizes[ dim_order[ 0]],
+						     sizes[ dim_order[ 1]],
+						     sizes[ dim_order[ 2]] },
+					 brick_size);
+	}
 	switch( download_method) {
 
 	case DOWNLOAD_UPFRONT :
@@ -209,12 +455,16 @@ public final class Data3DVolume {
 	    break;
 
 	case DOWNLOAD_HYBRID :
+	    // start with the slices at the initial cursor position...
+	    _setFocus( volume_header.world2voxel( common_sampling.getFOVCenter()));
 	    // start the parallel ("bg") download 
 	    bg_dnld= new Thread() {
 		    public void run() 
 		    {
 			try {
-			    _downloadAllVolume( source_url);
+			    if( !_downloadAllVolumeBySlice())
+				// no slice files? try the volume file then
+				_downloadAllVolume( source_url);
 			}
 			catch( Exception e) {
 			    System.err.println( e);
@@ -233,6 +483,56 @@ public final class Data3DVolume {
 	}
     }
 
+    /** Selects where the voxels of the volumes created from now on
+	will be stored. 
+	@param method one of the STORAGE_* constants
+	@param dir directory for the scratch files (only used by
+	STORAGE_MAPPED); if null, a "jiv2" subdirectory of the system's
+	temporary directory is used
+    */
+    static final public void setStorage( int method, String dir) {
+
+	if( method != STORAGE_HEAP && method != STORAGE_MAPPED && method != STORAGE_LAZY)
+	    throw new IllegalArgumentException( "unknown storage method: " + method);
+	storage_method= method;
+	storage_dir= (dir != null) ? new File( dir) : null;
+    }
+
+    /** Makes the on-demand downloads fetch bricks (of the given
+	size) instead of whole slices, for the volumes created from
+	now on. 0 switches back to whole slices. */
+    static final public void setBrickSize( int size) {
+
+	if( size < 0)
+	    throw new IllegalArgumentException( "invalid brick size: " + size);
+	brick_size= size;
+    }
+
+    /** Turns the previews (see VolumePyramid) on or off, for the
+	volumes created from now on. */
+    static final public void setPyramid( boolean on) {
+	use_pyramid= on;
+    }
+
+    /** Sets the maximum number of slices downloaded ahead of the
+	one displayed (0 turns the prefetching off). */
+    static final public void setMaxPrefetch( int slices) {
+
+	if( slices < 0)
+	    throw new IllegalArgumentException( "invalid prefetch window: " + slices);
+	max_prefetch= slices;
+    }
+
+    /** Selects where the on-demand slices of the volumes created
+	from now on are downloaded from.
+	@param source one of the SLICE_SOURCE_* constants */
+    static final public void setSliceSource( int source) {
+
+	if( source != SLICE_SOURCE_FILES && source != SLICE_SOURCE_VOLUME)
+	    throw new IllegalArgumentException( "unknown slice source: " + source);
+	slice_source= source;
+    }
+
     public void setNative(boolean isNative) {
 	if (VERBOSE && isNative)
 		System.out.println("Setting "+nick_name+" to be native.");
@@ -248,6 +548,7 @@ public final class Data3DVolume {
 	    bg_dnld.stop();
 	}
 	bg_dnld= null;
+	_stopPreviews();
 
 	/* Also killing the slice download threads would be nice, but
            it's not trivial: you need to store a ref to each new
@@ -279,7 +580,7 @@ public final class Data3DVolume {
 
     final public byte getVoxel( int x, int y, int z)
     {
-	return common_voxels[ z][ y][ x];
+	return voxels.get( x, y, z);
     }
 
     final public byte getVoxel( Point3Dint voxel)
@@ -317,8 +618,11 @@ public final class Data3DVolume {
 
 	<em>Note:</em> param 'slice' should not be used outside the 
 	current thread!!
+
+	@return true if the slice was complete (all its data
+	downloaded, and nothing more to come)
     */
-    final public void getTransverseSlice( final Point3Dfloat world,
+    final public boolean getTransverseSlice( final Point3Dfloat world,
 					  final int common_z,
 					  byte[] slice,
 					  final SliceImageProducer consumer )
@@ -327,6 +631,8 @@ public final class Data3DVolume {
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getTransverseSlice");
 
 	boolean already_downloaded;
+	// (before reading anything)
+	final boolean complete= _isComplete( 2, common_z);
 
 	/* TODO: you can use if( all_data_downloaded ) to speed this
            up for the common situation... */
@@ -340,40 +646,36 @@ public final class Data3DVolume {
 	if (DEBUG_A) System.out.println("5 world2voxel to get local (not common) voxel coords in Data3DVolume for new slice");
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^^getTransverseSlice -> volume_header.world2voxel()");
 	final Point3Dint file_voxel= volume_header.world2voxel( world);
+	_setFocus( file_voxel);
 
-	if( file_voxel.z < 0 || file_voxel.z >= t_slice_downloaded.length)
+	if( file_voxel.z < 0 || file_voxel.z >= slice_state[ 2].length())
 	    already_downloaded= true;
 	else
-	    already_downloaded= t_slice_downloaded[ file_voxel.z];
+	    already_downloaded= SLICE_DONE == slice_state[ 2].get( file_voxel.z);
 
 	final int x_size= getXSize();
 	final int y_size= getYSize();
-	byte[][][] common_voxels= this.common_voxels;
+	// for speed, use a stack variable instead of the instance field:
+	final VoxelStore voxels= this.voxels;
 	// NB: this vertically flips the image...
 	// (decreasing index loops are rumored to run faster in Java)
 
 	for( int y= y_size - 1, offset= 0; y >= 0; --y, offset += x_size)
-	    System.arraycopy( common_voxels[ common_z][ y], 0, slice, offset, x_size);
+	    voxels.getRow( 0, y, common_z, slice, offset, x_size);
+
+	// the slices likely to be looked at next
+	_prefetch( 1, 0, file_voxel.z, consumer);
 
-	
 	// If not already stored locally, download from source..
 	if( already_downloaded ) {
 	    if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getTransverseSlice DONE!\n");
-	    return;
+	    return complete;
 	}
 
-	// download the slice in a parallel (bg) thread
-	Thread t= new Thread() {
-		public void run() {
-		    if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^^getTransverseSlice -> _asyncDownloadSlice");
-		    _asyncDownloadSlice( 1, 0, file_voxel.z, consumer, common_z); 
-		}
-	    };
-	// TODO: maybe use (MIN_PRIORITY+1), or even MIN_PRIORITY, instead???
-	t.setPriority( Thread.currentThread().getPriority() - 1 ); 
-	t.start();
+	_requestDownload( 1, 0, file_voxel.z, consumer, common_z);
 
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getTransverseSlice DONE!\n");
+	return complete;
     }
 
     final public byte[] getSagittalSlice( final Point3Dfloat world, final int x)
@@ -383,7 +685,8 @@ public final class Data3DVolume {
 	return slice;
     }
 
-    final public void getSagittalSlice( final Point3Dfloat world,
+    /** @return as for getTransverseSlice */
+    final public boolean getSagittalSlice( final Point3Dfloat world,
 					final int common_x,
 					byte[] slice,
 					final SliceImageProducer consumer)
@@ -392,41 +695,38 @@ public final class Data3DVolume {
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getSagittalSlice");
 
 	boolean already_downloaded;
+	// (before reading anything)
+	final boolean complete= _isComplete( 0, common_x);
 
 	if (DEBUG_A) System.out.println("5 world2voxel to get local (not common) voxel coords in Data3DVolume for new slice");
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^^getSagittalSlice -> volume_header.world2voxel()");
 	final Point3Dint file_voxel= volume_header.world2voxel( world);
+	_setFocus( file_voxel);
 
-	if( file_voxel.x < 0 || file_voxel.x >= s_slice_downloaded.length)
+	if( file_voxel.x < 0 || file_voxel.x >= slice_state[ 0].length())
 	    already_downloaded= true;
 	else
-	    already_downloaded= s_slice_downloaded[ file_voxel.x];
+	    already_downloaded= SLICE_DONE == slice_state[ 0].get( file_voxel.x);
 
 	final int y_size= getYSize();
 	final int z_size= getZSize();
-	byte[][][] common_voxels= this.common_voxels;
+	final VoxelStore voxels= this.voxels;
 
 	// NB: this vertically flips the image...
 	for( int z= z_size - 1, offset= 0; z >= 0; --z, offset += y_size) 
-	    for( int y= y_size - 1; y >= 0; --y)
-		slice[ offset + y]= common_voxels[ z][ y][ common_x];
+	    voxels.getColumn( common_x, z, slice, offset);
+
+	_prefetch( 2, 1, file_voxel.x, consumer);
 
 	if( already_downloaded ) {
 	    if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getSagittalSlice DONE!\n");
-	    return;
+	    return complete;
 	}
 
-	// download the slice in a parallel (bg) thread
-	Thread t= new Thread() {
-		public void run() {
-		    if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^^getSagittalSlice -> _asyncDownloadSlice");
-		    _asyncDownloadSlice( 2, 1, file_voxel.x, consumer, common_x); 
-		}
-	    };
-	t.setPriority( Thread.currentThread().getPriority() - 1 ); 
-	t.start();
+	_requestDownload( 2, 1, file_voxel.x, consumer, common_x);
 
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getSagittalSlice DONE!\n");
+	return complete;
     }
 
     final public byte[] getCoronalSlice( final Point3Dfloat world, final int y )
@@ -436,7 +736,8 @@ public final class Data3DVolume {
 	return slice;
     }
 
-    final public void getCoronalSlice( final Point3Dfloat world,
+    /** @return as for getTransverseSlice */
+    final public boolean getCoronalSlice( final Point3Dfloat world,
 				       final int common_y,
 				       byte[] slice,
 				       final SliceImageProducer consumer)
@@ -445,39 +746,250 @@ public final class Data3DVolume {
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getCoronalSlice");
 
 	boolean already_downloaded;
+	// (before reading anything)
+	final boolean complete= _isComplete( 1, common_y);
 
 	if (DEBUG_A) System.out.println("Data3DVolume.getCoronalSlice -> volume_header.world2voxel(world)");
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^^getCoronalSlice -> volume_header.world2voxel()");
 	final Point3Dint file_voxel= volume_header.world2voxel( world);
+	_setFocus( file_voxel);
 
-	if( file_voxel.y < 0 || file_voxel.y >= c_slice_downloaded.length)
+	if( file_voxel.y < 0 || file_voxel.y >= slice_state[ 1].length())
 	    already_downloaded= true;
 	else
-	    already_downloaded= c_slice_downloaded[ file_voxel.y];
+	    already_downloaded= SLICE_DONE == slice_state[ 1].get( file_voxel.y);
 
 	final int x_size= getXSize();
 	final int z_size= getZSize();
-	byte[][][] common_voxels= this.common_voxels;
+	final VoxelStore voxels= this.voxels;
 
 	// NB: this vertically flips the image...
 	for( int z= z_size - 1, offset= 0; z >= 0; --z, offset += x_size)
-	    System.arraycopy( common_voxels[ z][ common_y], 0, slice, offset, x_size);
+	    voxels.getRow( 0, common_y, z, slice, offset, x_size);
+
+	_prefetch( 2, 0, file_voxel.y, consumer);
 
 	if( already_downloaded ) {
 	    if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getCoronalSlice DONE!\n");
+	    return complete;
+	}
+	_requestDownload( 2, 0, file_voxel.y, consumer, common_y);
+
+	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getCoronalSlice DONE!\n");
+	return complete;
+    }
+
+    /**
+     * Copies some rows of an orthogonal slice, in display order (like
+     * the get*Slice methods, but without any download requests).
+     *
+     * @param ortho_dim the dimension orthogonal to the slice (0 for
+     * sagittal, 1 for coronal, 2 for transverse)
+     * @param common_slice slice number (common sampling)
+     * @param first_row first row to copy (display order)
+     * @param last_row one past the last row to copy
+     * @param dest where to put the rows
+     * @param dest_offset where to put first_row in 'dest'
+     */
+    final public void getSliceRows( int ortho_dim, int common_slice, 
+				    int first_row, int last_row,
+				    byte[] dest, int dest_offset )
+    {
+	final VoxelStore voxels= this.voxels;
+	switch( ortho_dim) {
+	case 2: {
+	    final int x_size= getXSize();
+	    for( int r= first_row, y= getYSize() - 1 - first_row; r < last_row; 
+		 ++r, --y, dest_offset += x_size)
+		voxels.getRow( 0, y, common_slice, dest, dest_offset, x_size);
+	    break;
+	}
+	case 0: {
+	    final int y_size= getYSize();
+	    for( int r= first_row, z= getZSize() - 1 - first_row; r < last_row; 
+		 ++r, --z, dest_offset += y_size)
+		voxels.getColumn( common_slice, z, dest, dest_offset);
+	    break;
+	}
+	case 1: {
+	    final int x_size= getXSize();
+	    for( int r= first_row, z= getZSize() - 1 - first_row; r < last_row; 
+		 ++r, --z, dest_offset += x_size)
+		voxels.getRow( 0, common_slice, z, dest, dest_offset, x_size);
+	    break;
+	}
+	default:
+	    throw new IllegalArgumentException( "invalid dimension: " + ortho_dim);
+	}
+    }
+
+    /**
+     * Requests the download of the missing orthogonal slices
+     * first_slice ... last_slice (common sampling), like the
+     * get*Slice methods do for a single one.
+     *
+     * @param ortho_dim as for <code>getSliceRows</code>
+     * @param world where to start the downloads from
+     * @param consumer where to send the sliceDataUpdated
+     * notification (can be null)
+     * @param consumer_slice_no argument for sliceDataUpdated
+     */
+    final public void requestSlab( int ortho_dim, int first_slice, int last_slice,
+				   Point3Dfloat world,
+				   SliceImageProducer consumer, int consumer_slice_no )
+    {
+	if( all_data_downloaded)
 	    return;
+	_setFocus( volume_header.world2voxel( world));
+	final int vert_dim= 2 == ortho_dim ? 1 : 2;
+	final int horiz_dim= 0 == ortho_dim ? 1 : 0;
+	final int[] map= common2local[ ortho_dim];
+	final AtomicIntegerArray state= slice_state[ ortho_dim];
+	int last_requested= -1;
+	for( int s= Math.max( 0, first_slice); s <= last_slice && s < map.length; ++s) {
+	    final int file_slice= map[ s];
+	    // (consecutive common slices often come from the same file slice)
+	    if( file_slice < 0 || file_slice == last_requested)
+		continue;
+	    last_requested= file_slice;
+	    if( SLICE_DONE != state.get( file_slice))
+		_requestDownload( vert_dim, horiz_dim, file_slice, consumer, consumer_slice_no);
 	}
-	// download the slice in a parallel (bg) thread
-	Thread t= new Thread() {
-		public void run() {
-		    if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^^getCoronalSlice -> _asyncDownloadSlice()");
-		    _asyncDownloadSlice( 2, 0, file_voxel.y, consumer, common_y); 
+    }
+
+    /** fraction bits of the fixed point voxel coordinates used by
+	getObliqueSlice */
+    /*private*/ static final int	OBLIQUE_SHIFT= 16;
+
+    /**
+     * Samples the volume along an arbitrary plane (nearest common
+     * voxel; outside the volume reads as 0), and requests the missing
+     * data like the orthogonal get*Slice do. The plane is walked
+     * incrementally: one fixed point addition per pixel, no
+     * per-pixel coordinate transform. The rows are shared out
+     * between the processors.
+     *
+     * @param origin world coordinates of the top left pixel
+     * @param du world step from a pixel to its right neighbour
+     * @param dv world step from a pixel to the one below it
+     * @param width image width (pixels)
+     * @param height image height (pixels)
+     * @param slice where to put the image (width x height, in
+     * display order)
+     * @param consumer where to send the sliceDataUpdated
+     * notification (can be null)
+     * @param consumer_slice_no argument for sliceDataUpdated
+     * @param new_plane false if this same plane was sampled before
+     * (with the same consumer_slice_no): only the slices nobody is
+     * working on anymore (eg after a failed download) are requested
+     * again, the others would only notify the consumer twice
+     * @return the change counts (see hasObliqueChanged) of the file
+     * slices the plane crosses, as they were before sampling (-1 for
+     * the other slices); null if all the data was there already
+     */
+    final public int[] getObliqueSlice( final Point3Dfloat origin,
+					final float[] du,
+					final float[] dv,
+					final int width,
+					final int height,
+					final byte[] slice,
+					final SliceImageProducer consumer,
+					final int consumer_slice_no,
+					final boolean new_plane )
+    {
+	final float[][] w2v= common_sampling.getWorldToVoxel();
+	// the plane in common voxel coordinates (fixed point); the
+	// half voxel added to the origin turns truncation into rounding
+	final long[] p0= new long[ 3];
+	final long[] step_u= new long[ 3];
+	final long[] step_v= new long[ 3];
+	final float one= 1 << OBLIQUE_SHIFT;
+	for( int d= 0; d < 3; ++d) {
+	    float c= w2v[ d][ 0] * origin.x + w2v[ d][ 1] * origin.y + 
+		w2v[ d][ 2] * origin.z + w2v[ d][ 3];
+	    p0[ d]= (long)Math.floor( ( c + 0.5f) * one);
+	    step_u[ d]= Math.round( ( w2v[ d][ 0] * du[ 0] + w2v[ d][ 1] * du[ 1] + 
+				      w2v[ d][ 2] * du[ 2]) * one);
+	    step_v[ d]= Math.round( ( w2v[ d][ 0] * dv[ 0] + w2v[ d][ 1] * dv[ 1] + 
+				      w2v[ d][ 2] * dv[ 2]) * one);
+	}
+
+	// the file slices (along the first file dimension, the
+	// cheapest to download) that the plane goes through
+	final boolean all_there= all_data_downloaded;
+	final int ortho_dim= volume_header.getDimOrder()[ 0];
+	final int[] ortho_map= common2local[ ortho_dim];
+	final boolean[] crossed= all_there ? null : new boolean[ slice_state[ ortho_dim].length()];
+	// (before sampling: a save that's missed by the sampling will
+	// have changed its count by the time it's notified)
+	final int[] changes= all_there ? null : new int[ crossed.length];
+	for( int s= 0; !all_there && s < changes.length; ++s)
+	    changes[ s]= slice_changes.get( s);
+
+	final int x_size= getXSize();
+	final int y_size= getYSize();
+	final int z_size= getZSize();
+	final VoxelStore voxels= this.voxels;
+	WorkerPool.getShared().parallelFor( height, Math.max( 1, 16384 / Math.max( 1, width)),
+					     new WorkerPool.Body() {
+	    public void run( int first, int last) {
+		final long ux= step_u[ 0], uy= step_u[ 1], uz= step_u[ 2];
+		for( int row= first; row < last; ++row) {
+		    long fx= p0[ 0] + row * step_v[ 0];
+		    long fy= p0[ 1] + row * step_v[ 1];
+		    long fz= p0[ 2] + row * step_v[ 2];
+		    int offset= row * width;
+		    for( int col= 0; col < width; ++col, ++offset, fx += ux, fy += uy, fz += uz) {
+			final int x= (int)( fx >> OBLIQUE_SHIFT);
+			final int y= (int)( fy >> OBLIQUE_SHIFT);
+			final int z= (int)( fz >> OBLIQUE_SHIFT);
+			if( x < 0 || x >= x_size || y < 0 || y >= y_size || z < 0 || z >= z_size) {
+			    slice[ offset]= 0;
+			    continue;
+			}
+			slice[ offset]= voxels.get( x, y, z);
+			if( null != crossed) {
+			    // (the races between the threads are harmless)
+			    final int s= ortho_map[ 0 == ortho_dim ? x : 1 == ortho_dim ? y : z];
+			    if( s >= 0)
+				crossed[ s]= true;
+			}
+		    }
 		}
-	    };
-	t.setPriority( Thread.currentThread().getPriority() - 1 ); 
-	t.start();
+	    }
+	});
+
+	if( all_there)
+	    return null;
+	for( int s= 0; s < crossed.length; ++s)
+	    if( !crossed[ s])
+		changes[ s]= -1;
+	// the plane's center is where the downloads should start from
+	Point3Dfloat center= new Point3Dfloat( origin.x + ( du[ 0] * width + dv[ 0] * height) / 2,
+					       origin.y + ( du[ 1] * width + dv[ 1] * height) / 2,
+					       origin.z + ( du[ 2] * width + dv[ 2] * height) / 2);
+	_setFocus( volume_header.world2voxel( center));
+	final int vert_dim= 2 == ortho_dim ? 1 : 2;
+	final int horiz_dim= 0 == ortho_dim ? 1 : 0;
+	final AtomicIntegerArray state= slice_state[ ortho_dim];
+	for( int s= 0; s < crossed.length; ++s)
+	    if( crossed[ s] && 
+		( new_plane ? SLICE_DONE != state.get( s) : SLICE_NOT_LOADED == state.get( s)) )
+		_requestDownload( vert_dim, horiz_dim, s, consumer, consumer_slice_no);
+	return changes;
+    }
 
-	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t\t^getCoronalSlice DONE!\n");
+    /**
+     * @param changes as returned by getObliqueSlice
+     * @return true if any of the file slices that plane crosses was
+     * saved into since it was sampled
+     */
+    final public boolean hasObliqueChanged( int[] changes)
+    {
+	for( int s= 0; s < changes.length; ++s)
+	    if( changes[ s] >= 0 && changes[ s] != slice_changes.get( s))
+		return true;
+	return false;
     }
 
     /**
@@ -485,7 +997,8 @@ public final class Data3DVolume {
      * @return the image value (real value) corresponding to voxel_value
      */
     public final float voxel2image( short voxel_value) {
-	return volume_header.voxel2image( voxel_value);
+	return null == wide ?
+	    volume_header.voxel2image( voxel_value) : wide.voxel2image( voxel_value);
     }
 
     /**
@@ -493,15 +1006,101 @@ public final class Data3DVolume {
      * @return the 0..255 voxel value corresponding to image_value 
      */
     public final short image2voxel( float image_value) {
-	return volume_header.image2voxel( image_value);
+	return null == wide ?
+	    volume_header.image2voxel( image_value) : wide.image2voxel( image_value);
+    }
+
+    /** @return true if the file's voxels are wider than bytes (see
+	setDisplayRange) */
+    public final boolean hasWideVoxels() { return wide != null; }
+
+    /**
+     * @param voxel a voxel of the common sampling
+     * @return the full precision value of the file voxel shown there,
+     * for wide voxels (see hasWideVoxels); NaN for byte voxels, or if
+     * it's not downloaded yet
+     */
+    public final float getImageValue( Point3Dint voxel) {
+
+	if( null == wide ||
+	    voxel.x < 0 || voxel.x >= common2local[ 0].length ||
+	    voxel.y < 0 || voxel.y >= common2local[ 1].length ||
+	    voxel.z < 0 || voxel.z >= common2local[ 2].length)
+	    return Float.NaN;
+	// (-1 outside the file: WideVoxelData returns NaN)
+	final int[] canonical= { common2local[ 0][ voxel.x],
+				 common2local[ 1][ voxel.y],
+				 common2local[ 2][ voxel.z] };
+	final int[] dim_order= volume_header.getDimOrder();
+	return wide.getValue( canonical[ dim_order[ 0]], canonical[ dim_order[ 1]],
+			      canonical[ dim_order[ 2]]);
+    }
+
+    /** @return the display window of the wide voxels (see
+	setDisplayRange), as { low, high }; for byte voxels, the
+	header's imagerange */
+    public final float[] getDisplayRange() {
+	return null == wide ?
+	    new float[] { volume_header.getImageLow(), volume_header.getImageHigh() } :
+	    new float[] { wide.getLow(), wide.getHigh() };
+    }
+
+    /** @return the header's imagerange, as { low, high } (the
+	initial display window) */
+    public final float[] getImageRange() {
+	return new float[] { volume_header.getImageLow(), volume_header.getImageHigh() };
+    }
+
+    /**
+     * Changes the range of image values mapped to the 0..255 voxels,
+     * for wide voxels (see VolumeHeader.getVoxelType): the voxels
+     * downloaded so far are quantized again from their full values,
+     * and the slices shown are refreshed. Takes a while on a large
+     * volume, so better not called from the event thread.
+     *
+     * @param low image value that becomes 0
+     * @param high image value that becomes 255 (can't be below low)
+     * @exception IllegalStateException if the voxels are bytes
+     */
+    public final void setDisplayRange( float low, float high) {
+
+	if( null == wide)
+	    throw new IllegalStateException( this + " : the voxels are bytes");
+	windowing= true;
+	try {
+	    wide.setWindow( low, high);
+	}
+	finally {
+	    windowing= false;
+	}
+	SlicePlaneCache cache= SlicePlaneCache.getShared();
+	if( cache != null)
+	    cache.remove( this);
+	Vector to_refresh;
+	synchronized( producers) {
+	    to_refresh= (Vector)producers.clone();
+	}
+	for( Enumeration e= to_refresh.elements(); e.hasMoreElements(); )
+	    ((SliceImageProducer)e.nextElement()).volumeDataChanged();
+    }
+
+    /** Registers a SliceImageProducer showing this volume (see
+	setDisplayRange). */
+    final public void addProducer( SliceImageProducer producer) {
+	producers.addElement( producer);
+    }
+
+    /** Unregisters a SliceImageProducer that's not used anymore. */
+    final public void removeProducer( SliceImageProducer producer) {
+	producers.removeElement( producer);
     }
 
 
     // debugging aid...
     public void printTrueRange() 
     {
-	int min= common_voxels[ 0][ 0][ 0];
-	int max= common_voxels[ 0][ 0][ 0];
+	int min= getVoxelAsInt( 0, 0, 0);
+	int max= min;
 	for( int z= 0; z < getZSize(); ++z)
 	    for( int y= 0; y < getYSize(); ++y)
 		for( int x= 0; x < getXSize(); ++x) {
@@ -521,43 +1120,25 @@ public final class Data3DVolume {
 	throws IOException, SecurityException
     {
 	int[] dim_order= volume_header.getDimOrder();
-	int[] sizes= volume_header.getSizes();
 	// size along 1st dimension of the file
-	int size_0= sizes[ dim_order[ 0]]; 
-	// size along 2nd dimension of the file
-	int size_1= sizes[ dim_order[ 1]]; 
-	// size along 3rd (last) dimension of the file
-	int size_2= sizes[ dim_order[ 2]]; 
+	int size_0= volume_header.getSizes()[ dim_order[ 0]]; 
 
-	byte[] buff= new byte[ size_1 * size_2];
-	int[] slab_start= new int[] { 0, 0, 0};
-	final int[] slab_size=  new int[] { 1, size_1, size_2 };
+	if( chunked != null) {
+	    chunked.readAll( new ChunkedVolume.ChunkConsumer() {
+		    public void chunkRead( int chunk, byte[] data) throws IOException {
+			_readChunk( chunk, data);
+		    }
+		});
+	    if (VERBOSE) System.out.println( source_url + " loading done!");
+	    _setAllDownloaded();
+	    _setStoreComplete();
+	    return;
+	}
 
 	InputStream input_stream= null;
 	try {
 	    input_stream= Util.openURL( source_url);
-
-	    /* download it one slice at a time (the read buffer is the
-	       size of 1 slice) */
-	    
-	    for( int d_0= 0; d_0 < size_0; d_0++) {
-		_readSlice( input_stream, 
-			    /* todo: this is kind of wasteful (maybe
-                               catch and rewrite exception...) : */
-			    source_url.toString(),
-			    buff, size_2, size_1);
-
-		slab_start[ 0]= d_0;
-
-		if( this.resample_table.fast_resample )
-		    _saveSlab_fast( buff, slab_start, slab_size);
-		else
-		    _saveSlab( buff, slab_start, slab_size);
-
-		slice_downloaded[ dim_order[0] ][ d_0 ]= true;
-		/* this should help on a slow & non-preemptive jvm ... */
-		Thread.yield();
-	    }
+	    _readFileSlices( input_stream, source_url.toString(), 0, size_0);
 	    if (VERBOSE) System.out.println( source_url + " loading done!");
 	}
 	finally {
@@ -570,32 +1151,631 @@ public final class Data3DVolume {
 		input_stream= null;
 	    }
 	}
-	int i;
-	for( i= 0; i < size_1; ++i)
-	    slice_downloaded[ dim_order[1] ][ i ]= true;
-	for( i= 0; i < size_2; ++i)
-	    slice_downloaded[ dim_order[2] ][ i ]= true;
+	_setAllDownloaded();
+	_setStoreComplete();
+    }
+
+    /**
+     * Reads consecutive slices (along the first file dimension) of
+     * the volume file, and saves them.
+     *
+     * @param input_stream positioned at the start of slice 'first'
+     * @param input_name for the error messages
+     * @param first first slice number
+     * @param count number of slices to read
+     */
+    final /*private*/ void _readFileSlices( InputStream input_stream,
+					    String input_name,
+					    int first, 
+					    int count)
+	throws IOException
+    {
+	int[] dim_order= volume_header.getDimOrder();
+	int[] sizes= volume_header.getSizes();
+	// size along 2nd dimension of the file
+	int size_1= sizes[ dim_order[ 1]]; 
+	// size along 3rd (last) dimension of the file
+	int size_2= sizes[ dim_order[ 2]]; 
+	final AtomicIntegerArray state= slice_state[ dim_order[ 0]];
+
+	byte[] buff= new byte[ size_1 * size_2 * volume_header.getBytesPerVoxel()];
+	int[] slab_start= new int[] { 0, 0, 0};
+	final int[] slab_size=  new int[] { 1, size_1, size_2 };
+
+	/* download it one slice at a time (the read buffer is the
+	   size of 1 slice) */
+	    
+	for( int d_0= first; d_0 < first + count; d_0++) {
+	    _readSlice( input_stream, input_name, buff, size_2, size_1);
+
+	    slab_start[ 0]= d_0;
+
+	    /* skip the slices already done on demand; the ones in
+	       progress are saved anyway (same data), in case their
+	       download fails */
+	    if( SLICE_DONE != state.get( d_0)) {
+		// keeps new on-demand requests away: they'll wait for us
+		state.compareAndSet( d_0, SLICE_NOT_LOADED, SLICE_IN_PROGRESS);
+		_saveSlab( buff, slab_start, slab_size);
+		_sliceDone( dim_order[ 0], d_0);
+	    }
+	    /* this should help on a slow & non-preemptive jvm ... */
+	    Thread.yield();
+	}
+    }
+
+    /** Saves the slices of a (decompressed) chunk of a chunked volume */
+    final /*private*/ void _readChunk( int chunk, byte[] data)
+	throws IOException
+    {
+	_readFileSlices( new ByteArrayInputStream( data), volume_url,
+			 chunk * chunked.getChunkSlices(), chunked.getSliceCount( chunk));
+    }
+
+    /**
+     * Downloads consecutive slices (along the first file dimension)
+     * with one byte range request on the volume file, and saves them.
+     * For a chunked volume, the whole chunks holding them are
+     * downloaded (and saved).
+     *
+     * @return false if the download failed
+     */
+    final /*private*/ boolean _fetchFileSlices( int first, int count)
+    {
+	int[] dim_order= volume_header.getDimOrder();
+	int[] sizes= volume_header.getSizes();
+	final long slice_size= (long)sizes[ dim_order[ 1]] * sizes[ dim_order[ 2]] *
+	    volume_header.getBytesPerVoxel();
+
+	InputStream input_stream= null;
+	try {
+	    if( chunked != null) {
+		// the whole chunks holding these slices
+		int first_chunk= chunked.getChunk( first);
+		int n_chunks= chunked.getChunk( first + count - 1) - first_chunk + 1;
+		byte[][] chunks= chunked.readChunks( first_chunk, n_chunks);
+		for( int c= 0; c < n_chunks; ++c)
+		    _readChunk( first_chunk + c, chunks[ c]);
+		return true;
+	    }
+	    input_stream= Util.openURLRange( new URL( volume_url), 
+					     first * slice_size, count * slice_size);
+	    _readFileSlices( input_stream, volume_url, first, count);
+	    if( DEBUG) System.out.println( volume_url + " : slices " + first + 
+					   ".." + (first + count - 1) + " loading done!");
+	    return true;
+	}
+	catch( Exception e) {
+	    System.err.println( e);
+	    return false;
+	}
+	finally {
+	    if( input_stream != null) {
+		try { input_stream.close(); }
+		catch( IOException e) {}
+	    }
+	}
+    }
+
+    /**
+     * Queues a slice (along the first file dimension) for the byte
+     * range downloads, and makes sure a RangeJob will get to it.
+     */
+    final /*private*/ void _requestRange( int slice_no)
+    {
+	int start= -1;
+	synchronized( range_pending) {
+	    range_pending.set( slice_no);
+	    if( !range_job_running)
+		start= range_jobs++;
+	    range_job_running= true;
+	}
+	if( start >= 0)
+	    DownloadScheduler.getShared().submit( new RangeJob( start), null, 0);
+    }
+
+    /** @return the DownloadScheduler key of the FileSliceJob for
+	this slice (along the first file dimension) */
+    final /*private*/ String _getFileSliceKey( int slice_no)
+    {
+	return job_key + "/ranges/" + slice_no;
+    }
+
+    /**
+     * Takes the next run of adjacent pending slices (the one nearest
+     * to the focus, at most MAX_RANGE_SLICES long) off range_pending.
+     *
+     * @param run Output: first slice and slice count 
+     * @return false if nothing is pending (in which case the RangeJob
+     * is over)
+     */
+    final /*private*/ boolean _nextRange( int[] run)
+    {
+	synchronized( range_pending) {
+	    if( range_pending.isEmpty()) {
+		range_job_running= false;
+		return false;
+	    }
+	    // forget the ones done meanwhile (eg a neighbour in the same chunk)
+	    final AtomicIntegerArray state= slice_state[ volume_header.getDimOrder()[ 0]];
+	    for( int i= range_pending.nextSetBit( 0); i >= 0; i= range_pending.nextSetBit( i + 1))
+		if( SLICE_DONE == state.get( i))
+		    range_pending.clear( i);
+	    if( range_pending.isEmpty()) {
+		range_job_running= false;
+		return false;
+	    }
+	    final int focus= Math.max( 0, bg_focus);
+	    int after= range_pending.nextSetBit( focus);
+	    int before= range_pending.previousSetBit( focus);
+	    int seed= ( after < 0 || ( before >= 0 && focus - before < after - focus))
+		? before : after;
+	    int first= seed;
+	    int last= seed;
+	    while( last - first + 1 < MAX_RANGE_SLICES) {
+		if( range_pending.get( last + 1))
+		    ++last;
+		else if( first > 0 && range_pending.get( first - 1))
+		    --first;
+		else 
+		    break;
+	    }
+	    range_pending.clear( first, last + 1);
+	    run[ 0]= first;
+	    run[ 1]= last - first + 1;
+	    return true;
+	}
+    }
+
+    /** Makes the given slices (along the first file dimension)
+	available for new download requests again (eg after a failed
+	download) */
+    final /*private*/ void _abandonFileSlices( int first, int count)
+    {
+	final int dim= volume_header.getDimOrder()[ 0];
+	for( int i= first; i < first + count; ++i)
+	    _abandonSlice( dim, i);
+    }
+
+    /** Makes a slice available for new download requests again,
+	unless it's already done, and wakes up
+	_downloadAllVolumeBySlice if it was waiting for it.
+	@param dim canonical dimension orthogonal to the slice */
+    final /*private*/ void _abandonSlice( int dim, int slice_no)
+    {
+	if( slice_state[ dim].compareAndSet( slice_no, SLICE_IN_PROGRESS, SLICE_NOT_LOADED))
+	    synchronized( slice_waiters) {
+		slice_waiters.notifyAll();
+	    }
+    }
+
+    /** Marks a mapped voxel store as reusable by later runs, and
+	saves the voxels in the VolumeCache (to be called once all the
+	data is in) */
+    final /*private*/ void _setStoreComplete()
+    {
+	boolean save;
+	synchronized( this) {
+	    // only once
+	    if( store_complete)
+		return;
+	    store_complete= true;
+	    save= cacheable;
+	    cacheable= false;
+	}
+	// (never reusable if its version is unknown)
+	if( versioned && voxels instanceof MappedVoxelStore ) {
+	    try {
+		((MappedVoxelStore)voxels).setComplete( store_key);
+	    }
+	    catch( IOException e) {
+		// not fatal: the next run will simply not reuse it
+		System.err.println( voxels + " : " + e);
+	    }
+	}
+	VolumeCache cache= VolumeCache.getShared();
+	if( save && cache != null)
+	    cache.put( store_key, voxels);
+    }
+
+    /**
+     * Downloads the whole volume as individual slice files (along the
+     * first file dimension), starting from the slice currently
+     * displayed (see <code>bg_focus</code>) and expanding outwards;
+     * when the cursor moves, the download continues from its new
+     * position. Slices already downloaded (or in progress) on demand
+     * are skipped.
+     *
+     * @return false if a slice download failed (the rest of the
+     * volume has to be downloaded some other way)
+     */
+    final /*private*/ boolean _downloadAllVolumeBySlice()
+    {
+	final int ortho_dim= volume_header.getDimOrder()[ 0];
+	// the slice dims, as for the get*Slice methods
+	final int vert_dim= ( 2 == ortho_dim) ? 1 : 2;
+	final int horiz_dim= ( 0 == ortho_dim) ? 1 : 0;
+	final AtomicIntegerArray state= slice_state[ ortho_dim];
+	final int n_slices= state.length();
+
+	for( int done= 0; done < n_slices; ) {
+	    // the slice not yet started that's nearest to the focus
+	    final int focus= Math.max( 0, Math.min( n_slices - 1, bg_focus));
+	    int slice_no= -1;
+	    for( int dist= 0; dist < n_slices && slice_no < 0; ++dist) {
+		if( focus + dist < n_slices && 
+		    SLICE_NOT_LOADED == state.get( focus + dist))
+		    slice_no= focus + dist;
+		else if( focus - dist >= 0 && 
+			 SLICE_NOT_LOADED == state.get( focus - dist))
+		    slice_no= focus - dist;
+	    }
+	    if( slice_no < 0) {
+		// the rest are in progress: wait until they're done, or
+		// one of them is abandoned (see _sliceDone, _abandonSlice)
+		done= _waitForSlices( ortho_dim);
+		continue;
+	    }
+	    if( !state.compareAndSet( slice_no, SLICE_NOT_LOADED, SLICE_IN_PROGRESS))
+		// somebody else just got it
+		continue;
+	    boolean ok= false;
+	    try {
+		ok= use_ranges ? _fetchFileSlices( slice_no, 1)
+		    : _fetchSlice( vert_dim, horiz_dim, slice_no);
+	    }
+	    finally {
+		// (also if the fetch threw: otherwise the slice would
+		// stay in progress, and its waiters would wait forever)
+		if( !ok)
+		    _abandonSlice( ortho_dim, slice_no);
+	    }
+	    if( !ok)
+		return false;
+	    /* this should help on a slow & non-preemptive jvm ... */
+	    Thread.yield();
+	}
+	if (VERBOSE) System.out.println( slice_url_base + " loading done!");
+
+	_setAllDownloaded();
+	_setStoreComplete();
+	return true;
+    }
+
+    /** Waits while none of the slices orthogonal to 'dim' is
+	available for download, but some are still in progress.
+	@return the number of slices done */
+    final /*private*/ int _waitForSlices( int dim)
+    {
+	final AtomicIntegerArray state= slice_state[ dim];
+	synchronized( slice_waiters) {
+	    while( true) {
+		int done= 0;
+		boolean not_loaded= false;
+		for( int i= state.length() - 1; i >= 0; --i)
+		    switch( state.get( i)) {
+		    case SLICE_DONE: ++done; break;
+		    case SLICE_NOT_LOADED: not_loaded= true; break;
+		    }
+		if( not_loaded || done == state.length())
+		    return done;
+		try {
+		    slice_waiters.wait();
+		}
+		catch( InterruptedException e) {}
+	    }
+	}
+    }
+
+    /**
+     * Requests the download of the slices the consumer is likely to
+     * show next: up to a window ahead in the direction it's moving
+     * (long enough for what it scrolls through during a download,
+     * twice over), and a quarter of that behind. They are queued
+     * behind everything really needed, nearest first, and the ones
+     * still queued are dropped at the consumer's next move. Arguments
+     * as for <code>_requestDownload</code>.
+     */
+    final /*private*/ void _prefetch( final int vert_dim, 
+				      final int horiz_dim, 
+				      final int input_slice_no, 
+				      final SliceImageProducer consumer )
+    {
+	if( null == consumer || 0 == max_prefetch || all_data_downloaded)
+	    return;
+	final int ortho_dim= 3 - vert_dim - horiz_dim;
+	if( input_slice_no < 0 || input_slice_no >= slice_state[ ortho_dim].length())
+	    return;
+	final ScrollTracker scroll= consumer.getScrollTracker();
+	if( !scroll.update( input_slice_no))
+	    // not a move (eg a refresh)
+	    return;
+	if( use_ranges && null == brick_index && 
+	    volume_header.getDimOrder()[ 0] != ortho_dim)
+	    // these only come with the whole volume
+	    return;
 
+	float latency;
+	synchronized( this) {
+	    latency= latency_ms;
+	}
+	if( latency < 0)
+	    latency= DEFAULT_LATENCY_MS;
+	final int ahead= Math.max( MIN_PREFETCH, 
+				   Math.min( max_prefetch,
+					     2 * (int)Math.ceil( scroll.getSpeed() * latency / 1000f) + 1));
+	final int behind= Math.max( 1, ahead / 4);
+	int direction= scroll.getDirection();
+	final int behind_window= ( 0 == direction) ? ahead : behind;
+	if( 0 == direction)
+	    // no idea where next: both ways
+	    direction= 1;
+
+	DownloadScheduler.getShared().cancelPrefetch( consumer);
+	for( int dist= 1; dist <= Math.max( ahead, behind_window); ++dist) {
+	    if( dist <= ahead)
+		_prefetchSlice( vert_dim, horiz_dim, input_slice_no + direction * dist, consumer);
+	    if( dist <= behind_window)
+		_prefetchSlice( vert_dim, horiz_dim, input_slice_no - direction * dist, consumer);
+	}
+    }
+
+    /** Queues the (missing data of a) slice as a prefetch; arguments
+	as for <code>_prefetch</code>. */
+    final /*private*/ void _prefetchSlice( final int vert_dim, 
+					   final int horiz_dim, 
+					   final int input_slice_no, 
+					   final SliceImageProducer consumer )
+    {
+	final int ortho_dim= 3 - vert_dim - horiz_dim;
+	final AtomicIntegerArray state= slice_state[ ortho_dim];
+	if( input_slice_no < 0 || input_slice_no >= state.length() ||
+	    SLICE_DONE == state.get( input_slice_no))
+	    return;
+	DownloadScheduler scheduler= DownloadScheduler.getShared();
+	if( use_ranges && null == brick_index) {
+	    // (only along the first file dimension, see _prefetch)
+	    FileSliceJob job= new FileSliceJob( input_slice_no);
+	    // (under the lock: see _requestDownload)
+	    synchronized( scheduler) {
+		if( state.compareAndSet( input_slice_no, SLICE_NOT_LOADED, SLICE_IN_PROGRESS))
+		    scheduler.prefetch( job, consumer);
+	    }
+	    return;
+	}
+	if( null == brick_index) {
+	    SliceJob job= new SliceJob( vert_dim, horiz_dim, input_slice_no);
+	    // (under the lock: see _requestDownload)
+	    synchronized( scheduler) {
+		if( state.compareAndSet( input_slice_no, SLICE_NOT_LOADED, SLICE_IN_PROGRESS))
+		    scheduler.prefetch( job, consumer);
+	    }
+	    return;
+	}
+	Vector bricks= _getBricks( vert_dim, horiz_dim, input_slice_no, 
+				   consumer.getVisibleRegion());
+	for( int i= 0; i < bricks.size(); ++i)
+	    scheduler.prefetch( new BrickJob( ((Integer)bricks.elementAt( i)).intValue()),
+				consumer);
+    }
+
+    /** @return true if all the data of common slice 'common_slice'
+	(orthogonal to dimension 'ortho_dim') is there already, and
+	won't change anymore (short of a new display window, see
+	setDisplayRange) */
+    final /*private*/ boolean _isComplete( int ortho_dim, int common_slice)
+    {
+	if( windowing)
+	    return false;
+	if( all_data_downloaded)
+	    return true;
+	if( interpolator != null)
+	    // an interpolated slice also needs the file slices around it
+	    return false;
+	final int[] map= common2local[ ortho_dim];
+	if( common_slice < 0 || common_slice >= map.length)
+	    return false;
+	// (the voxels outside the file never change)
+	return map[ common_slice] < 0 || 
+	    SLICE_DONE == slice_state[ ortho_dim].get( map[ common_slice]);
+    }
+
+    /**
+     * Keeps the downloads following the display, when a slice is
+     * shown without going through get*Slice (eg from the
+     * SlicePlaneCache).
+     *
+     * @param ortho_dim the dimension orthogonal to the slice (0 for
+     * sagittal, 1 for coronal, 2 for transverse)
+     * @param world position of the slice
+     * @param consumer the one showing it
+     */
+    final public void sliceShown( int ortho_dim, Point3Dfloat world, 
+				  SliceImageProducer consumer)
+    {
+	if( all_data_downloaded)
+	    return;
+	final Point3Dint file_voxel= volume_header.world2voxel( world);
+	_setFocus( file_voxel);
+	switch( ortho_dim) {
+	case 0: _prefetch( 2, 1, file_voxel.x, consumer); break;
+	case 1: _prefetch( 2, 0, file_voxel.y, consumer); break;
+	case 2: _prefetch( 1, 0, file_voxel.z, consumer); break;
+	}
+    }
+
+    /** Adds a download's duration (ms) to latency_ms. */
+    synchronized final /*private*/ void _addLatency( long ms)
+    {
+	latency_ms= ( latency_ms < 0) ? ms : 
+	    LATENCY_ALPHA * ms + ( 1f - LATENCY_ALPHA) * latency_ms;
+    }
+
+    /** Makes the background download continue from the slices at
+	this position.
+	@param file_voxel input volume voxel coordinates */
+    final /*private*/ void _setFocus( Point3Dint file_voxel)
+    {
+	switch( volume_header.getDimOrder()[ 0]) {
+	case 0: bg_focus= file_voxel.x; break;
+	case 1: bg_focus= file_voxel.y; break;
+	case 2: bg_focus= file_voxel.z; break;
+	}
+    }
+
+    /** marks all the slices (and the whole volume) as downloaded */
+    final /*private*/ void _setAllDownloaded()
+    {
+	synchronized( this) {
+	    // (our own _sliceDone calls don't do it again)
+	    volume_complete= true;
+	}
+	for( int dim= 0; dim < 3; ++dim) 
+	    for( int i= slice_state[ dim].length() - 1; i >= 0; --i)
+		if( SLICE_DONE != slice_state[ dim].get( i))
+		    _sliceDone( dim, i);
 	all_data_downloaded= true;
+	_stopPreviews();
+    }
+
+    /** Marks a slice as downloaded, and notifies whoever was waiting
+	for it (see slice_waiters).
+	@param dim canonical dimension orthogonal to the slice */
+    final /*private*/ void _sliceDone( int dim, int slice_no)
+    {
+	final boolean newly_done= SLICE_DONE != slice_state[ dim].getAndSet( slice_no, SLICE_DONE);
+
+	Vector waiters;
+	synchronized( slice_waiters) {
+	    waiters= slice_waiters[ dim][ slice_no];
+	    slice_waiters[ dim][ slice_no]= null;
+	    // (for _waitForSlices)
+	    slice_waiters.notifyAll();
+	}
+	if( waiters != null)
+	    for( Enumeration e= waiters.elements(); e.hasMoreElements(); )
+		((DownloadScheduler.Waiter)e.nextElement()).notifyConsumer();
+
+	/* the last on-demand slice along this dimension (the other
+	   download methods call _setAllDownloaded themselves): the
+	   whole volume is in, so it can go in the cache */
+	if( newly_done && 
+	    slice_state[ dim].length() == slices_done.incrementAndGet( dim) &&
+	    _claimComplete()) {
+	    _setAllDownloaded();
+	    _setStoreComplete();
+	}
+    }
+
+    /** @return true for the first caller only, if _setAllDownloaded
+	wasn't called yet */
+    synchronized final /*private*/ boolean _claimComplete()
+    {
+	if( volume_complete)
+	    return false;
+	volume_complete= true;
+	return true;
+    }
+
+    /** Registers a consumer to be notified when a slice that some
+	other thread is working on is done (immediately, if it already
+	is).
+	@return false if nobody is working on the slice anymore (ie
+	its download failed) */
+    final /*private*/ boolean _addSliceWaiter( int dim, int slice_no,
+					       SliceImageProducer consumer, 
+					       int consumer_slice_no)
+    {
+	DownloadScheduler.Waiter waiter= (null == consumer) ? null :
+	    new DownloadScheduler.Waiter( consumer, consumer_slice_no);
+	synchronized( slice_waiters) {
+	    // (_sliceDone sets the state before taking the waiters)
+	    switch( slice_state[ dim].get( slice_no)) {
+	    case SLICE_NOT_LOADED:
+		return false;
+	    case SLICE_IN_PROGRESS:
+		if( null == waiter)
+		    return true;
+		Vector waiters= slice_waiters[ dim][ slice_no];
+		if( null == waiters)
+		    slice_waiters[ dim][ slice_no]= waiters= new Vector();
+		if( !waiters.contains( waiter))
+		    waiters.addElement( waiter);
+		return true;
+	    }
+	}
+	if( waiter != null)
+	    waiter.notifyConsumer();
+	return true;
+    }
+
+    /** @return a string that identifies the contents of this volume:
+	the source file, its sampling, and the common sampling
+	@param validator the source file's version (see
+	VolumeCache.getValidator); can be null */
+    final /*private*/ String _getStoreKey( String validator)
+    {
+	StringBuffer key= new StringBuffer( volume_url);
+	if( validator != null)
+	    key.append( " @").append( validator);
+	if( resample_method != RESAMPLE_NEAREST)
+	    key.append( " resample=").append( resample_method);
+	VolumeHeader[] samplings= { volume_header, common_sampling };
+	for( int i= 0; i < samplings.length; ++i) {
+	    int[] sizes= samplings[ i].getSizes();
+	    float[] starts= samplings[ i].getStarts();
+	    float[] steps= samplings[ i].getSteps();
+	    int[] dim_order= samplings[ i].getDimOrder();
+	    key.append( " |");
+	    for( int dim= 0; dim < 3; ++dim)
+		key.append( ' ').append( sizes[ dim]).append( ',').append( starts[ dim])
+		    .append( ',').append( steps[ dim]).append( ',').append( dim_order[ dim]);
+	}
+	return key.toString();
+    }
+
+    /** allocates the voxel storage, according to storage_method */
+    final /*private*/ VoxelStore _createVoxelStore()
+    {
+	if( STORAGE_LAZY == storage_method)
+	    return new LazyVoxelStore( common2local, volume_header);
+	if( STORAGE_MAPPED == storage_method) {
+	    File dir= storage_dir;
+	    if( null == dir)
+		dir= new File( System.getProperty( "java.io.tmpdir"), "jiv2");
+	    /* the key is far too long (and full of funny characters)
+	       to be used directly as a file name */
+	    String name= nick_name.replace( File.separatorChar, '_') + "-" +
+		Integer.toHexString( store_key.hashCode()) + ".vox";
+	    try {
+		dir.mkdirs();
+		return new MappedVoxelStore( getXSize(), getYSize(), getZSize(),
+					     new File( dir, name));
+	    }
+	    catch( Exception e) {
+		// eg an applet is not allowed to touch the local disk...
+		System.err.println( this + " : cannot map " + name + " (" + e +
+				    "), storing the voxels on the heap instead");
+	    }
+	}
+	return new FlatVoxelStore( getXSize(), getYSize(), getZSize());
     }
 
     /**
+     * Downloads an input slice and saves it. Runs in a download thread.
+     *
      * @param vert_dim canonical vertical dimension of the slice (0 for x, etc)
      * @param horiz_dim canonical horizontal dimension of the slice
      * @param input_slice_no voxel coordinate of this slice in the input volume file
-     * @param consumer_slice_no voxel coordinate of this slice in the common sampling coordinates???
+     * @return false if the download failed
      */
-    final /*private*/ void _asyncDownloadSlice( int vert_dim, 
-						int horiz_dim, 
-						int input_slice_no, 
-						SliceImageProducer consumer, 
-						int consumer_slice_no ) 
+    final /*private*/ boolean _fetchSlice( int vert_dim, 
+					   int horiz_dim, 
+					   int input_slice_no ) 
     {
 	if (DEBUG) {
-		System.out.println("_asyncDownloadSlice..");
+		System.out.println("_fetchSlice..");
 		System.out.println("\tinput_slice_no (jpg): "+input_slice_no);
-		System.out.println("\tconsumer_slice_no: "+consumer_slice_no);
-		System.out.println("\tconsumer: "+consumer);
 	}
 	int[] dim_perm= volume_header.getDimPermutation();
 	int[] sizes= volume_header.getSizes();
@@ -603,7 +1783,7 @@ public final class Data3DVolume {
 	int size_h= sizes[ horiz_dim];
 	String dir= slice_dirname[ dim_perm[ vert_dim]][ dim_perm[ horiz_dim]];
 	
-	byte[] buff= new byte[ size_v * size_h];
+	byte[] buff= new byte[ size_v * size_h * volume_header.getBytesPerVoxel()];
 	try { 
 	    _downloadSlice( new URL( slice_url_base + "/" + dir + "/" +
 				     input_slice_no + slice_url_ext ),
@@ -611,7 +1791,7 @@ public final class Data3DVolume {
 	}
 	catch( Exception e) {
 	    System.err.println( e);
-	    return;
+	    return false;
 	}
 
 	// the other canonical dimension (orthogonal to the slice)
@@ -638,10 +1818,286 @@ public final class Data3DVolume {
 	//if( vert_dim == 1 && horiz_dim == 0)
 	_saveSlab( buff, slab_start, slab_size);
 
-	slice_downloaded[ ortho_dim][ input_slice_no]= true;
+	_sliceDone( ortho_dim, input_slice_no);
+	return true;
+    }
 
-	if( consumer != null )
-	    consumer.sliceDataUpdated( consumer_slice_no);
+    /**
+     * Schedules the download of (the missing data of) a slice, on the
+     * shared <code>DownloadScheduler</code>. The first three
+     * arguments are as for <code>_fetchSlice</code>.
+     *
+     * @param consumer where to send the sliceDataUpdated
+     * notification (can be null)
+     * @param consumer_slice_no voxel coordinate of this slice in the
+     * common sampling coordinates (argument for sliceDataUpdated)
+     */
+    final /*private*/ void _requestDownload( final int vert_dim, 
+					     final int horiz_dim, 
+					     final int input_slice_no, 
+					     final SliceImageProducer consumer, 
+					     final int consumer_slice_no ) 
+    {
+	DownloadScheduler scheduler= DownloadScheduler.getShared();
+	VolumePyramid preview= this.preview;
+	if( preview != null && consumer != null)
+	    // refresh it with the finer previews, until the real data arrives
+	    preview.addWaiter( consumer, consumer_slice_no);
+
+	if( use_ranges && null == brick_index) {
+	    final int ortho_dim= 3 - vert_dim - horiz_dim;
+	    final boolean first_dim= volume_header.getDimOrder()[ 0] == ortho_dim;
+	    final AtomicIntegerArray state= slice_state[ ortho_dim];
+	    do {
+		// (under the scheduler's lock: see below)
+		synchronized( scheduler) {
+		    if( state.compareAndSet( input_slice_no, SLICE_NOT_LOADED,
+					     SLICE_IN_PROGRESS)) {
+			if( first_dim)
+			    _requestRange( input_slice_no);
+			else
+			    /* the other orientations are spread all over
+			       the file: they can only be had by reading all
+			       of it. (_setAllDownloaded then notifies the waiters) */
+			    _requestFullVolume();
+		    }
+		    else if( first_dim &&
+			     scheduler.join( _getFileSliceKey( input_slice_no), 
+					     consumer, consumer_slice_no))
+			// it was prefetched: now it's wanted for real
+			return;
+		}
+	    } while( !_addSliceWaiter( ortho_dim, input_slice_no, 
+				       consumer, consumer_slice_no));
+	    return;
+	}
+	if( null == brick_index) {
+	    final int ortho_dim= 3 - vert_dim - horiz_dim;
+	    SliceJob job= new SliceJob( vert_dim, horiz_dim, input_slice_no);
+
+	    do {
+		/* under the scheduler's lock, so that the slice state
+		   and the jobs agree: a job is queued or running for
+		   as long as the slice is in progress on its account
+		   (its abandoned() is called under the same lock) */
+		synchronized( scheduler) {
+		    if( slice_state[ ortho_dim].compareAndSet( input_slice_no, SLICE_NOT_LOADED,
+							       SLICE_IN_PROGRESS)) {
+			scheduler.submit( job, consumer, consumer_slice_no);
+			return;
+		    }
+		    if( scheduler.join( job.getKey(), consumer, consumer_slice_no))
+			// merged into the job in progress
+			return;
+		}
+		// else somebody else is working on it (or just finished,
+		// or just gave up -- in which case we try again)
+	    } while( !_addSliceWaiter( ortho_dim, input_slice_no, 
+				       consumer, consumer_slice_no));
+	    return;
+	}
+	Vector bricks= _getBricks( vert_dim, horiz_dim, input_slice_no, 
+				   (consumer != null) ? consumer.getVisibleRegion() : null);
+	for( int i= 0; i < bricks.size(); ++i)
+	    scheduler.submit( new BrickJob( ((Integer)bricks.elementAt( i)).intValue()),
+			      consumer, consumer_slice_no);
+    }
+
+    /** Starts the download of the whole volume file in the
+	background, unless some background download is already
+	running. */
+    final /*private*/ synchronized void _requestFullVolume()
+    {
+	if( bg_dnld != null)
+	    return;
+	bg_dnld= new Thread() {
+		public void run() 
+		{
+		    try {
+			_downloadAllVolume( new URL( volume_url));
+		    }
+		    catch( Exception e) {
+			System.err.println( e);
+			// let the next request try again
+			for( int dim= 0; dim < 3; ++dim)
+			    for( int i= slice_state[ dim].length() - 1; i >= 0; --i)
+				_abandonSlice( dim, i);
+			synchronized( Data3DVolume.this) {
+			    bg_dnld= null;
+			}
+		    }
+		}
+	    };
+	bg_dnld.setPriority( Thread.currentThread().getPriority() - 1 ); 
+	bg_dnld.start();
+    }
+
+    /**
+     * @param region part of the slice image that is actually
+     * needed, in the image coordinates of the slice producers (ie
+     * vertically flipped); null means the whole slice
+     * @return the bricks (as Integer-s) needed for displaying 'region'
+     * of an input slice. Arguments as for <code>_fetchSlice</code>.
+     */
+    final /*private*/ Vector _getBricks( int vert_dim, 
+					 int horiz_dim, 
+					 int input_slice_no, 
+					 Rectangle region )
+    {
+	int[] dim_perm= volume_header.getDimPermutation();
+	int[] low= new int[ 3];
+	int[] high= new int[ 3];
+	// defaults to the whole slice
+	for( int d= 0; d < 3; ++d)
+	    high[ d]= Integer.MAX_VALUE;
+
+	if( region != null) {
+	    final int common_size_v= common2local[ vert_dim].length;
+	    int[][] ranges= { 
+		// horizontal: left to right
+		{ horiz_dim, region.x, region.x + region.width - 1 },
+		// vertical: the image is flipped
+		{ vert_dim, common_size_v - region.y - region.height, 
+		  common_size_v - 1 - region.y }
+	    };
+	    for( int r= 0; r < 2; ++r) {
+		final int dim= ranges[ r][ 0];
+		final int[] map= common2local[ dim];
+		int min= Integer.MAX_VALUE;
+		int max= -1;
+		for( int c= Math.max( 0, ranges[ r][ 1]); 
+		     c <= ranges[ r][ 2] && c < map.length; ++c) 
+		    if( map[ c] >= 0) {
+			min= Math.min( min, map[ c]);
+			max= Math.max( max, map[ c]);
+		    }
+		if( max < 0)
+		    // none of this volume is visible
+		    return new Vector();
+		low[ dim_perm[ dim]]= min;
+		high[ dim_perm[ dim]]= max;
+	    }
+	}
+	int ortho_dim= 3 - vert_dim - horiz_dim;
+	Vector bricks= brick_index.getBricks( dim_perm[ ortho_dim], input_slice_no,
+					      low, high);
+	// skip what we already have
+	for( int i= bricks.size() - 1; i >= 0; --i)
+	    if( brick_index.isLoaded( ((Integer)bricks.elementAt( i)).intValue()))
+		bricks.removeElementAt( i);
+	return bricks;
+    }
+
+    /**
+     * Downloads a brick and saves it. Runs in a download thread.
+     *
+     * @return false if the download failed
+     */
+    final /*private*/ boolean _fetchBrick( int brick) 
+    {
+	int[] start= new int[ 3];
+	int[] size= new int[ 3];
+
+	brick_index.getExtent( brick, start, size);
+	byte[] buff= new byte[ size[ 0] * size[ 1] * size[ 2] * volume_header.getBytesPerVoxel()];
+	try { 
+	    _downloadSlice( new URL( slice_url_base + "/bricks/" + 
+				     brick_index.getFileName( brick) + slice_url_ext ),
+			    buff, size[ 0] * size[ 1], size[ 2]);
+	}
+	catch( Exception e) {
+	    System.err.println( e);
+	    return false;
+	}
+	_saveSlab( buff, start, size);
+
+	boolean[] completed= brick_index.setLoaded( brick);
+	int[] dim_order= volume_header.getDimOrder();
+	for( int d= 0; d < 3; ++d)
+	    if( completed[ d]) 
+		// the whole layer of slices crossing this brick is here
+		for( int s= start[ d]; s < start[ d] + size[ d]; ++s)
+		    _sliceDone( dim_order[ d], s);
+	return true;
+    }
+
+    /** Saves (part of) a preview level, like _saveSlab does with
+	the real data -- but not through the interpolation, which only
+	works with real data. Called by VolumePyramid. */
+    final /*private*/ void _savePreview( byte[] slab, 
+					 int[] start,
+					 int[] size )
+    {
+	if( voxels instanceof LazyVoxelStore)
+	    ((LazyVoxelStore)voxels).putSlab( slab, start, size);
+	else
+	    resampler.save( slab, start, size, voxels);
+	_countChanges( start, size);
+    }
+
+    /** Shows the coarsest preview level right away, and downloads
+	the finer ones in the background (see VolumePyramid). */
+    final /*private*/ void _startPreviews()
+    {
+	int[] dim_order= volume_header.getDimOrder();
+	int[] sizes= volume_header.getSizes();
+	final VolumePyramid pyramid= 
+	    new VolumePyramid( this, slice_url_base, slice_url_ext,
+			       new int[] { sizes[ dim_order[ 0]],
+					   sizes[ dim_order[ 1]],
+					   sizes[ dim_order[ 2]] });
+	preview= pyramid;
+	try {
+	    pyramid.load( VolumePyramid.FACTORS[ 0]);
+	}
+	catch( Exception e) {
+	    System.err.println( this + " : no previews (" + e + ")");
+	    _stopPreviews();
+	    return;
+	}
+	Thread refine= new Thread( "preview " + nick_name) {
+		public void run() 
+		{
+		    try {
+			for( int i= 1; i < VolumePyramid.FACTORS.length; ++i)
+			    if( !pyramid.load( VolumePyramid.FACTORS[ i]))
+				return;
+		    }
+		    catch( Exception e) {
+			System.err.println( Data3DVolume.this + " : " + e);
+		    }
+		    _stopPreviews();
+		}
+	    };
+	refine.setDaemon( true);
+	refine.start();
+    }
+
+    /** Ends the previews (nothing more gets saved from them). */
+    final /*private*/ void _stopPreviews()
+    {
+	VolumePyramid pyramid= preview;
+	preview= null;
+	if( pyramid != null)
+	    pyramid.finish();
+    }
+
+    /** @return the inverse mapping of resample_table (see common2local) */
+    final /*private*/ int[][] _invertResampleTable()
+    {
+	int[] cs_sizes= common_sampling.getSizes();
+	int[][] result= new int[ 3][];
+	for( int dim= 0; dim < 3; ++dim) {
+	    int[] map= result[ dim]= new int[ cs_sizes[ dim]];
+	    int[] start= resample_table.start[ dim];
+	    int[] end= resample_table.end[ dim];
+	    for( int c= 0; c < map.length; ++c)
+		map[ c]= -1;
+	    for( int local= 0; local < start.length; ++local)
+		for( int c= start[ local]; c <= end[ local]; ++c)
+		    map[ c]= local;
+	}
+	return result;
     }
 
     final /*private*/ void _downloadSlice( URL source_url, 
@@ -668,6 +2124,8 @@ public final class Data3DVolume {
     /** Note: since the slice buffer and the file are both
      * 1-dimensional, it doesn't matter if the image file is in fact
      * (width x height) or (height x width) 
+     * (the wide voxels take several bytes each, see
+     * VolumeHeader.getBytesPerVoxel)
      */
     final /*private*/ void _readSlice( final InputStream input_stream,
 				       final String input_name,
@@ -676,7 +2134,7 @@ public final class Data3DVolume {
 				       final int slice_height )
 	throws IOException
     {
-	int total= slice_width * slice_height;
+	int total= slice_width * slice_height * volume_header.getBytesPerVoxel();
 	int left= total;
 	int read_count;
 	while( left > 0) {
@@ -699,9 +2157,15 @@ public final class Data3DVolume {
 
     /** Copies/resamples a "hyperslab" into the internal
         data-structure, using the existing <code>resample</code>
-        tables.
+	tables (see SlabResampler), and then refines it by
+	interpolation if so configured (see InterpolatingResampler).
+	A lazy store takes the slab as-is (see LazyVoxelStore).
+	Runs in the download threads.
 	
-	@param slab the "hyperslab" data
+	Wide voxels go through their WideVoxelData first, which then
+	saves them quantized (see _storeSlab).
+	
+	@param slab the "hyperslab" data (as read from the file)
 	@param start slab start voxels (in slab dim order)
 	@param size slab length along each dim (in slab order)
     */
@@ -709,87 +2173,37 @@ public final class Data3DVolume {
 				      int[] start,
 				      int[] size )
     {
-	int[] 		dim_order= volume_header.getDimOrder();
-	int[] 		dim_perm= volume_header.getDimPermutation();
-	// for speed, use a stack variable instead of the instance field:
-	byte[][][] 	common_voxels= this.common_voxels;
-	int		in_0, in_1, in_2;
-	int[] 		out= new int[ 3];
-	int[][] 	map_start= this.resample_table.start;
-	int[][] 	map_end= this.resample_table.end;
-
-	if( false && DEBUG ) {
-	    System.out.println("_saveSlab");
-	    System.out.println("start: "+Util.arrayToString( start));
-	    System.out.println("size: "+Util.arrayToString( size));
-	    System.out.println("map_start x: "+Util.arrayToString( map_start[0]));
-	    System.out.println("map_end x: "+Util.arrayToString( map_end[0]));
-	    System.out.println("map_start y: "+Util.arrayToString( map_start[1]));
-	    System.out.println("map_end y: "+Util.arrayToString( map_end[1]));
-	    System.out.println("map_start z: "+Util.arrayToString( map_start[2]));
-	    System.out.println("map_end z: "+Util.arrayToString( map_end[2]));
-	}
-
-	for( in_0= start[0]; in_0 < start[0]+size[0]; in_0++) 
-	    for( out[0]= map_start[ dim_order[0]][ in_0]; out[0] <= map_end[ dim_order[0]][ in_0]; out[0]++ ) {
-
-		for( in_1= start[1]; in_1 < start[1]+size[1]; in_1++) 
-		    for( out[1]= map_start[ dim_order[1]][ in_1]; out[1] <= map_end[ dim_order[1]][ in_1]; out[1]++ ) {
-
-			for( in_2= start[2]; in_2 < start[2]+size[2]; in_2++) 
-			    for( out[2]= map_start[ dim_order[2]][ in_2]; out[2] <= map_end[ dim_order[2]][ in_2]; out[2]++ ) {
-
-				final int slab_index= 
-				    (in_0-start[0])*size[1]*size[2] + (in_1-start[1])*size[2] + (in_2-start[2]);
-
-				if( false && DEBUG ) {
-				    System.out.println( "");
-				    System.out.println( out[dim_perm[2]] +" "+ out[dim_perm[1]] +" "+ out[dim_perm[0]]);
-				    System.out.println( in_0 +" "+ in_1 +" "+ in_2 );
-				    System.out.println( slab_index);
-				}
-
-				common_voxels[ out[dim_perm[2]] ][ out[dim_perm[1]] ][ out[dim_perm[0]] ]= 
-				    slab[ slab_index];
-				/* OUCH! :-) */
-			    }
-
-		    }
-
-	    }
-
-	// TODO? chk if all transverse slices were downloaded,
-	// and then set all c_slice & s_slice to true also ...
+	VolumePyramid preview= this.preview;
+	if( preview != null)
+	    preview.setLoaded( start, size);
+	if( wide != null)
+	    wide.save( slab, start, size);
+	else
+	    _storeSlab( slab, start, size);
     }
 
-    /** Version of _saveSlab for when
-	(this.resample_table.fast_resample == true).  NB: It assumes
-	the slab is in y-x order, and 1 voxel thick (size[0]==1) !!
-
-	It's basically a (ugly) speed hack for lousy slow JVM-s.
-
-	@param slab the "hyperslab" data
-	@param start slab start voxels (in slab dim order)
-	@param size slab length along each dim (in slab order) 
-    */
-    final /*private*/ void _saveSlab_fast( byte[] slab, 
-					   int[] start,
-					   int[] size )
+    /** Saves a slab of byte voxels, as described for _saveSlab. Also
+	called by WideVoxelData. */
+    final /*private*/ void _storeSlab( byte[] slab, 
+				       int[] start,
+				       int[] size )
     {
-	// for speed, use a stack variable instead of the instance field:
-	byte[][][] 	common_voxels= this.common_voxels;
-	int[][] 	map_start= this.resample_table.start;
-	int[][] 	map_end= this.resample_table.end;
-
-	final int x_start= map_start[0][ start[2]];
-	final int y_start= map_start[1][ start[1]];
-	final int z_start= map_start[2][ start[0]];
-	final int x_size= size[2];
-	final int y_size= size[1];
-	final int y_end= y_start + y_size;
+	if( voxels instanceof LazyVoxelStore)
+	    ((LazyVoxelStore)voxels).putSlab( slab, start, size);
+	else if( interpolator != null)
+	    interpolator.save( slab, start, size, resampler, voxels);
+	else
+	    resampler.save( slab, start, size, voxels);
+	_countChanges( start, size);
+    }
 
-	for( int y= y_start, offset= 0; y < y_end; ++y, offset += x_size)
-	    System.arraycopy( slab, offset, common_voxels[ z_start][ y], x_start, x_size);
+    /** Counts a save into the file slices of a slab (see
+	slice_changes); after the voxels are stored, before anybody is
+	notified. Arguments as for _saveSlab. */
+    final /*private*/ void _countChanges( int[] start, int[] size)
+    {
+	for( int s= start[ 0]; s < start[ 0] + size[ 0]; ++s)
+	    slice_changes.incrementAndGet( s);
     }
 
     
@@ -813,5 +2227,146 @@ public final class Data3DVolume {
 	return nick_name;
     }
 
+
+    /** 
+     * Inner (member) class: the download of an input slice.
+     *
+     * @version $Id$
+     */
+    /*private*/ final class SliceJob extends DownloadScheduler.Job {
+
+	/*private*/ final int vert_dim;
+	/*private*/ final int horiz_dim;
+	/*private*/ final int input_slice_no;
+
+	SliceJob( int vert_dim, int horiz_dim, int input_slice_no) {
+	    super( job_key + "/" + vert_dim + horiz_dim + "/" + input_slice_no, source_host);
+	    this.vert_dim= vert_dim;
+	    this.horiz_dim= horiz_dim;
+	    this.input_slice_no= input_slice_no;
+	}
+
+	protected boolean download() {
+
+	    final long start= System.currentTimeMillis();
+	    final boolean ok= _fetchSlice( vert_dim, horiz_dim, input_slice_no);
+	    if( ok)
+		_addLatency( System.currentTimeMillis() - start);
+	    return ok;
+	}
+
+	/** lets the next request try again */
+	protected void abandoned() {
+	    _abandonSlice( 3 - vert_dim - horiz_dim, input_slice_no);
+	}
+    }
+    // end of class SliceJob
+
+
+    /** 
+     * Inner (member) class: the byte range downloads of all the
+     * slices in range_pending (including the ones added while it's
+     * running). Adjacent slices are fetched with a single request.
+     *
+     * @version $Id$
+     */
+    /*private*/ final class RangeJob extends DownloadScheduler.Job {
+
+	RangeJob( int serial) {
+	    super( job_key + "/ranges#" + serial, source_host);
+	}
+
+	/** the slices being fetched (first, count) */
+	/*private*/ final int[] run= new int[ 2];
+
+	protected boolean download() {
+
+	    long start= System.currentTimeMillis();
+	    while( _nextRange( run)) {
+		if( !_fetchFileSlices( run[ 0], run[ 1]))
+		    return false;
+		final long now= System.currentTimeMillis();
+		_addLatency( now - start);
+		start= now;
+	    }
+	    return true;
+	}
+
+	/** gives up on the rest too (the next request will retry) --
+	    also if download() threw */
+	protected void abandoned() {
+
+	    _abandonFileSlices( run[ 0], run[ 1]);
+	    synchronized( range_pending) {
+		for( int i= range_pending.nextSetBit( 0); i >= 0; 
+		     i= range_pending.nextSetBit( i + 1))
+		    _abandonFileSlices( i, 1);
+		range_pending.clear();
+		range_job_running= false;
+	    }
+	}
+    }
+    // end of class RangeJob
+
+
+    /** 
+     * Inner (member) class: the byte range download of a single
+     * slice (along the first file dimension), as a prefetch -- the
+     * slices that are really needed are downloaded together, by the
+     * RangeJob.
+     *
+     * @version $Id$
+     */
+    /*private*/ final class FileSliceJob extends DownloadScheduler.Job {
+
+	/*private*/ final int slice_no;
+
+	FileSliceJob( int slice_no) {
+	    super( _getFileSliceKey( slice_no), source_host);
+	    this.slice_no= slice_no;
+	}
+
+	protected boolean download() {
+
+	    final long start= System.currentTimeMillis();
+	    final boolean ok= _fetchFileSlices( slice_no, 1);
+	    if( ok)
+		_addLatency( System.currentTimeMillis() - start);
+	    return ok;
+	}
+
+	/** lets the next request try again */
+	protected void abandoned() {
+	    _abandonFileSlices( slice_no, 1);
+	}
+    }
+    // end of class FileSliceJob
+
+
+    /** 
+     * Inner (member) class: the download of a brick.
+     *
+     * @version $Id$
+     */
+    /*private*/ final class BrickJob extends DownloadScheduler.Job {
+
+	/*private*/ final int brick;
+
+	BrickJob( int brick) {
+	    super( job_key + "/bricks/" + brick, source_host);
+	    this.brick= brick;
+	}
+
+	protected boolean download() {
+
+	    final long start= System.currentTimeMillis();
+	    final boolean ok= _fetchBrick( brick);
+	    if( ok)
+		_addLatency( System.currentTimeMillis() - start);
+	    return ok;
+	}
+    }
+    // end of class BrickJob
+
 }
 
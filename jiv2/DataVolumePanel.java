@@ -350,6 +350,32 @@ abstract public class DataVolumePanel
 	pos_event_gateway.removePositionListener_External( pl);
     }
 
+    /** Makes 'pl' hear all the cursor moves of this panel, like its
+	own viewports do (eg a viewer in a separate window). */
+    protected final void _addLocalPositionListener( PositionListener pl) {
+
+	for( int i= 0; i < slice_vports.length; ++i)
+	    slice_vports[ i].addPositionListener( pl);
+	coord_fields.addPositionListener( pl);
+	pos_event_gateway.addPositionListener( pl);
+    }
+
+    /** Undoes _addLocalPositionListener. */
+    protected final void _removeLocalPositionListener( PositionListener pl) {
+
+	for( int i= 0; i < slice_vports.length; ++i)
+	    slice_vports[ i].removePositionListener( pl);
+	coord_fields.removePositionListener( pl);
+	pos_event_gateway.removePositionListener( pl);
+    }
+
+    /** @return a copy of the current cursor position (native or
+	MNI world coordinates, like the panel) */
+    protected final Point3Dfloat _getCursor() {
+	return new Point3Dfloat( isNative ? coord_fields.getNativeCursorPosition() :
+				 coord_fields.getMNICursorPosition());
+    }
+
     /** it should be 'synchronized', but not necessary because Main is the 
 	only one calling it...
     */
@@ -379,6 +405,20 @@ abstract public class DataVolumePanel
 	return String.valueOf( Util.chopToNSignificantDigits( real_value, 3));
     }
 
+    /** @return the text of the intensity field, for the voxel at
+	voxel_pos (its full precision value, when there's one) */
+    protected final String _intensity2string( Point3Dint voxel_pos) {
+
+	final int voxel_value= _getVoxelValue( voxel_pos);
+	if( !byte_voxel_values) {
+	    final float image_value= _getImageValue( voxel_pos);
+	    if( !Float.isNaN( image_value))
+		// (enough digits for 16bit values)
+		return String.valueOf( Util.chopToNSignificantDigits( image_value, 6));
+	}
+	return _voxel2string( voxel_value);
+    }
+
  //Only used to check textfield coord requests
     abstract public int getXmniSize();
     abstract public int getYmniSize();
@@ -401,6 +441,11 @@ abstract public class DataVolumePanel
     */
     abstract protected int _getVoxelValue( Point3Dint voxel_pos);
 
+    /** Another aid to CoordinateFields: the full precision value of
+	a voxel, if there's one (see Data3DVolume.getImageValue);
+	NaN otherwise */
+    protected float _getImageValue( Point3Dint voxel_pos) { return Float.NaN; }
+
     abstract protected String _getLabelValue( Point3Dfloat world_mni);
 
     abstract protected float _image_byte2real( short voxel_value);
@@ -540,15 +585,16 @@ abstract public class DataVolumePanel
 	    int voxel_value;
 	    Point3Dint voxel_cursor_common;
 	    if (!isNative)
-	    	voxel_value= _getVoxelValue( _world2voxel_common( world_cursor_mni));
+		voxel_cursor_common= _world2voxel_common( world_cursor_mni);
 	    else
-		voxel_value= _getVoxelValue( _world2voxel_nat( world_cursor_nat));
+		voxel_cursor_common= _world2voxel_nat( world_cursor_nat);
+	    voxel_value= _getVoxelValue( voxel_cursor_common);
 
 
 	    // If this is a CombinedDataVolumePanel, don't display intensity
 	    if( voxel_value >= 0) {
 		intensity_value_field= _add_field_with_label( "I",
-						_voxel2string( voxel_value), 
+						_intensity2string( voxel_cursor_common), 
 						//byte_voxel_values ? 3 : 
 						//IMAGE_VALUE_TEXTFIELD_WIDTH,
 						tf_width,
@@ -1103,16 +1149,16 @@ abstract public class DataVolumePanel
 
 	    //intensity:
 	    if( intensity_value_field != null) {
-		int new_voxel_value;
+		Point3Dint new_voxel_pos;
 		if(!isNative) {
 			if (DEBUG_TRACE) System.out.println("\t\t\t\t**DVP$CoordFields.positionChangeDetected -> _getVoxelValue(_world2voxel_common())");
-			new_voxel_value= _getVoxelValue( _world2voxel_common( world_cursor_mni));
+			new_voxel_pos= _world2voxel_common( world_cursor_mni);
 		}
 		else {
 			if (DEBUG_TRACE) System.out.println("\t\t\t\t**DVP$CoordFields.positionChangeDetected -> _getVoxelValue(_world2voxel_common())");
-			new_voxel_value= _getVoxelValue( _world2voxel_nat( world_cursor_nat));
+			new_voxel_pos= _world2voxel_nat( world_cursor_nat);
 		}
-		intensity_value_field.setText( _voxel2string( new_voxel_value));
+		intensity_value_field.setText( _intensity2string( new_voxel_pos));
 	    }
 
 
@@ -0,0 +1,50 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Implemented by image sources that can hand out their image
+ * directly, as a <code>BufferedImage</code> whose pixels they update
+ * in place -- the alternative to the
+ * <code>ImageProducer</code>/<code>ImageConsumer</code> chain, which
+ * copies the pixels at each step (see Slice2DViewport.setDirectRendering).
+ *
+ * @version $Id$
+ */
+public interface DirectImageSource {
+
+    /**
+     * @return the current image; it's replaced by a new one when its
+     * color model changes (the listeners are then told, as for any
+     * other change)
+     */
+    BufferedImage getImage();
+
+    /** Makes 'listener' be told of every change of the image. */
+    void addImageChangeListener( ImageChangeListener listener);
+
+    void removeImageChangeListener( ImageChangeListener listener);
+
+}
@@ -0,0 +1,423 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.util.*;
+
+/**
+ * Runs the on-demand downloads (of slices, bricks, etc) of all the
+ * <code>Data3DVolume</code>-s, using a bounded number of threads
+ * per server host.
+ * <p>
+ * Each download is a <code>Job</code> with a unique key: submitting
+ * a job whose key is already queued or running does not download
+ * anything again, it just adds the consumer to the list of the ones
+ * notified when that download completes. Jobs are started most
+ * recent first, since the last slice requested is normally the one
+ * on the screen. Queued jobs that only some consumers were waiting
+ * for, and all of them have since moved to another slice, are
+ * dropped (jobs already running are left to complete -- their data is
+ * still good).
+ * <p>
+ * Prefetches (downloads of data that's likely to be needed soon,
+ * see <code>prefetch</code>) only run when nothing that is really
+ * needed is queued for the same host.
+ *
+ * @version $Id$
+ */
+public final class DownloadScheduler {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    /** default for the maximum number of simultaneous downloads from
+	the same host */
+    public static final int		DEFAULT_MAX_PER_HOST= 4;
+
+    /** the slice number of the waiters added by prefetch: they are
+	never notified */
+    static final int			PREFETCH= Integer.MIN_VALUE;
+
+    /*private*/ static DownloadScheduler shared;
+
+    /** maximum number of simultaneous downloads from the same host */
+    /*private*/ int 			max_per_host;
+    /** all the queued and running Job-s, indexed by key */
+    /*private*/ Hashtable		jobs= new Hashtable();
+    /** Host-s, indexed by host name */
+    /*private*/ Hashtable		hosts= new Hashtable();
+
+    public DownloadScheduler( int max_per_host) {
+	setMaxPerHost( max_per_host);
+    }
+
+    /** @return the scheduler shared by all the volumes */
+    static synchronized final public DownloadScheduler getShared() {
+
+	if( null == shared)
+	    shared= new DownloadScheduler( DEFAULT_MAX_PER_HOST);
+	return shared;
+    }
+
+    synchronized final public void setMaxPerHost( int max_per_host) {
+
+	if( max_per_host < 1)
+	    throw new IllegalArgumentException( "invalid download limit: " + max_per_host);
+	this.max_per_host= max_per_host;
+	// in case the limit went up
+	for( Enumeration e= hosts.elements(); e.hasMoreElements(); )
+	    _startWorkers( (Host)e.nextElement());
+    }
+
+    /**
+     * Schedules a download, unless one with the same key is already
+     * queued or running.
+     *
+     * @param job the download
+     * @param consumer to be notified (with
+     * <code>sliceDataUpdated</code>) when the download is done; can
+     * be null
+     * @param slice_no argument for sliceDataUpdated
+     * @return false if the job was merged into an existing one
+     */
+    synchronized final public boolean submit( Job job,
+					      SliceImageProducer consumer,
+					      int slice_no)
+    {
+	if( consumer != null)
+	    // whatever this consumer requested before is not needed anymore
+	    _cancelStale( consumer, slice_no);
+
+	Job existing= (Job)jobs.get( job.key);
+	if( existing != null) {
+	    _merge( existing, consumer, slice_no);
+	    return false;
+	}
+
+	// a download not requested on behalf of a consumer is always wanted
+	job.cancellable= consumer != null;
+	job._addWaiter( consumer, slice_no);
+	jobs.put( job.key, job);
+
+	Host host= (Host)hosts.get( job.host);
+	if( null == host)
+	    hosts.put( job.host, host= new Host( job.host));
+	job.queued= true;
+	host.queue.addElement( job);
+	_startWorkers( host);
+	return true;
+    }
+
+    /**
+     * Schedules a download that is not needed yet, but likely to be
+     * soon: it's queued behind all the others (behind the previous
+     * prefetches too -- so the nearest slices should go first), and
+     * dropped by the next <code>cancelPrefetch</code> for the same
+     * consumer unless it's requested for real meanwhile. Does
+     * nothing if a job with the same key is already queued or
+     * running.
+     *
+     * @param job the download
+     * @param consumer the one the prefetch is for (not notified)
+     * @return false if the job was already queued or running
+     */
+    synchronized final public boolean prefetch( Job job, SliceImageProducer consumer)
+    {
+	if( jobs.containsKey( job.key))
+	    return false;
+	job.cancellable= true;
+	job._addWaiter( consumer, PREFETCH);
+	jobs.put( job.key, job);
+
+	Host host= (Host)hosts.get( job.host);
+	if( null == host)
+	    hosts.put( job.host, host= new Host( job.host));
+	job.queued= true;
+	// the queue runs from its end
+	host.queue.insertElementAt( job, 0);
+	_startWorkers( host);
+	return true;
+    }
+
+    /** Drops the queued prefetches of 'consumer' (that nobody else
+	is waiting for). */
+    synchronized final public void cancelPrefetch( SliceImageProducer consumer) {
+	_dropWaiters( consumer, PREFETCH, true);
+    }
+
+    /**
+     * Adds the consumer to the waiters of the job with this key, if
+     * one is queued or running -- in one go: checking for it first,
+     * then submitting, could start a second job if the first one
+     * completes or is cancelled in-between.
+     *
+     * @param consumer as for <code>submit</code>
+     * @param slice_no as for <code>submit</code>
+     * @return false if there's no such job
+     */
+    synchronized final public boolean join( String key, 
+					    SliceImageProducer consumer,
+					    int slice_no)
+    {
+	if( consumer != null)
+	    _cancelStale( consumer, slice_no);
+	Job existing= (Job)jobs.get( key);
+	if( null == existing)
+	    return false;
+	_merge( existing, consumer, slice_no);
+	return true;
+    }
+
+    /** Adds a waiter to a queued or running job, and moves it to
+	the front of its queue */
+    final /*private*/ void _merge( Job existing, SliceImageProducer consumer, int slice_no) {
+
+	existing._addWaiter( consumer, slice_no);
+	if( null == consumer)
+	    // (eg a prefetch that's now needed by nobody in particular)
+	    existing.cancellable= false;
+	if( existing.queued) {
+	    // move it up: it's wanted again
+	    Host host= (Host)hosts.get( existing.host);
+	    host.queue.removeElement( existing);
+	    host.queue.addElement( existing);
+	}
+    }
+
+    /** Drops the consumer from the waiters of the queued jobs for
+	other slices, and dequeues the jobs nobody waits for anymore */
+    final /*private*/ void _cancelStale( SliceImageProducer consumer, int slice_no) {
+	_dropWaiters( consumer, slice_no, false);
+    }
+
+    /** Drops the consumer from the waiters of the queued jobs: the
+	ones for slice 'slice_no' if 'matching', else the ones for any
+	other slice (but the prefetches); dequeues the jobs nobody
+	waits for anymore */
+    final /*private*/ void _dropWaiters( SliceImageProducer consumer, int slice_no, 
+					 boolean matching) {
+
+	for( Enumeration e= hosts.elements(); e.hasMoreElements(); ) {
+	    Vector queue= ((Host)e.nextElement()).queue;
+	    for( int i= queue.size() - 1; i >= 0; --i) {
+		Job job= (Job)queue.elementAt( i);
+		for( int w= job.waiters.size() - 1; w >= 0; --w) {
+		    Waiter waiter= (Waiter)job.waiters.elementAt( w);
+		    if( waiter.consumer != consumer)
+			continue;
+		    if( matching ? waiter.slice_no == slice_no
+			: ( waiter.slice_no != slice_no && waiter.slice_no != PREFETCH))
+			job.waiters.removeElementAt( w);
+		}
+		if( job.cancellable && job.waiters.isEmpty()) {
+		    // (nobody left to notify: a consumer that wants
+		    // the same data meanwhile joins the job, see join)
+		    if( DEBUG) System.out.println( "cancelled " + job);
+		    queue.removeElementAt( i);
+		    job.queued= false;
+		    jobs.remove( job.key);
+		    job.abandoned();
+		}
+	    }
+	}
+    }
+
+    final /*private*/ void _startWorkers( Host host) {
+
+	while( host.running < max_per_host && host.running < host.queue.size()) {
+	    ++host.running;
+	    Worker worker= new Worker( host);
+	    worker.setDaemon( true);
+	    worker.setPriority( Thread.NORM_PRIORITY - 1 );
+	    worker.start();
+	}
+    }
+
+    /** @return the next job for 'host', or null if none (in which case
+	the calling worker should exit) */
+    synchronized final /*private*/ Job _nextJob( Host host) {
+
+	Vector queue= host.queue;
+	if( queue.isEmpty() || host.running > max_per_host) {
+	    --host.running;
+	    return null;
+	}
+	Job job= (Job)queue.lastElement();
+	queue.removeElementAt( queue.size() - 1);
+	job.queued= false;
+	return job;
+    }
+
+    /** A worker of 'host' is exiting on an Error, without going
+	through _nextJob: another one takes over its queue, if any. */
+    synchronized final /*private*/ void _workerDied( Host host) {
+
+	--host.running;
+	_startWorkers( host);
+    }
+
+    /** @return the waiters to notify */
+    synchronized final /*private*/ Vector _jobDone( Job job, boolean ok) {
+
+	jobs.remove( job.key);
+	if( !ok)
+	    job.abandoned();
+	return job.waiters;
+    }
+
+
+    /**
+     * One download. Subclasses implement <code>download()</code>.
+     */
+    abstract static public class Job {
+
+	/** unique id of what is downloaded (eg volume + slice) */
+	final String	key;
+	/** server host name (can be empty) */
+	final String	host;
+	/** Waiter-s */
+	Vector		waiters= new Vector();
+	boolean		queued;
+	boolean		cancellable;
+
+	protected Job( String key, String host) {
+	    this.key= key;
+	    this.host= (host != null) ? host : "";
+	}
+
+	final public String getKey() { return key; }
+
+	/** Does the actual work (in a worker thread).
+	    @return true if successful */
+	abstract protected boolean download();
+
+	/** Called if the job is dropped before running, or if
+	    <code>download</code> fails. Does nothing by default. */
+	protected void abandoned() { }
+
+	final void _addWaiter( SliceImageProducer consumer, int slice_no) {
+
+	    if( null == consumer)
+		return;
+	    Waiter w= new Waiter( consumer, slice_no);
+	    if( !waiters.contains( w))
+		waiters.addElement( w);
+	}
+
+	public String toString() { return key; }
+    }
+    // end of class Job
+
+
+    /**
+     * A consumer waiting for some data that is being downloaded.
+     */
+    /*private*/ static final class Waiter {
+
+	/*private*/ final SliceImageProducer 	consumer;
+	/*private*/ final int 			slice_no;
+
+	Waiter( SliceImageProducer consumer, int slice_no) {
+	    this.consumer= consumer;
+	    this.slice_no= slice_no;
+	}
+
+	final void notifyConsumer() {
+	    if( slice_no != PREFETCH)
+		consumer.sliceDataUpdated( slice_no);
+	}
+
+	public boolean equals( Object o) {
+	    return ( o instanceof Waiter) &&
+		consumer == ((Waiter)o).consumer && slice_no == ((Waiter)o).slice_no;
+	}
+
+	public int hashCode() { return slice_no; }
+    }
+    // end of class Waiter
+
+
+    /** queue and worker count of one server host */
+    /*private*/ static final class Host {
+
+	final String 	name;
+	/** Job-s waiting to be started; the last one goes first */
+	final Vector	queue= new Vector();
+	/** number of worker threads */
+	int		running;
+
+	Host( String name) { this.name= name; }
+    }
+    // end of class Host
+
+
+    /**
+     * Inner (member) class: a download thread; exits when its host
+     * has nothing else queued.
+     */
+    /*private*/ final class Worker extends Thread {
+
+	/*private*/ final Host host;
+
+	Worker( Host host) {
+	    super( "download " + host.name);
+	    this.host= host;
+	}
+
+	public void run() {
+
+	    Job job;
+	    boolean exited= false;
+	    try {
+		while( ( job= _nextJob( host)) != null) {
+		    boolean ok= false;
+		    Vector waiters;
+		    try {
+			ok= job.download();
+		    }
+		    catch( RuntimeException e) {
+			System.err.println( job + " : " + e);
+		    }
+		    finally {
+			/* even on an Error (eg out of memory): otherwise
+			   the job would stay in 'jobs' for good, and
+			   everyone joining it would wait forever */
+			waiters= _jobDone( job, ok);
+		    }
+		    if( !ok)
+			// the waiters will request it again, next time
+			continue;
+		    for( Enumeration e= waiters.elements(); e.hasMoreElements(); )
+			((Waiter)e.nextElement()).notifyConsumer();
+		}
+		// (_nextJob did the exit accounting)
+		exited= true;
+	    }
+	    finally {
+		if( !exited)
+		    _workerDied( host);
+	    }
+	}
+    }
+    // end of class Worker
+
+}
@@ -0,0 +1,113 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+/**
+ * The default <code>VoxelStore</code>: on-heap <code>byte[]</code>
+ * chunks in (z,y,x) order, i.e. x varies fastest.
+ * <p>
+ * Compared to the old <code>byte[z][y][x]</code> this saves one
+ * array object (and its header) per row, and keeps a whole slice
+ * (or column) within a single linear buffer.
+ * <p>
+ * A Java array cannot hold more than 2G elements, so, like
+ * <code>MappedVoxelStore</code>, the voxels are split into chunks
+ * of at most <code>MAX_CHUNK_SIZE</code>, each holding a whole
+ * number of z planes (this way a row never straddles two chunks).
+ * The offset of a plane is a long; only the offset within a chunk
+ * fits in an int.
+ *
+ * @version $Id$
+ */
+public final class FlatVoxelStore extends VoxelStore {
+
+    /** upper limit for the size of one chunk */
+    /*private*/ static final long	MAX_CHUNK_SIZE= 1L << 30;
+
+    /** (z,y,x)! */
+    /*private*/ final byte[][] 	chunks;
+    /** number of voxels in one transverse (z) plane */
+    /*private*/ final int 	plane_size;
+    /** number of z planes per chunk */
+    /*private*/ final int	planes_per_chunk;
+
+    public FlatVoxelStore( int x_size, int y_size, int z_size) {
+
+	super( x_size, y_size, z_size);
+	final long plane= (long)x_size * y_size;
+	if( plane > MAX_CHUNK_SIZE)
+	    throw new IllegalArgumentException( "slice too large: " + plane + " voxels");
+	plane_size= (int)plane;
+	planes_per_chunk= (int)Math.min( z_size, MAX_CHUNK_SIZE / plane_size);
+
+	final long length= getVoxelCount();
+	final int n_chunks= (z_size + planes_per_chunk - 1) / planes_per_chunk;
+	chunks= new byte[ n_chunks][];
+	for( int c= 0; c < n_chunks; ++c) {
+	    long offset= (long)c * planes_per_chunk * plane_size;
+	    chunks[ c]= new byte[ (int)Math.min( (long)planes_per_chunk * plane_size,
+						  length - offset)];
+	}
+    }
+
+    final public byte get( int x, int y, int z) {
+	return chunks[ z / planes_per_chunk][ (z % planes_per_chunk) * plane_size
+					       + y * x_size + x];
+    }
+
+    final public void set( int x, int y, int z, byte value) {
+	chunks[ z / planes_per_chunk][ (z % planes_per_chunk) * plane_size
+					+ y * x_size + x]= value;
+    }
+
+    final public void getRow( int x, int y, int z,
+			      byte[] dest, int dest_offset, int len) {
+	System.arraycopy( chunks[ z / planes_per_chunk],
+			  (z % planes_per_chunk) * plane_size + y * x_size + x,
+			  dest, dest_offset, len);
+    }
+
+    final public void putRow( int x, int y, int z,
+			      byte[] src, int src_offset, int len) {
+	System.arraycopy( src, src_offset,
+			  chunks[ z / planes_per_chunk],
+			  (z % planes_per_chunk) * plane_size + y * x_size + x, len);
+    }
+
+    final public void fillRow( int x, int y, int z, int len, byte value) {
+	final int start= (z % planes_per_chunk) * plane_size + y * x_size + x;
+	java.util.Arrays.fill( chunks[ z / planes_per_chunk], start, start + len, value);
+    }
+
+    final public void getColumn( int x, int z, byte[] dest, int dest_offset) {
+
+	// for speed, use stack variables instead of the instance fields
+	final byte[] voxels= chunks[ z / planes_per_chunk];
+	final int stride= x_size;
+	final int y_size= this.y_size;
+	for( int y= 0, i= (z % planes_per_chunk) * plane_size + x;
+	     y < y_size; ++y, i += stride)
+	    dest[ dest_offset + y]= voxels[ i];
+    }
+
+}
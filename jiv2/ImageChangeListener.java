@@ -0,0 +1,43 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.util.*;
+
+/**
+ * Implemented by the users of a <code>DirectImageSource</code>'s
+ * image, to find out when it changes.
+ *
+ * @version $Id$
+ */
+public interface ImageChangeListener extends EventListener {
+
+    /**
+     * Called after the pixels (or the color model) of source's image
+     * changed; can be called from any thread.
+     *
+     * @param source whose image changed (see DirectImageSource.getImage)
+     */
+    void imageChanged( DirectImageSource source);
+
+}
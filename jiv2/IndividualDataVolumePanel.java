@@ -55,11 +55,39 @@ public final class IndividualDataVolumePanel extends DataVolumePanel {
     /** initial color above "high" setting of the colormap controls slider */
     /*private*/ static final Color		DEFAULT_CMAP_COLOR_ABOVE= Color.white;
     /*private*/ static final boolean		INITIAL_CMAP_TIED_MODE= false;
+    /** label-value pairs to be used in the "slab projection" menu */
+    /*private*/ static final Object[][]	projection_modes= {
+	{ "none", new Integer( SlabProjection.NONE) },
+	{ "maximum (MIP)", new Integer( SlabProjection.MAX) },
+	{ "minimum (MinIP)", new Integer( SlabProjection.MIN) },
+	{ "mean", new Integer( SlabProjection.MEAN) }
+    };
+    /** label-value pairs to be used in the "slab thickness" menu */
+    /*private*/ static final Object[][]	slab_thicknesses= {
+	{ "3 slices", new Integer( 3) },
+	{ "5 slices", new Integer( 5) },
+	{ "9 slices", new Integer( 9) },
+	{ "15 slices", new Integer( 15) },
+	{ "25 slices", new Integer( 25) },
+	{ "49 slices", new Integer( 49) }
+    };
+    /*private*/ static final String		DEFAULT_SLAB_THICKNESS= "9 slices";
+    /** largest oblique slice image (pixels, each way) */
+    /*private*/ static final int		MAX_OBLIQUE_SIZE= 512;
 
     /*private*/ Data3DVolume 		data_volume; 
     /*private*/ final ColorCoding	color_coder= new ColorCoding();
     /*private*/ ColormapControl		cmap_control;
     /*private*/ ColormapDisplay		cmap_display;
+    /*private*/ ChoiceMenu		projection_menu;
+    /*private*/ ChoiceMenu		slab_thickness_menu;
+    /** the latest re-windowing not started yet: window min/max, then
+	sliders min/max (see _changeWindow); null if none */
+    /*private*/ float[]			pending_window;
+    /** the thread doing the re-windowing, one request after the
+	other; null if none. Both guarded by 'window_lock' */
+    /*private*/ Thread			window_thread;
+    /*private*/ final Object		window_lock= new Object();
 
     public IndividualDataVolumePanel( Data3DVolume data_volume, 
 				      VolumeHeader local_sampling,
@@ -150,11 +178,153 @@ public final class IndividualDataVolumePanel extends DataVolumePanel {
 	    cmap_control.addColormapListener( (ColormapListener)(slice_producers[ i]));
 	cmap_control.addColormapListener( cmap_display);
 
+	ActionListener projection_al= new ActionListener() {
+		public void actionPerformed( ActionEvent ae) {
+		    IndividualDataVolumePanel.this._changeProjection();
+		}
+	    };
+	projection_menu= new ChoiceMenu( "Slab projection", projection_modes,
+					 (String)projection_modes[ 0][ 0], projection_al);
+	popup_menu.add( projection_menu);
+	slab_thickness_menu= new ChoiceMenu( "Slab thickness", slab_thicknesses,
+					     DEFAULT_SLAB_THICKNESS, projection_al);
+	popup_menu.add( slab_thickness_menu);
+	MenuItem oblique_mi= new MenuItem( "Oblique slice...");
+	oblique_mi.addActionListener( new ActionListener() {
+		public void actionPerformed( ActionEvent ae) {
+		    IndividualDataVolumePanel.this._showObliqueSlice();
+		}
+	    });
+	popup_menu.add( oblique_mi);
+	if( data_volume.hasWideVoxels()) {
+	    MenuItem window_mi= new MenuItem( "Window to colormap range");
+	    window_mi.addActionListener( new ActionListener() {
+		    public void actionPerformed( ActionEvent ae) {
+			IndividualDataVolumePanel.this._changeWindow( false);
+		    }
+		});
+	    popup_menu.add( window_mi);
+	    MenuItem reset_mi= new MenuItem( "Reset intensity window");
+	    reset_mi.addActionListener( new ActionListener() {
+		    public void actionPerformed( ActionEvent ae) {
+			IndividualDataVolumePanel.this._changeWindow( true);
+		    }
+		});
+	    popup_menu.add( reset_mi);
+	}
+
 	popup_menu.addSeparator();
 	// initialization done in the superclass (part 2/2)
 	super._finish_initialization();
     }
 
+    /** Applies the "slab projection" menus' settings to the slices
+	shown. */
+    /*private*/ final void _changeProjection() {
+
+	final int mode= ( (Integer)projection_menu.getSelection() ).intValue();
+	final int slices= ( (Integer)slab_thickness_menu.getSelection() ).intValue();
+	for( int i= 0; i < 3; ++i)
+	    ((SliceImageProducer)slice_producers[ i]).setProjection( mode, slices);
+    }
+
+    /** Pops up a window with a slice along an arbitrary plane through
+	the cursor (see ObliqueSliceViewport), which follows the cursor
+	and the colormap of this panel until it's closed. */
+    /*private*/ final void _showObliqueSlice() {
+
+	// sampled as finely as the finest volume dimension, over
+	// (at least) the longest one
+	final float[] steps= local_sampling.getSteps();
+	final int[] sizes= { data_volume.getXSize(), data_volume.getYSize(), 
+			     data_volume.getZSize() };
+	float step= Float.MAX_VALUE;
+	float extent= 0f;
+	for( int d= 0; d < 3; ++d) {
+	    step= Math.min( step, Math.abs( steps[ d]));
+	    extent= Math.max( extent, Math.abs( steps[ d]) * sizes[ d]);
+	}
+	final int size= Math.min( MAX_OBLIQUE_SIZE, (int)Math.ceil( extent / step));
+	final ObliqueSliceImageProducer producer= 
+	    new ObliqueSliceImageProducer( data_volume, _getCursor(), size, size, step,
+					   cmap_control.getColormap(), isNative);
+	cmap_control.addColormapListener( producer);
+	_addLocalPositionListener( producer);
+
+	final Frame frame= new Frame( "Oblique: " + getTitle());
+	frame.add( new ObliqueSliceViewport( producer), "Center");
+	frame.add( new Label( ObliqueSliceViewport.USAGE, Label.CENTER), "South");
+	frame.addWindowListener( new WindowAdapter() {
+		public void windowClosing( WindowEvent we) {
+		    _removeLocalPositionListener( producer);
+		    cmap_control.removeColormapListener( producer);
+		    producer.dispose();
+		    frame.dispose();
+		}
+	    });
+	frame.pack();
+	frame.show();
+    }
+
+    /** Maps the 256 voxel levels to the image values between the
+	colormap sliders (or, if 'reset', back to the header's
+	imagerange) -- for wide voxels only (see
+	Data3DVolume.setDisplayRange). The sliders keep their image
+	values. */
+    /*private*/ final void _changeWindow( final boolean reset) {
+
+	final float[] sliders= cmap_control.getImageRange();
+	final float[] window= reset ? data_volume.getImageRange() : sliders;
+	if( !reset && !( window[ 0] < window[ 1]))
+	    // nothing between the sliders...
+	    return;
+	// quantizing the whole volume again takes a while, so it's done
+	// in a thread -- a single one, so that the last request wins
+	synchronized( window_lock) {
+	    // (supersedes whatever was requested and not started yet)
+	    pending_window= new float[] { window[ 0], window[ 1], 
+					  sliders[ 0], sliders[ 1] };
+	    if( window_thread != null)
+		return;
+	    window_thread= new Thread( "window " + data_volume) {
+		    public void run() {
+			while( true) {
+			    final float[] w;
+			    synchronized( window_lock) {
+				w= pending_window;
+				pending_window= null;
+				if( null == w) {
+				    window_thread= null;
+				    return;
+				}
+			    }
+			    try {
+				data_volume.setDisplayRange( w[ 0], w[ 1]);
+			    }
+			    catch( RuntimeException e) {
+				// (the thread must go on, or no window would be applied anymore)
+				System.err.println( data_volume + " : " + e);
+				continue;
+			    }
+			    synchronized( window_lock) {
+				if( pending_window != null)
+				    // superseded: its slider values are stale
+				    continue;
+			    }
+			    // (AWT widgets are only changed from the event thread)
+			    EventQueue.invokeLater( new Runnable() {
+				    public void run() {
+					cmap_control.setImageRange( w[ 2], w[ 3]);
+				    }
+				});
+			}
+		    }
+		};
+	    window_thread.setDaemon( true);
+	    window_thread.start();
+	}
+    }
+
     public SliceImageProducer getATransverseSliceImageProducer( int initial_slice) {
 	
 	SliceImageProducer ret= 
@@ -246,6 +416,10 @@ public final class IndividualDataVolumePanel extends DataVolumePanel {
 	return data_volume.getVoxelAsInt( voxel_pos);
     }
 
+    protected final float _getImageValue( Point3Dint voxel_pos) {
+	return data_volume.getImageValue( voxel_pos);
+    }
+
     protected final String _getLabelValue( Point3Dfloat world_mni) {
 	if (null != applet_root.label_volume)
 		return applet_root.label_volume.getLabel( world_mni);
@@ -592,6 +766,25 @@ public final class IndividualDataVolumePanel extends DataVolumePanel {
 	    changeColormap();
 	}
 
+	/** @return the image values of the two sliders, as { lower, upper } */
+	synchronized final float[] getImageRange() {
+	    return new float[] { _image_byte2real( (short)lower_value),
+				 _image_byte2real( (short)upper_value) };
+	}
+
+	/** Moves the sliders to these image values (or as close as
+	    they go), eg after a change of the volume's display window. */
+	synchronized final void setImageRange( float lower, float upper) {
+
+	    lower_value= Math.max( 0, Math.min( 255, _image_real2byte( lower)));
+	    upper_value= Math.max( lower_value, Math.min( 255, _image_real2byte( upper)));
+	    lower_value_sb.setValue( lower_value);
+	    upper_value_sb.setValue( upper_value);
+	    lower_value_tf.setText( _voxel2string( lower_value));
+	    upper_value_tf.setText( _voxel2string( upper_value));
+	    changeColormap();
+	}
+
 	synchronized /*private*/ final void setTiedMode( final boolean new_setting) {
 
 	    if( new_setting == tied_mode)
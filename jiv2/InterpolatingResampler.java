@@ -0,0 +1,326 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Resamples a volume to the common sampling by interpolation
+ * (trilinear, or windowed sinc), as its slabs arrive.
+ * <p>
+ * The slabs are first saved as usual (nearest neighbour, see
+ * <code>SlabResampler</code>), and a copy of them is kept in file
+ * order. Then every common voxel whose interpolation neighbourhood
+ * has just become complete is recomputed from that copy; the others
+ * keep their nearest neighbour value until the rest of their
+ * neighbourhood arrives. Once all the slabs are in, the copy is
+ * dropped (unless the slabs can come again with other values, see
+ * the constructor), and slabs saved again are ignored. The common voxels are mapped to the file
+ * with the full voxel-to-voxel affine transform (so oblique
+ * samplings are handled too), and the work is shared out between
+ * the processors (see <code>WorkerPool</code>).
+ * <p>
+ * The "sinc" kernel is a Lanczos (sinc-windowed sinc) of radius
+ * <code>LANCZOS_RADIUS</code>, normalized so that its weights add
+ * up to 1.
+ *
+ * @version $Id$
+ */
+public final class InterpolatingResampler {
+
+    /** radius (in voxels) of the windowed sinc kernel */
+    /*private*/ static final int	LANCZOS_RADIUS= 2;
+    /** samples of the Lanczos kernel per voxel */
+    /*private*/ static final int	LANCZOS_RES= 256;
+    /** LANCZOS_TABLE[i] is the kernel at distance i/LANCZOS_RES */
+    /*private*/ static final float[]	LANCZOS_TABLE= new float[ LANCZOS_RADIUS * LANCZOS_RES + 1];
+    static {
+	LANCZOS_TABLE[ 0]= 1f;
+	for( int i= 1; i < LANCZOS_TABLE.length; ++i) {
+	    double x= Math.PI * i / LANCZOS_RES;
+	    LANCZOS_TABLE[ i]= (float)( LANCZOS_RADIUS * Math.sin( x) *
+					Math.sin( x / LANCZOS_RADIUS) / (x * x) );
+	}
+    }
+
+    /** a slab is split into parts of about this many (output) voxels */
+    /*private*/ static final int 	PARALLEL_GRAIN= 32 * 1024;
+
+    /** Data3DVolume.RESAMPLE_TRILINEAR or RESAMPLE_SINC */
+    /*private*/ final int		method;
+    /** how far (in file voxels) the kernel reaches on either side */
+    /*private*/ final int		radius;
+    /** file sizes, in file order */
+    /*private*/ final int[]		sizes;
+    /** dim_order[p] is the canonical dimension at file position p */
+    /*private*/ final int[]		dim_order;
+    /** common voxel to world (VOX2WORLD of the common sampling) */
+    /*private*/ final float[][]		common2world;
+    /** world to file voxel, with the rows in file order (WORLD2VOX
+	of the file sampling) */
+    /*private*/ final float[][]		world2file;
+    /** file voxel (canonical) to common voxel (canonical) */
+    /*private*/ final double[][]	file2common;
+    /*private*/ final int[]		common_sizes;
+
+    /** the file voxels, in file order; null once all in (and
+	interpolated), unless keep_data */
+    /*private*/ byte[]			raw;
+    /** one bit per file voxel: it's in 'raw' already (null along
+	with raw) */
+    /*private*/ AtomicLongArray		loaded;
+    /** number of file voxels not in 'raw' yet */
+    /*private*/ final AtomicLong		missing;
+    /** keep 'raw' for good */
+    /*private*/ final boolean		keep_data;
+    /** number of save() calls in progress (raw is only dropped when
+	there are none); guarded by 'this' */
+    /*private*/ int			active_saves;
+
+    /**
+     * @param method Data3DVolume.RESAMPLE_TRILINEAR or RESAMPLE_SINC
+     * @param file_sampling the sampling of the file
+     * @param common_sampling the sampling of the output
+     * @param keep_data true if the slabs can be saved again with
+     * other values (eg quantized through a new window, see
+     * WideVoxelData): the copy of the file voxels is then kept
+     */
+    public InterpolatingResampler( int method,
+				   VolumeHeader file_sampling,
+				   VolumeHeader common_sampling,
+				   boolean keep_data) {
+
+	if( method != Data3DVolume.RESAMPLE_TRILINEAR && method != Data3DVolume.RESAMPLE_SINC)
+	    throw new IllegalArgumentException( "invalid resampling method: " + method);
+	this.method= method;
+	radius= Data3DVolume.RESAMPLE_SINC == method ? LANCZOS_RADIUS : 1;
+	dim_order= file_sampling.getDimOrder();
+	int[] canonical_sizes= file_sampling.getSizes();
+	sizes= new int[ 3];
+	for( int p= 0; p < 3; ++p)
+	    sizes[ p]= canonical_sizes[ dim_order[ p]];
+	common_sizes= common_sampling.getSizes();
+	common2world= common_sampling.getVoxelToWorld();
+	float[][] world2local= file_sampling.getWorldToVoxel();
+	world2file= new float[ 3][];
+	for( int p= 0; p < 3; ++p)
+	    world2file[ p]= world2local[ dim_order[ p]];
+	file2common= file_sampling.getVoxelTransform( common_sampling);
+
+	long n_voxels= (long)sizes[ 0] * sizes[ 1] * sizes[ 2];
+	if( n_voxels > Integer.MAX_VALUE)
+	    throw new IllegalArgumentException( "volume too large for interpolation: " +
+						n_voxels + " voxels");
+	raw= new byte[ (int)n_voxels];
+	loaded= new AtomicLongArray( (int)( (n_voxels + 63) >> 6));
+	missing= new AtomicLong( n_voxels);
+	this.keep_data= keep_data;
+    }
+
+    /**
+     * Saves a slab with 'nearest' first, then recomputes the common
+     * voxels that it completes. Does nothing if all the slabs were
+     * in already (it's the same data again).
+     *
+     * @param slab the "hyperslab" data
+     * @param start slab start voxels (in file dim order)
+     * @param size slab length along each dim (in file order)
+     * @param nearest saves the nearest neighbour values
+     * @param voxels where to save the result
+     */
+    final public void save( byte[] slab, int[] start, int[] size,
+			    SlabResampler nearest, final VoxelStore voxels) {
+
+	synchronized( this) {
+	    if( null == raw)
+		return;
+	    ++active_saves;
+	}
+	try {
+	    nearest.save( slab, start, size, voxels);
+	    _save( slab, start, size, voxels);
+	}
+	finally {
+	    synchronized( this) {
+		if( 0 == --active_saves && !keep_data && 0 == missing.get()) {
+		    // every voxel was interpolated from a complete neighbourhood
+		    raw= null;
+		    loaded= null;
+		}
+	    }
+	}
+    }
+
+    /** the work of save, once the slab is saved with the nearest
+	neighbour values */
+    final /*private*/ void _save( byte[] slab, int[] start, int[] size,
+				  final VoxelStore voxels) {
+
+	for( int i0= 0; i0 < size[ 0]; ++i0)
+	    for( int i1= 0; i1 < size[ 1]; ++i1) {
+		int index= ( (start[ 0] + i0) * sizes[ 1] + start[ 1] + i1) * sizes[ 2] + start[ 2];
+		System.arraycopy( slab, (i0 * size[ 1] + i1) * size[ 2], raw, index, size[ 2]);
+		_setLoaded( index, size[ 2]);
+	    }
+
+	// the common voxels whose neighbourhood overlaps the slab: the
+	// bounding box of the slab's corners, enlarged by the kernel
+	// radius (plus the half voxel beyond the edges, and some margin)
+	final int[] lo= { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+	final int[] hi= { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+	double[] corner= new double[ 3];
+	for( int c= 0; c < 8; ++c) {
+	    for( int p= 0; p < 3; ++p)
+		corner[ dim_order[ p]]= ( 0 == ( c & (1 << p)) ) ?
+		    start[ p] - radius - 1 : start[ p] + size[ p] + radius;
+	    for( int d= 0; d < 3; ++d) {
+		double[] row= file2common[ d];
+		double v= row[ 0] * corner[ 0] + row[ 1] * corner[ 1] + row[ 2] * corner[ 2] + row[ 3];
+		lo[ d]= Math.min( lo[ d], (int)Math.floor( v));
+		hi[ d]= Math.max( hi[ d], (int)Math.ceil( v));
+	    }
+	}
+	for( int d= 0; d < 3; ++d) {
+	    lo[ d]= Math.max( lo[ d], 0);
+	    hi[ d]= Math.min( hi[ d], common_sizes[ d] - 1);
+	    if( hi[ d] < lo[ d])
+		return;
+	}
+
+	// each task is one output row (y,z)
+	final int y_count= hi[ 1] - lo[ 1] + 1;
+	final int n_tasks= y_count * (hi[ 2] - lo[ 2] + 1);
+	final int row_length= hi[ 0] - lo[ 0] + 1;
+	int grain= Math.max( 1, PARALLEL_GRAIN / row_length);
+
+	WorkerPool.getShared().parallelFor( n_tasks, grain, new WorkerPool.Body() {
+		public void run( int first, int last) {
+
+		    final float[] f= new float[ 3];
+		    final float[] V0= common2world[ 0], V1= common2world[ 1], V2= common2world[ 2];
+		    final int[] index= new int[ 3 * 2 * LANCZOS_RADIUS];
+		    final float[] weight= new float[ 3 * 2 * LANCZOS_RADIUS];
+		    for( int task= first; task < last; ++task) {
+			final int y= lo[ 1] + task % y_count;
+			final int z= lo[ 2] + task / y_count;
+			for( int x= lo[ 0]; x <= hi[ 0]; ++x) {
+			    // file voxel coordinates, in file order (the
+			    // same arithmetic as the resample tables, so
+			    // the same voxels are found inside the file)
+			    final float wx= V0[0]*x + V0[1]*y + V0[2]*z + V0[3];
+			    final float wy= V1[0]*x + V1[1]*y + V1[2]*z + V1[3];
+			    final float wz= V2[0]*x + V2[1]*y + V2[2]*z + V2[3];
+			    for( int p= 0; p < 3; ++p) {
+				final float[] W= world2file[ p];
+				f[ p]= W[0]*wx + W[1]*wy + W[2]*wz + W[3];
+			    }
+			    int value= _interpolate( f, index, weight);
+			    if( value >= 0)
+				voxels.set( x, y, z, (byte)value);
+			}
+		    }
+		}
+	    });
+    }
+
+    /**
+     * @param f file voxel coordinates (in file order)
+     * @param index scratch space, for the kernel's voxel indices
+     * @param weight scratch space, for the kernel's weights
+     * @return the interpolated value (0..255), or -1 if 'f' is
+     * outside the file or its neighbourhood is not all loaded yet
+     */
+    final /*private*/ int _interpolate( float[] f, int[] index, float[] weight) {
+
+	// taps per dimension; the taps of file position p are at
+	// index[ p*taps ...]
+	final int taps= 2 * radius;
+	for( int p= 0; p < 3; ++p) {
+	    // the nearest neighbour values reach half a voxel beyond
+	    // the edge voxels; there, the edge is replicated
+	    final int nearest= Math.round( f[ p]);
+	    if( nearest < 0 || nearest >= sizes[ p])
+		return -1;
+	    double fp= Math.max( 0, Math.min( f[ p], sizes[ p] - 1));
+	    int base= (int)Math.floor( fp);
+	    double t= fp - base;
+	    if( Data3DVolume.RESAMPLE_TRILINEAR == method) {
+		index[ p * taps]= base;
+		index[ p * taps + 1]= Math.min( base + 1, sizes[ p] - 1);
+		weight[ p * taps]= (float)( 1 - t);
+		weight[ p * taps + 1]= (float)t;
+	    }
+	    else {
+		float sum= 0;
+		for( int k= 0; k < taps; ++k) {
+		    int i= base - radius + 1 + k;
+		    int dist= (int)Math.round( Math.abs( t - (i - base)) * LANCZOS_RES);
+		    float w= dist < LANCZOS_TABLE.length ? LANCZOS_TABLE[ dist] : 0f;
+		    // beyond the edges, the edge voxels are replicated
+		    index[ p * taps + k]= Math.max( 0, Math.min( i, sizes[ p] - 1));
+		    weight[ p * taps + k]= w;
+		    sum += w;
+		}
+		for( int k= 0; k < taps; ++k)
+		    weight[ p * taps + k] /= sum;
+	    }
+	}
+
+	double value= 0;
+	for( int k0= 0; k0 < taps; ++k0) {
+	    final int i0= index[ k0] * sizes[ 1];
+	    final float w0= weight[ k0];
+	    for( int k1= 0; k1 < taps; ++k1) {
+		final int i01= ( i0 + index[ taps + k1]) * sizes[ 2];
+		final float w01= w0 * weight[ taps + k1];
+		double row_sum= 0;
+		for( int k2= 0; k2 < taps; ++k2) {
+		    final int i= i01 + index[ 2 * taps + k2];
+		    if( 0 == ( loaded.get( i >> 6) & (1L << (i & 63)) ))
+			return -1;
+		    row_sum += weight[ 2 * taps + k2] * ( raw[ i] & 0xFF);
+		}
+		value += w01 * row_sum;
+	    }
+	}
+	// (the sinc's negative lobes can overshoot)
+	return Math.max( 0, Math.min( 255, (int)Math.round( value)));
+    }
+
+    /** Marks file voxels index ... index+count-1 as loaded. */
+    final /*private*/ void _setLoaded( int index, int count) {
+
+	for( int end= index + count; index < end; ) {
+	    final int word= index >> 6;
+	    final int bits= Math.min( 64 - (index & 63), end - index);
+	    final long mask= ( 64 == bits ? -1L : ( (1L << bits) - 1) ) << (index & 63);
+	    long old;
+	    do {
+		old= loaded.get( word);
+	    } while( !loaded.compareAndSet( word, old, old | mask));
+	    missing.addAndGet( -Long.bitCount( mask & ~old));
+	    index += bits;
+	}
+    }
+
+}
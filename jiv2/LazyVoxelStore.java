@@ -0,0 +1,181 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+/**
+ * A <code>VoxelStore</code> that keeps only the file's own voxels (in
+ * file order), and resamples them to the common sampling as they are
+ * read, through the inverse resample tables. A volume sampled more
+ * finely than the common sampling thus takes no more memory than its
+ * file, at the cost of a table lookup per voxel read.
+ * <p>
+ * The common voxels outside the file read as 0. Writing a common
+ * voxel writes the file voxel it is resampled from -- so writes are
+ * only meant for filling in (see <code>fill</code>); the downloaded
+ * data goes in with <code>putSlab</code>, in file order.
+ *
+ * @version $Id$
+ */
+public final class LazyVoxelStore extends VoxelStore {
+
+    /** the file voxels, in file order */
+    /*private*/ final byte[]	data;
+    /** file sizes, in file order */
+    /*private*/ final int[]	file_sizes;
+    /** common2local[d][c] is the file voxel (along canonical
+	dimension d) of common voxel c, or -1 if none */
+    /*private*/ final int[][]	common2local;
+    /** distance between consecutive file voxels along canonical
+	dimension x (y, z), in 'data' */
+    /*private*/ final int	x_stride;
+    /*private*/ final int	y_stride;
+    /*private*/ final int	z_stride;
+
+    /**
+     * @param common2local common2local[d][c] is the file voxel (along
+     * canonical dimension d) that common voxel c is resampled from,
+     * or -1 if none; its lengths are the common sizes
+     * @param file_sampling the sampling of the file (for its sizes
+     * and dimension order)
+     */
+    public LazyVoxelStore( int[][] common2local, VolumeHeader file_sampling) {
+
+	super( common2local[ 0].length, common2local[ 1].length, common2local[ 2].length);
+	this.common2local= common2local;
+	int[] dim_order= file_sampling.getDimOrder();
+	int[] sizes= file_sampling.getSizes();
+	file_sizes= new int[ 3];
+	for( int p= 0; p < 3; ++p)
+	    file_sizes[ p]= sizes[ dim_order[ p]];
+	final long count= (long)file_sizes[ 0] * file_sizes[ 1] * file_sizes[ 2];
+	if( count > Integer.MAX_VALUE - 8)
+	    throw new IllegalArgumentException( "volume too large for a lazy store: "
+						+ count + " voxels");
+	data= new byte[ (int)count];
+
+	int[] file_stride= { file_sizes[ 1] * file_sizes[ 2], file_sizes[ 2], 1 };
+	int[] dim_perm= file_sampling.getDimPermutation();
+	x_stride= file_stride[ dim_perm[ 0]];
+	y_stride= file_stride[ dim_perm[ 1]];
+	z_stride= file_stride[ dim_perm[ 2]];
+    }
+
+    /** @return the index in 'data' of common voxel (x,y,z), or -1 if
+	it's outside the file */
+    final /*private*/ int _index( int x, int y, int z) {
+
+	final int lx= common2local[ 0][ x];
+	final int ly= common2local[ 1][ y];
+	final int lz= common2local[ 2][ z];
+	if( lx < 0 || ly < 0 || lz < 0)
+	    return -1;
+	return lx * x_stride + ly * y_stride + lz * z_stride;
+    }
+
+    final public byte get( int x, int y, int z) {
+
+	final int i= _index( x, y, z);
+	return i < 0 ? 0 : data[ i];
+    }
+
+    final public void set( int x, int y, int z, byte value) {
+
+	final int i= _index( x, y, z);
+	if( i >= 0)
+	    data[ i]= value;
+    }
+
+    final public void getRow( int x, int y, int z,
+			      byte[] dest, int dest_offset, int len) {
+
+	final int ly= common2local[ 1][ y];
+	final int lz= common2local[ 2][ z];
+	if( ly < 0 || lz < 0) {
+	    java.util.Arrays.fill( dest, dest_offset, dest_offset + len, (byte)0);
+	    return;
+	}
+	// for speed, use stack variables instead of the instance fields
+	final byte[] data= this.data;
+	final int[] map= common2local[ 0];
+	final int x_stride= this.x_stride;
+	final int base= ly * y_stride + lz * z_stride;
+	for( int i= 0; i < len; ++i) {
+	    final int lx= map[ x + i];
+	    dest[ dest_offset + i]= lx < 0 ? 0 : data[ base + lx * x_stride];
+	}
+    }
+
+    final public void putRow( int x, int y, int z,
+			      byte[] src, int src_offset, int len) {
+
+	for( int i= 0; i < len; ++i)
+	    set( x + i, y, z, src[ src_offset + i]);
+    }
+
+    final public void fillRow( int x, int y, int z, int len, byte value) {
+
+	for( int i= 0; i < len; ++i)
+	    set( x + i, y, z, value);
+    }
+
+    final public void getColumn( int x, int z, byte[] dest, int dest_offset) {
+
+	final int lx= common2local[ 0][ x];
+	final int lz= common2local[ 2][ z];
+	if( lx < 0 || lz < 0) {
+	    java.util.Arrays.fill( dest, dest_offset, dest_offset + y_size, (byte)0);
+	    return;
+	}
+	final byte[] data= this.data;
+	final int[] map= common2local[ 1];
+	final int y_stride= this.y_stride;
+	final int base= lx * x_stride + lz * z_stride;
+	for( int y= 0; y < y_size; ++y) {
+	    final int ly= map[ y];
+	    dest[ dest_offset + y]= ly < 0 ? 0 : data[ base + ly * y_stride];
+	}
+    }
+
+    /** Sets all the file voxels to 'value'. */
+    final public void fill( byte value) {
+	java.util.Arrays.fill( data, value);
+    }
+
+    /**
+     * Saves a slab of file voxels (no resampling needed).
+     *
+     * @param slab the "hyperslab" data
+     * @param start slab start voxels (in file dim order)
+     * @param size slab length along each dim (in file order)
+     */
+    final public void putSlab( byte[] slab, int[] start, int[] size) {
+
+	for( int i0= 0; i0 < size[ 0]; ++i0)
+	    for( int i1= 0; i1 < size[ 1]; ++i1)
+		System.arraycopy( slab, (i0 * size[ 1] + i1) * size[ 2],
+				  data, ( (start[ 0] + i0) * file_sizes[ 1] + start[ 1] + i1) *
+				  file_sizes[ 2] + start[ 2],
+				  size[ 2]);
+    }
+
+}
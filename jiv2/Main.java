@@ -28,6 +28,7 @@ import java.awt.*;
 import java.awt.image.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The entry-point class, both when running as an applet and when
@@ -67,6 +68,9 @@ public final class Main extends java.applet.Applet {
     /*private*/ Hashtable       volumes= new Hashtable();  
     /** holds VolumeHeader, indexed by alias */
     /*private*/ Hashtable       headers= new Hashtable();  
+    /** holds the resampling method (Integer) of the volumes that
+        don't use the default, indexed by alias */
+    /*private*/ Hashtable       resample_methods= new Hashtable();  
     /** holds PanelStruct (and may contain gaps) */
     /*private*/ Vector          panels= new Vector(); 
     /*private*/ int             no_of_panels;
@@ -184,6 +188,8 @@ public final class Main extends java.applet.Applet {
         String config_file= null; // local ("stack") vars don't have default values
         String inline_config= null;
         VolumeHeader common_sampling= null;
+        // grid column of each panel (indexed as 'panels')
+        int[] panel_column= null;
 
         if( false) {
             try {
@@ -294,39 +300,105 @@ public final class Main extends java.applet.Applet {
 	    }
 
 
+            /* the individual panels are built as soon as their own
+               volume is loaded (see below), so the frame and the
+               panel layout are needed before loading anything */
+            panel_column= new int[ panels.size()];
+            jiv_frame = new Frame("JIV2");
+
+            /* Note about setting the applet size: it doesn't work in NS,
+               and sort of works in JDK... -- the reliable way to do it to
+               specify the dimension in the applet html tag.  But the best
+               way to do it properly is to open a separate frame! */
+            // jiv_frame.setSize() not needed: pack() does a better job!
+            jiv_frame.setLayout( new GridBagLayout());
+            GridBagConstraints gbc= new GridBagConstraints();
+            gbc.fill= GridBagConstraints.VERTICAL;
+            gbc.weighty= 1.0;
+            gbc.gridy= 0;
+            gbc.gridheight= GridBagConstraints.REMAINDER;
+
+            no_of_panels= 0;
+            for( i= 0; i < panels.size(); ++i) 
+                if( null != panels.elementAt( i)) 
+                    ++no_of_panels;
+
+            int column;
+            for( i= 0, column= 0; i < panels.size(); ++i) {
+                if( null == panels.elementAt( i)) // skip the gaps in the panel vector
+                    continue;
+                if( column > 0) {
+                    /* add the panel separator */
+                    gbc.gridx= column++;
+                    jiv_frame.add( new VerticalLineComponent(), gbc);
+                }
+                panel_column[ i]= column++;
+            }
+
             progressMessage( "loading data...");
+            /* load (download and resample) all the volumes at the same
+               time: with DOWNLOAD_UPFRONT each Data3DVolume constructor
+               blocks until its whole file is in */
+            Vector loaded_aliases= new Vector();
             Enumeration e;
             for( e= displayed_aliases.elements(); e.hasMoreElements(); ) {
-                String alias= (String)e.nextElement();
-                // vh is read, and header info is passed to Data3DVolume constructor
-                VolumeHeader vh= (VolumeHeader)headers.get( alias);
-                VolumeStruct vs= (VolumeStruct)volumes.get( alias);
-		if (alias.equals(native_alias)) {
-                	vs.data= new Data3DVolume( true, vh,
-					   url_context, 
-					   vs.file,
-                                           vh,
-                                           alias,
-                                           download_method );
-                        native_volume= vs.data;
-			if (DEBUG) System.out.println("* Native volume: "+native_volume);
-		}
-		else {
-			vs.data= new Data3DVolume( false, common_sampling, 
-					   atlas_url, 
-					   vs.file,
-                                           vh,
-                                           alias,
-                                           download_method );
-		}
-                if (alias.equals(label_alias)) {
-                        label_volume= vs.data;
-			if (DEBUG) System.out.println("* Label volume: "+label_volume);
-		}
-                if (alias.equals(mni_alias)) {
-                        mni_volume= vs.data;
-			if (DEBUG) System.out.println("* MNI volume: "+mni_volume);
-		}
+                Object alias= e.nextElement();
+                if( !loaded_aliases.contains( alias))
+                    loaded_aliases.addElement( alias);
+            }
+            final VolumeHeader load_sampling= common_sampling;
+            final URL load_context= url_context;
+            ExecutorService loaders= Executors.newFixedThreadPool(
+                loaded_aliases.size(),
+                new ThreadFactory() {
+                    public Thread newThread( Runnable r) {
+                        Thread t= new Thread( r, "volume loader");
+                        t.setDaemon( true);
+                        return t;
+                    }
+                });
+            CompletionService done_loading= new ExecutorCompletionService( loaders);
+            // the alias (String) of each loading Future
+            Hashtable loading= new Hashtable();
+            try {
+                for( e= loaded_aliases.elements(); e.hasMoreElements(); ) {
+                    final String alias= (String)e.nextElement();
+                    Future result= done_loading.submit( new Callable() {
+                            public Object call() throws Exception {
+                                return _loadVolume( alias, load_sampling, load_context);
+                            }
+                        });
+                    loading.put( result, alias);
+                }
+                for( int loaded= 1; loaded <= loaded_aliases.size(); ++loaded) {
+                    // in whatever order they complete
+                    Future result= done_loading.take();
+                    String alias= (String)loading.get( result);
+                    Data3DVolume data;
+                    try {
+                        data= (Data3DVolume)result.get();
+                    }
+                    catch( ExecutionException ex) {
+                        System.err.println( "error loading volume " + alias);
+                        if( ex.getCause() instanceof Exception)
+                            throw (Exception)ex.getCause();
+                        throw ex;
+                    }
+                    _setVolume( alias, data);
+                    progressMessage( "loading data... " + alias + " done (" + 
+                                     loaded + " of " + loaded_aliases.size() + ")");
+                }
+            }
+            finally {
+                // in case of errors: don't leave the other ones running
+                loaders.shutdownNow();
+            }
+            /* only now: the panels look up the label, native and mni
+               volumes (if any) when they're built */
+            for( i= 0; i < panels.size(); ++i) {
+                PanelStruct ps= (PanelStruct)panels.elementAt( i);
+                if( ps != null && null == ps.alias1)
+                    _createIndividualPanel( ps, panel_column[ i]);
             }
         }
         // this will catch more than we should care about, but it saves us from
@@ -339,85 +411,21 @@ public final class Main extends java.applet.Applet {
         }
 
         progressMessage( "opening window...");
-        jiv_frame = new Frame("JIV2");
-
-        /* Note about setting the applet size: it doesn't work in NS,
-           and sort of works in JDK... -- the reliable way to do it to
-           specify the dimension in the applet html tag.  But the best
-           way to do it properly is to open a separate frame! */
-        // jiv_frame.setSize() not needed: pack() does a better job!
-        jiv_frame.setLayout( new GridBagLayout());
-        GridBagConstraints gbc= new GridBagConstraints();
-        gbc.fill= GridBagConstraints.VERTICAL;
-        gbc.weighty= 1.0;
-        gbc.gridy= 0;
-        gbc.gridheight= GridBagConstraints.REMAINDER;
-
-        no_of_panels= 0;
-        for( i= 0; i < panels.size(); ++i) 
-            if( null != panels.elementAt( i)) 
-                ++no_of_panels;
-
-        int column;
-        //IndividualPanels::
-        for( i= 0, column= 0; i < panels.size(); ++i) {
-            PanelStruct ps= (PanelStruct)panels.elementAt( i);
-            if( null == ps)         // skip the gaps in the panel vector
-                continue;
-            if( column > 0) {
-                /* add the panel separator */
-                gbc.gridx= column++;
-                jiv_frame.add( new VerticalLineComponent(), gbc);
-            }
-            if( ps.alias1 != null) {
-                /* skip combined panels; construct them later, after
-                   all individual panels have been initialized */
-                column++;
-                continue;
-            }
-            Data3DVolume data= ((VolumeStruct)volumes.get( ps.alias0)).data;
-	    data.setNative(ps.isNative);
-	    VolumeHeader local_sampling= (VolumeHeader)headers.get( ps.alias0);
-	    if (VERBOSE) {
-		System.out.println("************************************************");
-		System.out.println("Creating individual panel for: "+ps.alias0);
-	    }
-            ps.gui= new IndividualDataVolumePanel( data, jiv_frame, post_label, 
-						   sup_label, lat_label, column++,
-//##						   common_sampling.getFOVCenter(),
-//##			ps.isNative ? new Point3Dfloat(9.4f,51.1f,-2.5f) : new Point3Dfloat(0f,-10.5f,1.5f),
-			ps.isNative ? 	CoordConv.native_sampling.getFOVCenter() : 
-					CoordConv.common_sampling.getFOVCenter(),
-                                                   enable_world_coords,
-                                                   byte_voxel_values,
-                                                   ps.range_start, ps.range_end,
-                                                   ps.color_coding, 
-                                                   ps.color_under, ps.color_above,
-						   local_sampling,
-                                                   ps.isNative, this);
-        }
         // CombinedPanels::
-        for( i= 0, column= 0; i < panels.size(); ++i) {
+        for( i= 0; i < panels.size(); ++i) {
             PanelStruct ps= (PanelStruct)panels.elementAt( i);
-            if( null == ps)         // skip the gaps in the panel vector
-                continue;
-            if( column > 0) {
-                // the panel separator (already done) ...
-                column++;
-            }
-            if( null == ps.alias1) {
-                // an individual panel (already done) ...
-                column++;
+            if( null == ps ||       // skip the gaps in the panel vector
+                null == ps.alias1)  // an individual panel (already done) ...
                 continue;
-            }
-            DataVolumePanel p0, p1;
-            p0= ((PanelStruct)panels.elementAt( _panelIndexOf( ps.alias0))).gui;
-            p1= ((PanelStruct)panels.elementAt( _panelIndexOf( ps.alias1))).gui;
-            ps.gui= new CombinedDataVolumePanel( (IndividualDataVolumePanel)p0, 
-                                                 (IndividualDataVolumePanel)p1,
+            IndividualDataVolumePanel[] sources= 
+                new IndividualDataVolumePanel[ ps.aliases.length];
+            for( int s= 0; s < sources.length; ++s)
+                sources[ s]= (IndividualDataVolumePanel)
+                    ((PanelStruct)panels.elementAt( _panelIndexOf( ps.aliases[ s]))).gui;
+            ps.gui= new CombinedDataVolumePanel( sources, ps.layers,
 						 common_sampling, jiv_frame,
 						 post_label, sup_label, 
-						 lat_label, column++, 
+						 lat_label, panel_column[ i], 
 //##						 common_sampling.getFOVCenter(),
 //##			ps.isNative ? new Point3Dfloat(9.4f,51.1f,-2.5f) : new Point3Dfloat(0f,-10.5f,1.5f),
 			ps.isNative ? 	CoordConv.native_sampling.getFOVCenter() : 
@@ -444,6 +452,76 @@ public final class Main extends java.applet.Applet {
 	}
     }// end _doInitialization()
 
+    /** Loads (creates) the Data3DVolume of 'alias'. Called from
+        several threads at once. */
+    /*private*/ Data3DVolume _loadVolume( String alias, 
+                                          VolumeHeader common_sampling,
+                                          URL url_context)
+        throws IOException, SecurityException
+    {
+        // vh is read, and header info is passed to Data3DVolume constructor
+        VolumeHeader vh= (VolumeHeader)headers.get( alias);
+        VolumeStruct vs= (VolumeStruct)volumes.get( alias);
+        if (alias.equals(native_alias))
+            return new Data3DVolume( true, vh,
+                                     url_context, 
+                                     vs.file,
+                                     vh,
+                                     alias,
+                                     download_method );
+        Integer resample_method= (Integer)resample_methods.get( alias);
+        return new Data3DVolume( false, common_sampling, 
+                                 atlas_url, 
+                                 vs.file,
+                                 vh,
+                                 alias,
+                                 download_method,
+                                 null == resample_method ? 
+                                 Data3DVolume.RESAMPLE_NEAREST : resample_method.intValue() );
+    }
+
+    /** Records the (loaded) Data3DVolume of 'alias'. */
+    /*private*/ void _setVolume( String alias, Data3DVolume data) {
+
+        ((VolumeStruct)volumes.get( alias)).data= data;
+        if (alias.equals(native_alias)) {
+                native_volume= data;
+                if (DEBUG) System.out.println("* Native volume: "+native_volume);
+        }
+        if (alias.equals(label_alias)) {
+                label_volume= data;
+                if (DEBUG) System.out.println("* Label volume: "+label_volume);
+        }
+        if (alias.equals(mni_alias)) {
+                mni_volume= data;
+                if (DEBUG) System.out.println("* MNI volume: "+mni_volume);
+        }
+    }
+
+    /*private*/ void _createIndividualPanel( PanelStruct ps, int column) {
+
+        Data3DVolume data= ((VolumeStruct)volumes.get( ps.alias0)).data;
+	data.setNative(ps.isNative);
+	VolumeHeader local_sampling= (VolumeHeader)headers.get( ps.alias0);
+	if (VERBOSE) {
+		System.out.println("************************************************");
+		System.out.println("Creating individual panel for: "+ps.alias0);
+	}
+        ps.gui= new IndividualDataVolumePanel( data, jiv_frame, post_label, 
+					       sup_label, lat_label, column,
+//##					       common_sampling.getFOVCenter(),
+//##			ps.isNative ? new Point3Dfloat(9.4f,51.1f,-2.5f) : new Point3Dfloat(0f,-10.5f,1.5f),
+			ps.isNative ? 	CoordConv.native_sampling.getFOVCenter() : 
+					CoordConv.common_sampling.getFOVCenter(),
+                                               enable_world_coords,
+                                               byte_voxel_values,
+                                               ps.range_start, ps.range_end,
+                                               ps.color_coding, 
+                                               ps.color_under, ps.color_above,
+					       local_sampling,
+                                               ps.isNative, this);
+    }
+
     /** This is called (by the applet's environment) when the applet is about
         to be permanently stopped. It should free up any resources that the
         applet is holding (e.g. frames, etc) 
@@ -627,6 +705,44 @@ public final class Main extends java.applet.Applet {
             dnld_method_convert.put( dnld_method_array[i][0], dnld_method_array[i][1]);
     }
 
+    /** used by _parseConfig() 
+        in converting from the string representation (in the config file) to 
+        the internal int representation */    
+    /*private*/ static final Object[][] storage_method_array= {
+        { "heap", new Integer( Data3DVolume.STORAGE_HEAP) },
+        { "mapped", new Integer( Data3DVolume.STORAGE_MAPPED) },
+        { "lazy", new Integer( Data3DVolume.STORAGE_LAZY) },
+        };
+    /*private*/ static Hashtable storage_method_convert;
+    static {
+        storage_method_convert= new Hashtable();
+        for( int i= 0; i < storage_method_array.length; ++i)
+            storage_method_convert.put( storage_method_array[i][0], storage_method_array[i][1]);
+    }
+
+    /*private*/ static final Object[][] resample_method_array= {
+        { "nearest", new Integer( Data3DVolume.RESAMPLE_NEAREST) },
+        { "trilinear", new Integer( Data3DVolume.RESAMPLE_TRILINEAR) },
+        { "sinc", new Integer( Data3DVolume.RESAMPLE_SINC) },
+        };
+    /*private*/ static Hashtable resample_method_convert;
+    static {
+        resample_method_convert= new Hashtable();
+        for( int i= 0; i < resample_method_array.length; ++i)
+            resample_method_convert.put( resample_method_array[i][0], resample_method_array[i][1]);
+    }
+
+    /*private*/ static final Object[][] slice_source_array= {
+        { "files", new Integer( Data3DVolume.SLICE_SOURCE_FILES) },
+        { "volume", new Integer( Data3DVolume.SLICE_SOURCE_VOLUME) },
+        };
+    /*private*/ static Hashtable slice_source_convert;
+    static {
+        slice_source_convert= new Hashtable();
+        for( int i= 0; i < slice_source_array.length; ++i)
+            slice_source_convert.put( slice_source_array[i][0], slice_source_array[i][1]);
+    }
+
     /** fills-in the following fields of Main: volumes, headers, panels, 
         position_sync;
         throws an Exception if any errors were encountered 
@@ -654,6 +770,54 @@ public final class Main extends java.applet.Applet {
         if( null != tmp_string) 
             download_method= 
                 ( (Integer)dnld_method_convert.get( tmp_string) ).intValue();
+        tmp_string= config.getProperty( "jiv2.storage");
+        if( null != tmp_string) {
+            Integer storage_method= (Integer)storage_method_convert.get( tmp_string);
+            if( null == storage_method)
+                throw new IOException( "invalid jiv2.storage: " + tmp_string);
+            Data3DVolume.setStorage( storage_method.intValue(),
+                                     config.getProperty( "jiv2.storage_dir"));
+        }
+        tmp_string= config.getProperty( "jiv2.cache_dir");
+        if( null != tmp_string) {
+            long cache_size= VolumeCache.DEFAULT_MAX_SIZE;
+            String size_string= config.getProperty( "jiv2.cache_size");
+            if( null != size_string)
+                // in megabytes
+                cache_size= Long.parseLong( size_string.trim()) << 20;
+            VolumeCache.setShared( new VolumeCache( new File( tmp_string), cache_size));
+        }
+        tmp_string= config.getProperty( "jiv2.slice_source");
+        if( null != tmp_string) {
+            Integer slice_source= (Integer)slice_source_convert.get( tmp_string);
+            if( null == slice_source)
+                throw new IOException( "invalid jiv2.slice_source: " + tmp_string);
+            Data3DVolume.setSliceSource( slice_source.intValue());
+        }
+        tmp_string= config.getProperty( "jiv2.bricks");
+        if( null != tmp_string) 
+            Data3DVolume.setBrickSize( Integer.parseInt( tmp_string.trim()));
+        tmp_string= config.getProperty( "jiv2.pyramid");
+        if( null != tmp_string) 
+            Data3DVolume.setPyramid( Boolean.valueOf( tmp_string.trim()).booleanValue());
+        tmp_string= config.getProperty( "jiv2.slice_cache");
+        if( null != tmp_string) {
+            long size= Long.parseLong( tmp_string.trim()) << 20;
+            SlicePlaneCache.setShared( size > 0 ? new SlicePlaneCache( size) : null);
+        }
+        tmp_string= config.getProperty( "jiv2.render");
+        if( null != tmp_string) {
+            tmp_string= tmp_string.trim();
+            if( !tmp_string.equals( "direct") && !tmp_string.equals( "producer"))
+                throw new IOException( "invalid jiv2.render: " + tmp_string);
+            Slice2DViewport.setDirectRendering( tmp_string.equals( "direct"));
+        }
+        tmp_string= config.getProperty( "jiv2.prefetch");
+        if( null != tmp_string) 
+            Data3DVolume.setMaxPrefetch( Integer.parseInt( tmp_string.trim()));
+        tmp_string= config.getProperty( "jiv2.download_per_host");
+        if( null != tmp_string) 
+            DownloadScheduler.getShared().setMaxPerHost( Integer.parseInt( tmp_string.trim()));
         tmp_string= config.getProperty( "jiv2.txfm_labels2mni");
         if( null != tmp_string ) {
 		if (atlas_dir != null)
@@ -758,6 +922,15 @@ public final class Main extends java.applet.Applet {
                 continue;
             }
 
+            if( name.endsWith( ".resample")) {
+                alias= name.substring( 0, name.lastIndexOf( '.'));
+                Integer method= (Integer)resample_method_convert.get( config.getProperty( name));
+                if( null == method)
+                    throw new IOException( "invalid " + name + ": " + config.getProperty( name));
+                resample_methods.put( alias, method);
+                continue;
+            }
+
             // then it's a "volume alias"!
             alias= name;
             VolumeStruct vs= new VolumeStruct();
@@ -908,6 +1081,19 @@ public final class Main extends java.applet.Applet {
                 combined_panels.put( name, panel_struct);
                 continue;
             }
+            // the layer settings of a combined panel (parsed in the next pass)
+            if( last_token.equals( "modes")) {
+                panel_struct.layer_modes= config.getProperty( name);
+                continue;
+            }
+            if( last_token.equals( "opacity")) {
+                panel_struct.layer_opacity= config.getProperty( name);
+                continue;
+            }
+            if( last_token.equals( "threshold")) {
+                panel_struct.layer_threshold= config.getProperty( name);
+                continue;
+            }
             throw new IOException( "invalid: " + name);
         }
 
@@ -948,14 +1134,51 @@ public final class Main extends java.applet.Applet {
             PanelStruct panel_struct= (PanelStruct)combined_panels.get( panel_name);
             StringTokenizer tokens= 
                 new StringTokenizer( config.getProperty( panel_name), " \t", false);
-            // these 2 can throw NoSuchElementException
-            String alias0= tokens.nextToken();
-            String alias1= tokens.nextToken();
-            if( _panelIndexOf( alias0) < 0 || _panelIndexOf( alias1) < 0)
-                throw new IOException( panel_name + ": the 2 combined volumes " + 
-                                       "need to be also displayed individually!");
-            panel_struct.alias0= alias0;
-            panel_struct.alias1= alias1;
+            final int n= tokens.countTokens();
+            if( n < 2)
+                throw new IOException( panel_name + ": needs 2 or more volume aliases");
+            String[] aliases= new String[ n];
+            for( int a= 0; a < n; ++a) {
+                aliases[ a]= tokens.nextToken();
+                if( _panelIndexOf( aliases[ a]) < 0)
+                    throw new IOException( panel_name + ": the combined volumes " + 
+                                           "need to be also displayed individually!");
+            }
+            panel_struct.aliases= aliases;
+            panel_struct.alias0= aliases[ 0];
+            panel_struct.alias1= aliases[ 1];
+
+            // the layer settings: one value per alias, the missing
+            // ones keep their defaults
+            String prefix= panel_name.substring( 0, panel_name.length() - "combine".length());
+            String[] modes= _layerValues( prefix + "modes", panel_struct.layer_modes, n);
+            String[] opacity= _layerValues( prefix + "opacity", panel_struct.layer_opacity, n);
+            String[] threshold= _layerValues( prefix + "threshold", panel_struct.layer_threshold, n);
+            panel_struct.layers= CompositeLayer.getDefaults( n);
+            for( int a= 0; a < n; ++a) {
+                CompositeLayer d= panel_struct.layers[ a];
+                try {
+                    // these can throw NumberFormatException, IllegalArgumentException
+                    panel_struct.layers[ a]= new CompositeLayer( 
+                        null == modes[ a] ? d.getMode() : CompositeLayer.parseMode( modes[ a]),
+                        null == opacity[ a] ? d.getOpacity() : 
+                        (byte)Math.round( _fraction( opacity[ a]) * 100),
+                        null == threshold[ a] ? d.getThreshold() : 
+                        (short)Math.round( _fraction( threshold[ a]) * 255));
+                }
+                catch( IllegalArgumentException e) {
+                    throw new IOException( panel_name + ": invalid layer " + a + 
+                                           " settings (" + e.getMessage() + ")");
+                }
+            }
+        }
+        for( int i= 0; i < panels.size(); ++i) {
+            PanelStruct ps= (PanelStruct)panels.elementAt( i);
+            if( null != ps && null == ps.aliases && 
+                ( null != ps.layer_modes || null != ps.layer_opacity || 
+                  null != ps.layer_threshold))
+                throw new IOException( "jiv2.panel." + i + ": modes, opacity and " +
+                                       "threshold are only for combined panels");
         }
 
 
@@ -981,6 +1204,32 @@ public final class Main extends java.applet.Applet {
 
     } // end of _parseConfig()
     
+    /** @return the blank-separated values of config property 'name'
+        (whose value is 'value', possibly null), padded with nulls to
+        'n' values */
+    /*private*/ String[] _layerValues( String name, String value, int n)
+        throws IOException
+    {
+        String[] result= new String[ n];
+        if( null == value)
+            return result;
+        StringTokenizer tokens= new StringTokenizer( value, " \t", false);
+        if( tokens.countTokens() > n)
+            throw new IOException( name + ": more values than combined volumes");
+        for( int i= 0; tokens.hasMoreTokens(); ++i)
+            result[ i]= tokens.nextToken();
+        return result;
+    }
+
+    /** @return 'value' as a number in the range 0.0--1.0 */
+    /*private*/ static float _fraction( String value) throws NumberFormatException {
+
+        final float f= Float.valueOf( value).floatValue();
+        if( !( f >= 0f && f <= 1f))
+            throw new NumberFormatException( value + " not in 0.0--1.0");
+        return f;
+    }
+
     /** returns the first _individual_ panel index displaying the argument 
         or -1 if none found
      */
@@ -1038,7 +1287,7 @@ public final class Main extends java.applet.Applet {
      * <dt>individual: 
      * <dd>alias0 (alias1 should be null!), color_coding, range_* 
      * <dt>combined: 
-     * <dd>alias0, alias1
+     * <dd>aliases (alias0, alias1 are its first two), layers
      * </dl>
      *
      * @author Chris Cocosco (crisco@bic.mni.mcgill.ca)
@@ -1047,6 +1296,14 @@ public final class Main extends java.applet.Applet {
     /*private*/ final class PanelStruct {
         String          alias0;
         String          alias1;
+        /** all the volumes of a combined panel, bottom layer first */
+        String[]        aliases;
+        /** how each of 'aliases' is composited */
+        CompositeLayer[] layers;
+        /** the unparsed layer settings (see _layerValues) */
+        String          layer_modes;
+        String          layer_opacity;
+        String          layer_threshold;
         /** should be one of the static constants declared by ColorCoding */
         int             color_coding= ColorCoding.GREY;
         short           range_start= 0;
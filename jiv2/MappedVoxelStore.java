@@ -0,0 +1,208 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * An off-heap <code>VoxelStore</code>: the voxels live in a
+ * memory-mapped scratch file, in the same (z,y,x) order as
+ * <code>FlatVoxelStore</code>. The OS page cache decides what stays
+ * resident, so volumes much larger than the Java heap can be viewed.
+ * <p>
+ * A single mapping cannot exceed 2GB, so the file is mapped as
+ * several chunks, each holding a whole number of z planes (this way
+ * a row never straddles two chunks).
+ * <p>
+ * The scratch file is kept after exit. When it is marked complete
+ * (see <code>setComplete</code>), a later run on the same data can
+ * reopen it instead of downloading and resampling everything again.
+ *
+ * @version $Id$
+ */
+public final class MappedVoxelStore extends VoxelStore {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    /** upper limit for the size of one mapped chunk */
+    /*private*/ static final long	MAX_CHUNK_SIZE= 1L << 30;
+
+    /** extension of the file marking a complete (reusable) scratch file */
+    /*private*/ static final String	COMPLETE_EXT= ".done";
+
+    /*private*/ final File		file;
+    /*private*/ RandomAccessFile	raf;
+    /*private*/ MappedByteBuffer[] 	chunks;
+    /** number of voxels in one transverse (z) plane */
+    /*private*/ final int		plane_size;
+    /** number of z planes per chunk */
+    /*private*/ final int		planes_per_chunk;
+
+    /** Opens (or creates) the scratch file. If the file already exists
+	and has the right size, its contents are preserved -- use
+	<code>isComplete</code> to find out if they can be trusted.
+    */
+    public MappedVoxelStore( int x_size, int y_size, int z_size, File file)
+	throws IOException, SecurityException
+    {
+	super( x_size, y_size, z_size);
+	this.file= file;
+	plane_size= x_size * y_size;
+	if( plane_size > MAX_CHUNK_SIZE)
+	    throw new IllegalArgumentException( "slice too large to be mapped: " +
+						plane_size + " voxels");
+	planes_per_chunk= (int)Math.min( z_size, MAX_CHUNK_SIZE / plane_size);
+
+	final long length= getVoxelCount();
+	raf= new RandomAccessFile( file, "rw");
+	final int n_chunks= (z_size + planes_per_chunk - 1) / planes_per_chunk;
+	chunks= new MappedByteBuffer[ n_chunks];
+	boolean mapped= false;
+	try {
+	    if( raf.length() != length) {
+		// stale or brand new: whatever was there cannot be reused
+		new File( file.getPath() + COMPLETE_EXT).delete();
+		raf.setLength( length);
+	    }
+	    FileChannel channel= raf.getChannel();
+	    for( int c= 0; c < n_chunks; ++c) {
+		long offset= (long)c * planes_per_chunk * plane_size;
+		long size= Math.min( (long)planes_per_chunk * plane_size, length - offset);
+		chunks[ c]= channel.map( FileChannel.MapMode.READ_WRITE, offset, size);
+	    }
+	    mapped= true;
+	}
+	finally {
+	    // (eg out of address space: the caller falls back to memory)
+	    if( !mapped)
+		raf.close();
+	}
+	if( DEBUG) System.out.println( file + " : mapped " + length + " bytes in "
+				       + n_chunks + " chunks");
+    }
+
+    /** @return true if the scratch file was previously marked complete
+	with the same <code>key</code> */
+    final public boolean isComplete( String key) {
+
+	File marker= new File( file.getPath() + COMPLETE_EXT);
+	if( !marker.exists())
+	    return false;
+	try {
+	    BufferedReader in= new BufferedReader( new FileReader( marker));
+	    try {
+		return key.equals( in.readLine());
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	catch( IOException e) {
+	    return false;
+	}
+    }
+
+    /** Flushes the data to disk and marks the scratch file as
+	complete (i.e. reusable by a later run) for <code>key</code>. */
+    final public void setComplete( String key) throws IOException {
+
+	for( int c= 0; c < chunks.length; ++c)
+	    chunks[ c].force();
+	Writer out= new FileWriter( file.getPath() + COMPLETE_EXT);
+	try {
+	    out.write( key);
+	    out.write( '\n');
+	}
+	finally {
+	    out.close();
+	}
+    }
+
+    final public byte get( int x, int y, int z) {
+	return chunks[ z / planes_per_chunk].get( (z % planes_per_chunk) * plane_size
+						  + y * x_size + x);
+    }
+
+    final public void set( int x, int y, int z, byte value) {
+	chunks[ z / planes_per_chunk].put( (z % planes_per_chunk) * plane_size
+					   + y * x_size + x, value);
+    }
+
+    /* NB: the bulk get/put of ByteBuffer use the (shared) position,
+       hence the duplicate() -- several threads read and write rows
+       at the same time. */
+
+    final public void getRow( int x, int y, int z,
+			      byte[] dest, int dest_offset, int len) {
+	ByteBuffer b= chunks[ z / planes_per_chunk].duplicate();
+	b.position( (z % planes_per_chunk) * plane_size + y * x_size + x);
+	b.get( dest, dest_offset, len);
+    }
+
+    final public void putRow( int x, int y, int z,
+			      byte[] src, int src_offset, int len) {
+	ByteBuffer b= chunks[ z / planes_per_chunk].duplicate();
+	b.position( (z % planes_per_chunk) * plane_size + y * x_size + x);
+	b.put( src, src_offset, len);
+    }
+
+    final public void fillRow( int x, int y, int z, int len, byte value) {
+	final MappedByteBuffer chunk= chunks[ z / planes_per_chunk];
+	final int start= (z % planes_per_chunk) * plane_size + y * x_size + x;
+	for( int i= start + len - 1; i >= start; --i)
+	    chunk.put( i, value);
+    }
+
+    final public void getColumn( int x, int z, byte[] dest, int dest_offset) {
+
+	// for speed, use stack variables instead of the instance fields
+	final MappedByteBuffer chunk= chunks[ z / planes_per_chunk];
+	final int stride= x_size;
+	final int y_size= this.y_size;
+	for( int y= 0, i= (z % planes_per_chunk) * plane_size + x;
+	     y < y_size; ++y, i += stride)
+	    dest[ dest_offset + y]= chunk.get( i);
+    }
+
+    /** The mapping itself is only released when the buffers are
+	garbage collected (there's no portable way to unmap). */
+    public void dispose() {
+
+	chunks= null;
+	try {
+	    if( raf != null)
+		raf.close();
+	}
+	catch( IOException e) {
+	    System.err.println( e);
+	}
+	raf= null;
+    }
+
+    public String toString() {
+	return "MappedVoxelStore[" + file + "]";
+    }
+
+}
@@ -0,0 +1,237 @@
+/* 
+  This file is part of JIV2.  
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA, 
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.awt.Rectangle;
+import java.awt.image.*;
+
+/**
+ * A <code>SliceImageProducer</code> for 2D slices along an arbitrary
+ * plane ("oblique" slices), through the cursor position. The plane
+ * is given by two orthogonal unit vectors (in world coordinates):
+ * 'u' points to the right of the image, and 'v' points up. It can be
+ * changed at any time with <code>setOrientation</code>, and the image
+ * is re-rendered right away -- see
+ * <code>Data3DVolume.getObliqueSlice</code> for how that's kept fast
+ * enough for dragging the plane around.
+ * <p>
+ * There's no stack of slices here, so <code>crt_slice</code> just
+ * counts the planes shown: that's how the notifications about
+ * a plane we've already moved away from get ignored. The ones about
+ * the current plane only re-render it if some slice it crosses
+ * actually changed, and the missing slices are requested once per
+ * plane.
+ *
+ * @version $Id$
+ */
+public final class ObliqueSliceImageProducer extends SliceImageProducer {
+
+static final boolean DEBUG= false;
+
+    /** world unit vector along the image rows (to the right) */
+    /*private*/ float[]	u= { 1f, 0f, 0f };
+    /** world unit vector along the image columns (up) */
+    /*private*/ float[]	v= { 0f, 1f, 0f };
+    /** world distance between neighbouring pixels */
+    /*private*/ float	pixel_step;
+    /** the crt_slice whose missing data was requested already */
+    /*private*/ int	requested_slice= -1;
+    /** what the plane crossed when last sampled (see
+	Data3DVolume.getObliqueSlice); null if it was all there */
+    /*private*/ int[]	crossed_changes;
+
+    /**
+     * The plane starts out transverse (u= +x, v= +y).
+     *
+     * @param world the cursor position (the image center); it's
+     * updated in place as the cursor moves
+     * @param width image size (pixels)
+     * @param height image size (pixels)
+     * @param pixel_step world distance between neighbouring pixels
+     */
+    public ObliqueSliceImageProducer( Data3DVolume data_volume, 
+				      Point3Dfloat world,
+				      int width,
+				      int height,
+				      float pixel_step,
+				      IndexColorModel default_colormap,
+				      boolean isNative ) {
+
+	super( 0, 
+	       world,
+	       new byte[ width * height],
+	       width, 
+	       height,
+	       default_colormap,
+	       data_volume,
+	       isNative);
+	if( !( pixel_step > 0f))
+	    throw new IllegalArgumentException( "pixel step must be positive: " + pixel_step);
+	this.pixel_step= pixel_step;
+	_getNewSliceData( true);
+    }
+
+    /** @return -1 : there's no stack of slices to browse */
+    public final int getMaxSliceNumber() { return -1; }
+
+    /** @return the pixel step (the plane can be at any angle to the
+	volume's own sampling) */
+    public final float getOrthoStep() { return pixel_step; }
+
+    /** @return (a copy of) the world unit vector along the image rows */
+    synchronized public final float[] getU() { return (float[])u.clone(); }
+
+    /** @return (a copy of) the world unit vector pointing up the image */
+    synchronized public final float[] getV() { return (float[])v.clone(); }
+
+    /** @return the plane normal (u x v), pointing towards the viewer */
+    synchronized public final float[] getNormal() { return _cross( u, v); }
+
+    /**
+     * Changes the plane orientation, and re-renders the image.
+     *
+     * @param new_u world direction of the image rows (need not be
+     * normalized)
+     * @param new_v world direction pointing up the image; only its
+     * part orthogonal to 'new_u' is used
+     * @exception IllegalArgumentException if the two are (nearly)
+     * parallel, or either is null-length
+     */
+    synchronized public final void setOrientation( float[] new_u, float[] new_v) {
+
+	float[] nu= _normalize( new_u);
+	float d= _dot( nu, new_v);
+	float[] nv= _normalize( new float[] { new_v[ 0] - d * nu[ 0],
+					      new_v[ 1] - d * nu[ 1],
+					      new_v[ 2] - d * nu[ 2] });
+	u= nu;
+	v= nv;
+	++crt_slice;
+	_getNewSliceData( true);
+    }
+
+    /** Changes the image zoom (world distance between neighbouring
+	pixels), and re-renders the image. */
+    synchronized public final void setPixelStep( float new_pixel_step) {
+
+	if( !( new_pixel_step > 0f))
+	    throw new IllegalArgumentException( "pixel step must be positive: " + new_pixel_step);
+	pixel_step= new_pixel_step;
+	++crt_slice;
+	_getNewSliceData( true);
+    }
+
+    synchronized public final void positionChangeDetected( PositionEvent e) {
+
+	if (DEBUG) System.out.println( "** ObliqueSliceImageProducer.positionChangeDetected " + e);
+
+	// any coordinate change moves the plane
+	float new_x, new_y, new_z;
+	if( !isNative) {
+	    if( !( e.isXmniChanged() || e.isYmniChanged() || e.isZmniChanged()))
+		return;
+	    new_x= e.getXmni();
+	    new_y= e.getYmni();
+	    new_z= e.getZmni();
+	}
+	else {
+	    if( !( e.isXnatChanged() || e.isYnatChanged() || e.isZnatChanged()))
+		return;
+	    new_x= e.getXnat();
+	    new_y= e.getYnat();
+	    new_z= e.getZnat();
+	}
+	if( new_x == world.x && new_y == world.y && new_z == world.z)
+	    return;
+	world.x= new_x;
+	world.y= new_y;
+	world.z= new_z;
+	++crt_slice;
+	_getNewSliceData( true);
+    }
+
+    synchronized void sliceDataUpdated( int which_slice) {
+
+	if( which_slice != crt_slice)
+	    // we've already moved to another plane
+	    return;
+	if( null == crossed_changes || !data_volume.hasObliqueChanged( crossed_changes)) {
+	    // (eg the slices it doesn't cross, or the waiters all
+	    // notified once the volume is complete)
+	    if (DEBUG) System.out.println( this + " : nothing new on plane " + which_slice);
+	    return;
+	}
+	_getNewSliceData( true);
+    }
+
+    /** Unregisters from the volume (see Data3DVolume.addProducer),
+	once the image isn't shown anymore. */
+    public final void dispose() {
+	data_volume.removeProducer( this);
+    }
+
+    /*private*/ final void _getNewSliceData( boolean future_notification) {
+
+	// the plane, as walked by getObliqueSlice: from the top left
+	// pixel, rightwards and downwards
+	final float half_w= ( slice_width - 1) * 0.5f * pixel_step;
+	final float half_h= ( slice_height - 1) * 0.5f * pixel_step;
+	Point3Dfloat origin= new Point3Dfloat( world.x - half_w * u[ 0] + half_h * v[ 0],
+					       world.y - half_w * u[ 1] + half_h * v[ 1],
+					       world.z - half_w * u[ 2] + half_h * v[ 2]);
+	float[] du= { pixel_step * u[ 0], pixel_step * u[ 1], pixel_step * u[ 2] };
+	float[] dv= { -pixel_step * v[ 0], -pixel_step * v[ 1], -pixel_step * v[ 2] };
+
+	// reuse the existing slice_data array!
+	crossed_changes= 
+	    data_volume.getObliqueSlice( origin, du, dv, slice_width, slice_height, slice_data,
+					 future_notification ? this : null, crt_slice,
+					 requested_slice != crt_slice);
+	requested_slice= crt_slice;
+	newPixels();
+	_fireImageChanged();
+    }
+
+    /** The bricks needed can't be worked out from a region of this
+	image: ask for whole slices. */
+    public final Rectangle getVisibleRegion() { return null; }
+
+    static final /*private*/ float _dot( float[] a, float[] b) {
+	return a[ 0] * b[ 0] + a[ 1] * b[ 1] + a[ 2] * b[ 2];
+    }
+
+    static final /*private*/ float[] _cross( float[] a, float[] b) {
+	return new float[] { a[ 1] * b[ 2] - a[ 2] * b[ 1],
+			     a[ 2] * b[ 0] - a[ 0] * b[ 2],
+			     a[ 0] * b[ 1] - a[ 1] * b[ 0] };
+    }
+
+    static final /*private*/ float[] _normalize( float[] a) {
+
+	float norm= (float)Math.sqrt( _dot( a, a));
+	if( !( norm > 1e-6f))
+	    throw new IllegalArgumentException( "degenerate plane orientation");
+	return new float[] { a[ 0] / norm, a[ 1] / norm, a[ 2] / norm };
+    }
+
+}
@@ -0,0 +1,177 @@
+/* 
+  This file is part of JIV2.  
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA, 
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.awt.*;
+import java.awt.event.*;
+
+/**
+ * Shows the image of an <code>ObliqueSliceImageProducer</code>,
+ * scaled to fit, and lets the user turn its plane around the cursor
+ * by dragging: horizontal drags turn it around the image's vertical
+ * axis, vertical drags around its horizontal axis. Dragging with the
+ * other (secondary) button zooms, like in the
+ * <code>Slice2DViewport</code>-s; a double-click goes back to the
+ * initial (transverse) plane and zoom.
+ *
+ * @version $Id$
+ */
+public final class ObliqueSliceViewport extends Panel {
+
+    static final /*private*/ boolean 	DEBUG= false;
+
+    /** a short reminder of the mouse commands, for a label */
+    public static final String		USAGE= 
+	"drag: turn the plane -- other button drag: zoom -- double-click: reset";
+
+    /** plane rotation per pixel dragged, in radians */
+    /*private*/ static final double	RADIANS_PER_PIXEL= Math.PI / 400;
+    /** zoom range, relative to the initial pixel step */
+    /*private*/ static final float	MAX_ZOOM= 8f;
+
+    /*private*/ final ObliqueSliceImageProducer	producer;
+    /*private*/ final Image		image;
+    /*private*/ final int		image_width;
+    /*private*/ final int		image_height;
+    /** initial pixel step (for reset and the zoom range) */
+    /*private*/ final float		initial_step;
+    /*private*/ final Dimension		preferred_size;
+    /** used in calculating the effect of mouse drags */
+    /*private*/ final Point		last_position= new Point();
+
+    /** double-buffering; reallocated when the size changes */
+    /*private*/ Image 			offscreen_buffer;
+    /*private*/ Graphics 		offscreen_gc;
+
+    public ObliqueSliceViewport( ObliqueSliceImageProducer producer) {
+
+	this.producer= producer;
+	image= createImage( producer);
+	image_width= image.getWidth( this);
+	image_height= image.getHeight( this);
+	initial_step= producer.getOrthoStep();
+	preferred_size= new Dimension( image_width, image_height);
+	enableEvents( AWTEvent.MOUSE_EVENT_MASK | AWTEvent.MOUSE_MOTION_EVENT_MASK);
+    }
+
+    final public Dimension getPreferredSize() { return preferred_size; }
+
+    final protected void processMouseEvent( MouseEvent me) {
+
+	if( MouseEvent.MOUSE_PRESSED == me.getID()) {
+	    last_position.x= me.getX(); last_position.y= me.getY();
+	    if( me.getClickCount() > 1 && 
+		0 == ( me.getModifiers() & Slice2DViewport.OTHER_BUTTON_MASK))
+		_reset();
+	}
+	super.processMouseEvent( me);
+    }
+
+    final protected void processMouseMotionEvent( MouseEvent me) {
+
+	if( MouseEvent.MOUSE_DRAGGED == me.getID()) {
+	    final int dx= me.getX() - last_position.x;
+	    final int dy= me.getY() - last_position.y;
+	    last_position.x= me.getX(); last_position.y= me.getY();
+
+	    if( 0 != ( me.getModifiers() & Slice2DViewport.OTHER_BUTTON_MASK))
+		// == ZOOM == (up zooms in, as in Slice2DViewport)
+		_zoom( dy);
+	    else
+		// == TURN THE PLANE ==
+		_turn( dx * RADIANS_PER_PIXEL, dy * RADIANS_PER_PIXEL);
+	}
+	super.processMouseMotionEvent( me);
+    }
+
+    /** Turns the plane by 'a' around the image's vertical axis, and
+	by 'b' around its horizontal axis (the image then re-renders
+	itself). */
+    /*private*/ final void _turn( double a, double b) {
+
+	if( 0 == a && 0 == b)
+	    return;
+	final float[] u= producer.getU();
+	final float[] v= producer.getV();
+	final float[] n= producer.getNormal();
+	final float ca= (float)Math.cos( a), sa= (float)Math.sin( a);
+	final float cb= (float)Math.cos( b), sb= (float)Math.sin( b);
+	float[] new_u= new float[ 3];
+	float[] new_v= new float[ 3];
+	for( int d= 0; d < 3; ++d) {
+	    new_u[ d]= ca * u[ d] + sa * n[ d];
+	    new_v[ d]= cb * v[ d] + sb * n[ d];
+	}
+	// (setOrientation makes them orthogonal again)
+	producer.setOrientation( new_u, new_v);
+    }
+
+    /*private*/ final void _zoom( int delta) {
+
+	if( 0 == delta)
+	    return;
+	float step= producer.getOrthoStep() * (float)Math.exp( delta * 0.01);
+	step= Math.max( initial_step / MAX_ZOOM, Math.min( initial_step * MAX_ZOOM, step));
+	producer.setPixelStep( step);
+    }
+
+    /*private*/ final void _reset() {
+
+	producer.setOrientation( new float[] { 1f, 0f, 0f }, new float[] { 0f, 1f, 0f });
+	producer.setPixelStep( initial_step);
+    }
+
+    final public void paint( Graphics gr) { update( gr); }
+
+    /** Draws the image scaled to fit (keeping its aspect ratio),
+	centered, double-buffered. */
+    final public void update( Graphics gr) {
+
+	final Dimension size= getSize();
+	if( size.width <= 0 || size.height <= 0)
+	    return;
+	if( null == offscreen_buffer || 
+	    offscreen_buffer.getWidth( null) != size.width ||
+	    offscreen_buffer.getHeight( null) != size.height) {
+	    if( offscreen_gc != null)
+		offscreen_gc.dispose();
+	    offscreen_buffer= createImage( size.width, size.height);
+	    offscreen_gc= offscreen_buffer.getGraphics();
+	}
+	final double scale= Math.min( size.width / (double)image_width, 
+				      size.height / (double)image_height);
+	final int w= (int)Math.round( image_width * scale);
+	final int h= (int)Math.round( image_height * scale);
+	final int x= ( size.width - w) / 2;
+	final int y= ( size.height - h) / 2;
+	offscreen_gc.setColor( getBackground());
+	offscreen_gc.fillRect( 0, 0, size.width, size.height);
+	offscreen_gc.drawImage( image, x, y, x + w, y + h, 
+				0, 0, image_width, image_height, this);
+	gr.drawImage( offscreen_buffer, 0, 0, null);
+    }
+
+    public String toString() {
+	return "ObliqueSliceViewport[" + producer + "]";
+    }
+}
@@ -0,0 +1,241 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Draws a zoomed-in image from square tiles of its scaled version,
+ * which are scaled only when first needed (ie visible) and then kept,
+ * so that panning or redrawing the same image at the same zoom only
+ * copies pixels. The tiles are positioned relative to the scaled
+ * image's corner, so they stay valid whatever its position in the
+ * viewport. Used by Slice2DViewport, one per viewport.
+ * <p>
+ * flush() must be called whenever the pixels of the image change;
+ * the tiles are also dropped when the zoom changes. The least
+ * recently used ones are dropped when there are more than
+ * <code>max_tiles</code>.
+ *
+ * @version $Id$
+ */
+public final class ScaledTileCache {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    /** width and height of a tile, in (scaled) pixels */
+    public static final int		TILE_SIZE= 128;
+
+    /** size limit, in tiles */
+    /*private*/ int			max_tiles;
+    /** the tiles (BufferedImage), indexed by their Point(column,row),
+	least recently used first */
+    /*private*/ final LinkedHashMap	tiles= new LinkedHashMap( 64, 0.75f, true);
+    /** dropped tiles, reused instead of allocating new ones */
+    /*private*/ final Vector		spare= new Vector();
+    /** scaled image size the tiles are for */
+    /*private*/ int			scaled_width= -1;
+    /*private*/ int			scaled_height= -1;
+    /** incremented by each flush: a tile scaled while the pixels
+	were changing isn't kept */
+    /*private*/ int			generation;
+    /** value of 'generation' at the previous draw() */
+    /*private*/ int			drawn_generation= -1;
+
+    /**
+     * @param max_tiles size limit, in tiles
+     */
+    public ScaledTileCache( int max_tiles) {
+
+	setMaxTiles( max_tiles);
+    }
+
+    /** Changes the size limit (in tiles), eg after a viewport resize. */
+    synchronized final public void setMaxTiles( int max_tiles) {
+
+	if( max_tiles <= 0)
+	    throw new IllegalArgumentException( "invalid cache size: " + max_tiles);
+	this.max_tiles= max_tiles;
+	_trim();
+    }
+
+    /** Drops all the tiles; to be called when the image changes. Can
+	be called from any thread. */
+    synchronized final public void flush() {
+
+	for( Iterator i= tiles.values().iterator(); i.hasNext(); )
+	    _recycle( (BufferedImage)i.next());
+	tiles.clear();
+	++generation;
+    }
+
+    /**
+     * Draws 'image', scaled to 'scaled_width' x 'scaled_height' with
+     * its corner at 'origin', into the clip window of 'gr' -- same
+     * result as Graphics#drawImage( Image, 8xint, ImageObserver).
+     *
+     * Only zooming in goes through the tiles, and only when the image
+     * didn't change since the previous call: otherwise the tiles
+     * wouldn't be used more than once, so it's cheaper to scale the
+     * visible part straight into 'gr'.
+     *
+     * @param gr the graphics context to draw on; its clip should be set
+     * @param observer told when the image's pixels arrive, if not yet all there
+     */
+    final public void draw( Graphics gr, Image image, int image_width, int image_height,
+			    Point origin, int scaled_width, int scaled_height,
+			    ImageObserver observer) {
+
+	boolean use_tiles;
+	synchronized( this) {
+	    if( scaled_width != this.scaled_width || scaled_height != this.scaled_height) {
+		flush();
+		this.scaled_width= scaled_width;
+		this.scaled_height= scaled_height;
+	    }
+	    use_tiles= scaled_width > image_width && generation == drawn_generation;
+	    drawn_generation= generation;
+	}
+	// part of the scaled image to draw, relative to its corner:
+	Rectangle clip= gr.getClipBounds();
+	Rectangle visible= new Rectangle( 0, 0, scaled_width, scaled_height);
+	if( null != clip) {
+	    clip.translate( -origin.x, -origin.y);
+	    visible= visible.intersection( clip);
+	}
+	if( visible.isEmpty())
+	    return;
+
+	if( use_tiles) {
+	    final int first_col= visible.x / TILE_SIZE;
+	    final int last_col= ( visible.x + visible.width - 1) / TILE_SIZE;
+	    final int first_row= visible.y / TILE_SIZE;
+	    final int last_row= ( visible.y + visible.height - 1) / TILE_SIZE;
+
+	    for( int row= first_row; row <= last_row; ++row)
+		for( int col= first_col; col <= last_col; ++col) {
+		    final BufferedImage tile= _getTile( col, row, image, image_width, image_height,
+							scaled_width, scaled_height, observer);
+		    if( null == tile) {
+			use_tiles= false; // the image isn't all there yet
+			break;
+		    }
+		    Rectangle part= visible.intersection( new Rectangle( col * TILE_SIZE,
+									 row * TILE_SIZE,
+									 TILE_SIZE, TILE_SIZE));
+		    final int tile_x= part.x - col * TILE_SIZE;
+		    final int tile_y= part.y - row * TILE_SIZE;
+		    part.translate( origin.x, origin.y);
+		    gr.drawImage( tile,
+				  part.x, part.y, part.x + part.width, part.y + part.height,
+				  tile_x, tile_y, tile_x + part.width, tile_y + part.height,
+				  null);
+		}
+	    if( use_tiles)
+		return;
+	}
+	gr.drawImage( image,
+		      origin.x, origin.y, origin.x + scaled_width, origin.y + scaled_height,
+		      0, 0, image_width, image_height, observer);
+    }
+
+    /**
+     * @return tile (col,row), scaled now if not in the cache; null if
+     * the image can't be drawn completely yet
+     */
+    /*private*/ final BufferedImage _getTile( int col, int row,
+					      Image image, int image_width, int image_height,
+					      int scaled_width, int scaled_height,
+					      ImageObserver observer) {
+
+	final Point key= new Point( col, row);
+	BufferedImage tile;
+	int started_generation;
+	synchronized( this) {
+	    tile= (BufferedImage)tiles.get( key);
+	    if( null != tile)
+		return tile;
+	    started_generation= generation;
+	    if( spare.isEmpty())
+		tile= new BufferedImage( TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+	    else {
+		tile= (BufferedImage)spare.lastElement();
+		spare.removeElementAt( spare.size() - 1);
+	    }
+	}
+	// the same mapping as for the whole image, shifted by a whole
+	// number of pixels: the voxel edges fall in the same places
+	final int x= -col * TILE_SIZE;
+	final int y= -row * TILE_SIZE;
+	Graphics tile_gc= tile.getGraphics();
+	boolean complete=
+	    tile_gc.drawImage( image, x, y, x + scaled_width, y + scaled_height,
+			       0, 0, image_width, image_height, observer);
+	tile_gc.dispose();
+	if( !complete)
+	    // a multiframe image (from a MemoryImageSource) never
+	    // reports being done, only each frame
+	    complete= 0 != ( ( ImageObserver.FRAMEBITS | ImageObserver.ALLBITS ) &
+			     Toolkit.getDefaultToolkit().checkImage( image, -1, -1, null));
+
+	synchronized( this) {
+	    if( complete && started_generation == generation &&
+		scaled_width == this.scaled_width && scaled_height == this.scaled_height) {
+		tiles.put( key, tile);
+		_trim();
+		if( DEBUG) System.out.println( this + " scaled tile " + key);
+	    }
+	    else {
+		_recycle( tile);
+		if( !complete)
+		    return null;
+	    }
+	}
+	// (if it wasn't kept, it's only used by the caller's draw()
+	// before being handed out again -- by the same thread)
+	return tile;
+    }
+
+    /** drops the least recently used tiles over the limit */
+    /*private*/ final void _trim() {
+
+	for( Iterator i= tiles.values().iterator(); tiles.size() > max_tiles && i.hasNext(); ) {
+	    _recycle( (BufferedImage)i.next());
+	    i.remove();
+	}
+    }
+
+    /*private*/ final void _recycle( BufferedImage tile) {
+
+	if( spare.size() < max_tiles)
+	    spare.addElement( tile);
+    }
+
+    public String toString() {
+
+	return "ScaledTileCache[" + scaled_width + "x" + scaled_height +
+	    " tiles=" + tiles.size() + " spare=" + spare.size() + "/" + max_tiles + "]";
+    }
+}
@@ -0,0 +1,99 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+/**
+ * Follows how fast, and in which direction, a viewer is moving
+ * through the slices of one orientation -- for deciding which slices
+ * to download ahead (see <code>Data3DVolume._prefetch</code>). The
+ * speed is an exponentially weighted moving average of the recent
+ * steps.
+ *
+ * @version $Id$
+ */
+public final class ScrollTracker {
+
+    /** weight of the newest step in the speed average */
+    /*private*/ static final float	ALPHA= 0.3f;
+    /** a pause longer than this (ms) starts over from standstill */
+    /*private*/ static final long	IDLE_MS= 1000;
+    /** a step longer than this (slices) is a jump, not scrolling */
+    /*private*/ static final int	MAX_STEP= 8;
+
+    /*private*/ int		last_slice= -1;
+    /*private*/ long		last_time;
+    /** slices per second */
+    /*private*/ float		speed;
+    /** +1, -1, or 0 if unknown (eg after a jump) */
+    /*private*/ int		direction;
+
+    /**
+     * Records that slice 'slice' is now displayed.
+     *
+     * @return false if that's the slice already displayed (eg just
+     * a refresh)
+     */
+    synchronized final public boolean update( int slice) {
+	return update( slice, System.currentTimeMillis());
+    }
+
+    /** As above, at time 'now' (ms). */
+    synchronized final public boolean update( int slice, long now) {
+
+	if( slice == last_slice)
+	    return false;
+	final int step= slice - last_slice;
+	final long dt= now - last_time;
+	final int new_direction= step > 0 ? 1 : -1;
+	if( last_slice < 0 || Math.abs( step) > MAX_STEP) {
+	    // the first slice, or a jump: no idea where next
+	    speed= 0f;
+	    direction= 0;
+	}
+	else if( dt > IDLE_MS || new_direction != direction) {
+	    // (re)starting to scroll
+	    speed= 0f;
+	    direction= new_direction;
+	}
+	else {
+	    final float sample= Math.abs( step) * 1000f / Math.max( 1L, dt);
+	    speed= ALPHA * sample + ( 1f - ALPHA) * speed;
+	}
+	last_slice= slice;
+	last_time= now;
+	return true;
+    }
+
+    /** @return the scrolling speed, in slices per second (0 if not
+	scrolling) */
+    synchronized final public float getSpeed() { return speed; }
+
+    /** @return +1 or -1, or 0 if not known */
+    synchronized final public int getDirection() { return direction; }
+
+    public String toString() {
+	return "ScrollTracker[slice=" + last_slice + ",speed=" + speed + 
+	    ",direction=" + direction + "]";
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+/**
+ * Thick-slab projection of orthogonal slices: each pixel of the
+ * image is the maximum (MIP), minimum (MinIP) or mean of the voxels
+ * at that position in the slices around the current one. Used by
+ * the orthogonal <code>SliceImageProducer</code>-s.
+ * <p>
+ * The slices of the slab are kept (in a ring, indexed by slice
+ * number modulo the slab thickness), so that moving the slab by one
+ * slice only reads the slice entering it: the mean adds the entering
+ * slice and drops the leaving one; the maximum (minimum) keeps, per
+ * pixel, how many slab slices hold it, and only looks at the whole
+ * slab again for the pixels where the last of them just left. The
+ * rows are shared out between the processors.
+ * <p>
+ * Not thread-safe: meant to be used under the lock of its producer.
+ *
+ * @version $Id$
+ */
+public final class SlabProjection {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    public static final int	NONE= 0;
+    /** maximum intensity projection */
+    public static final int	MAX= 1;
+    /** minimum intensity projection */
+    public static final int	MIN= 2;
+    /** mean intensity */
+    public static final int	MEAN= 3;
+
+    /** rows per WorkerPool task, for a 256 pixels wide image */
+    /*private*/ static final int	GRAIN_PIXELS= 256 * 16;
+
+    /*private*/ final Data3DVolume	volume;
+    /** the dimension orthogonal to the slices (see
+	Data3DVolume.getSliceRows) */
+    /*private*/ final int		ortho_dim;
+    /*private*/ final int		width;
+    /*private*/ final int		height;
+    /** number of slices along ortho_dim */
+    /*private*/ final int		n_slices;
+    /*private*/ final int		mode;
+    /** the slab is 2*half+1 slices thick */
+    /*private*/ final int		half;
+    /*private*/ final int		thickness;
+    /** ring[ s mod thickness] holds slice s of the slab, as keys (see
+	_key) */
+    /*private*/ final byte[][]		ring;
+    /** per pixel: the sum of the slab (MEAN), or the largest key (MAX, MIN) */
+    /*private*/ final int[]		acc;
+    /** per pixel: the number of slab slices holding the largest key
+	(MAX, MIN only) */
+    /*private*/ final int[]		count;
+    /** slab center of the last projection */
+    /*private*/ int			center;
+    /** false if the accumulators and the ring can't be trusted (eg
+	new data arrived) */
+    /*private*/ boolean			valid= false;
+
+    /**
+     * @param ortho_dim the dimension orthogonal to the slices (0 for
+     * sagittal, 1 for coronal, 2 for transverse)
+     * @param width image size (the slice size, in display order)
+     * @param height image size
+     * @param mode MAX, MIN, or MEAN
+     * @param slices slab thickness; an even number is rounded up
+     * (the slab is centered on the current slice)
+     */
+    public SlabProjection( Data3DVolume volume, int ortho_dim, int width, int height,
+			   int mode, int slices) {
+
+	if( mode != MAX && mode != MIN && mode != MEAN)
+	    throw new IllegalArgumentException( "invalid projection mode: " + mode);
+	if( slices < 1)
+	    throw new IllegalArgumentException( "invalid slab thickness: " + slices);
+	this.volume= volume;
+	this.ortho_dim= ortho_dim;
+	this.width= width;
+	this.height= height;
+	this.mode= mode;
+	n_slices= ( 0 == ortho_dim ? volume.getXSize() :
+		    1 == ortho_dim ? volume.getYSize() : volume.getZSize());
+	half= slices / 2;
+	thickness= 2 * half + 1;
+	ring= new byte[ thickness][ width * height];
+	acc= new int[ width * height];
+	count= ( MEAN == mode) ? null : new int[ width * height];
+    }
+
+    final public int getMode() { return mode; }
+
+    /** @return the slab thickness (slices) */
+    final public int getThickness() { return thickness; }
+
+    /** Forgets what was read so far: the next projection reads the
+	whole slab again (eg because new data arrived). */
+    final public void invalidate() { valid= false; }
+
+    /**
+     * Computes the projection of the slab centered on slice
+     * 'new_center', and requests the download of its missing slices.
+     *
+     * @param world position of the slab center (for the downloads)
+     * @param dest where to put the image (in display order)
+     * @param consumer where to send the sliceDataUpdated
+     * notification (can be null)
+     * @param consumer_slice_no argument for sliceDataUpdated
+     */
+    final public void project( Point3Dfloat world, int new_center, byte[] dest,
+			       SliceImageProducer consumer, int consumer_slice_no) {
+
+	if( new_center < 0 || new_center >= n_slices) {
+	    java.util.Arrays.fill( dest, (byte)0);
+	    valid= false;
+	    return;
+	}
+	if( valid && Math.abs( new_center - center) < thickness) {
+	    final int direction= new_center > center ? 1 : -1;
+	    while( center != new_center) {
+		center += direction;
+		_step( direction, center, ( center == new_center) ? dest : null);
+	    }
+	}
+	else {
+	    center= new_center;
+	    _full( center, dest);
+	}
+	valid= true;
+	if( DEBUG) System.out.println( this + " : at " + center);
+	volume.requestSlab( ortho_dim, center - half, center + half, world,
+			    consumer, consumer_slice_no);
+    }
+
+    /** Reads the whole slab centered on slice c. */
+    final /*private*/ void _full( final int c, final byte[] dest) {
+
+	final int lo= Math.max( 0, c - half);
+	final int hi= Math.min( n_slices - 1, c + half);
+	_parallelRows( new WorkerPool.Body() {
+		public void run( int first, int last) {
+		    for( int s= lo; s <= hi; ++s) {
+			final byte[] slot= ring[ _slot( s)];
+			volume.getSliceRows( ortho_dim, s, first, last, slot, first * width);
+			_toKeys( slot, first * width, last * width);
+		    }
+		    for( int i= first * width, end= last * width; i < end; ++i) {
+			_recompute( i, lo, hi);
+			if( null != dest)
+			    dest[ i]= _output( i, hi - lo + 1);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Moves the slab by one slice.
+     *
+     * @param direction +1 or -1
+     * @param c the new slab center
+     * @param dest where to put the image (null if not needed yet)
+     */
+    final /*private*/ void _step( int direction, int c, final byte[] dest) {
+
+	// the slice entering the slab, and the one leaving it: they
+	// share a ring slot
+	final int entering= c + direction * half;
+	final int leaving= entering - direction * thickness;
+	final boolean entering_in= entering >= 0 && entering < n_slices;
+	final boolean leaving_in= leaving >= 0 && leaving < n_slices;
+	final byte[] slot= ring[ _slot( entering)];
+	final int lo= Math.max( 0, c - half);
+	final int hi= Math.min( n_slices - 1, c + half);
+
+	_parallelRows( new WorkerPool.Body() {
+		public void run( int first, int last) {
+		    final byte[] row= new byte[ width];
+		    for( int r= first; r < last; ++r) {
+			if( entering_in) {
+			    volume.getSliceRows( ortho_dim, entering, r, r + 1, row, 0);
+			    _toKeys( row, 0, width);
+			}
+			for( int x= 0, i= r * width; x < width; ++x, ++i) {
+			    final int old_key= 0xFF & slot[ i];
+			    final int new_key= 0xFF & row[ x];
+			    slot[ i]= row[ x];
+			    if( MEAN == mode) {
+				acc[ i] += ( entering_in ? new_key : 0) - ( leaving_in ? old_key : 0);
+			    }
+			    else {
+				if( entering_in) {
+				    if( new_key > acc[ i]) {
+					acc[ i]= new_key;
+					count[ i]= 1;
+				    }
+				    else if( new_key == acc[ i])
+					++count[ i];
+				}
+				if( leaving_in && old_key == acc[ i] && 0 == --count[ i])
+				    // the last one holding the extreme is gone
+				    _recompute( i, lo, hi);
+			    }
+			    if( null != dest)
+				dest[ i]= _output( i, hi - lo + 1);
+			}
+		    }
+		}
+	    });
+    }
+
+    /** Sets the accumulators of pixel i from the ring slices lo ... hi. */
+    final /*private*/ void _recompute( int i, int lo, int hi) {
+
+	if( MEAN == mode) {
+	    int sum= 0;
+	    for( int s= lo; s <= hi; ++s)
+		sum += 0xFF & ring[ _slot( s)][ i];
+	    acc[ i]= sum;
+	    return;
+	}
+	int best= -1, n= 0;
+	for( int s= lo; s <= hi; ++s) {
+	    final int key= 0xFF & ring[ _slot( s)][ i];
+	    if( key > best) {
+		best= key;
+		n= 1;
+	    }
+	    else if( key == best)
+		++n;
+	}
+	acc[ i]= best;
+	count[ i]= n;
+    }
+
+    /** @return the image value of pixel i, for a slab of n slices */
+    final /*private*/ byte _output( int i, int n) {
+
+	switch( mode) {
+	case MEAN:
+	    return (byte)( ( acc[ i] + n / 2) / n);
+	case MIN:
+	    return (byte)~acc[ i];
+	default:
+	    return (byte)acc[ i];
+	}
+    }
+
+    /** Converts voxel values to keys, in place: the keys are what
+	gets maximized (MIN just maximizes the inverted values). */
+    final /*private*/ void _toKeys( byte[] data, int from, int to) {
+
+	if( MIN != mode)
+	    return;
+	for( int i= from; i < to; ++i)
+	    data[ i]= (byte)~data[ i];
+    }
+
+    final /*private*/ int _slot( int slice) {
+
+	final int r= slice % thickness;
+	return r < 0 ? r + thickness : r;
+    }
+
+    final /*private*/ void _parallelRows( WorkerPool.Body body) {
+	WorkerPool.getShared().parallelFor( height, Math.max( 1, GRAIN_PIXELS / Math.max( 1, width)), 
+					    body);
+    }
+
+    public String toString() {
+	return "SlabProjection[dim=" + ortho_dim + ",mode=" + mode + 
+	    ",slices=" + thickness + "]";
+    }
+
+}
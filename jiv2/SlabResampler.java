@@ -0,0 +1,292 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+/**
+ * Copies (resamples) "hyperslabs" of a volume file into a
+ * <code>VoxelStore</code>, in the common sampling, following a
+ * <code>VolumeHeader.ResampleTable</code>.
+ * <p>
+ * Along each dimension, the resample table maps each file voxel to
+ * a range of common voxels. For a given slab this becomes a "copy
+ * plan": a list of runs of common voxels that all get their value
+ * from the same file voxel. When a file voxel maps to several
+ * common voxels, the one value is repeated (replicate-fill). When
+ * consecutive file voxels map one-to-one to consecutive common
+ * voxels, the data is copied as a block (<code>putRow</code> straight
+ * from the slab). Each output row is built once and stored in all
+ * the rows that replicate it. The rows are shared out between the
+ * processors (see <code>WorkerPool</code>). This works for any file
+ * dimension order and any voxel steps.
+ * <p>
+ * If the table maps several file voxels to the same common voxel,
+ * the last one wins. This gives the same result as copying the slab
+ * voxel by voxel in file order.
+ *
+ * @version $Id$
+ */
+public final class SlabResampler {
+
+    /** a slab is split into parts of about this many (output) voxels */
+    /*private*/ static final int 	PARALLEL_GRAIN= 64 * 1024;
+
+    /** first index is the canonical dimension (0 for x, etc) */
+    /*private*/ final int[][]		map_start;
+    /*private*/ final int[][]		map_end;
+    /** dim_perm[c] is the file position of canonical dimension c */
+    /*private*/ final int[]		dim_perm;
+    /** length of the output rows (x) */
+    /*private*/ final int		row_length;
+
+    /** plans of the 1 voxel thick slabs, indexed by canonical
+	dimension and file voxel (filled in as needed) */
+    /*private*/ final Plan[][]		single_plans;
+    /** the last plan made for a thicker slab, per canonical dimension */
+    /*private*/ final Plan[]		last_plans= new Plan[ 3];
+
+    /** a row buffer for each thread */
+    /*private*/ final ThreadLocal	row_buffers= new ThreadLocal() {
+	    protected Object initialValue() { return new byte[ row_length]; }
+	};
+
+    /**
+     * @param table maps the file voxels to the common voxels
+     * @param file_sampling the sampling of the file (for its
+     * dimension order)
+     */
+    public SlabResampler( VolumeHeader.ResampleTable table,
+			  VolumeHeader file_sampling) {
+
+	map_start= table.start;
+	map_end= table.end;
+	dim_perm= file_sampling.getDimPermutation();
+	single_plans= new Plan[ 3][];
+	for( int c= 0; c < 3; ++c)
+	    single_plans[ c]= new Plan[ map_start[ c].length];
+	int length= 1;
+	for( int i= 0; i < map_end[ 0].length; ++i)
+	    length= Math.max( length, map_end[ 0][ i] + 1);
+	row_length= length;
+    }
+
+    /**
+     * Saves a slab.
+     *
+     * @param slab the "hyperslab" data
+     * @param start slab start voxels (in file dim order)
+     * @param size slab length along each dim (in file order)
+     * @param voxels where to save it
+     */
+    final public void save( final byte[] slab, int[] start, int[] size,
+			    final VoxelStore voxels) {
+
+	final Plan x_plan= _getPlan( 0, start[ dim_perm[ 0]], size[ dim_perm[ 0]]);
+	final Plan y_plan= _getPlan( 1, start[ dim_perm[ 1]], size[ dim_perm[ 1]]);
+	final Plan z_plan= _getPlan( 2, start[ dim_perm[ 2]], size[ dim_perm[ 2]]);
+	if( 0 == x_plan.n_runs || 0 == y_plan.n_runs || 0 == z_plan.n_runs)
+	    return;
+
+	// distance between consecutive slab voxels, by file position
+	final int[] file_stride= { size[ 1] * size[ 2], size[ 2], 1 };
+	final int x_stride= file_stride[ dim_perm[ 0]];
+	final int y_stride= file_stride[ dim_perm[ 1]];
+	final int z_stride= file_stride[ dim_perm[ 2]];
+	// a row can be copied as-is if x is the fastest varying in the file
+	final boolean x_contiguous= 1 == x_stride;
+	final boolean x_single= 1 == x_plan.n_out;
+
+	// each task is one (z run, y run) pair: one output row, stored
+	// as many times as the runs are long
+	final int n_tasks= z_plan.n_runs * y_plan.n_runs;
+	long out_voxels= (long)z_plan.n_out * y_plan.n_out * x_plan.n_out;
+	int grain= (int)Math.max( 1, PARALLEL_GRAIN * (long)n_tasks / out_voxels);
+
+	WorkerPool.getShared().parallelFor( n_tasks, grain, new WorkerPool.Body() {
+		public void run( int first, int last) {
+
+		    if( x_single) {
+			// (eg a slab orthogonal to x) rows of 1 voxel are
+			// not worth a row copy
+			final int x= x_plan.out[ 0];
+			final int x_offset= x_plan.src[ 0] * x_stride;
+			final int[] y_out= y_plan.out, y_len= y_plan.len, y_src= y_plan.src;
+			for( int task= first, zr= first / y_plan.n_runs, yr= first % y_plan.n_runs;
+			     task < last; ++task) {
+			    final int z_base= z_plan.src[ zr] * z_stride + x_offset;
+			    final int z_end= z_plan.out[ zr] + z_plan.len[ zr];
+			    final byte value= slab[ z_base + y_src[ yr] * y_stride];
+			    if( 1 == y_len[ yr] && 1 == z_plan.len[ zr])
+				voxels.set( x, y_out[ yr], z_plan.out[ zr], value);
+			    else
+				for( int z= z_plan.out[ zr]; z < z_end; ++z)
+				    for( int y= y_out[ yr]; y < y_out[ yr] + y_len[ yr]; ++y)
+					voxels.set( x, y, z, value);
+			    if( ++yr == y_plan.n_runs) {
+				yr= 0;
+				++zr;
+			    }
+			}
+			return;
+		    }
+		    final byte[] row= (byte[])row_buffers.get();
+		    for( int task= first; task < last; ++task) {
+			final int zr= task / y_plan.n_runs;
+			final int yr= task % y_plan.n_runs;
+			final int base= z_plan.src[ zr] * z_stride + y_plan.src[ yr] * y_stride;
+			final int z_end= z_plan.out[ zr] + z_plan.len[ zr];
+			final int y_end= y_plan.out[ yr] + y_plan.len[ yr];
+
+			for( int p= 0; p < x_plan.n_pieces; ++p) {
+			    final int r0= x_plan.piece_first[ p];
+			    final int r1= x_plan.piece_first[ p + 1];
+			    final int x= x_plan.out[ r0];
+			    byte[] src;
+			    int src_offset, length;
+			    if( x_contiguous && x_plan.piece_direct[ p]) {
+				// one-to-one: straight from the slab
+				src= slab;
+				src_offset= base + x_plan.src[ r0];
+				length= r1 - r0;
+			    }
+			    else {
+				src= row;
+				src_offset= 0;
+				length= 0;
+				for( int r= r0; r < r1; ++r) {
+				    final byte value= slab[ base + x_plan.src[ r] * x_stride];
+				    for( int i= x_plan.len[ r]; i > 0; --i)
+					row[ length++]= value;
+				}
+			    }
+			    for( int z= z_plan.out[ zr]; z < z_end; ++z)
+				for( int y= y_plan.out[ yr]; y < y_end; ++y)
+				    voxels.putRow( x, y, z, src, src_offset, length);
+			}
+		    }
+		}
+	    });
+    }
+
+    /** @return the plan for file voxels first...first+count-1 along
+	canonical dimension c */
+    final /*private*/ Plan _getPlan( int c, int first, int count) {
+
+	synchronized( last_plans) {
+	    if( 1 == count) {
+		Plan[] plans= single_plans[ c];
+		if( null == plans[ first])
+		    plans[ first]= new Plan( map_start[ c], map_end[ c], first, 1);
+		return plans[ first];
+	    }
+	    Plan plan= last_plans[ c];
+	    if( null == plan || plan.first != first || plan.count != count)
+		last_plans[ c]= plan= new Plan( map_start[ c], map_end[ c], first, count);
+	    return plan;
+	}
+    }
+
+
+    /**
+     * The copy plan of a range of file voxels, along one dimension:
+     * runs of output voxels that get the same file voxel, in
+     * increasing (output) order. The runs are grouped into "pieces"
+     * of adjacent output voxels.
+     */
+    /*private*/ static final class Plan {
+
+	final int	first;
+	final int	count;
+	int		n_runs;
+	/** first output voxel of each run */
+	int[]		out;
+	/** length of each run */
+	int[]		len;
+	/** file voxel of each run, relative to 'first' */
+	int[]		src;
+	/** total number of output voxels */
+	int		n_out;
+	int		n_pieces;
+	/** first run of each piece (plus an extra entry, n_runs) */
+	int[]		piece_first;
+	/** the piece's runs are 1 voxel long, and their file voxels consecutive */
+	boolean[]	piece_direct;
+
+	Plan( int[] map_start, int[] map_end, int first, int count) {
+
+	    this.first= first;
+	    this.count= count;
+	    int lo= Integer.MAX_VALUE, hi= -1;
+	    for( int in= first; in < first + count; ++in)
+		if( map_start[ in] <= map_end[ in]) {
+		    lo= Math.min( lo, map_start[ in]);
+		    hi= Math.max( hi, map_end[ in]);
+		}
+	    if( hi < lo) {
+		out= len= src= piece_first= new int[ 0];
+		piece_direct= new boolean[ 0];
+		return;
+	    }
+	    // which file voxel ends up in each output voxel (-1 if none)
+	    int[] owner= new int[ hi - lo + 1];
+	    for( int o= 0; o < owner.length; ++o)
+		owner[ o]= -1;
+	    for( int in= first; in < first + count; ++in)
+		for( int o= map_start[ in]; o <= map_end[ in]; ++o)
+		    owner[ o - lo]= in - first;
+
+	    out= new int[ owner.length];
+	    len= new int[ owner.length];
+	    src= new int[ owner.length];
+	    for( int o= 0; o < owner.length; ++o) {
+		if( owner[ o] < 0)
+		    continue;
+		++n_out;
+		if( n_runs > 0 && src[ n_runs - 1] == owner[ o] &&
+		    out[ n_runs - 1] + len[ n_runs - 1] == lo + o)
+		    ++len[ n_runs - 1];
+		else {
+		    out[ n_runs]= lo + o;
+		    len[ n_runs]= 1;
+		    src[ n_runs]= owner[ o];
+		    ++n_runs;
+		}
+	    }
+
+	    piece_first= new int[ n_runs + 1];
+	    piece_direct= new boolean[ n_runs];
+	    for( int r= 0; r < n_runs; ++r) {
+		if( 0 == r || out[ r - 1] + len[ r - 1] != out[ r]) {
+		    // a gap: new piece
+		    piece_first[ n_pieces]= r;
+		    piece_direct[ n_pieces]= 1 == len[ r];
+		    ++n_pieces;
+		}
+		else if( len[ r] != 1 || src[ r] != src[ r - 1] + 1)
+		    piece_direct[ n_pieces - 1]= false;
+	    }
+	    piece_first[ n_pieces]= n_runs;
+	}
+    }
+    // end of class Plan
+
+}
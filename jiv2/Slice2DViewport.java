@@ -48,7 +48,7 @@ import java.util.*;
  * @version $Id: Slice2DViewport.java,v 2.0 2010/02/21 11:20:41 bailey Exp $
  */
 abstract public class Slice2DViewport extends Panel 
-    implements PositionListener, PositionGenerator {
+    implements PositionListener, PositionGenerator, ImageChangeListener {
 
     /** For development/testing only. Should be set to false in
         production code. */
@@ -60,36 +60,25 @@ abstract public class Slice2DViewport extends Panel
     protected static final boolean DEBUG_A= false;
 
 
-    /** If true, all <code>update()</code> operations will be
-	double-buffered.  If false, only double-buffer the operations
-	that require clearing some viewport area.  This will speed up
-	a little the in-slice cursor movements (except those next to
-	the boundaries), but will produce a bit of cursor flickering,
-	which gets significantly worse as the scale factor increases. 
-    */
-    /*private*/ static final boolean ALWAYS_DOUBLE_BUFFER= true;
-
-    /** If true, the image will be prescaled using a
-	ReplicateScaleFilter (obtained via a call to
-	Image#getScaledInstance()). This should speed things up when
-	<code>scale_factor</code> and slice data don't change,
-	e.g. for in-plane cursor movements and pan operations.
-	BEWARE: there's a serious bug/memory-leak in
-	ReplicateScaleFilter -- the java process size grows to
-	ridiculous amounts (although the heap size reported by JVM
-	stays normal!).
+    /** If true, a zoomed-in image is drawn from tiles of its scaled
+	version, which are only scaled when they become visible, and
+	then reused (see ScaledTileCache) -- this speeds up the
+	redraws which don't change the slice data or the
+	<code>scale_factor</code>, e.g. pan operations.
 
 	If false, the built-in scaling capabilities of
-	Image#drawImage() will be used. However, this means that you
-	have no control on the actual scaling algo used (although
-	sun/jdk-based java implementations seem to use "replicate" as
-	the default scaling filter). 
-
-	TODO: currently, the entire image is zoomed up, even if only a
-	small portion of it will end up being displayed...  rewrite
-	the coordinate system handling to avoid that.  
+	Image#drawImage() will be used each time. However, this means
+	that you have no control on the actual scaling algo used
+	(although sun/jdk-based java implementations seem to use
+	"replicate" as the default scaling filter). 
+
+	(This replaces prescaling the whole image with a
+	ReplicateScaleFilter, via Image#getScaledInstance(): there's a
+	serious bug/memory-leak in ReplicateScaleFilter -- the java
+	process size grows to ridiculous amounts, although the heap
+	size reported by JVM stays normal!)
     */
-    /*private*/ static final boolean USE_SEPARATE_SCALE_FILTER= false;
+    /*private*/ static final boolean USE_TILE_CACHE= true;
 
     /** If true, use the "new" (Java 1.1) 
 	Image#drawImage( Image, 8xint, ...) methods for rendering the
@@ -114,6 +103,13 @@ abstract public class Slice2DViewport extends Panel
     public static final int BUTTON_MODIFIER_MASK= 
 	MouseEvent.SHIFT_MASK | MouseEvent.CTRL_MASK;
 
+    /** If true, the viewports created from now on paint the
+	BufferedImage of their image source, when it's a
+	DirectImageSource, instead of going through an ImageProducer
+	-- the pixels are then not copied on their way to the
+	screen. */
+    /*private*/ static boolean direct_rendering= false;
+
     /*private*/ static int MAX_SCALE_FACTOR;
     static {
 	try {
@@ -143,6 +139,9 @@ abstract public class Slice2DViewport extends Panel
     */
     /** the ImageProducer for <code>original_image</code> */
     /*private*/ ImageProducer	 image_source;
+    /** the same, if <code>original_image</code> is its
+	BufferedImage (see direct_rendering); null otherwise */
+    /*private*/ DirectImageSource direct_source;
     /*private*/ VolumeHeader	 local_sampling;
     /** the title of the volume */
     /*private*/ String	 title;
@@ -150,8 +149,10 @@ abstract public class Slice2DViewport extends Panel
     /*private*/ int 		 max_slice_number; 
     /** the original (not common) step orthogonal to this viewport, in world coords */
     /*private*/ float 		 ortho_step; 
-    /** the Image to be displayed; NB: it's a multiframe image! */
-    /*private*/ Image		 original_image; 
+    /** the Image to be displayed; NB: it's a multiframe image! (or
+	the BufferedImage of direct_source, replaced when that one
+	changes its image) */
+    /*private*/ volatile Image	 original_image; 
     /*private*/ int		 original_image_width;
     /*private*/ int 	 	 original_image_height;
     public boolean 	 	 isNative;
@@ -191,9 +192,11 @@ abstract public class Slice2DViewport extends Panel
     /** how much should the original image be scaled for display */
     /*private*/ double    scale_factor;
 
-    /** Stores the pre-scaled slice image. Only used when
-        USE_SEPARATE_SCALE_FILTER is true (on). */
-    /*private*/ Image     scaled_image;
+    /** The scaled tiles of <code>original_image</code>, for the
+	current <code>scale_factor</code>. Only used when
+	USE_TILE_CACHE is true (on); resized along with
+	<code>vport_dims</code> (see doLayout). */
+    /*private*/ ScaledTileCache tile_cache= USE_TILE_CACHE ? new ScaledTileCache( 1) : null;
 
     /** Used for double-buffering the screen updates.  Initialized in
 	update(), which is the safest place to do it (because
@@ -205,6 +208,19 @@ abstract public class Slice2DViewport extends Panel
     /*private*/ Image 	 offscreen_buffer= null;
     /** @see #offscreen_buffer */
     /*private*/ Graphics offscreen_gc;
+    /** The viewport as last drawn, without the cursor and the
+	distance measurement (the "overlays"): moving these only
+	redraws the pixels they cover, copied from here, instead of
+	scaling the image again. Redrawn wherever the update isn't
+	just for the overlays; allocated and discarded along with
+	<code>offscreen_buffer</code>. */
+    /*private*/ Image 	 base_buffer= null;
+    /** @see #base_buffer */
+    /*private*/ Graphics base_gc;
+    /** the regions (Rectangle-s, in viewport coords) to be redrawn
+	from <code>base_buffer</code> by the next update(), because
+	an overlay moved in or out of them */
+    /*private*/ final Vector damage= new Vector();
     
     /** current cursor in LOCAL (i.e. rearranged for Coronal and Sagittal)
 	world coordinates (3D) */
@@ -264,7 +280,14 @@ abstract public class Slice2DViewport extends Panel
 	// coordinate it cares about...)
 	_firePositionEvent( PositionEvent.ALL);
 
-	original_image= createImage( image_source= ip);
+	image_source= ip;
+	if( direct_rendering && ip instanceof DirectImageSource) {
+	    direct_source= (DirectImageSource)ip;
+	    original_image= direct_source.getImage();
+	    direct_source.addImageChangeListener( this);
+	}
+	else
+	    original_image= createImage( ip);
 	max_slice_number= pos_listener_for_ip.getMaxSliceNumber();
 	ortho_step= pos_listener_for_ip.getOrthoStep();
 	original_image_width= original_image.getWidth( this);
@@ -305,6 +328,44 @@ abstract public class Slice2DViewport extends Panel
 		      AWTEvent.MOUSE_MOTION_EVENT_MASK );
     }
 
+    /** Chooses how the viewports created from now on get their
+	image (see direct_rendering). */
+    static final public void setDirectRendering( boolean on) {
+	direct_rendering= on;
+    }
+
+    static final public boolean isDirectRendering() { return direct_rendering; }
+
+    /** 
+     * Required by the ImageChangeListener interface (direct
+     * rendering only): the pixels are already in place, so just
+     * redraw them.
+     */
+    public void imageChanged( DirectImageSource source) {
+
+	// (a new image if the colormap changed)
+	original_image= source.getImage();
+	if( USE_TILE_CACHE)
+	    tile_cache.flush();
+	repaint();
+    }
+
+    /** 
+     * Overrides <code>Component#imageUpdate</code>, which gets the
+     * new frames of <code>original_image</code> (ImageProducer
+     * rendering): the scaled tiles of the old one are dropped before
+     * the repaint it requests.
+     *
+     * @see java.awt.Component#imageUpdate
+     */
+    public boolean imageUpdate( Image img, int infoflags, int x, int y, int w, int h) {
+
+	if( USE_TILE_CACHE && img == original_image &&
+	    0 != ( infoflags & ( FRAMEBITS | ALLBITS | SOMEBITS)))
+	    tile_cache.flush();
+	return super.imageUpdate( img, infoflags, x, y, w, h);
+    }
+
     /** 
      * Helper method: validates a suggested value for
      * <code>scaled_image_width</code>; if the value is too low or too
@@ -438,6 +499,7 @@ System.out.println("*****\n**processMouseMotionEvent");
 		    _updateVportCursorPosition();
 		    /* thread unsafe: */
 		    last_position.x= crt_position_x; last_position.y= crt_position_y;
+		    _updateVisibleRegion();
 		    repaint();
 		}
 		else {
@@ -564,6 +626,7 @@ System.out.println("*****\n**doZoom");
 	_updateVportCursorPosition();
 	// done with scaled_image_width; since we changed it, need to write it back!
 	this.scaled_image_width= scaled_image_width;
+	_updateVisibleRegion();
 
 	if( DEBUG)
 	    System.out.println( "image_origin:" + image_origin +
@@ -648,9 +711,7 @@ System.out.println("*****\n**doZoom");
     /** 2D (x,y) for the private internal use of _newCursor( float, float, bool) */
     /*private*/ Point __newCursor_new_vport_cursor= new Point();
     /** for the private internal use of _newCursor( float, float, bool) */
-    /*private*/ Rectangle2 __newCursor_bounds1= new Rectangle2();
-    /** for the private internal use of _newCursor( float, float, bool) */
-    /*private*/ Rectangle2 __newCursor_bounds2= new Rectangle2();
+    /*private*/ Vector __newCursor_old_damage= new Vector();
 
     /**
      * Gets called by <code>_newCursor( int, int)</code> or by
@@ -676,11 +737,13 @@ System.out.println("*****\n**doZoom");
 						  final boolean notify_others) {
 	if (DEBUG_TRACE) System.out.println("\t%_newCursor");
 
-	Rectangle2 old_bounds; 
+	// where the overlays are now (to be erased)
+	final Vector old_damage= __newCursor_old_damage;
+	old_damage.removeAllElements();
 	if (DEBUG_TRACE) System.out.println("\t%%_newCursor -> vport_cursor.getPosition()");
 	vport_cursor.getPosition( __newCursor_old_vport_cursor);
-	if (DEBUG_TRACE) System.out.println("\t%%_newCursor -> vport_cursor.getBounds()");
-	vport_cursor.getBounds( old_bounds= __newCursor_bounds1);
+	if (DEBUG_TRACE) System.out.println("\t%%_newCursor -> vport_cursor.getDamage()");
+	vport_cursor.getDamage( old_damage);
 
 	if (DEBUG_TRACE) System.out.println("\t%%_newCursor -> _local_cursor_setXY()");
 	_local_cursor_setXY(new_local_x,new_local_y);
@@ -688,9 +751,7 @@ System.out.println("*****\n**doZoom");
 	_local_cursor_setZ(new_local_z);
 
 	if( null != distance_origin) {
-	    Rectangle  distance_bounds= __newCursor_bounds2;
-	    distance_display.getBounds( distance_bounds);
-	    old_bounds.expandToInclude( distance_bounds);
+	    distance_display.getDamage( old_damage);
 	    distance_display.setLabel( _distanceInSlice( distance_origin, _local_cursor_get()));
 	}
 
@@ -708,19 +769,9 @@ System.out.println("*****\n**doZoom");
 	   distance might have changed)! */
 	if( null != distance_origin ||
 	    !__newCursor_old_vport_cursor.equals( __newCursor_new_vport_cursor) 
-	    ) {
-	    Rectangle2 new_bounds;
-	    vport_cursor.getBounds( new_bounds= __newCursor_bounds2);
-	    // specify a clip rectangle that just covers the old and new cursors!
-	    new_bounds.expandToInclude( old_bounds);
-
-	    if( null != distance_origin) {
-		Rectangle distance_bounds= __newCursor_bounds1;
-		distance_display.getBounds( distance_bounds);
-		new_bounds.expandToInclude( distance_bounds);
-	    }
-	    repaint( new_bounds.x, new_bounds.y, new_bounds.width, new_bounds.height);
-	}
+	    )
+	    // only redraw the lines of the old and new overlays
+	    _repaintOverlays( old_damage);
 	if (DEBUG_TRACE) System.out.println("\t%%_newCursor -> $_firePositionEvent()");
 	if( notify_others) {
 	    if (!isNative) {
@@ -789,9 +840,7 @@ System.out.println("*****\n**doZoom");
     }
 
     /** for the private internal use of _{startNew,clear}DistanceMeasurement() */
-    /*private*/ Rectangle __DistanceMeasurement_old_bounds= new Rectangle();
-    /** for the private internal use of _{startNew,clear}DistanceMeasurement() */
-    /*private*/ Rectangle2 __DistanceMeasurement_new_bounds= new Rectangle2();
+    /*private*/ Vector __DistanceMeasurement_old_damage= new Vector();
 
     /**
      * Marks the current cursor position as the origin (first point)
@@ -800,7 +849,8 @@ System.out.println("*****\n**doZoom");
      */
     final synchronized /*private*/ void _startNewDistanceMeasurement() {
 
-	Rectangle old_bounds= null;
+	final Vector old_damage= __DistanceMeasurement_old_damage;
+	old_damage.removeAllElements();
 
 	if( null == distance_display)
 	    // NB: this assumes that the default drawing font won't ever change.
@@ -808,7 +858,7 @@ System.out.println("*****\n**doZoom");
 
 	else if( distance_origin != null)
 	    // distance measurement mode is already on
-	    distance_display.getBounds( old_bounds= __DistanceMeasurement_old_bounds);
+	    distance_display.getDamage( old_damage);
 
 	distance_origin= new Point3Dfloat( _local_cursor_get()); 
 	distance_display.setLabel( 0f);
@@ -816,12 +866,7 @@ System.out.println("*****\n**doZoom");
 	if (DEBUG) System.out.println("****\n**_startNewDistanceMeasurement");
 	_updateVportCursorPosition();	
 	
-	Rectangle2 new_bounds; 
-	distance_display.getBounds( new_bounds= __DistanceMeasurement_new_bounds);
-	if( old_bounds != null)
-	    new_bounds.expandToInclude( old_bounds);
-
-	repaint( new_bounds.x, new_bounds.y, new_bounds.width, new_bounds.height);
+	_repaintOverlays( old_damage);
     }
 
     /**
@@ -833,13 +878,73 @@ System.out.println("*****\n**doZoom");
 	    // the distance measurement mode is already off
 	    return;
 
-	Rectangle bounds; 
-	distance_display.getBounds( bounds= __DistanceMeasurement_old_bounds);
+	final Vector old_damage= __DistanceMeasurement_old_damage;
+	old_damage.removeAllElements();
+	distance_display.getDamage( old_damage);
 	distance_origin= null; 
 
+	_repaintOverlays( old_damage);
+    }
+
+    /** for the private internal use of _repaintOverlays() */
+    /*private*/ Rectangle2 __repaintOverlays_bounds= new Rectangle2();
+
+    /**
+     * Requests the redraw, from <code>base_buffer</code>, of the
+     * regions where the overlays were (old_damage) and of the ones
+     * where they are now.
+     *
+     * @param old_damage Rectangle-s, as given by the getDamage
+     * method of the overlays
+     */
+    final /*private*/ void _repaintOverlays( Vector old_damage) {
+
+	final Rectangle2 bounds= __repaintOverlays_bounds;
+	synchronized( damage) {
+	    for( int i= 0; i < old_damage.size(); ++i)
+		damage.addElement( old_damage.elementAt( i));
+	    vport_cursor.getDamage( damage);
+	    if( null != distance_origin)
+		distance_display.getDamage( damage);
+	    bounds.setBounds( (Rectangle)damage.elementAt( 0));
+	    for( int i= 1; i < damage.size(); ++i)
+		bounds.expandToInclude( (Rectangle)damage.elementAt( i));
+	}
+	// AWT merges this with the requests still pending (see _takeDamage)
 	repaint( bounds.x, bounds.y, bounds.width, bounds.height);
     }
 
+    /**
+     * Empties <code>damage</code>.
+     *
+     * @return the damaged regions within 'clip', or null if there's
+     * more to redraw in 'clip' than the damaged regions (some other
+     * repaint was requested, eg for a new image)
+     */
+    final /*private*/ Rectangle[] _takeDamage( Rectangle clip) {
+
+	synchronized( damage) {
+	    if( damage.isEmpty())
+		return null;
+	    Rectangle2 bounds= new Rectangle2();
+	    bounds.setBounds( (Rectangle)damage.elementAt( 0));
+	    for( int i= 1; i < damage.size(); ++i)
+		bounds.expandToInclude( (Rectangle)damage.elementAt( i));
+	    Rectangle[] result= null;
+	    if( bounds.contains( clip)) {
+		Vector in_clip= new Vector( damage.size());
+		for( int i= 0; i < damage.size(); ++i) {
+		    Rectangle r= clip.intersection( (Rectangle)damage.elementAt( i));
+		    if( !r.isEmpty())
+			in_clip.addElement( r);
+		}
+		in_clip.copyInto( result= new Rectangle[ in_clip.size()]);
+	    }
+	    damage.removeAllElements();
+	    return result;
+	}
+    }
+
     /** for the private internal use of _updateVportCursorPosition() */
     /*private*/ Point __updateVportCursorPosition_vport_cursor= new Point( -1, -1);
 
@@ -873,6 +978,34 @@ System.out.println("*****\n**doZoom");
 	if (DEBUG_TRACE) System.out.println("\t\t#_updateVportCursorPosition DONE!\n");
     }
 
+    /**
+     * Tells the image source (if it cares) which part of the original
+     * image is currently visible in the viewport. It is a function of
+     * 'image_origin', 'scale_factor', and 'vport_dims', hence this
+     * method should be called everytime any of them changes.
+     */
+    final /*private*/ void _updateVisibleRegion() { 
+
+	if( !( image_source instanceof VisibleRegionListener))
+	    return;
+
+	// in original image coord space; 'last' is inclusive
+	int first_x= (int)Math.floor( -image_origin.x / scale_factor);
+	int last_x= (int)Math.ceil( (vport_dims.width - image_origin.x) / scale_factor) - 1;
+	int first_y= (int)Math.floor( -image_origin.y / scale_factor);
+	int last_y= (int)Math.ceil( (vport_dims.height - image_origin.y) / scale_factor) - 1;
+	first_x= Math.max( 0, first_x);
+	first_y= Math.max( 0, first_y);
+	last_x= Math.min( original_image_width - 1, last_x);
+	last_y= Math.min( original_image_height - 1, last_y);
+
+	Rectangle region= ( first_x > last_x || first_y > last_y) ? 
+	    // panned out of sight
+	    new Rectangle() :
+	    new Rectangle( first_x, first_y, last_x - first_x + 1, last_y - first_y + 1);
+	((VisibleRegionListener)image_source).visibleRegionChanged( this, region);
+    }
+
     /** for the private internal use of _world2viewport() */
     /*private*/ Point3Dint __world2viewport_voxel= new Point3Dint();
 
@@ -908,9 +1041,6 @@ System.out.println("*****\n**doZoom");
 	if (DEBUG_TRACE) System.out.println("\t\t\t&_world2viewport DONE!\n");
     }
 					    
-    /** for the private internal use of paint() */
-    /*private*/ int __paint_old_scaled_image_width= -1;
-
     /**
      * Called by AWT when screen (re)drawing is required; it should be
      * able to redraw everything (e.g. for situations when the window
@@ -929,154 +1059,125 @@ System.out.println("*****\n**doZoom");
 	    System.out.println( "    image_origin: " + image_origin +
 				", scaled_image_width: " + scaled_image_width);	
 	}
-	// for speed, use stack variables instead of the instance fields:
-	final Point image_origin= this.image_origin;
-	final int scaled_image_width= this.scaled_image_width;
-
-	if( USE_SEPARATE_SCALE_FILTER) {
-
-	    /* optimization: don't build a new scale filter (that's what
-	       getScaledInstance does...) unless necessary */
-	    if( null == scaled_image || 
-		scaled_image_width != __paint_old_scaled_image_width
-		) {
-		scaled_image= original_image.getScaledInstance( scaled_image_width, -1, 
-								Image.SCALE_REPLICATE);
-		__paint_old_scaled_image_width= scaled_image_width;
-	    }
-	}
-	// Note: no need to clip explicitly, as AWT will do it for us anyway 
-	// (i.e. won't allow us to draw outside our area, and in this case 
-	// the clip window is our entire drawing area anyway...)
-
-	if( USE_SEPARATE_SCALE_FILTER) {
-
-	    if( USE_NEW_DRAW_IMAGE) {
-		final int scaled_image_height= this.scaled_image_height;
-		gr.drawImage( scaled_image, 
-			      image_origin.x, image_origin.y,
-			      image_origin.x+scaled_image_width, 
-			      image_origin.y+scaled_image_height,
-			      0, 0, scaled_image_width, scaled_image_height, null);
-	    }
-	    else {
-		gr.drawImage( scaled_image, image_origin.x, image_origin.y, null);
-	    }
-	}
-	else {
-	    if( USE_NEW_DRAW_IMAGE)
-		gr.drawImage( original_image, 
-			      image_origin.x, image_origin.y,
-			      image_origin.x+scaled_image_width, 
-			      image_origin.y+scaled_image_height,
-			      0, 0, original_image_width, original_image_height, null);
-	    else
-		gr.drawImage( original_image, image_origin.x, image_origin.y,
-			      scaled_image_width, scaled_image_height, null);
-	}
-
-	vport_cursor.draw( gr);
-	if( null != distance_origin)
-	    distance_display.draw( gr);
+	_redraw( gr, false);
 
 	// TODO: enable this if you add any lightweight components to this Container!
 	if( false) super.paint( gr);
     }
 
     /**
-     * Wrapper around <code>paint(Graphics)</code>; implements the
-     * double-buffering. Assumes that 'offscreen_buffer' and
-     * 'offscreen_gc' are properly initialized (right size, etc).
+     * Called by AWT when screen redrawing/updating is required (and
+     * in response to <code>repaint()</code> requests by the
+     * application). It can safely assume that whatever it draw before
+     * it's still there (i.e. didn't somehow get erased).
      *
      * @param gr The screen graphics context to draw on.  
      */
-    /*private*/ final void _doubleBufferedPaint( Graphics gr) {  
-
-	paint( offscreen_gc);
+    final public void update( Graphics gr) { 
 
-	if( USE_NEW_DRAW_IMAGE) 
-	    gr.drawImage( offscreen_buffer, 
-			  0, 0, vport_dims.width, vport_dims.height,
-			  0, 0, vport_dims.width, vport_dims.height, null);
-	else
-	    gr.drawImage( offscreen_buffer, 0, 0, null);
+	if( DEBUG) { 
+	    System.out.println( this+"*** update( " + gr + " )");
+	    System.out.println( "    getClipBounds: " + gr.getClipBounds());
+	    System.out.println( "    vport_dims: " + vport_dims);
+	}
+	_redraw( gr, true);
     }
 
     /**
-     * Called by AWT when screen redrawing/updating is required (and
-     * in response to <code>repaint()</code> requests by the
-     * application). It can safely assume that whatever it draw before
-     * it's still there (i.e. didn't somehow get erased).
+     * Draws the viewport in the clip window of 'gr', double-buffered:
+     * if only the overlays moved (see _repaintOverlays), only the
+     * regions they cover are redrawn, copied from
+     * <code>base_buffer</code>; otherwise, the image is drawn into
+     * <code>base_buffer</code> first.
      *
      * @param gr The screen graphics context to draw on.  
+     * @param overlays_only false to redraw the image anyway
      */
-    final public void update( Graphics gr) { 
+    /*private*/ final void _redraw( Graphics gr, boolean overlays_only) {  
 
 	// for speed, use stack variables instead of the instance fields:
 	final Dimension vport_dims= this.vport_dims; 
-	final Point image_origin= this.image_origin;
 	// for unclear reasons, sometimes this call returns 'null' 
 	// the first time when update() is invoked...
-	final Rectangle clip= gr.getClipBounds();
-	if( DEBUG) { 
-	    System.out.println( this+"*** update( " + gr + " )");
-	    System.out.println( "    getClipBounds: " + clip);
-	    System.out.println( "    vport_dims: " + vport_dims);
-	}
-	boolean offscreen_buffer_cleared= false;
+	Rectangle clip= gr.getClipBounds();
+	if( null == clip)
+	    clip= new Rectangle( 0, 0, vport_dims.width, vport_dims.height);
+
 	if( null == offscreen_buffer) {
 	    offscreen_buffer= createImage( vport_dims.width, vport_dims.height);
 	    offscreen_gc= offscreen_buffer.getGraphics();
-	    offscreen_buffer_cleared= true;
+	    if( offscreen_gc instanceof Graphics2D)
+		/* otherwise a line clipped to a damaged region isn't
+		   always drawn on the same pixels as the whole line */
+		((Graphics2D)offscreen_gc).setRenderingHint( RenderingHints.KEY_STROKE_CONTROL,
+							     RenderingHints.VALUE_STROKE_PURE);
+	    base_buffer= createImage( vport_dims.width, vport_dims.height);
+	    base_gc= base_buffer.getGraphics();
 	}
-	/* the logic here may be a bit obscure: this test figures out if
-	   we actually need to clear some viewport area or not. */
-	if( clip == null || 
-	    ( clip.x == 0 && clip.y == 0 && 
-	      clip.width == vport_dims.width && clip.height == vport_dims.height ) ||
-	    /* optimization: see if the clip rectangle extends outside the 
-	       scaled image (otherwise no need to clear first, nor to dbl-buffer) */
-	    clip.x < image_origin.x || 
-	    (clip.x+clip.width) > (image_origin.x+scaled_image_width) ||
-	    clip.y < image_origin.y || 
-	    (clip.y+clip.height) > (image_origin.y+scaled_image_height)
-	    ) {
-	    
-	    if( clip != null) 
-		offscreen_gc.setClip( clip);
-	    else 
-		offscreen_gc.setClip( 0, 0, vport_dims.width, vport_dims.height);
-
-	    if( !offscreen_buffer_cleared) {
-		// clear the viewport
-		if( true) {
-		    /* MUSING: the java API docs on Graphics#clearRect say that:
-		       "the background color of offscreen images may be system dependent"
-		       can this be a problem?? (TODO: test it on different platforms)
-		    */
-		    // this should be faster than the other alternative ...
-		    offscreen_gc.clearRect( 0, 0, vport_dims.width, vport_dims.height);
-		}
-		else {
-		    offscreen_gc.setColor( getBackground());
-		    offscreen_gc.fillRect( 0, 0, vport_dims.width, vport_dims.height); 
-		}
-	    }
-	    _doubleBufferedPaint( gr);
-	    return;
-	}
-	if( ALWAYS_DOUBLE_BUFFER) {
-	    if( clip != null) 
-		offscreen_gc.setClip( clip);
-	    else 
-		offscreen_gc.setClip( 0, 0, vport_dims.width, vport_dims.height);
-	    _doubleBufferedPaint( gr);
+	Rectangle[] regions= overlays_only ? _takeDamage( clip) : null;
+	if( null == regions) {
+	    base_gc.setClip( clip);
+	    /* MUSING: the java API docs on Graphics#clearRect say that:
+	       "the background color of offscreen images may be system dependent"
+	       can this be a problem?? (TODO: test it on different platforms)
+	    */
+	    base_gc.clearRect( clip.x, clip.y, clip.width, clip.height);
+	    _paintImage( base_gc);
+	    regions= new Rectangle[] { clip };
 	}
-	else {
-	    paint( gr);
+	if( DEBUG) System.out.println( "    regions: " + regions.length);
+
+	for( int i= 0; i < regions.length; ++i) {
+	    final Rectangle r= regions[ i];
+	    offscreen_gc.setClip( r.x, r.y, r.width, r.height);
+	    offscreen_gc.drawImage( base_buffer, 0, 0, null);
+	    vport_cursor.draw( offscreen_gc);
+	    if( null != distance_origin)
+		distance_display.draw( offscreen_gc);
+
+	    if( USE_NEW_DRAW_IMAGE) 
+		gr.drawImage( offscreen_buffer, 
+			      r.x, r.y, r.x + r.width, r.y + r.height,
+			      r.x, r.y, r.x + r.width, r.y + r.height, null);
+	    else {
+		Graphics region_gr= gr.create( r.x, r.y, r.width, r.height);
+		region_gr.drawImage( offscreen_buffer, -r.x, -r.y, null);
+		region_gr.dispose();
+	    }
 	}
     }
 
+    /**
+     * Draws the (scaled) image, without the overlays.
+     *
+     * @param gr The graphics context to draw on.  
+     */
+    /*private*/ final void _paintImage( Graphics gr) { 
+
+	// for speed, use stack variables instead of the instance fields:
+	final Point image_origin= this.image_origin;
+	final int scaled_image_width= this.scaled_image_width;
+	final int scaled_image_height= this.scaled_image_height;
+
+	// Note: no need to clip explicitly, as AWT will do it for us anyway 
+	// (i.e. won't allow us to draw outside our area, and in this case 
+	// the clip window is our entire drawing area anyway...)
+
+	if( USE_TILE_CACHE)
+	    // only the visible tiles are drawn (and scaled, if needed)
+	    tile_cache.draw( gr, original_image, original_image_width, original_image_height,
+			     image_origin, scaled_image_width, scaled_image_height, this);
+	else if( USE_NEW_DRAW_IMAGE)
+	    gr.drawImage( original_image, 
+			  image_origin.x, image_origin.y,
+			  image_origin.x+scaled_image_width, 
+			  image_origin.y+scaled_image_height,
+			  0, 0, original_image_width, original_image_height, null);
+	else
+	    gr.drawImage( original_image, image_origin.x, image_origin.y,
+			  scaled_image_width, scaled_image_height, null);
+    }
+
     /**
      * Called by AWT (e.g. when the viewport/window size changed).
      * Recomputes the image position and dimension (scale factor) in
@@ -1106,8 +1207,16 @@ System.out.println("*****\n**doZoom");
 	    offscreen_gc.dispose();	// good practice...
 	    offscreen_gc= null;
 	    offscreen_buffer= null;
+	    base_gc.dispose();
+	    base_gc= null;
+	    base_buffer= null;
 	    // a new buffer will be allocated in update() ...
 	}
+	if( USE_TILE_CACHE)
+	    // enough for the viewport, and as much again around it (for panning)
+	    tile_cache.setMaxTiles( 2 * 
+				    ( new_vport_dims.width / ScaledTileCache.TILE_SIZE + 2) *
+				    ( new_vport_dims.height / ScaledTileCache.TILE_SIZE + 2));
 
 	final double old_scale_factor= scale_factor;
 	
@@ -1169,6 +1278,7 @@ System.out.println("*****\n**doZoom");
 
 	// changed image_origin & scale_factor, so need to call this:
 	_updateVportCursorPosition();
+	_updateVisibleRegion();
 
 	if( DEBUG) {
 	    System.out.println( "New values: " + " vport_dims: " + vport_dims);
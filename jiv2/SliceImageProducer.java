@@ -24,6 +24,7 @@ package jiv2;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.util.*;
 
 /**
  * An <code>ImageProducer</code> that provides the
@@ -31,13 +32,15 @@ import java.awt.image.*;
  * data. The orientation-specific functionality is in its 3 direct 
  * subclasses: <code>TransverseSliceImageProducer</code>, 
  * <code>CoronalSliceImageProducer</code>, and 
- * <code>SagittalSliceImageProducer</code>. 
+ * <code>SagittalSliceImageProducer</code>; arbitrary planes are
+ * done by <code>ObliqueSliceImageProducer</code>.
  *
  * @author Chris Cocosco, Lara Bailey (bailey@bic.mni.mcgill.ca)
  * @version $Id: SliceImageProducer.java,v 2.0 2010/02/21 11:20:41 bailey Exp $
  */
 public abstract class SliceImageProducer extends MemoryImageSource 
-    implements PositionListener, ColormapListener {
+    implements PositionListener, ColormapListener, VisibleRegionListener,
+	       DirectImageSource {
 
     protected static final boolean DEBUG= false;
     protected static final boolean DEBUG_TRACE= false;
@@ -59,6 +62,19 @@ public abstract class SliceImageProducer extends MemoryImageSource
 	For efficiency, the same array is then reused over and over again
 	(since it's always the right size, guaranteed). */
     protected byte[] slice_data;
+    /** visible part of the image, as reported by each viewer
+	(Rectangle-s, indexed by viewer) */
+    protected Hashtable visible_regions= new Hashtable();
+    /** the thick-slab projection shown instead of the plain slice
+	(null if none) */
+    protected SlabProjection projection;
+    /** how fast we're moving through the slices (for the prefetches) */
+    /*private*/ final ScrollTracker scroll_tracker= new ScrollTracker();
+    /** slice_data and colormap, as a BufferedImage (see getImage);
+	null until asked for, and after a colormap change */
+    /*private*/ BufferedImage direct_image;
+    /** ImageChangeListener-s of direct_image */
+    /*private*/ final Vector image_listeners= new Vector();
 
     protected SliceImageProducer( int default_slice, 
 				  Point3Dfloat world,
@@ -88,6 +104,7 @@ public abstract class SliceImageProducer extends MemoryImageSource
 	this.slice_height= slice_height;
 	slice_data= default_slice_data;
 	this.isNative= isNative;
+	data_volume.addProducer( this);
     }
 
     /** overrides MemoryImageSource (who's implementation does nothing) 
@@ -142,8 +159,102 @@ public abstract class SliceImageProducer extends MemoryImageSource
     synchronized public void colormapChanged( ColormapEvent e ) {
 
 	colormap= e.getColormap();
+	direct_image= null;
 	// send another frame (i.e. update the image)
 	newPixels( slice_data, colormap, 0, slice_width);
+	_fireImageChanged();
+    }
+
+    // required by the DirectImageSource interface
+    synchronized public BufferedImage getImage() {
+
+	if( null == direct_image) {
+	    // no copy: the raster is slice_data itself
+	    WritableRaster raster= 
+		Raster.createInterleavedRaster( new DataBufferByte( slice_data, slice_data.length),
+						slice_width, slice_height, slice_width, 1,
+						new int[] { 0 }, null);
+	    direct_image= new BufferedImage( colormap, raster, false, null);
+	}
+	return direct_image;
+    }
+
+    public void addImageChangeListener( ImageChangeListener listener) {
+	image_listeners.addElement( listener);
+    }
+
+    public void removeImageChangeListener( ImageChangeListener listener) {
+	image_listeners.removeElement( listener);
+    }
+
+    /** Tells the ImageChangeListener-s that slice_data (or the
+	colormap) changed; to be called after each newPixels(). */
+    protected final void _fireImageChanged() {
+
+	for( int i= 0; i < image_listeners.size(); ++i)
+	    ((ImageChangeListener)image_listeners.elementAt( i)).imageChanged( this);
+    }
+
+    final ScrollTracker getScrollTracker() { return scroll_tracker; }
+
+    /** @return the dimension orthogonal to the slices (0 for
+	sagittal, 1 for coronal, 2 for transverse), or -1 if they
+	aren't orthogonal to any */
+    protected int _getOrthoDim() { return -1; }
+
+    /**
+     * Switches to showing the thick-slab projection of the slices
+     * around the current one (or back to the plain slices), and
+     * updates the image.
+     *
+     * @param mode one of the SlabProjection modes (NONE for the
+     * plain slices)
+     * @param slices slab thickness (see SlabProjection)
+     * @exception IllegalArgumentException if this producer's slices
+     * aren't orthogonal to a volume dimension
+     */
+    synchronized public void setProjection( int mode, int slices) {
+
+	if( SlabProjection.NONE == mode)
+	    projection= null;
+	else {
+	    if( _getOrthoDim() < 0)
+		throw new IllegalArgumentException( "no slab projection for " + this);
+	    projection= new SlabProjection( data_volume, _getOrthoDim(), 
+					    slice_width, slice_height, mode, slices);
+	}
+	_getNewSliceData( true);
+    }
+
+    /**
+     * Gets slice crt_slice into slice_data from the SlicePlaneCache.
+     *
+     * @param consumer for the downloads that follow the display (see
+     * Data3DVolume.sliceShown); can be null
+     * @return false if it's not cached
+     */
+    protected final boolean _getCachedSlice( SliceImageProducer consumer) {
+
+	SlicePlaneCache cache= SlicePlaneCache.getShared();
+	if( null == cache || 
+	    !cache.get( data_volume, _getOrthoDim(), crt_slice, slice_data))
+	    return false;
+	data_volume.sliceShown( _getOrthoDim(), world, consumer);
+	return true;
+    }
+
+    /** Saves slice_data (slice crt_slice, which must be complete) in
+	the SlicePlaneCache. */
+    protected final void _cacheSlice() {
+
+	SlicePlaneCache cache= SlicePlaneCache.getShared();
+	if( cache != null)
+	    cache.put( data_volume, _getOrthoDim(), crt_slice, slice_data);
+    }
+
+    /** @return the SlabProjection mode shown (NONE for the plain slices) */
+    synchronized public int getProjectionMode() {
+	return null == projection ? SlabProjection.NONE : projection.getMode();
     }
 
     synchronized void sliceDataUpdated( int which_slice ) {
@@ -154,13 +265,57 @@ public abstract class SliceImageProducer extends MemoryImageSource
 	    System.out.println( "   crt_slice= " + crt_slice);
 	}
 	// did we already moved to another slice? 
-	if( which_slice == crt_slice ) 
-	    // if not, update screen!
-	    _getNewSliceData( false);
+	if( which_slice == crt_slice ) {
+	    // if not, update screen! (and, if the slice is still
+	    // incomplete -- e.g. downloaded by bricks -- keep
+	    // getting notified about its progress)
+	    if( projection != null)
+		// some slab slices have changed
+		projection.invalidate();
+	    _getNewSliceData( true);
+	}
    }
 
+    /** Shows the slice again, all of its voxels having changed (eg
+	the volume's display window, see Data3DVolume.setDisplayRange). */
+    synchronized void volumeDataChanged() {
+
+	if( projection != null)
+	    projection.invalidate();
+	_getNewSliceData( true);
+    }
+
     abstract /*private*/ void _getNewSliceData( boolean future_notification);
 
+    // required by the VisibleRegionListener interface
+    synchronized public void visibleRegionChanged( Object viewer, Rectangle region) {
+
+	Rectangle old_union= getVisibleRegion();
+	visible_regions.put( viewer, new Rectangle( region));
+	Rectangle new_union= getVisibleRegion();
+	// data for the newly exposed part may be missing
+	// (null means all of it was already requested)
+	if( old_union != null && !new_union.isEmpty() && !old_union.contains( new_union))
+	    _getNewSliceData( true);
+    }
+
+    /** @return the union of the regions visible in all the viewers,
+	or null if that's not known (i.e. assume all the image is needed) */
+    synchronized public Rectangle getVisibleRegion() {
+
+	Rectangle result= null;
+	for( Enumeration e= visible_regions.elements(); e.hasMoreElements(); ) {
+	    Rectangle r= (Rectangle)e.nextElement();
+	    if( r.isEmpty())
+		continue;
+	    result= (null == result) ? new Rectangle( r) : result.union( r);
+	}
+	if( null == result && !visible_regions.isEmpty())
+	    // all the viewers are scrolled away from the image
+	    return new Rectangle();
+	return result;
+    }
+
 
     public String toString(){
 	if (DEBUG)
@@ -0,0 +1,151 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.util.*;
+
+/**
+ * A memory cache of extracted slice planes, shared by all the panels,
+ * so that going back to a slice seen recently (eg flicking between
+ * two slices to compare them) doesn't extract it from the volume
+ * again. The planes are kept as they are given to the image
+ * producers (in display order, before colormapping -- the colormap
+ * is applied further down the AWT image pipeline, so the same plane
+ * serves any colormap). Only complete slices are cached: their data
+ * can't change anymore.
+ * <p>
+ * The entries are keyed by volume, orientation and slice number, and
+ * the least recently used ones are dropped when the total size goes
+ * over the limit.
+ *
+ * @version $Id$
+ */
+public final class SlicePlaneCache {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    /** default size limit, in bytes */
+    public static final long		DEFAULT_MAX_SIZE= 32L << 20;
+
+    /** the cache used by all the panels (null if none) */
+    /*private*/ static SlicePlaneCache	shared= new SlicePlaneCache( DEFAULT_MAX_SIZE);
+
+    /** size limit, in bytes */
+    /*private*/ final long		max_size;
+    /** total size of the planes, in bytes */
+    /*private*/ long			total;
+    /** the planes (byte[]), indexed by Key, least recently used first */
+    /*private*/ final LinkedHashMap	planes= new LinkedHashMap( 64, 0.75f, true);
+
+    /**
+     * @param max_size size limit, in bytes
+     */
+    public SlicePlaneCache( long max_size) {
+
+	if( max_size <= 0)
+	    throw new IllegalArgumentException( "invalid cache size: " + max_size);
+	this.max_size= max_size;
+    }
+
+    /** @return the cache used by all the panels, or null if caching
+	is off */
+    static synchronized final public SlicePlaneCache getShared() { return shared; }
+
+    static synchronized final public void setShared( SlicePlaneCache cache) {
+	shared= cache;
+    }
+
+    /**
+     * Copies a cached plane into 'dest'.
+     *
+     * @param volume the volume the slice is from
+     * @param ortho_dim the dimension orthogonal to the slice
+     * @param slice slice number (common sampling)
+     * @return false if the plane is not in the cache
+     */
+    synchronized final public boolean get( Data3DVolume volume, int ortho_dim, int slice,
+					   byte[] dest) {
+
+	byte[] plane= (byte[])planes.get( new Key( volume, ortho_dim, slice));
+	if( null == plane || plane.length != dest.length)
+	    return false;
+	System.arraycopy( plane, 0, dest, 0, plane.length);
+	return true;
+    }
+
+    /** Saves (a copy of) a complete plane; arguments as for get. */
+    synchronized final public void put( Data3DVolume volume, int ortho_dim, int slice,
+					byte[] plane) {
+
+	if( plane.length > max_size)
+	    return;
+	byte[] old= (byte[])planes.put( new Key( volume, ortho_dim, slice), plane.clone());
+	total += plane.length - ( null == old ? 0 : old.length);
+	for( Iterator i= planes.values().iterator(); total > max_size && i.hasNext(); ) {
+	    total -= ((byte[])i.next()).length;
+	    i.remove();
+	}
+	if( DEBUG) System.out.println( this);
+    }
+
+    /** Drops all the planes of a volume. */
+    synchronized final public void remove( Data3DVolume volume) {
+
+	for( Iterator i= planes.entrySet().iterator(); i.hasNext(); ) {
+	    Map.Entry entry= (Map.Entry)i.next();
+	    if( ((Key)entry.getKey()).volume == volume) {
+		total -= ((byte[])entry.getValue()).length;
+		i.remove();
+	    }
+	}
+    }
+
+    synchronized public String toString() {
+	return "SlicePlaneCache[" + planes.size() + " planes, " + total + "/" + max_size + " bytes]";
+    }
+
+
+    /*private*/ static final class Key {
+
+	/*private*/ final Data3DVolume	volume;
+	/*private*/ final int		ortho_dim;
+	/*private*/ final int		slice;
+
+	Key( Data3DVolume volume, int ortho_dim, int slice) {
+	    this.volume= volume;
+	    this.ortho_dim= ortho_dim;
+	    this.slice= slice;
+	}
+
+	public boolean equals( Object o) {
+	    return ( o instanceof Key) && volume == ((Key)o).volume &&
+		ortho_dim == ((Key)o).ortho_dim && slice == ((Key)o).slice;
+	}
+
+	public int hashCode() {
+	    return System.identityHashCode( volume) ^ ( slice * 4 + ortho_dim);
+	}
+    }
+    // end of class Key
+
+}
@@ -59,6 +59,8 @@ static final boolean DEBUG= false;
 
     public final float getOrthoStep() { return data_volume.getZStep(); }
 
+    protected final int _getOrthoDim() { return 2; }
+
     synchronized public final void positionChangeDetected( PositionEvent e) {
 
 	
@@ -133,14 +135,21 @@ static final boolean DEBUG= false;
 	// reuse the existing slice_data array!
 //	if (DEBUG) System.out.println("_getNewSliceData -> data_volume.getTransverseSlice(..)");
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t!!_getNewSliceData -> ^data_volume.getTransverseSlice()");
-	data_volume.getTransverseSlice( world, crt_slice, slice_data, 
-					future_notification ? this : null );
+	if( projection != null)
+	    projection.project( world, crt_slice, slice_data,
+				future_notification ? this : null, crt_slice);
+	else if( !_getCachedSlice( future_notification ? this : null)
+		 && data_volume.getTransverseSlice( world, crt_slice, slice_data, 
+						    future_notification ? this : null ))
+	    // complete: worth keeping
+	    _cacheSlice();
 
 	// Send another frame (i.e. update the image);
 	// this version of MemoryImageSource::newPixels() will send the
 	// data presently found in 'slice_data' (it stores a ref internally)
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t!!_getNewSliceData -> newPixels()");
 	newPixels();
+	_fireImageChanged();
 
 	if (DEBUG_TRACE) System.out.println("\t\t\t\t\t!_getNewSliceData DONE!\n");
     }
@@ -181,6 +181,72 @@ public final class Util {
 	return input_stream;
     }
 
+    /** 
+	Opens only part of a (non-compressed) file: 'length' bytes,
+	starting at byte 'offset'. Over HTTP this sends a Range request;
+	if the server ignores it (and sends the whole file), the
+	leading bytes are skipped. Same notes as for openURL.
+
+	@return stream positioned at 'offset'; the caller should not
+	read more than 'length' bytes from it
+    */
+    public static final InputStream openURLRange( URL source_url,
+						  long offset,
+						  long length ) 
+	throws IOException, SecurityException  {
+
+	if( DEBUG ) { System.out.println( "Util::openURLRange( " + source_url +
+					  ", " + offset + ", " + length + " )"); }
+
+	if( source_url.toString().endsWith( ".gz")) 
+	    throw new IOException( source_url.toString() + 
+				   " : cannot read parts of a compressed file");
+
+	URLConnection url_connection= source_url.openConnection();
+	url_connection.setUseCaches( true);
+	boolean partial= false;
+	if( url_connection instanceof HttpURLConnection ) {
+	    HttpURLConnection http_conn= (HttpURLConnection)url_connection;
+	    http_conn.setRequestProperty( "Range", "bytes=" + offset + "-" + 
+					  (offset + length - 1));
+	    switch( http_conn.getResponseCode()) {
+	    case HttpURLConnection.HTTP_PARTIAL:
+		String range= http_conn.getHeaderField( "Content-Range");
+		if( range != null && !range.startsWith( "bytes " + offset + "-"))
+		    throw new IOException( source_url.toString() + 
+					   " : unexpected range " + range);
+		partial= true;
+		break;
+	    case HttpURLConnection.HTTP_OK:
+		break;
+	    default:
+		throw new IOException( source_url.toString() + " : "
+				       + http_conn.getResponseCode() + " " 
+				       + http_conn.getResponseMessage() );
+	    }
+	}
+
+	InputStream input_stream= url_connection.getInputStream();
+	if( !partial) {
+	    // got the whole file: skip to 'offset'
+	    long left= offset;
+	    while( left > 0) {
+		long skipped= input_stream.skip( left);
+		if( skipped <= 0) {
+		    // skip() can return 0 for reasons other than EOF...
+		    if( input_stream.read() < 0) {
+			input_stream.close();
+			throw new IOException( source_url.toString() + 
+					       " : premature end of data");
+		    }
+		    skipped= 1;
+		}
+		left -= skipped;
+	    }
+	}
+	return input_stream;
+    }
+
 
     /** @return the Properties object described by the file at
 	source_url; trailing whitespace is trimmed off the property
@@ -22,6 +22,7 @@
 package jiv2;
 
 import java.awt.*;
+import java.util.Vector;
 
 /* Note: currently this is _not_ thread safe... */
 
@@ -96,6 +97,19 @@ public final class ViewportCursor {
 	result.height= 2*END_OFFSET + 1;
     }
 
+    /**
+     * Unlike getBounds, only covers the cross-hair's lines (two
+     * thin rectangles), ie what needs redrawing when it moves.
+     *
+     * @param result where to add (<code>Rectangle</code>-s) the
+     * regions drawn by <code>draw</code>
+     */
+    final public void getDamage( Vector result) {
+
+	result.addElement( new Rectangle( x - END_OFFSET, y - 1, 2*END_OFFSET + 1, 3));
+	result.addElement( new Rectangle( x - 1, y - END_OFFSET, 3, 2*END_OFFSET + 1));
+    }
+
     /**
      * Draws a graphical cursor at the current cursor viewport
      * coordinates. Currently, the cursor is drawn as a cross-hair
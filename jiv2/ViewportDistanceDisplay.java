@@ -23,6 +23,7 @@
 package jiv2;
 
 import java.awt.*;
+import java.util.Vector;
 
 /* Note: currently this is _not_ thread safe... */
 
@@ -52,6 +53,9 @@ public final class ViewportDistanceDisplay {
     /*private*/ static final int     START_MARKER_RADIUS= 7;
     /** clearance (in pixels) of the text label from the start marker */
     /*private*/ static final int     LABEL_CLEARANCE= 4;
+    /** length (in pixels, along its longer axis) of the pieces of the
+	rubber band reported by <code>getDamage</code> */
+    /*private*/ static final int     DAMAGE_STEP= 16;
 
     /** viewport coordinates of the measurement start point ("origin") */
     /*private*/ Point 		     start;
@@ -125,11 +129,50 @@ public final class ViewportDistanceDisplay {
 	xtra_bounds.setBounds( _getLabelX(),
 			       start.y - font_metrics.getMaxAscent(),
 			       1 + _getLabelWidth(),
-			       1 + start.y + font_metrics.getMaxDescent()
+			       1 + font_metrics.getMaxAscent() + font_metrics.getMaxDescent()
 			       );
 	bounds.expandToInclude( xtra_bounds);
 	result.setBounds( bounds);
     }
+
+    /**
+     * Unlike getBounds, follows the rubber band: a slanted band
+     * gives a row of small rectangles along it instead of one large
+     * one, so that moving it only redraws the pixels around the
+     * lines.
+     *
+     * @param result where to add (<code>Rectangle</code>-s) the
+     * regions drawn by <code>draw</code>
+     */
+    final public void getDamage( Vector result) {
+
+	// optimization: use local ("stack") var-s for speed
+	final Point start= this.start;
+	final Point end= this.end;
+
+	result.addElement( new Rectangle( start.x - START_MARKER_RADIUS, 
+					  start.y - START_MARKER_RADIUS, 
+					  2*START_MARKER_RADIUS + 1, 
+					  2*START_MARKER_RADIUS + 1));
+	result.addElement( new Rectangle( _getLabelX(), 
+					  start.y - font_metrics.getMaxAscent(),
+					  1 + _getLabelWidth(),
+					  1 + font_metrics.getMaxAscent() + 
+					  font_metrics.getMaxDescent()));
+	final int dx= end.x - start.x;
+	final int dy= end.y - start.y;
+	final int pieces= 
+	    Math.max( 1, (Math.max( Math.abs( dx), Math.abs( dy)) + DAMAGE_STEP - 1) / DAMAGE_STEP);
+	// one pixel of margin around each piece, for the line's rasterization
+	for( int i= 0, x0= start.x, y0= start.y; i < pieces; ++i) {
+	    final int x1= start.x + dx * (i + 1) / pieces;
+	    final int y1= start.y + dy * (i + 1) / pieces;
+	    result.addElement( new Rectangle( Math.min( x0, x1) - 1, Math.min( y0, y1) - 1,
+					      Math.abs( x1 - x0) + 3, Math.abs( y1 - y0) + 3));
+	    x0= x1;
+	    y0= y1;
+	}
+    }
     
     /**
      * @param label new text label to be displayed
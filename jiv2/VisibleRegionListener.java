@@ -0,0 +1,45 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.awt.Rectangle;
+import java.util.*;
+
+/**
+ * Implemented by image sources that want to know which part of their
+ * image is actually visible on the screen (e.g. in order to only
+ * download the data for that part).
+ *
+ * @version $Id$
+ */
+public interface VisibleRegionListener extends EventListener {
+
+    /**
+     * @param viewer the component displaying the image (an image can
+     * be displayed by several viewers at the same time)
+     * @param region visible part of the image, in image coordinates
+     * (can be empty, but not null)
+     */
+    void visibleRegionChanged( Object viewer, Rectangle region);
+
+}
@@ -0,0 +1,317 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A local disk cache of complete volumes, already decompressed and
+ * resampled to the common sampling: opening the same data again
+ * skips both the download and the resampling.
+ * <p>
+ * The entries are content-addressed: an entry's file name is a
+ * digest of its key, which names the source file and its version
+ * (see <code>getValidator</code>) as well as the samplings -- so a
+ * changed file, or a different set of volumes, simply misses. When
+ * the total size goes over the limit, the least recently used
+ * entries are deleted.
+ * <p>
+ * An entry file holds the key, the volume size, then the voxels in
+ * (z,y,x) order, and their CRC-32.
+ *
+ * @version $Id$
+ */
+public final class VolumeCache {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    /** default size limit, in bytes */
+    public static final long		DEFAULT_MAX_SIZE= 1024L << 20;
+
+    /*private*/ static final String	EXTENSION= ".vcache";
+    /** extension of an entry being written (see put) */
+    /*private*/ static final String	PART_EXTENSION= EXTENSION + ".part";
+    /** a half-written entry not modified for this long (in ms) was
+	left behind by a run that died while writing it */
+    /*private*/ static final long	STALE_PART_AGE= 60L * 60 * 1000;
+
+    /** the cache used by all the volumes (null if none) */
+    /*private*/ static VolumeCache	shared;
+
+    /*private*/ final File		dir;
+    /** size limit, in bytes */
+    /*private*/ final long		max_size;
+
+    /**
+     * @param dir where the entries are kept (created if needed)
+     * @param max_size size limit, in bytes
+     */
+    public VolumeCache( File dir, long max_size) {
+
+	if( max_size <= 0)
+	    throw new IllegalArgumentException( "invalid cache size: " + max_size);
+	this.dir= dir;
+	this.max_size= max_size;
+    }
+
+    /** @return the cache used by all the volumes, or null if caching
+	is off (the default) */
+    static synchronized final public VolumeCache getShared() { return shared; }
+
+    static synchronized final public void setShared( VolumeCache cache) {
+	shared= cache;
+    }
+
+    /**
+     * Asks the server which version of a file it has, without
+     * downloading it (HEAD request).
+     *
+     * @return a string that changes whenever the file does (from its
+     * ETag, Last-Modified date and size), or null if the server gives
+     * none of these
+     */
+    static final public String getValidator( URL url)
+	throws IOException, SecurityException
+    {
+	URLConnection connection= url.openConnection();
+	connection.setUseCaches( false);
+	if( connection instanceof HttpURLConnection) {
+	    HttpURLConnection http_conn= (HttpURLConnection)connection;
+	    http_conn.setRequestMethod( "HEAD");
+	    if( http_conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+		throw new IOException( url + " : " + http_conn.getResponseCode() +
+				       " " + http_conn.getResponseMessage());
+	}
+	else
+	    // eg file: urls only know the size and date once "opened"
+	    connection.getInputStream().close();
+
+	String etag= connection.getHeaderField( "ETag");
+	long modified= connection.getLastModified();
+	String length= connection.getHeaderField( "Content-Length");
+	if( null == etag && 0 == modified && null == length)
+	    return null;
+	return etag + "," + modified + "," + length;
+    }
+
+    /**
+     * Fills 'voxels' from the cache entry for 'key'.
+     *
+     * @return false if there's no such entry (or it cannot be read
+     * completely, or its checksum is wrong), in which case the voxels
+     * read are cleared again
+     */
+    final public boolean get( String key, VoxelStore voxels) {
+
+	File file= _getFile( key);
+	int rows_read= 0;
+	try {
+	    if( !file.exists())
+		return false;
+	    DataInputStream in= new DataInputStream( new BufferedInputStream(
+		new FileInputStream( file), 64 * 1024));
+	    try {
+		if( !key.equals( in.readUTF()) ||
+		    in.readInt() != voxels.getXSize() ||
+		    in.readInt() != voxels.getYSize() ||
+		    in.readInt() != voxels.getZSize() )
+		    return false;
+		final int x_size= voxels.getXSize();
+		byte[] row= new byte[ x_size];
+		CRC32 crc= new CRC32();
+		try {
+		    for( int z= 0; z < voxels.getZSize(); ++z)
+			for( int y= 0; y < voxels.getYSize(); ++y) {
+			    in.readFully( row);
+			    crc.update( row);
+			    voxels.putRow( 0, y, z, row, 0, x_size);
+			    rows_read= z * voxels.getYSize() + y + 1;
+			}
+		    if( in.readLong() != crc.getValue() || in.read() != -1)
+			throw new IOException( "corrupt entry");
+		}
+		catch( IOException e) {
+		    _clearRows( voxels, rows_read);
+		    throw e;
+		}
+	    }
+	    finally {
+		in.close();
+	    }
+	    // it's the most recently used now
+	    file.setLastModified( System.currentTimeMillis());
+	    if( DEBUG) System.out.println( this + " : hit " + file);
+	    return true;
+	}
+	catch( IOException e) {
+	    System.err.println( this + " : cannot read " + file + " (" + e + ")");
+	}
+	catch( SecurityException e) {
+	    System.err.println( this + " : cannot read " + file + " (" + e + ")");
+	}
+	return false;
+    }
+
+    /**
+     * Saves 'voxels' as the cache entry for 'key', and evicts the
+     * least recently used entries if the cache got too large. Errors
+     * are not fatal (the entry is simply not saved).
+     */
+    final public void put( String key, VoxelStore voxels) {
+
+	File file= _getFile( key);
+	File tmp_file= null;
+	try {
+	    dir.mkdirs();
+	    // written under another name first, so that a half-written
+	    // entry is never found by get()
+	    tmp_file= File.createTempFile( "tmp", PART_EXTENSION, dir);
+	    DataOutputStream out= new DataOutputStream( new BufferedOutputStream(
+		new FileOutputStream( tmp_file), 64 * 1024));
+	    try {
+		out.writeUTF( key);
+		out.writeInt( voxels.getXSize());
+		out.writeInt( voxels.getYSize());
+		out.writeInt( voxels.getZSize());
+		final int x_size= voxels.getXSize();
+		byte[] row= new byte[ x_size];
+		CRC32 crc= new CRC32();
+		for( int z= 0; z < voxels.getZSize(); ++z)
+		    for( int y= 0; y < voxels.getYSize(); ++y) {
+			voxels.getRow( 0, y, z, row, 0, x_size);
+			crc.update( row);
+			out.write( row);
+		    }
+		out.writeLong( crc.getValue());
+	    }
+	    finally {
+		out.close();
+	    }
+	    file.delete();
+	    if( !tmp_file.renameTo( file))
+		throw new IOException( "cannot rename " + tmp_file);
+	    tmp_file= null;
+	    if( DEBUG) System.out.println( this + " : saved " + file);
+	}
+	catch( IOException e) {
+	    System.err.println( this + " : cannot save " + file + " (" + e + ")");
+	}
+	catch( SecurityException e) {
+	    System.err.println( this + " : cannot save " + file + " (" + e + ")");
+	}
+	finally {
+	    if( tmp_file != null)
+		tmp_file.delete();
+	}
+	_evict();
+    }
+
+    /** Zeroes the first 'count' rows (in (z,y) order) of 'voxels',
+	after a failed get */
+    static final /*private*/ void _clearRows( VoxelStore voxels, int count) {
+
+	for( int r= 0; r < count; ++r)
+	    voxels.fillRow( 0, r % voxels.getYSize(), r / voxels.getYSize(),
+			    voxels.getXSize(), (byte)0);
+    }
+
+    /** Deletes the half-written entries left behind by an earlier
+	run, then the least recently used entries until the total size
+	(including the entries being written) is within the limit. */
+    synchronized final /*private*/ void _evict() {
+
+	File[] entries= dir.listFiles( new FilenameFilter() {
+		public boolean accept( File dir, String name) {
+		    return name.endsWith( EXTENSION) || name.endsWith( PART_EXTENSION);
+		}
+	    });
+	if( null == entries)
+	    return;
+	final long now= System.currentTimeMillis();
+	long total= 0;
+	final long[] used= new long[ entries.length];
+	for( int i= 0; i < entries.length; ++i) {
+	    if( entries[ i].getName().endsWith( PART_EXTENSION)) {
+		if( now - entries[ i].lastModified() > STALE_PART_AGE && entries[ i].delete()) {
+		    if( DEBUG) System.out.println( this + " : deleted " + entries[ i]);
+		    entries[ i]= null;
+		    continue;
+		}
+		// (maybe still being written, by this or another run)
+		used[ i]= Long.MAX_VALUE;
+	    }
+	    else
+		used[ i]= entries[ i].lastModified();
+	    total += entries[ i].length();
+	}
+	// oldest first
+	Integer[] order= new Integer[ entries.length];
+	for( int i= 0; i < order.length; ++i)
+	    order[ i]= new Integer( i);
+	Arrays.sort( order, new Comparator() {
+		public int compare( Object a, Object b) {
+		    long diff= used[ ((Integer)a).intValue()] - used[ ((Integer)b).intValue()];
+		    return diff < 0 ? -1 : ( diff > 0 ? 1 : 0);
+		}
+	    });
+	for( int i= 0; i < order.length && total > max_size; ++i) {
+	    File entry= entries[ order[ i].intValue()];
+	    if( null == entry || used[ order[ i].intValue()] == Long.MAX_VALUE)
+		// (a deleted leftover, or one that can't be evicted yet)
+		continue;
+	    long length= entry.length();
+	    if( entry.delete()) {
+		total -= length;
+		if( DEBUG) System.out.println( this + " : evicted " + entry);
+	    }
+	}
+    }
+
+    /** @return the entry file of 'key' (named by the key's digest) */
+    final /*private*/ File _getFile( String key) {
+
+	byte[] digest;
+	try {
+	    digest= MessageDigest.getInstance( "SHA-1").digest( key.getBytes( "UTF-8"));
+	}
+	catch( Exception e) {
+	    // every Java platform has both of them...
+	    throw new RuntimeException( e.toString());
+	}
+	StringBuffer name= new StringBuffer();
+	for( int i= 0; i < digest.length; ++i) {
+	    name.append( Character.forDigit( ( digest[ i] >> 4) & 0xf, 16));
+	    name.append( Character.forDigit( digest[ i] & 0xf, 16));
+	}
+	return new File( dir, name.append( EXTENSION).toString());
+    }
+
+    public String toString() {
+	return "VolumeCache[" + dir + "]";
+    }
+
+}
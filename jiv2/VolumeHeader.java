@@ -39,12 +39,20 @@ public final class VolumeHeader {
     /*private*/ static final boolean 	DEBUG_INVERSE= false;
     /*private*/ static final boolean 	DEBUG_WV= false;
 
-static final boolean RETURN_0=true;
-static final boolean RETURN_MID=false;
-static final boolean RETURN_MID_OFFSET=false;
-
     /*private*/ static final boolean 	USE_MAX= false;
 
+    /** voxel types (see getVoxelType): unsigned 8bit (the default),
+	signed 16bit, unsigned 16bit, 32bit IEEE 754 float; the wider
+	ones are big-endian */
+    public static final int		TYPE_BYTE= 0;
+    public static final int		TYPE_SHORT= 1;
+    public static final int		TYPE_USHORT= 2;
+    public static final int		TYPE_FLOAT= 3;
+    /** the header "type" values, indexed by voxel type */
+    /*private*/ static final String[]	TYPE_NAMES= { "byte", "short", "ushort", "float" };
+    /** bytes per voxel, indexed by voxel type */
+    /*private*/ static final int[]	TYPE_SIZES= { 1, 2, 2, 4 };
+
     /*private*/ float start_x;
     /*private*/ float start_y;
     /*private*/ float start_z;
@@ -63,11 +71,17 @@ static final boolean RETURN_MID_OFFSET=false;
     /*private*/ float image_low;
     /*private*/ float image_high;
 
+    /** @see #getVoxelType */
+    /*private*/ int voxel_type;
+
     /*private*/ float[] dir_cosines;
 
     /*private*/ float[][] VOX2WORLD;
     /*private*/ float[][] WORLD2VOX;
 
+    /** ResampleTable-s already computed, indexed by common sampling */
+    /*private*/ final Hashtable resample_tables= new Hashtable();
+
 
     /** The default is the standard "MNI-ICBM-Talairach" (181x217x181)
 	   sampling. */
@@ -86,6 +100,7 @@ static final boolean RETURN_MID_OFFSET=false;
 
 	image_low=  0.0f;
 	image_high= 1.0f;
+	voxel_type= TYPE_BYTE;
 
 	dir_cosines= new float[] { 1, 0, 0, 0, 1, 0, 0, 0, 1 };
 	VOX2WORLD= new float[][] { {1, 0, 0, 0}, {0, 1, 0, 0}, {0, 0, 1, 0} };
@@ -107,6 +122,7 @@ static final boolean RETURN_MID_OFFSET=false;
 	System.arraycopy( src.dim_order, 0, (dim_order= new int[3]), 0, 3);
 	image_low=  src.image_low;
 	image_high= src.image_high;
+	voxel_type= src.voxel_type;
 	System.arraycopy( src.dir_cosines, 0, (dir_cosines= new float[9]), 0, 9);
 	System.arraycopy( src.VOX2WORLD, 0, (VOX2WORLD= new float[3][4]), 0, 3);
 	System.arraycopy( src.WORLD2VOX, 0, (WORLD2VOX= new float[3][4]), 0, 3);
@@ -200,6 +216,14 @@ static final boolean RETURN_MID_OFFSET=false;
 		    Float.isInfinite( image_high)   ) 
 		    throw new IOException( "invalid imagerange: infinite value (for the 32bit IEEE 754 floating point format)");
 	    }
+	    else if( key.equals( "type")) {
+		s1= values.nextToken();
+		for( voxel_type= 0; voxel_type < TYPE_NAMES.length; ++voxel_type)
+		    if( s1.equals( TYPE_NAMES[ voxel_type]))
+			break;
+		if( voxel_type == TYPE_NAMES.length)
+		    throw new IOException( "type : expected one of byte,short,ushort,float");
+	    }
 	    else if( key.equals( "xspace_direction_cosines")) {
 		s1= values.nextToken();
 		s2= values.nextToken();
@@ -278,6 +302,20 @@ static final boolean RETURN_MID_OFFSET=false;
     /** result in (canonical) x,y,z order ... */
     public final int[] getSizes() { return new int[] { size_x, size_y, size_z}; }
 
+    /** @return the type of the file's voxels: TYPE_BYTE (0..255,
+	mapped linearly to the imagerange), or one of the wider types
+	(TYPE_SHORT, TYPE_USHORT, TYPE_FLOAT), whose voxels are the
+	image values themselves -- the imagerange is then only the
+	initial display window (see WideVoxelData) */
+    public final int getVoxelType() { return voxel_type; }
+
+    /** @return the size in bytes of one file voxel */
+    public final int getBytesPerVoxel() { return TYPE_SIZES[ voxel_type]; }
+
+    /** @return the imagerange */
+    public final float getImageLow() { return image_low; }
+    public final float getImageHigh() { return image_high; }
+
 
     /* DimOrder and DimPermutation are one-to-one mappings between
        {0,1,2}; one is the inverse mapping of the other */
@@ -321,6 +359,36 @@ static final boolean RETURN_MID_OFFSET=false;
 	return result;
     }
 
+    /** @return (a copy of) the 3x4 affine matrix that converts voxel
+	coordinates (canonical order) to world coordinates */
+    public final float[][] getVoxelToWorld() { return _copyMatrix( VOX2WORLD); }
+
+    /** @return (a copy of) the 3x4 affine matrix that converts world
+	coordinates to voxel coordinates (canonical order) */
+    public final float[][] getWorldToVoxel() { return _copyMatrix( WORLD2VOX); }
+
+    final static /*private*/ float[][] _copyMatrix( float[][] m) {
+	float[][] result= new float[ m.length][];
+	for( int i= 0; i < m.length; ++i)
+	    result[ i]= (float[])m[ i].clone();
+	return result;
+    }
+
+    /** @return the 3x4 affine matrix that converts (continuous) voxel
+	coordinates of this sampling to voxel coordinates of 'other',
+	both in canonical order -- ie other.WORLD2VOX * VOX2WORLD */
+    public final double[][] getVoxelTransform( VolumeHeader other) {
+
+	double[][] result= new double[ 3][ 4];
+	for( int i= 0; i < 3; ++i) {
+	    for( int j= 0; j < 4; ++j)
+		for( int k= 0; k < 3; ++k)
+		    result[ i][ j] += (double)other.WORLD2VOX[ i][ k] * VOX2WORLD[ k][ j];
+	    result[ i][ 3] += other.WORLD2VOX[ i][ 3];
+	}
+	return result;
+    }
+
     public String toString() {
 
 	MultiLineStringBuffer buf= new MultiLineStringBuffer();
@@ -330,6 +398,7 @@ static final boolean RETURN_MID_OFFSET=false;
 	buf.append_line( "\t size: " + size_x +" "+ size_y +" "+ size_z); 
 	buf.append_line( "\t dim_order: " + Util.arrayToString( dim_order));
 	buf.append_line( "\t imagerange: " + image_low +" "+ image_high);
+	buf.append_line( "\t type: " + TYPE_NAMES[ voxel_type]);
 	buf.append_line( "\t dir_cosines: " + Util.arrayToString( dir_cosines));
 	buf.append_line( "\t VOX2WORLD: " + Util.arrayToString( VOX2WORLD));
 	buf.append_line( "\t WORLD2VOX: " + Util.arrayToString( WORLD2VOX));
@@ -476,56 +545,41 @@ static final boolean RETURN_MID_OFFSET=false;
      * ASSUMPTION: <code>common_sampling</code> should be the same, or
      * finer sampling than the file's -- ie the common step is never
      * larger than file's step.  
+     *
+     * The table is computed once per <code>common_sampling</code>,
+     * and shared by all the callers: it should not be modified.
      */
     public final ResampleTable getResampleTable( VolumeHeader common_sampling) {
 
-	int[] cs_sizes= common_sampling.getSizes();
-	int[] local_sizes= this.getSizes();
-
-	if (DEBUG) System.out.println("cs_sizes: "+Util.arrayToString(cs_sizes));
-	if (DEBUG) System.out.println("local_sizes: "+Util.arrayToString(local_sizes));
+	synchronized( resample_tables) {
+	    ResampleTable rt= (ResampleTable)resample_tables.get( common_sampling);
+	    if( null == rt) {
+		rt= _makeResampleTable( common_sampling);
+		resample_tables.put( common_sampling, rt);
+	    }
+	    return rt;
+	}
+    }
 
-	int cs_max_dim0= cs_sizes[0];
-	int cs_max_dim1= cs_sizes[1];
-	int cs_max_dim2= cs_sizes[2];
+    /** @see #getResampleTable */
+    /*private*/ final ResampleTable _makeResampleTable( final VolumeHeader common_sampling) {
 
-	ResampleTable rt= new ResampleTable( local_sizes);
-	int local_vox, last_vox;
+	final int[] cs_sizes= common_sampling.getSizes();
+	final int[] local_sizes= this.getSizes();
 
-	for( int dim= 0; dim < 3; ++dim) {
-	    local_vox= last_vox= -1;
-	    for( int cs_vox= 0; cs_vox < cs_sizes[ dim]; ++cs_vox) {
-
-		switch( dim) {
-		case 0 :
-		    local_vox= getThisXFromCommonX( cs_vox, cs_max_dim1, cs_max_dim2, common_sampling);
-		    break;
-		case 1 :
-		    local_vox= getThisYFromCommonY( cs_vox, cs_max_dim0, cs_max_dim2, common_sampling);
-		    break;
-		case 2 :
-		    local_vox= getThisZFromCommonZ( cs_vox, cs_max_dim0, cs_max_dim1, common_sampling);
-		    break;
-		}
-		if( local_vox < 0 || local_vox >= local_sizes[ dim] )
-		    continue;
+	if (DEBUG) System.out.println("cs_sizes: "+Util.arrayToString(cs_sizes));
+	if (DEBUG) System.out.println("local_sizes: "+Util.arrayToString(local_sizes));
 
-		//Whenever cs_vox maps to a higher local_vox, set rt.start and rt.end ...
-		// when cs_vox is increased but still maps to the same local_vox, just set rt.end
-		if( local_vox != last_vox) {
-		    // new voxel
+	final ResampleTable rt= new ResampleTable( local_sizes);
 
-		    rt.start[ dim][ local_vox]= cs_vox;
-		    rt.end[ dim][ local_vox]= cs_vox;
-		    last_vox= local_vox;
-		}
-		else {
-		    // start stays the same, end gets updated
-		    rt.end[ dim][ last_vox]= cs_vox;
+	// the 3 dimensions are independent of each other
+	WorkerPool.getShared().parallelFor( 3, 1, new WorkerPool.Body() {
+		public void run( int first, int last) {
+		    for( int dim= first; dim < last; ++dim)
+			_fillResampleTable( rt, dim, cs_sizes[ dim], local_sizes[ dim], 
+					    common_sampling);
 		}
-	    }// end for cs_vox++
-
-	}// end for dim++
+	    });
 
 	float css= common_sampling.step_x;
 	int[] d_o= this.getDimOrder();
@@ -542,118 +596,54 @@ static final boolean RETURN_MID_OFFSET=false;
 	return rt;
     }
 
-    private final int getThisXFromCommonX( int cs_vox, int cs_max_dim1, int cs_max_dim2, VolumeHeader common_sampling) {
-//System.out.println("converting common x ("+cs_vox+") into local x..");
-	Point3Dfloat world1= new Point3Dfloat();
-	Point3Dfloat world2= new Point3Dfloat();
-	Point3Dfloat world3= new Point3Dfloat();
-	Point3Dfloat world4= new Point3Dfloat();
-	Point3Dint voxel1= new Point3Dint();
-	Point3Dint voxel2= new Point3Dint();
-	Point3Dint voxel3= new Point3Dint();
-	Point3Dint voxel4= new Point3Dint();
-	common_sampling.voxel2world( world1, cs_vox, cs_max_dim1, cs_max_dim2);
-	common_sampling.voxel2world( world2, cs_vox, cs_max_dim1, 0);
-	common_sampling.voxel2world( world3, cs_vox, 0, cs_max_dim2);
-	common_sampling.voxel2world( world4, cs_vox, 0, 0);
-//System.out.println("\tworld1: "+world1+" world2: "+world2);
-//System.out.println("\tworld3: "+world3+" world4: "+world4);
-	this.world2voxel( voxel1, world1);
-	this.world2voxel( voxel2, world2);
-	this.world2voxel( voxel3, world3);
-	this.world2voxel( voxel4, world4);
-//System.out.println("\tvoxel1.x: "+voxel1.x+" voxel2.x: "+voxel2.x+" voxel3.x: "+voxel3.x+" voxel4.x: "+voxel4.x);
-	int min_x= Math.max( voxel1.x, voxel2.x);
-	min_x= Math.min( min_x, voxel3.x);
-	min_x= Math.min( min_x, voxel4.x);
-	int max_x= Math.max( voxel1.x, voxel2.x);
-	max_x= Math.max( max_x, voxel3.x);
-	max_x= Math.max( max_x, voxel4.x);
-//System.out.println("\tmin_x: "+min_x+" max_x:"+max_x+" return: "+((max_x-min_x)/2 + min_x));
-//	common_sampling.voxel2world( world1, cs_vox, 166, 108);
-//	this.world2voxel( voxel1, world1);
-if (RETURN_0)
-	return voxel4.x;
-else if (RETURN_MID)
-	return ((max_x-min_x)/2 + min_x);
-else if (RETURN_MID_OFFSET)
-	return ((max_x-min_x)/2 + min_x - 2);
-else
-	return voxel4.x;
-    }
-
-    private final int getThisYFromCommonY( int cs_vox, int cs_max_dim0, int cs_max_dim2, VolumeHeader common_sampling) {
-//System.out.println("converting common y ("+cs_vox+") into local y..");
-	Point3Dfloat world1= new Point3Dfloat();
-	Point3Dfloat world2= new Point3Dfloat();
-	Point3Dfloat world3= new Point3Dfloat();
-	Point3Dfloat world4= new Point3Dfloat();
-	Point3Dint voxel1= new Point3Dint();
-	Point3Dint voxel2= new Point3Dint();
-	Point3Dint voxel3= new Point3Dint();
-	Point3Dint voxel4= new Point3Dint();
-	common_sampling.voxel2world( world1, cs_max_dim0, cs_vox, cs_max_dim2);
-	common_sampling.voxel2world( world2, cs_max_dim0, cs_vox, 0);
-	common_sampling.voxel2world( world3, 0, cs_vox, cs_max_dim2);
-	common_sampling.voxel2world( world4, 0, cs_vox, 0);
-//System.out.println("\tworld1: "+world1+" world3: "+world3);
-//System.out.println("\tworld2: "+world2+" world4: "+world4);
-	this.world2voxel( voxel1, world1);
-	this.world2voxel( voxel2, world2);
-	this.world2voxel( voxel3, world3);
-	this.world2voxel( voxel4, world4);
-//System.out.println("\tvoxel1.y: "+voxel1.y+" voxel3.y: "+voxel3.y+";; voxel2.y: "+voxel2.y+" voxel4.y: "+voxel4.y);
-	int min_y= Math.min( voxel1.y, voxel2.y);
-	min_y= Math.min( min_y, voxel3.y);
-	min_y= Math.min( min_y, voxel4.y);
-	int max_y= Math.max( voxel1.y, voxel2.y);
-	max_y= Math.max( max_y, voxel3.y);
-	max_y= Math.max( max_y, voxel4.y);
-//System.out.println("\tmin_y: "+min_y+" max_y:"+max_y+" return: "+((max_y-min_y)/2 + min_y));
-//	common_sampling.voxel2world( world1, 121, cs_vox, 108);
-//	this.world2voxel( voxel1, world1);
-if (RETURN_0)
-	return voxel4.y;
-else if (RETURN_MID)
-	return ((max_y-min_y)/2 + min_y);
-else if (RETURN_MID_OFFSET)
-	return ((max_y-min_y)/2 + min_y - 5);
-else
-	return voxel4.y;
-    }
-    private final int getThisZFromCommonZ( int cs_vox, int cs_max_dim0, int cs_max_dim1, VolumeHeader common_sampling) {
-	Point3Dfloat world1= new Point3Dfloat();
-	Point3Dfloat world2= new Point3Dfloat();
-	Point3Dfloat world3= new Point3Dfloat();
-	Point3Dfloat world4= new Point3Dfloat();
-	Point3Dint voxel1= new Point3Dint();
-	Point3Dint voxel2= new Point3Dint();
-	Point3Dint voxel3= new Point3Dint();
-	Point3Dint voxel4= new Point3Dint();
-	common_sampling.voxel2world( world1, cs_max_dim0, cs_max_dim1, cs_vox);
-	common_sampling.voxel2world( world2, cs_max_dim0, 0, cs_vox);
-	common_sampling.voxel2world( world3, 0, cs_max_dim1, cs_vox);
-	common_sampling.voxel2world( world4, 0, 0, cs_vox);
-	this.world2voxel( voxel1, world1);
-	this.world2voxel( voxel2, world2);
-	this.world2voxel( voxel3, world3);
-	this.world2voxel( voxel4, world4);
-	int min_z= Math.min( voxel1.z, voxel2.z);
-	min_z= Math.min( min_z, voxel3.z);
-	min_z= Math.min( min_z, voxel4.z);
-	int max_z= Math.max( voxel1.z, voxel2.z);
-	max_z= Math.max( max_z, voxel3.z);
-	max_z= Math.max( max_z, voxel4.z);
-//	common_sampling.voxel2world( world4, 121, 166, cs_vox);
-//	this.world2voxel( voxel1, world1);
-if (RETURN_0)
-	return voxel4.z;
-else if (RETURN_MID)
-	return ((max_z-min_z)/2 + min_z);
-else if(RETURN_MID_OFFSET)
-	return ((max_z-min_z)/2 + min_z - 16);
-else
-	return voxel4.z;
+    /**
+     * Fills in the resample table along one dimension: common voxel
+     * cs_vox (with the other two coordinates at 0) is converted to
+     * world coordinates and back to a voxel of <code>this</code>
+     * sampling, directly with the VOX2WORLD and WORLD2VOX matrices
+     * (the arithmetic is the same as voxel2world and world2voxel do,
+     * so the result is too).
+     */
+    /*private*/ final void _fillResampleTable( ResampleTable rt, int dim,
+					       int cs_size, int local_size,
+					       VolumeHeader common_sampling) {
+
+	final float[][] V= common_sampling.VOX2WORLD;
+	final float[] W= WORLD2VOX[ dim];
+	final int[] start= rt.start[ dim];
+	final int[] end= rt.end[ dim];
+	// only one of the 3 voxel coordinates is not 0
+	int vx= 0, vy= 0, vz= 0;
+	int last_vox= -1;
+
+	for( int cs_vox= 0; cs_vox < cs_size; ++cs_vox) {
+
+	    switch( dim) {
+	    case 0: vx= cs_vox; break;
+	    case 1: vy= cs_vox; break;
+	    case 2: vz= cs_vox; break;
+	    }
+	    final float wx= V[0][0]*vx + V[0][1]*vy + V[0][2]*vz + V[0][3];
+	    final float wy= V[1][0]*vx + V[1][1]*vy + V[1][2]*vz + V[1][3];
+	    final float wz= V[2][0]*vx + V[2][1]*vy + V[2][2]*vz + V[2][3];
+	    final int local_vox= Math.round( W[0]*wx + W[1]*wy + W[2]*wz + W[3]);
+
+	    if( local_vox < 0 || local_vox >= local_size )
+		continue;
+
+	    //Whenever cs_vox maps to a higher local_vox, set rt.start and rt.end ...
+	    // when cs_vox is increased but still maps to the same local_vox, just set rt.end
+	    if( local_vox != last_vox) {
+		// new voxel
+		start[ local_vox]= cs_vox;
+		end[ local_vox]= cs_vox;
+		last_vox= local_vox;
+	    }
+	    else {
+		// start stays the same, end gets updated
+		end[ last_vox]= cs_vox;
+	    }
+	}
     }
 
 
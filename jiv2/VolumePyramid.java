@@ -0,0 +1,253 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * The downsampled copies ("pyramid levels") of a volume, used for
+ * showing a coarse preview of the slices that are not downloaded
+ * yet. The levels are downloaded coarsest first, and each one
+ * replaces the previous one -- but only where the real data hasn't
+ * arrived yet: a bit per file voxel records what was really
+ * downloaded.
+ * <p>
+ * Level 'f' has each f x f x f block of file voxels averaged into
+ * one voxel (the blocks at the far edges can be smaller), and is
+ * stored like the volume file itself (same dimension order, same
+ * compression) in <code>base/pyramid/fx.ext</code> -- eg
+ * <code>colin27/pyramid/8x.raw_byte.gz</code> for
+ * <code>colin27.raw_byte.gz</code>. See ChunkedVolumeWriter for
+ * making them.
+ *
+ * @version $Id$
+ */
+public final class VolumePyramid {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    /** the downsampling factors of the levels, coarsest first */
+    public static final int[]		FACTORS= { 8, 4, 2 };
+    /** subdirectory of the levels (within the slice directory) */
+    public static final String		DIRNAME= "pyramid";
+
+    /** the volume being previewed */
+    /*private*/ final Data3DVolume	volume;
+    /** eg http://www/foo/colin27 */
+    /*private*/ final String		base_url;
+    /** eg .raw_byte.gz */
+    /*private*/ final String		extension;
+    /** volume size, in file order */
+    /*private*/ final int[]		sizes;
+    /** one bit per file voxel: the real data is there already (null
+	once the previews are finished) */
+    /*private*/ long[]			loaded;
+    /** the slices shown while the previews are in progress, to be
+	refreshed after each level (DownloadScheduler.Waiter, indexed
+	by consumer) */
+    /*private*/ final Hashtable		waiters= new Hashtable();
+
+    /**
+     * @param volume where the previews go (see Data3DVolume._savePreview)
+     * @param base_url the volume URL, without its extension
+     * @param extension the volume URL extension
+     * @param file_sizes volume size, in file order
+     */
+    public VolumePyramid( Data3DVolume volume, String base_url, String extension,
+			  int[] file_sizes) {
+
+	this.volume= volume;
+	this.base_url= base_url;
+	this.extension= extension;
+	sizes= (int[])file_sizes.clone();
+	long count= (long)sizes[ 0] * sizes[ 1] * sizes[ 2];
+	loaded= new long[ (int)( (count + 63) >> 6)];
+    }
+
+    /** @return the size (in file order) of level 'factor' of a
+	volume of the given size */
+    static final public int[] getLevelSizes( int[] file_sizes, int factor) {
+
+	int[] result= new int[ 3];
+	for( int d= 0; d < 3; ++d)
+	    result[ d]= (file_sizes[ d] + factor - 1) / factor;
+	return result;
+    }
+
+    /** @return the file name of level 'factor', relative to the
+	slice directory */
+    static final public String getFileName( int factor, String extension) {
+	return DIRNAME + "/" + factor + "x" + extension;
+    }
+
+    /** @return true once the previews are finished (or abandoned) */
+    synchronized final public boolean isFinished() { return null == loaded; }
+
+    /** Stops the previews: nothing gets written anymore. */
+    final public void finish() {
+
+	synchronized( this) {
+	    loaded= null;
+	}
+	synchronized( waiters) {
+	    waiters.clear();
+	}
+    }
+
+    /**
+     * Records that the real data of a slab is arriving. Must be
+     * called <em>before</em> the slab is saved, so that a preview
+     * never overwrites it.
+     *
+     * @param start slab start voxels (in file dim order)
+     * @param size slab length along each dim (in file order)
+     */
+    synchronized final public void setLoaded( int[] start, int[] size) {
+
+	if( null == loaded)
+	    return;
+	for( int i0= start[ 0]; i0 < start[ 0] + size[ 0]; ++i0)
+	    for( int i1= start[ 1]; i1 < start[ 1] + size[ 1]; ++i1) {
+		int index= (i0 * sizes[ 1] + i1) * sizes[ 2] + start[ 2];
+		for( int end= index + size[ 2]; index < end; ) {
+		    final int bits= Math.min( 64 - (index & 63), end - index);
+		    final long mask= ( 64 == bits ? -1L : ( (1L << bits) - 1) ) << (index & 63);
+		    loaded[ index >> 6] |= mask;
+		    index += bits;
+		}
+	    }
+    }
+
+    /** Registers a slice to be refreshed after each preview level. */
+    final public void addWaiter( SliceImageProducer consumer, int consumer_slice_no) {
+
+	synchronized( waiters) {
+	    if( !isFinished())
+		waiters.put( consumer, new DownloadScheduler.Waiter( consumer, consumer_slice_no));
+	}
+    }
+
+    /** Downloads a level, and saves it where the real data isn't
+	there yet.
+	@return false if the previews were finished meanwhile */
+    final public boolean load( int factor)
+	throws IOException, SecurityException
+    {
+	final int[] level_sizes= getLevelSizes( sizes, factor);
+	byte[] level= new byte[ level_sizes[ 0] * level_sizes[ 1] * level_sizes[ 2]];
+	URL url= new URL( base_url + "/" + getFileName( factor, extension));
+	InputStream in= Util.openURL( url);
+	try {
+	    ChunkedVolume._readFully( in, level);
+	}
+	finally {
+	    in.close();
+	}
+	if( DEBUG) System.out.println( url + " : loaded");
+
+	// the level, enlarged back to the full size, one plane at a time
+	final int plane_size= sizes[ 1] * sizes[ 2];
+	byte[] plane= new byte[ plane_size];
+	for( int i0= 0; i0 < sizes[ 0]; ++i0) {
+	    final int base0= (i0 / factor) * level_sizes[ 1];
+	    for( int i1= 0, i= 0; i1 < sizes[ 1]; ++i1) {
+		final int base= (base0 + i1 / factor) * level_sizes[ 2];
+		for( int i2= 0; i2 < sizes[ 2]; ++i2)
+		    plane[ i++]= level[ base + i2 / factor];
+	    }
+	    if( !_savePlane( i0, plane))
+		return false;
+	}
+
+	Vector to_notify;
+	synchronized( waiters) {
+	    to_notify= new Vector( waiters.values());
+	}
+	for( Enumeration e= to_notify.elements(); e.hasMoreElements(); )
+	    ((DownloadScheduler.Waiter)e.nextElement()).notifyConsumer();
+	return true;
+    }
+
+    /** Saves the parts of plane i0 (along the first file dimension)
+	that have no real data yet.
+	@return false if the previews are finished */
+    synchronized final /*private*/ boolean _savePlane( int i0, byte[] plane) {
+
+	if( null == loaded)
+	    return false;
+	final int plane_start= i0 * sizes[ 1] * sizes[ 2];
+	if( _isEmpty( plane_start, plane.length)) {
+	    // the usual case: nothing downloaded yet
+	    volume._savePreview( plane, new int[] { i0, 0, 0 },
+				 new int[] { 1, sizes[ 1], sizes[ 2] });
+	    return true;
+	}
+	// else: the runs of missing voxels, row by row
+	int[] start= new int[] { i0, 0, 0 };
+	int[] size= new int[] { 1, 1, 0 };
+	for( int i1= 0; i1 < sizes[ 1]; ++i1) {
+	    final int row_start= plane_start + i1 * sizes[ 2];
+	    for( int i2= 0; i2 < sizes[ 2]; ) {
+		if( _isLoaded( row_start + i2)) {
+		    ++i2;
+		    continue;
+		}
+		int end= i2 + 1;
+		while( end < sizes[ 2] && !_isLoaded( row_start + end))
+		    ++end;
+		byte[] run= new byte[ end - i2];
+		System.arraycopy( plane, i1 * sizes[ 2] + i2, run, 0, run.length);
+		start[ 1]= i1;
+		start[ 2]= i2;
+		size[ 2]= run.length;
+		volume._savePreview( run, start, size);
+		i2= end;
+	    }
+	}
+	return true;
+    }
+
+    final /*private*/ boolean _isLoaded( int index) {
+	return 0 != ( loaded[ index >> 6] & (1L << (index & 63)) );
+    }
+
+    /** @return true if none of voxels index ... index+count-1 is loaded */
+    final /*private*/ boolean _isEmpty( int index, int count) {
+
+	for( int end= index + count; index < end; ) {
+	    final int bits= Math.min( 64 - (index & 63), end - index);
+	    final long mask= ( 64 == bits ? -1L : ( (1L << bits) - 1) ) << (index & 63);
+	    if( 0 != ( loaded[ index >> 6] & mask))
+		return false;
+	    index += bits;
+	}
+	return true;
+    }
+
+    public String toString() {
+	return "VolumePyramid[" + base_url + "]";
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+/**
+ * Storage for the (common sampling) voxels of a
+ * <code>Data3DVolume</code>. Callers only see (x,y,z) voxel
+ * coordinates; the memory layout is up to the concrete subclass.
+ * <p>
+ * Only the primitives (<code>get</code>, <code>set</code>, and the
+ * row accessors) are abstract. The column accessor has a (slow)
+ * default implementation that subclasses are expected to override
+ * when their layout allows something better.
+ *
+ * @version $Id$
+ * @see FlatVoxelStore
+ */
+abstract public class VoxelStore {
+
+    protected final int x_size;
+    protected final int y_size;
+    protected final int z_size;
+
+    protected VoxelStore( int x_size, int y_size, int z_size) {
+
+	if( x_size <= 0 || y_size <= 0 || z_size <= 0)
+	    throw new IllegalArgumentException( "invalid volume size: " +
+						x_size + " " + y_size + " " + z_size);
+	this.x_size= x_size;
+	this.y_size= y_size;
+	this.z_size= z_size;
+    }
+
+    final public int getXSize() { return x_size; }
+
+    final public int getYSize() { return y_size; }
+
+    final public int getZSize() { return z_size; }
+
+    /** @return total number of voxels (can be larger than what fits
+	in an int!) */
+    final public long getVoxelCount() {
+	return (long)x_size * y_size * z_size;
+    }
+
+    abstract public byte get( int x, int y, int z);
+
+    abstract public void set( int x, int y, int z, byte value);
+
+    /** Copies <code>len</code> voxels of the (y,z) row, starting at
+	voxel x, into <code>dest</code> (starting at dest_offset). */
+    abstract public void getRow( int x, int y, int z,
+				 byte[] dest, int dest_offset, int len);
+
+    /** Copies <code>len</code> voxels from <code>src</code> (starting
+	at src_offset) into the (y,z) row, starting at voxel x. */
+    abstract public void putRow( int x, int y, int z,
+				 byte[] src, int src_offset, int len);
+
+    /** Sets <code>len</code> voxels of the (y,z) row, starting at
+	voxel x, to <code>value</code>. */
+    abstract public void fillRow( int x, int y, int z, int len, byte value);
+
+    /** Copies the whole (x,z) column (i.e. all the y-s, in increasing
+	order) into <code>dest</code>, starting at dest_offset.
+    */
+    public void getColumn( int x, int z, byte[] dest, int dest_offset) {
+
+	for( int y= 0; y < y_size; ++y)
+	    dest[ dest_offset + y]= get( x, y, z);
+    }
+
+    /** Releases whatever resources (other than heap memory) this
+	store is holding. The store should not be used afterwards. */
+    public void dispose() { /* nothing to do by default */ }
+
+}
@@ -0,0 +1,359 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+/**
+ * The voxels of a volume file with a wider voxel type than bytes
+ * (see VolumeHeader.getVoxelType), kept at their full precision (in
+ * file order), next to the volume's usual byte voxels. These are
+ * quantized from the full values through a "display window": the
+ * window's low end becomes 0, its high end 255. The window starts as
+ * the header's imagerange, and can be narrowed later (setWindow) to
+ * get the full 256 levels within a small range of values -- the
+ * volume's byte voxels are then quantized again from the values
+ * downloaded so far.
+ * <p>
+ * The 16bit voxels are quantized through a lookup table; the float
+ * ones are scaled one at a time (NaN-s become 0).
+ *
+ * @version $Id$
+ */
+public final class WideVoxelData {
+
+    /*private*/ static final boolean 	DEBUG= false;
+
+    /** the volume whose byte voxels we quantize (see
+	Data3DVolume._storeSlab) */
+    /*private*/ final Data3DVolume	volume;
+    /** one of VolumeHeader.TYPE_SHORT, TYPE_USHORT, TYPE_FLOAT */
+    /*private*/ final int		type;
+    /** volume size, in file order */
+    /*private*/ final int[]		sizes;
+    /** the file voxels (16bit types: their raw bits), in file order;
+	only one of them is allocated, depending on 'type' */
+    /*private*/ short[]			shorts;
+    /*private*/ float[]			floats;
+    /** one bit per file voxel: it's downloaded (its own lock: the
+	download threads don't lock 'this', see save) */
+    /*private*/ final long[]		loaded;
+
+    /** the display window (volatile: read without locking, while
+	setWindow is busy quantizing) */
+    /*private*/ volatile float		low;
+    /*private*/ volatile float		high;
+    /** 255 / (high - low) */
+    /*private*/ volatile float		scale;
+    /** the byte value of each 16bit pattern (16bit types only) */
+    /*private*/ byte[]			lut;
+    /** incremented by each window change: a slab quantized
+	meanwhile is quantized again (see save) */
+    /*private*/ volatile int		window_version;
+
+    /**
+     * @param volume where the byte voxels go
+     * @param type the file's voxel type (not TYPE_BYTE)
+     * @param file_sizes volume size, in file order
+     * @param low initial display window (image values)
+     * @param high idem
+     */
+    public WideVoxelData( Data3DVolume volume, int type, int[] file_sizes,
+			  float low, float high) {
+
+	this.volume= volume;
+	this.type= type;
+	sizes= (int[])file_sizes.clone();
+	final long count= (long)sizes[ 0] * sizes[ 1] * sizes[ 2];
+	if( count > Integer.MAX_VALUE - 8)
+	    throw new IllegalArgumentException( "volume too large for " +
+						VolumeHeader.TYPE_NAMES[ type] +
+						" voxels: " + count + " voxels");
+	switch( type) {
+	case VolumeHeader.TYPE_SHORT:
+	case VolumeHeader.TYPE_USHORT:
+	    shorts= new short[ (int)count];
+	    lut= new byte[ 1 << 16];
+	    break;
+	case VolumeHeader.TYPE_FLOAT:
+	    floats= new float[ (int)count];
+	    break;
+	default:
+	    throw new IllegalArgumentException( "not a wide voxel type: " + type);
+	}
+	loaded= new long[ (int)( (count + 63) >> 6)];
+	_setWindow( low, high);
+    }
+
+    /** @return the display window */
+    final public float getLow() { return low; }
+    final public float getHigh() { return high; }
+
+    /**
+     * Changes the display window, and quantizes again all the
+     * downloaded voxels. The volume's slice producers are not told
+     * (see Data3DVolume.setDisplayRange). The downloads go on
+     * meanwhile (see save).
+     *
+     * @param low image value that becomes 0
+     * @param high image value that becomes 255
+     */
+    synchronized final public void setWindow( float low, float high) {
+
+	_setWindow( low, high);
+	++window_version;
+	if( DEBUG) System.out.println( this + " : window " + low + " " + high);
+
+	/* the voxels saved from now on see the new window_version;
+	   the ones saved so far are in this copy */
+	final long[] loaded;
+	synchronized( this.loaded) {
+	    loaded= (long[])this.loaded.clone();
+	}
+	final int plane_size= sizes[ 1] * sizes[ 2];
+	byte[] plane= new byte[ plane_size];
+	for( int i0= 0; i0 < sizes[ 0]; ++i0) {
+	    final int plane_start= i0 * plane_size;
+	    if( _isEmpty( loaded, plane_start, plane_size))
+		continue;
+	    if( _isFull( loaded, plane_start, plane_size)) {
+		// the usual case: the whole plane is downloaded
+		_quantize( plane_start, plane, 0, plane_size);
+		volume._storeSlab( plane, new int[] { i0, 0, 0 },
+				   new int[] { 1, sizes[ 1], sizes[ 2] });
+		continue;
+	    }
+	    // else: the runs of downloaded voxels, row by row
+	    int[] start= new int[] { i0, 0, 0 };
+	    int[] size= new int[] { 1, 1, 0 };
+	    for( int i1= 0; i1 < sizes[ 1]; ++i1) {
+		final int row_start= plane_start + i1 * sizes[ 2];
+		for( int i2= 0; i2 < sizes[ 2]; ) {
+		    if( !_isLoaded( loaded, row_start + i2)) {
+			++i2;
+			continue;
+		    }
+		    int end= i2 + 1;
+		    while( end < sizes[ 2] && _isLoaded( loaded, row_start + end))
+			++end;
+		    byte[] run= new byte[ end - i2];
+		    _quantize( row_start + i2, run, 0, run.length);
+		    start[ 1]= i1;
+		    start[ 2]= i2;
+		    size[ 2]= run.length;
+		    volume._storeSlab( run, start, size);
+		    i2= end;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Keeps a downloaded slab, and saves its quantized copy in the
+     * volume (see Data3DVolume._storeSlab). Doesn't wait for
+     * setWindow: if the window changes while the slab is quantized,
+     * it's quantized (and saved) again.
+     *
+     * @param raw the file data of the slab (big-endian)
+     * @param start slab start voxels (in file dim order)
+     * @param size slab length along each dim (in file order)
+     */
+    final public void save( byte[] raw, int[] start, int[] size) {
+
+	final int len= size[ 2];
+	for( int i0= 0, s= 0; i0 < size[ 0]; ++i0)
+	    for( int i1= 0; i1 < size[ 1]; ++i1, s += len) {
+		final int index= ( (start[ 0] + i0) * sizes[ 1] + start[ 1] + i1) *
+		    sizes[ 2] + start[ 2];
+		// (the slabs don't overlap: no lock needed)
+		if( shorts != null)
+		    _decodeShorts( raw, s * 2, index, len);
+		else
+		    _decodeFloats( raw, s * 4, index, len);
+		_setLoaded( index, len);
+	    }
+	/* the voxels are marked as loaded before the window is read:
+	   either setWindow quantizes them again, or we see its new
+	   window_version */
+	byte[] slab= new byte[ size[ 0] * size[ 1] * size[ 2]];
+	int version;
+	do {
+	    version= window_version;
+	    for( int i0= 0, s= 0; i0 < size[ 0]; ++i0)
+		for( int i1= 0; i1 < size[ 1]; ++i1, s += len)
+		    _quantize( ( (start[ 0] + i0) * sizes[ 1] + start[ 1] + i1) *
+			       sizes[ 2] + start[ 2], slab, s, len);
+	    volume._storeSlab( slab, start, size);
+	} while( version != window_version);
+    }
+
+    /**
+     * @return the full value of file voxel (i0,i1,i2) (file order),
+     * or NaN if it's not downloaded yet, or outside the volume
+     */
+    final public float getValue( int i0, int i1, int i2) {
+
+	if( i0 < 0 || i0 >= sizes[ 0] || i1 < 0 || i1 >= sizes[ 1] ||
+	    i2 < 0 || i2 >= sizes[ 2])
+	    return Float.NaN;
+	final int index= ( i0 * sizes[ 1] + i1) * sizes[ 2] + i2;
+	synchronized( loaded) {
+	    if( !_isLoaded( loaded, index))
+		return Float.NaN;
+	}
+	if( null == shorts)
+	    return floats[ index];
+	return VolumeHeader.TYPE_SHORT == type ? shorts[ index] : shorts[ index] & 0xFFFF;
+    }
+
+    /** Copies 'len' big-endian 16bit voxels from raw[ offset...] to
+	shorts[ index...] */
+    final /*private*/ void _decodeShorts( byte[] raw, int offset, int index, int len) {
+
+	// for speed, use stack variables instead of the instance fields
+	final short[] shorts= this.shorts;
+	for( final int end= index + len; index < end; ++index, offset += 2)
+	    shorts[ index]= (short)( (raw[ offset] << 8) | (raw[ offset + 1] & 0xFF));
+    }
+
+    /** Copies 'len' big-endian floats from raw[ offset...] to
+	floats[ index...] */
+    final /*private*/ void _decodeFloats( byte[] raw, int offset, int index, int len) {
+
+	final float[] floats= this.floats;
+	for( final int end= index + len; index < end; ++index, offset += 4)
+	    floats[ index]= Float.intBitsToFloat( (raw[ offset] << 24) |
+						  ( (raw[ offset + 1] & 0xFF) << 16) |
+						  ( (raw[ offset + 2] & 0xFF) << 8) |
+						  (raw[ offset + 3] & 0xFF));
+    }
+
+    /** Quantizes file voxels index ... index+len-1 into
+	dest[ dest_offset...] */
+    final /*private*/ void _quantize( int index, byte[] dest, int dest_offset, int len) {
+
+	if( shorts != null) {
+	    final short[] shorts= this.shorts;
+	    final byte[] lut= this.lut;
+	    for( int i= 0; i < len; ++i)
+		dest[ dest_offset + i]= lut[ shorts[ index + i] & 0xFFFF];
+	    return;
+	}
+	final float[] floats= this.floats;
+	final float low= this.low;
+	final float scale= this.scale;
+	for( int i= 0; i < len; ++i) {
+	    // (NaN fails both comparisons)
+	    final float f= (floats[ index + i] - low) * scale + 0.5f;
+	    dest[ dest_offset + i]= (byte)( f >= 255f ? 255 : ( f > 0f ? (int)f : 0));
+	}
+    }
+
+    final /*private*/ void _setWindow( float low, float high) {
+
+	if( !( low <= high) || Float.isInfinite( low) || Float.isInfinite( high))
+	    throw new IllegalArgumentException( "invalid window: " + low + " " + high);
+	this.low= low;
+	this.high= high;
+	// a window of width 0 becomes a threshold
+	scale= high > low ? 255f / (high - low) : Float.MAX_VALUE;
+	if( null == lut)
+	    return;
+	final boolean signed= VolumeHeader.TYPE_SHORT == type;
+	for( int bits= 0; bits < lut.length; ++bits) {
+	    final float f= ( (signed ? (short)bits : bits) - low) * scale + 0.5f;
+	    lut[ bits]= (byte)( f >= 255f ? 255 : ( f > 0f ? (int)f : 0));
+	}
+    }
+
+    /**
+     * @param voxel_value a 0..255 (byte) value
+     * @return the image value corresponding to voxel_value, through
+     * the current window
+     */
+    final public float voxel2image( short voxel_value) {
+	return (float)voxel_value / 255f * (high - low) + low;
+    }
+
+    /**
+     * @param image_value (aka real value)
+     * @return the 0..255 voxel value corresponding to image_value,
+     * through the current window (not clamped)
+     */
+    final public short image2voxel( float image_value) {
+	return (short)Math.round( (image_value - low) * scale);
+    }
+
+    final /*private*/ void _setLoaded( int index, int count) {
+
+	// (slabs next to each other can share words)
+	synchronized( loaded) {
+	    _setLoadedBits( index, count);
+	}
+    }
+
+    final /*private*/ void _setLoadedBits( int index, int count) {
+
+	for( final int end= index + count; index < end; ) {
+	    final int bits= Math.min( 64 - (index & 63), end - index);
+	    final long mask= ( 64 == bits ? -1L : ( (1L << bits) - 1) ) << (index & 63);
+	    loaded[ index >> 6] |= mask;
+	    index += bits;
+	}
+    }
+
+    static final /*private*/ boolean _isLoaded( long[] loaded, int index) {
+	return 0 != ( loaded[ index >> 6] & (1L << (index & 63)) );
+    }
+
+    /** @return true if none of voxels index ... index+count-1 is
+	loaded, according to the bits in 'loaded' */
+    static final /*private*/ boolean _isEmpty( long[] loaded, int index, int count) {
+
+	for( final int end= index + count; index < end; ) {
+	    final int bits= Math.min( 64 - (index & 63), end - index);
+	    final long mask= ( 64 == bits ? -1L : ( (1L << bits) - 1) ) << (index & 63);
+	    if( 0 != ( loaded[ index >> 6] & mask))
+		return false;
+	    index += bits;
+	}
+	return true;
+    }
+
+    /** @return true if all of voxels index ... index+count-1 are
+	loaded, according to the bits in 'loaded' */
+    static final /*private*/ boolean _isFull( long[] loaded, int index, int count) {
+
+	for( final int end= index + count; index < end; ) {
+	    final int bits= Math.min( 64 - (index & 63), end - index);
+	    final long mask= ( 64 == bits ? -1L : ( (1L << bits) - 1) ) << (index & 63);
+	    if( mask != ( loaded[ index >> 6] & mask))
+		return false;
+	    index += bits;
+	}
+	return true;
+    }
+
+    public String toString() {
+	return "WideVoxelData[" + volume + "," + VolumeHeader.TYPE_NAMES[ type] + "]";
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+  This file is part of JIV2.
+  Copyright (C) 2000, 2001 Chris A. Cocosco (crisco@bic.mni.mcgill.ca),
+  2010 Lara Bailey (bailey@bic.mni.mcgill.ca).
+
+  JIV2 is free software; you can redistribute it and/or modify it under
+  the terms of the GNU General Public License as published by the Free
+  Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  JIV2 is distributed in the hope that it will be useful, but WITHOUT
+  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+  License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with JIV2; if not, write to the Free Software Foundation, Inc.,
+  59 Temple Place, Suite 330, Boston, MA 02111-1307 USA,
+  or see http://www.gnu.org/copyleft/gpl.html
+*/
+
+
+package jiv2;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A small pool of threads for splitting CPU-bound loops (e.g. the
+ * resampling of a slab) across the processors.
+ * <p>
+ * The thread calling <code>parallelFor</code> works on the loop too,
+ * and only waits for the parts the pool threads already started. So
+ * a loop always completes, even when all the pool threads are busy
+ * with other loops (it then simply runs on the caller alone).
+ *
+ * @version $Id$
+ */
+public final class WorkerPool {
+
+    /*private*/ static WorkerPool	shared;
+
+    /** null if there's only one processor (the caller does everything) */
+    /*private*/ final ExecutorService	threads;
+    /*private*/ final int		n_threads;
+
+    /** @param n_threads number of pool threads (besides the callers) */
+    public WorkerPool( int n_threads) {
+
+	this.n_threads= Math.max( 0, n_threads);
+	threads= ( 0 == this.n_threads) ? null :
+	    Executors.newFixedThreadPool( this.n_threads, new ThreadFactory() {
+		    public Thread newThread( Runnable r) {
+			Thread t= new Thread( r, "worker");
+			t.setDaemon( true);
+			return t;
+		    }
+		});
+    }
+
+    /** @return the pool shared by all the volumes (one thread per
+	extra processor) */
+    static synchronized final public WorkerPool getShared() {
+
+	if( null == shared)
+	    shared= new WorkerPool( Runtime.getRuntime().availableProcessors() - 1);
+	return shared;
+    }
+
+    /** The body of a parallel loop. */
+    public interface Body {
+	/** Runs iterations first ... last-1; can be called from
+	    several threads at the same time (with different ranges). */
+	void run( int first, int last);
+    }
+
+    /**
+     * Runs iterations 0 ... n-1 of 'body', in parts of (about)
+     * 'grain' iterations, some of them in the pool threads. Returns
+     * when all are done.
+     */
+    final public void parallelFor( int n, int grain, Body body) {
+
+	if( grain < 1)
+	    grain= 1;
+	if( null == threads || n <= grain) {
+	    body.run( 0, n);
+	    return;
+	}
+	Loop loop= new Loop( n, grain, body);
+	int helpers= Math.min( n_threads, loop.n_parts - 1);
+	for( int i= 0; i < helpers; ++i)
+	    threads.execute( loop);
+	loop.run();
+	loop.await();
+    }
+
+
+    /** One parallelFor: its parts are claimed in order, by whichever
+	thread gets there first. */
+    /*private*/ static final class Loop implements Runnable {
+
+	/*private*/ final int		n;
+	/*private*/ final int		grain;
+	/*private*/ final int		n_parts;
+	/*private*/ final Body		body;
+	/** next part to be claimed */
+	/*private*/ final AtomicInteger	next= new AtomicInteger();
+	/** number of parts completed */
+	/*private*/ int			done;
+	/*private*/ Throwable		error;
+
+	Loop( int n, int grain, Body body) {
+	    this.n= n;
+	    this.grain= grain;
+	    this.body= body;
+	    n_parts= (n + grain - 1) / grain;
+	}
+
+	public void run() {
+
+	    int part;
+	    while( ( part= next.getAndIncrement()) < n_parts) {
+		try {
+		    body.run( part * grain, Math.min( n, (part + 1) * grain));
+		}
+		catch( Throwable t) {
+		    synchronized( this) {
+			if( null == error)
+			    error= t;
+		    }
+		}
+		finally {
+		    synchronized( this) {
+			if( ++done == n_parts)
+			    notifyAll();
+		    }
+		}
+	    }
+	}
+
+	/** waits for all the parts to complete, and passes on the
+	    first error */
+	synchronized final void await() {
+
+	    boolean interrupted= false;
+	    while( done < n_parts) {
+		try {
+		    wait();
+		}
+		catch( InterruptedException e) {
+		    // the other threads are still writing into our data...
+		    interrupted= true;
+		}
+	    }
+	    if( interrupted)
+		Thread.currentThread().interrupt();
+	    if( error instanceof RuntimeException)
+		throw (RuntimeException)error;
+	    if( error instanceof Error)
+		throw (Error)error;
+	}
+    }
+    // end of class Loop
+
+}